@@ -29,7 +29,12 @@ public class CrawlDatum implements WritableComparable, Cloneable {
   public static final String FETCH_DIR_NAME = "crawl_fetch";
   public static final String PARSE_DIR_NAME = "crawl_parse";
 
-  private final static byte CUR_VERSION = 6;
+  private final static byte CUR_VERSION = 7;
+
+  /** Flags of the optional fields of version 7. */
+  private static final int HAS_MODIFIED_TIME = 0x01;
+  private static final int HAS_SIGNATURE = 0x02;
+  private static final int HAS_METADATA = 0x04;
 
   /** Compatibility values for on-the-fly conversion from versions < 5. */
   private static final byte OLD_STATUS_SIGNATURE = 0;
@@ -119,6 +124,16 @@ public class CrawlDatum implements WritableComparable, Cloneable {
   private byte[] signature = null;
   private long modifiedTime;
   private MapWritable metaData;
+  /**
+   * The serialized metadata read by {@link #readFields(DataInput)}, decoded
+   * into {@link #metaData} only when it is asked for. The array is never
+   * modified, so copies may share it.
+   */
+  private byte[] metaBytes;
+  private int metaLength;
+  /** Buffers reused to read and write the fields of version 7. */
+  private byte[] buf;
+  private DataOutputBuffer fields;
   
   public static boolean hasDbStatus(CrawlDatum datum) {
     if (datum.status <= STATUS_DB_MAX) return true;
@@ -131,7 +146,6 @@ public class CrawlDatum implements WritableComparable, Cloneable {
   }
 
   public CrawlDatum() {
-    metaData = new MapWritable();
   }
 
   public CrawlDatum(int status, int fetchInterval) {
@@ -201,16 +215,37 @@ public class CrawlDatum implements WritableComparable, Cloneable {
     this.signature = signature;
   }
   
-   public void setMetaData(MapWritable mapWritable) {this.metaData = mapWritable; }
+   public void setMetaData(MapWritable mapWritable) {
+     this.metaData = mapWritable;
+     this.metaLength = 0;
+   }
 
   /**
    * returns a MapWritable if it was set or read in @see readFields(DataInput), 
    * returns empty map in case CrawlDatum was freshly created (lazily instantiated).
+   * Metadata read from a stream is only decoded by the first call.
    */
   public MapWritable getMetaData() {
-    if (this.metaData == null) this.metaData = new MapWritable();
+    if (this.metaData == null) {
+      this.metaData = new MapWritable();
+      if (metaLength > 0) {
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(metaBytes, metaLength);
+        try {
+          metaData.readFields(in);
+        } catch (IOException e) {
+          throw new RuntimeException("Corrupt metadata", e);
+        }
+        metaLength = 0;
+      }
+    }
     return this.metaData;
   }
+
+  /** Return true if there is metadata, without decoding it. */
+  private boolean hasMetaData() {
+    return metaData != null ? metaData.size() > 0 : metaLength > 0;
+  }
   
 
   //
@@ -229,6 +264,13 @@ public class CrawlDatum implements WritableComparable, Cloneable {
     if (version > CUR_VERSION)                   // check version
       throw new VersionMismatchException(CUR_VERSION, version);
 
+    metaData = null;
+    metaLength = 0;
+    if (version > 6) {
+      readCompactFields(in);
+      return;
+    }
+
     status = in.readByte();
     fetchTime = in.readLong();
     retries = in.readByte();
@@ -245,9 +287,8 @@ public class CrawlDatum implements WritableComparable, Cloneable {
       } else signature = null;
     }
     if (version > 3) {
-      metaData.clear();
       if (in.readBoolean()) {
-        metaData.readFields(in);
+        getMetaData().readFields(in);
       }
     }
     // translate status codes
@@ -260,30 +301,97 @@ public class CrawlDatum implements WritableComparable, Cloneable {
     }
   }
 
-  /** The number of bytes into a CrawlDatum that the score is stored. */
+  /**
+   * Read the fields of version 7. They are preceded by their length, and
+   * read at once: the status, flags telling which optional fields follow,
+   * the fetch time and the fetch interval as variable-length numbers, the
+   * retries and the score, the modified time (as its distance to the fetch
+   * time) and the signature if set, and the metadata, which is kept as raw
+   * bytes until it is asked for.
+   */
+  private void readCompactFields(DataInput in) throws IOException {
+    int length = WritableUtils.readVInt(in);
+    byte[] buf = buffer(length);
+    in.readFully(buf, 0, length);
+
+    int pos = 0;
+    status = buf[pos++];
+    int flags = buf[pos++];
+    fetchTime = WritableComparator.readVLong(buf, pos);
+    pos += WritableUtils.decodeVIntSize(buf[pos]);
+    retries = buf[pos++];
+    fetchInterval = WritableComparator.readVInt(buf, pos);
+    pos += WritableUtils.decodeVIntSize(buf[pos]);
+    score = WritableComparator.readFloat(buf, pos);
+    pos += 4;
+    if ((flags & HAS_MODIFIED_TIME) != 0) {
+      modifiedTime = fetchTime - WritableComparator.readVLong(buf, pos);
+      pos += WritableUtils.decodeVIntSize(buf[pos]);
+    } else {
+      modifiedTime = 0L;
+    }
+    if ((flags & HAS_SIGNATURE) != 0) {
+      int sigLength = WritableComparator.readVInt(buf, pos);
+      pos += WritableUtils.decodeVIntSize(buf[pos]);
+      signature = new byte[sigLength];
+      System.arraycopy(buf, pos, signature, 0, sigLength);
+      pos += sigLength;
+    } else {
+      signature = null;
+    }
+    if ((flags & HAS_METADATA) != 0) {
+      metaLength = length - pos;
+      metaBytes = new byte[metaLength];
+      System.arraycopy(buf, pos, metaBytes, 0, metaLength);
+    }
+  }
+
+  /** A buffer of at least <code>length</code> bytes, reused by this instance. */
+  private byte[] buffer(int length) {
+    if (buf == null || buf.length < length) {
+      buf = new byte[Math.max(length, 64)];
+    }
+    return buf;
+  }
+
+  /** The number of bytes into a CrawlDatum of version 6 that the score is stored. */
   private static final int SCORE_OFFSET = 1 + 1 + 8 + 1 + 4;
   private static final int SIG_OFFSET = SCORE_OFFSET + 4 + 8;
 
   public void write(DataOutput out) throws IOException {
-    out.writeByte(CUR_VERSION);                   // store current version
-    out.writeByte(status);
-    out.writeLong(fetchTime);
-    out.writeByte(retries);
-    out.writeInt(fetchInterval);
-    out.writeFloat(score);
-    out.writeLong(modifiedTime);
-    if (signature == null) {
-      out.writeByte(0);
-    } else {
-      out.writeByte(signature.length);
-      out.write(signature);
+    int flags = 0;
+    if (modifiedTime != 0L) flags |= HAS_MODIFIED_TIME;
+    if (signature != null && signature.length > 0) flags |= HAS_SIGNATURE;
+    if (hasMetaData()) flags |= HAS_METADATA;
+
+    if (fields == null) {
+      fields = new DataOutputBuffer();
     }
-    if (metaData != null && metaData.size() > 0) {
-      out.writeBoolean(true);
-      metaData.write(out);
-    } else {
-      out.writeBoolean(false);
+    fields.reset();
+    fields.writeByte(status);
+    fields.writeByte(flags);
+    WritableUtils.writeVLong(fields, fetchTime);
+    fields.writeByte(retries);
+    WritableUtils.writeVInt(fields, fetchInterval);
+    fields.writeFloat(score);
+    if ((flags & HAS_MODIFIED_TIME) != 0) {
+      WritableUtils.writeVLong(fields, fetchTime - modifiedTime);
+    }
+    if ((flags & HAS_SIGNATURE) != 0) {
+      WritableUtils.writeVInt(fields, signature.length);
+      fields.write(signature);
     }
+    if ((flags & HAS_METADATA) != 0) {
+      if (metaData != null) {                     // decoded, maybe modified
+        metaData.write(fields);
+      } else {                                    // as it was read
+        fields.write(metaBytes, 0, metaLength);
+      }
+    }
+
+    out.writeByte(CUR_VERSION);                   // store current version
+    WritableUtils.writeVInt(out, fields.getLength());
+    out.write(fields.getData(), 0, fields.getLength());
   }
 
   /** Copy the contents of another instance into this instance. */
@@ -295,7 +403,14 @@ public class CrawlDatum implements WritableComparable, Cloneable {
     this.score = that.score;
     this.modifiedTime = that.modifiedTime;
     this.signature = that.signature;
-    this.metaData = new MapWritable(that.metaData); // make a deep copy
+    if (that.metaData != null) {
+      this.metaData = new MapWritable(that.metaData); // make a deep copy
+      this.metaLength = 0;
+    } else {
+      this.metaData = null;
+      this.metaBytes = that.metaBytes;            // never modified
+      this.metaLength = that.metaLength;
+    }
   }
 
 
@@ -318,14 +433,18 @@ public class CrawlDatum implements WritableComparable, Cloneable {
       return (that.fetchInterval - this.fetchInterval) > 0 ? 1 : -1;
     if (that.modifiedTime != this.modifiedTime)
       return (that.modifiedTime - this.modifiedTime) > 0 ? 1 : -1;
-    return SignatureComparator._compare(this, that);
+    return SignatureComparator._compare(this.signature, that.signature);
   }
 
   /** A Comparator optimized for CrawlDatum. */ 
   public static class Comparator extends WritableComparator {
-    public Comparator() { super(CrawlDatum.class); }
+    public Comparator() { super(CrawlDatum.class, true); }
 
     public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      if (b1[s1] != 6 || b2[s2] != 6) {
+        // variable-length fields, compare the (cheaply) deserialized instances
+        return super.compare(b1, s1, l1, b2, s2, l2);
+      }
       float score1 = readFloat(b1,s1+SCORE_OFFSET);
       float score2 = readFloat(b2,s2+SCORE_OFFSET);
       if (score2 != score1) {
@@ -353,7 +472,8 @@ public class CrawlDatum implements WritableComparable, Cloneable {
         return (modifiedTime2 - modifiedTime1) > 0 ? 1 : -1;
       int sigl1 = b1[s1+SIG_OFFSET];
       int sigl2 = b2[s2+SIG_OFFSET];
-      return SignatureComparator._compare(b1, SIG_OFFSET, sigl1, b2, SIG_OFFSET, sigl2);
+      return SignatureComparator._compare(b1, s1 + SIG_OFFSET + 1, sigl1,
+                                          b2, s2 + SIG_OFFSET + 1, sigl2);
     }
   }
 
@@ -377,7 +497,7 @@ public class CrawlDatum implements WritableComparable, Cloneable {
         (getFetchInterval() / FetchSchedule.SECONDS_PER_DAY) + " days)\n");
     buf.append("Score: " + getScore() + "\n");
     buf.append("Signature: " + StringUtil.toHexString(getSignature()) + "\n");
-    buf.append("Metadata: " + (metaData != null ? metaData.toString() : "null") + "\n");
+    buf.append("Metadata: " + getMetaData().toString() + "\n");
     return buf.toString();
   }
 
@@ -395,15 +515,13 @@ public class CrawlDatum implements WritableComparable, Cloneable {
       (this.score == other.score);
     if (!res) return res;
     // allow zero-sized metadata to be equal to null metadata
-    if (this.metaData == null) {
-      if (other.metaData != null && other.metaData.size() > 0) return false;
-      else return true;
+    if (!this.hasMetaData()) {
+      return !other.hasMetaData();
     } else {
-      if (other.metaData == null) {
-        if (this.metaData.size() == 0) return true;
-        else return false;
+      if (!other.hasMetaData()) {
+        return false;
       } else {
-        return this.metaData.equals(other.metaData);
+        return this.getMetaData().equals(other.getMetaData());
       }
     }
   }
@@ -416,7 +534,7 @@ public class CrawlDatum implements WritableComparable, Cloneable {
                 signature[i+2] << 8 + signature[i+3]);
       }
     }
-    if (metaData != null) res ^= metaData.hashCode();
+    if (hasMetaData()) res ^= getMetaData().hashCode();
     return
       res ^ status ^
       ((int)fetchTime) ^
@@ -428,7 +546,10 @@ public class CrawlDatum implements WritableComparable, Cloneable {
 
   public Object clone() {
     try {
-      return super.clone();
+      CrawlDatum clone = (CrawlDatum)super.clone();
+      clone.buf = null;                           // don't share the buffers
+      clone.fields = null;
+      return clone;
     } catch (CloneNotSupportedException e) {
       throw new RuntimeException(e);
     }
@@ -18,6 +18,7 @@
 package org.apache.nutch.crawl;
 
 import java.io.*;
+import java.text.NumberFormat;
 import java.util.*;
 
 // Commons Logging imports
@@ -28,8 +29,11 @@ import org.apache.hadoop.io.*;
 import org.apache.hadoop.fs.*;
 import org.apache.hadoop.conf.*;
 import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.mapred.lib.HashPartitioner;
+import org.apache.hadoop.mapred.lib.MultipleOutputFormat;
 import org.apache.hadoop.util.*;
 
+import org.apache.nutch.util.BloomFilter;
 import org.apache.nutch.util.HadoopFSUtil;
 import org.apache.nutch.util.LockUtil;
 import org.apache.nutch.util.NutchConfiguration;
@@ -44,6 +48,16 @@ public class CrawlDb extends Configured implements Tool {
 
   public static final String CRAWLDB_ADDITIONS_ALLOWED = "db.update.additions.allowed";
 
+  public static final String CRAWLDB_INCREMENTAL = "db.update.incremental";
+
+  public static final String CRAWLDB_BLOOM_FILTER = "db.bloom.filter";
+
+  public static final String CRAWLDB_BLOOM_FILTER_ERROR_RATE =
+    "db.bloom.filter.error.rate";
+
+  /** Name of the Bloom filter file in each part of a db. */
+  public static final String BLOOM_FILTER_NAME = "bloom";
+
   public static final String CURRENT_NAME = "current";
   
   public static final String LOCK_NAME = ".locked";
@@ -76,17 +90,41 @@ public class CrawlDb extends Configured implements Tool {
     job.setBoolean(CRAWLDB_ADDITIONS_ALLOWED, additionsAllowed);
     job.setBoolean(CrawlDbFilter.URL_FILTERING, filter);
     job.setBoolean(CrawlDbFilter.URL_NORMALIZING, normalize);
+    Path current = new Path(crawlDb, CURRENT_NAME);
+    if (!additionsAllowed && getConf().getBoolean(CRAWLDB_BLOOM_FILTER, false)
+        && fs.exists(current)) {
+      // segment data of urls not in the db can be dropped before the shuffle
+      job.set(CrawlDbFilter.KNOWN_URLS, current.toString());
+    }
+    List<Path> segmentData = new ArrayList<Path>();
     for (int i = 0; i < segments.length; i++) {
       Path fetch = new Path(segments[i], CrawlDatum.FETCH_DIR_NAME);
       Path parse = new Path(segments[i], CrawlDatum.PARSE_DIR_NAME);
       if (fs.exists(fetch) && fs.exists(parse)) {
         FileInputFormat.addInputPath(job, fetch);
         FileInputFormat.addInputPath(job, parse);
+        segmentData.add(fetch);
+        segmentData.add(parse);
       } else {
         LOG.info(" - skipping invalid segment " + segments[i]);
       }
     }
 
+    int[] reusedParts = null;
+    if (getConf().getBoolean(CRAWLDB_INCREMENTAL, false)) {
+      if (normalize || filter) {
+        // every entry of the db has to go through the filters
+        LOG.info("CrawlDb update: normalizing or filtering, rewriting all parts.");
+      } else {
+        try {
+          reusedParts = selectTouchedParts(job, crawlDb, segmentData);
+        } catch (IOException e) {
+          LockUtil.removeLockFile(fs, lock);
+          throw e;
+        }
+      }
+    }
+
     if (LOG.isInfoEnabled()) {
       LOG.info("CrawlDb update: Merging segment data into db.");
     }
@@ -99,10 +137,265 @@ public class CrawlDb extends Configured implements Tool {
       throw e;
     }
 
-    CrawlDb.install(job, crawlDb);
+    CrawlDb.install(job, crawlDb, reusedParts);
     if (LOG.isInfoEnabled()) { LOG.info("CrawlDb update: done"); }
   }
 
+  /**
+   * Restrict an update job to the parts of the current db that the segment
+   * data falls into. The parts of a db are written by a
+   * {@link HashPartitioner}, so the part of each url is known from the number
+   * of parts alone; a first, small job finds the parts of the urls in the
+   * segment data. Parts receiving no new data come out of the update
+   * unchanged, so they are not read or rewritten, but moved to the new db
+   * as they are by {@link #install(JobConf, Path, int[])}.
+   * @return the numbers of the parts to reuse, or null if all parts are
+   *         rewritten.
+   */
+  private int[] selectTouchedParts(JobConf job, Path crawlDb,
+                                   List<Path> segmentData)
+    throws IOException {
+    FileSystem fs = FileSystem.get(job);
+    Path current = new Path(crawlDb, CURRENT_NAME);
+    int numParts = getNumParts(fs, current);
+    if (numParts <= 0 || segmentData.isEmpty()) {
+      return null;
+    }
+
+    Path touchedDir =
+      new Path(job.get("mapred.temp.dir", ".") +
+               "/crawldb-parts-" + Integer.toString(new Random().nextInt(Integer.MAX_VALUE)));
+    JobConf partsJob = new NutchJob(getConf());
+    partsJob.setJobName("crawldb parts " + crawlDb);
+    for (Path input : segmentData) {
+      FileInputFormat.addInputPath(partsJob, input);
+    }
+    partsJob.setInputFormat(SequenceFileInputFormat.class);
+    partsJob.setInt(NUM_PARTS, numParts);
+    partsJob.setMapperClass(TouchedParts.class);
+    partsJob.setCombinerClass(TouchedParts.class);
+    partsJob.setReducerClass(TouchedParts.class);
+    partsJob.setNumReduceTasks(1);
+    FileOutputFormat.setOutputPath(partsJob, touchedDir);
+    partsJob.setOutputFormat(SequenceFileOutputFormat.class);
+    partsJob.setOutputKeyClass(IntWritable.class);
+    partsJob.setOutputValueClass(NullWritable.class);
+
+    boolean[] touched = new boolean[numParts];
+    int numTouched = 0;
+    try {
+      JobClient.runJob(partsJob);
+      SequenceFile.Reader[] readers =
+        SequenceFileOutputFormat.getReaders(partsJob, touchedDir);
+      IntWritable part = new IntWritable();
+      for (int i = 0; i < readers.length; i++) {
+        while (readers[i].next(part)) {
+          touched[part.get()] = true;
+          numTouched++;
+        }
+        readers[i].close();
+      }
+    } finally {
+      fs.delete(touchedDir, true);
+    }
+    if (LOG.isInfoEnabled()) {
+      LOG.info("CrawlDb update: rewriting " + numTouched + " of " + numParts
+               + " parts.");
+    }
+    if (numTouched == numParts) {
+      return null;
+    }
+
+    // read only the touched parts, and write the db with as many parts
+    FileInputFormat.setInputPaths(job,
+        segmentData.toArray(new Path[segmentData.size()]));
+    int[] reused = new int[numParts - numTouched];
+    for (int i = 0, r = 0; i < numParts; i++) {
+      if (touched[i]) {
+        FileInputFormat.addInputPath(job, new Path(new Path(current, partName(i)),
+                                                   MapFile.DATA_FILE_NAME));
+      } else {
+        reused[r++] = i;
+      }
+    }
+    job.setInt(NUM_PARTS, numParts);
+    job.setNumReduceTasks(numParts);
+    job.setOutputFormat(PartOutputFormat.class);
+    return reused;
+  }
+
+  /**
+   * Return the number of parts of a db, or -1 if its parts are not numbered
+   * from zero without gaps, as written by a job.
+   */
+  static int getNumParts(FileSystem fs, Path db) throws IOException {
+    if (!fs.exists(db)) {
+      return -1;
+    }
+    FileStatus[] parts = fs.listStatus(db);
+    for (int i = 0; i < parts.length; i++) {
+      if (!fs.exists(new Path(db, partName(i)))) {
+        return -1;
+      }
+    }
+    return parts.length;
+  }
+
+  private static String partName(int part) {
+    return "part-" + NUMBER_FORMAT.format(part);
+  }
+
+  private static final NumberFormat NUMBER_FORMAT = NumberFormat.getInstance();
+  static {
+    NUMBER_FORMAT.setMinimumIntegerDigits(5);
+    NUMBER_FORMAT.setGroupingUsed(false);
+  }
+
+  private static final String NUM_PARTS = "crawldb.parts";
+
+  /**
+   * Read the Bloom filters of the parts of a db.
+   * @return the filters by part number, or null if a part has no filter.
+   */
+  public static BloomFilter[] readBloomFilters(FileSystem fs, Path db)
+    throws IOException {
+    int numParts = getNumParts(fs, db);
+    if (numParts <= 0) {
+      return null;
+    }
+    BloomFilter[] filters = new BloomFilter[numParts];
+    for (int i = 0; i < numParts; i++) {
+      Path file = new Path(new Path(db, partName(i)), BLOOM_FILTER_NAME);
+      if (!fs.exists(file)) {
+        return null;
+      }
+      FSDataInputStream in = fs.open(file);
+      try {
+        filters[i] = new BloomFilter();
+        filters[i].readFields(in);
+      } finally {
+        in.close();
+      }
+    }
+    return filters;
+  }
+
+  private static void writeBloomFilter(FileSystem fs, Path file,
+                                       BloomFilter filter) throws IOException {
+    FSDataOutputStream out = fs.create(file);
+    try {
+      filter.write(out);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Writes the parts of a db as {@link MapFileOutputFormat} does. With
+   * {@link #CRAWLDB_BLOOM_FILTER} set it also writes a {@link BloomFilter}
+   * of the urls of each part, next to its data and index. The hashes of the
+   * urls are kept in memory until the part is complete.
+   */
+  public static class BloomMapFileOutputFormat extends MapFileOutputFormat {
+
+    public RecordWriter<WritableComparable, Writable> getRecordWriter(
+        FileSystem ignored, JobConf job, String name, Progressable progress)
+      throws IOException {
+      final RecordWriter<WritableComparable, Writable> writer =
+        super.getRecordWriter(ignored, job, name, progress);
+      if (!job.getBoolean(CRAWLDB_BLOOM_FILTER, false)) {
+        return writer;
+      }
+      final Path file = new Path(FileOutputFormat.getTaskOutputPath(job, name),
+                                 BLOOM_FILTER_NAME);
+      final FileSystem fs = file.getFileSystem(job);
+      final float errorRate = job.getFloat(CRAWLDB_BLOOM_FILTER_ERROR_RATE, 0.01f);
+
+      return new RecordWriter<WritableComparable, Writable>() {
+        private long[] hashes = new long[1024];
+        private int count = 0;
+
+        public void write(WritableComparable key, Writable value)
+          throws IOException {
+          writer.write(key, value);
+          if (count == hashes.length) {
+            long[] grown = new long[count * 2];
+            System.arraycopy(hashes, 0, grown, 0, count);
+            hashes = grown;
+          }
+          Text url = (Text) key;
+          hashes[count++] = BloomFilter.hash(url.getBytes(), 0, url.getLength());
+        }
+
+        public void close(Reporter reporter) throws IOException {
+          writer.close(reporter);
+          BloomFilter filter = new BloomFilter(count, errorRate);
+          for (int i = 0; i < count; i++) {
+            filter.add(hashes[i]);
+          }
+          writeBloomFilter(fs, file, filter);
+        }
+      };
+    }
+  }
+
+  /**
+   * Writes each entry to the part of the db it belongs to, whatever the
+   * reduce task writing it. With as many reduce tasks as parts, this is the
+   * task's own part, but a local job runs a single reduce task.
+   */
+  public static class PartOutputFormat
+    extends MultipleOutputFormat<Text, CrawlDatum> {
+    private MapFileOutputFormat mapFiles = new BloomMapFileOutputFormat();
+    private HashPartitioner<Text, CrawlDatum> partitioner =
+      new HashPartitioner<Text, CrawlDatum>();
+    private int numParts;
+
+    public RecordWriter<Text, CrawlDatum> getRecordWriter(FileSystem fs,
+        JobConf job, String name, Progressable progress) throws IOException {
+      numParts = job.getInt(NUM_PARTS, 1);
+      return super.getRecordWriter(fs, job, name, progress);
+    }
+
+    protected String generateFileNameForKeyValue(Text key, CrawlDatum value,
+                                                 String name) {
+      return partName(partitioner.getPartition(key, value, numParts));
+    }
+
+    @SuppressWarnings("unchecked")
+    protected RecordWriter<Text, CrawlDatum> getBaseRecordWriter(FileSystem fs,
+        JobConf job, String name, Progressable progress) throws IOException {
+      return (RecordWriter) mapFiles.getRecordWriter(fs, job, name, progress);
+    }
+  }
+
+  /** Finds the parts of a db the urls of segment data fall into. */
+  public static class TouchedParts extends MapReduceBase
+    implements Mapper<Text, Writable, IntWritable, NullWritable>,
+               Reducer<IntWritable, NullWritable, IntWritable, NullWritable> {
+    private HashPartitioner<Text, Writable> partitioner =
+      new HashPartitioner<Text, Writable>();
+    private int numParts;
+    private IntWritable part = new IntWritable();
+
+    public void configure(JobConf job) {
+      numParts = job.getInt(NUM_PARTS, 1);
+    }
+
+    public void map(Text key, Writable value,
+                    OutputCollector<IntWritable, NullWritable> output,
+                    Reporter reporter) throws IOException {
+      part.set(partitioner.getPartition(key, value, numParts));
+      output.collect(part, NullWritable.get());
+    }
+
+    public void reduce(IntWritable key, Iterator<NullWritable> values,
+                       OutputCollector<IntWritable, NullWritable> output,
+                       Reporter reporter) throws IOException {
+      output.collect(key, NullWritable.get());
+    }
+  }
+
   public static JobConf createJob(Configuration config, Path crawlDb)
     throws IOException {
     Path newCrawlDb =
@@ -120,10 +413,11 @@ public class CrawlDb extends Configured implements Tool {
     job.setInputFormat(SequenceFileInputFormat.class);
 
     job.setMapperClass(CrawlDbFilter.class);
+    job.setCombinerClass(CrawlDbCombiner.class);
     job.setReducerClass(CrawlDbReducer.class);
 
     FileOutputFormat.setOutputPath(job, newCrawlDb);
-    job.setOutputFormat(MapFileOutputFormat.class);
+    job.setOutputFormat(BloomMapFileOutputFormat.class);
     job.setOutputKeyClass(Text.class);
     job.setOutputValueClass(CrawlDatum.class);
 
@@ -131,6 +425,16 @@ public class CrawlDb extends Configured implements Tool {
   }
 
   public static void install(JobConf job, Path crawlDb) throws IOException {
+    install(job, crawlDb, null);
+  }
+
+  /**
+   * Install the output of a job as the current db, moving the parts of the
+   * current db listed in <code>reusedParts</code> into it in place of the
+   * (empty) parts written by the job.
+   */
+  public static void install(JobConf job, Path crawlDb, int[] reusedParts)
+    throws IOException {
     Path newCrawlDb = FileOutputFormat.getOutputPath(job);
     FileSystem fs = new JobClient(job).getFs();
     Path old = new Path(crawlDb, "old");
@@ -139,6 +443,28 @@ public class CrawlDb extends Configured implements Tool {
       if (fs.exists(old)) fs.delete(old, true);
       fs.rename(current, old);
     }
+    if (reusedParts != null) {
+      for (int i = 0; i < reusedParts.length; i++) {
+        Path part = new Path(newCrawlDb, partName(reusedParts[i]));
+        if (!fs.rename(new Path(old, partName(reusedParts[i])), part)) {
+          throw new IOException("Could not move " + part + " to the new db");
+        }
+      }
+      // touched parts may have lost all their entries
+      int numParts = job.getInt(NUM_PARTS, 0);
+      for (int i = 0; i < numParts; i++) {
+        Path part = new Path(newCrawlDb, partName(i));
+        if (!fs.exists(part)) {
+          new MapFile.Writer(job, fs, part.toString(), Text.class,
+                             CrawlDatum.class).close();
+          if (job.getBoolean(CRAWLDB_BLOOM_FILTER, false)) {
+            writeBloomFilter(fs, new Path(part, BLOOM_FILTER_NAME),
+                new BloomFilter(0, job.getFloat(CRAWLDB_BLOOM_FILTER_ERROR_RATE,
+                                                0.01f)));
+          }
+        }
+      }
+    }
     fs.mkdirs(crawlDb);
     fs.rename(newCrawlDb, current);
     if (fs.exists(old)) fs.delete(old, true);
@@ -153,7 +479,7 @@ public class CrawlDb extends Configured implements Tool {
 
   public int run(String[] args) throws Exception {
     if (args.length < 2) {
-      System.err.println("Usage: CrawlDb <crawldb> (-dir <segments> | <seg1> <seg2> ...) [-force] [-normalize] [-filter] [-noAdditions]");
+      System.err.println("Usage: CrawlDb <crawldb> (-dir <segments> | <seg1> <seg2> ...) [-force] [-normalize] [-filter] [-noAdditions] [-incremental]");
       System.err.println("\tcrawldb\tCrawlDb to update");
       System.err.println("\t-dir segments\tparent directory containing all segments to update from");
       System.err.println("\tseg1 seg2 ...\tlist of segment names to update from");
@@ -161,6 +487,7 @@ public class CrawlDb extends Configured implements Tool {
       System.err.println("\t-normalize\tuse URLNormalizer on urls in CrawlDb and segment (usually not needed)");
       System.err.println("\t-filter\tuse URLFilters on urls in CrawlDb and segment");
       System.err.println("\t-noAdditions\tonly update already existing URLs, don't add any newly discovered URLs");
+      System.err.println("\t-incremental\tonly rewrite the parts of the CrawlDb that the segments update");
       return -1;
     }
     boolean normalize = false;
@@ -178,6 +505,8 @@ public class CrawlDb extends Configured implements Tool {
         force = true;
       } else if (args[i].equals("-noAdditions")) {
         additionsAllowed = false;
+      } else if (args[i].equals("-incremental")) {
+        getConf().setBoolean(CRAWLDB_INCREMENTAL, true);
       } else if (args[i].equals("-dir")) {
         FileStatus[] paths = fs.listStatus(new Path(args[++i]), HadoopFSUtil.getPassDirectoriesFilter(fs));
         dirs.addAll(Arrays.asList(HadoopFSUtil.getPaths(paths)));
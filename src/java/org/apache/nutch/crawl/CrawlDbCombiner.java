@@ -0,0 +1,90 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutch.crawl;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.nutch.scoring.ScoringFilterException;
+import org.apache.nutch.scoring.ScoringFilters;
+
+/**
+ * Combines the {@link CrawlDatum#STATUS_LINKED} datums of a url before they
+ * reach {@link CrawlDbReducer}, merging them with
+ * {@link ScoringFilters#mergeInlinked(Text, CrawlDatum, CrawlDatum)} as long
+ * as the scoring filters allow it. All other datums are passed on as they
+ * are.
+ */
+public class CrawlDbCombiner
+  implements Reducer<Text, CrawlDatum, Text, CrawlDatum> {
+
+  public static final Log LOG = LogFactory.getLog(CrawlDbCombiner.class);
+
+  private ScoringFilters scfilters;
+
+  private CrawlDatum linked = new CrawlDatum();
+
+  public void configure(JobConf job) {
+    scfilters = new ScoringFilters(job);
+  }
+
+  public void close() {}
+
+  public void reduce(Text key, Iterator<CrawlDatum> values,
+                     OutputCollector<Text, CrawlDatum> output,
+                     Reporter reporter) throws IOException {
+    boolean linkedSet = false;
+    int merged = 0;
+    while (values.hasNext()) {
+      CrawlDatum datum = values.next();
+      if (datum.getStatus() != CrawlDatum.STATUS_LINKED) {
+        output.collect(key, datum);
+        continue;
+      }
+      if (!linkedSet) {
+        linked.set(datum);
+        linkedSet = true;
+        continue;
+      }
+      try {
+        if (scfilters.mergeInlinked(key, linked, datum)) {
+          merged++;
+          continue;
+        }
+      } catch (ScoringFilterException e) {
+        if (LOG.isWarnEnabled()) {
+          LOG.warn("Couldn't merge inlinked datums of " + key + ": " + e);
+        }
+      }
+      output.collect(key, datum);
+    }
+    if (linkedSet) {
+      output.collect(key, linked);
+    }
+    if (merged > 0) {
+      reporter.incrCounter("CrawlDbCombiner", "linked datums merged", merged);
+    }
+  }
+}
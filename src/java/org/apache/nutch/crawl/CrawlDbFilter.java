@@ -21,17 +21,28 @@ import java.io.IOException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.lib.HashPartitioner;
+import org.apache.hadoop.util.StringUtils;
 import org.apache.nutch.net.URLFilters;
 import org.apache.nutch.net.URLNormalizers;
+import org.apache.nutch.util.BloomFilter;
 
 /**
  * This class provides a way to separate the URL normalization
  * and filtering steps from the rest of CrawlDb manipulation code.
+ *
+ * <p>If {@link #KNOWN_URLS} names a db whose parts have Bloom filters,
+ * entries other than db entries are also dropped when their url is
+ * certainly not in that db. This is only done when the update adds no new
+ * urls, so these entries would be discarded by {@link CrawlDbReducer}
+ * anyway.</p>
  * 
  * @author Andrzej Bialecki
  */
@@ -42,6 +53,8 @@ public class CrawlDbFilter implements Mapper<Text, CrawlDatum, Text, CrawlDatum>
 
   public static final String URL_NORMALIZING_SCOPE = "crawldb.url.normalizers.scope";
 
+  public static final String KNOWN_URLS = "crawldb.known.urls";
+
   private boolean urlFiltering;
 
   private boolean urlNormalizers;
@@ -52,6 +65,11 @@ public class CrawlDbFilter implements Mapper<Text, CrawlDatum, Text, CrawlDatum>
   
   private String scope;
 
+  private BloomFilter[] knownUrls;
+
+  private HashPartitioner<Text, CrawlDatum> partitioner =
+    new HashPartitioner<Text, CrawlDatum>();
+
   public static final Log LOG = LogFactory.getLog(CrawlDbFilter.class);
 
   public void configure(JobConf job) {
@@ -64,6 +82,18 @@ public class CrawlDbFilter implements Mapper<Text, CrawlDatum, Text, CrawlDatum>
       scope = job.get(URL_NORMALIZING_SCOPE, URLNormalizers.SCOPE_CRAWLDB);
       normalizers = new URLNormalizers(job, scope);
     }
+    String db = job.get(KNOWN_URLS);
+    if (db != null) {
+      try {
+        knownUrls = CrawlDb.readBloomFilters(FileSystem.get(job), new Path(db));
+      } catch (IOException e) {
+        LOG.warn("Unable to read the Bloom filters of " + db + ": "
+                 + StringUtils.stringifyException(e));
+      }
+      if (knownUrls == null) {
+        LOG.info("No Bloom filters for all parts of " + db + ", keeping all urls.");
+      }
+    }
   }
 
   public void close() {}
@@ -93,6 +123,14 @@ public class CrawlDbFilter implements Mapper<Text, CrawlDatum, Text, CrawlDatum>
     }
     if (url != null) { // if it passes
       newKey.set(url); // collect it
+      if (knownUrls != null && !CrawlDatum.hasDbStatus(value)) {
+        int part = partitioner.getPartition(newKey, value, knownUrls.length);
+        if (!knownUrls[part].mightContain(newKey.getBytes(), 0,
+                                          newKey.getLength())) {
+          reporter.incrCounter("CrawlDbFilter", "unknown urls dropped", 1);
+          return;
+        }
+      }
       output.collect(newKey, value);
     }
   }
@@ -20,10 +20,12 @@ package org.apache.nutch.crawl;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.URL;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Random;
+import java.util.PriorityQueue;
 import java.util.TreeMap;
 
 // Commons Logging imports
@@ -53,8 +55,6 @@ import org.apache.hadoop.mapred.SequenceFileInputFormat;
 import org.apache.hadoop.mapred.SequenceFileOutputFormat;
 import org.apache.hadoop.mapred.TextOutputFormat;
 import org.apache.hadoop.mapred.lib.HashPartitioner;
-import org.apache.hadoop.mapred.lib.IdentityMapper;
-import org.apache.hadoop.mapred.lib.IdentityReducer;
 import org.apache.hadoop.util.Progressable;
 import org.apache.nutch.util.NutchConfiguration;
 import org.apache.nutch.util.NutchJob;
@@ -146,60 +146,75 @@ public class CrawlDbReader implements Closeable {
    }
   }
 
+  /**
+   * Counts entries by status and retries, and sums scores, aggregating
+   * over all entries of a map task instead of collecting a record per
+   * entry. Scores and fetch intervals are also counted in the buckets of
+   * {@link Buckets}, from which quantiles can be read.
+   */
   public static class CrawlDbStatMapper implements Mapper<Text, CrawlDatum, Text, LongWritable> {
-    LongWritable COUNT_1 = new LongWritable(1);
+    /** Counts are collected when there are more keys than this. */
+    private static final int MAX_KEYS = 10000;
     private boolean sort = false;
+    private HashMap<String, long[]> counts = new HashMap<String, long[]>();
+    private long minScore = Long.MAX_VALUE;
+    private long maxScore = Long.MIN_VALUE;
+    private long totalScore = 0;
+    private OutputCollector<Text, LongWritable> output;
+
     public void configure(JobConf job) {
       sort = job.getBoolean("db.reader.stats.sort", false );
     }
-    public void close() {}
+
+    public void close() throws IOException {
+      if (output == null) return;                 // no entries
+      flush();
+      output.collect(new Text("scn"), new LongWritable(minScore));
+      output.collect(new Text("scx"), new LongWritable(maxScore));
+      output.collect(new Text("sct"), new LongWritable(totalScore));
+    }
+
     public void map(Text key, CrawlDatum value, OutputCollector<Text, LongWritable> output, Reporter reporter)
             throws IOException {
-      output.collect(new Text("T"), COUNT_1);
-      output.collect(new Text("status " + value.getStatus()), COUNT_1);
-      output.collect(new Text("retry " + value.getRetriesSinceFetch()), COUNT_1);
-      output.collect(new Text("s"), new LongWritable((long) (value.getScore() * 1000.0)));
+      this.output = output;
+      count("T");
+      count("status " + value.getStatus());
+      count("retry " + value.getRetriesSinceFetch());
+      long score = (long) (value.getScore() * 1000.0);
+      if (score < minScore) minScore = score;
+      if (score > maxScore) maxScore = score;
+      totalScore += score;
+      count(SCORE_BUCKET + " " + Buckets.bucket(value.getScore()));
+      count(INTERVAL_BUCKET + " " + Buckets.bucket(value.getFetchInterval()));
       if(sort){
         URL u = new URL(key.toString());
         String host = u.getHost();
-        output.collect(new Text("status " + value.getStatus() + " " + host), COUNT_1);
+        count("status " + value.getStatus() + " " + host);
+      }
+      if (counts.size() > MAX_KEYS) {
+        flush();
       }
     }
-  }
-  
-  public static class CrawlDbStatCombiner implements Reducer<Text, LongWritable, Text, LongWritable> {
-    LongWritable val = new LongWritable();
-    
-    public CrawlDbStatCombiner() { }
-    public void configure(JobConf job) { }
-    public void close() {}
-    public void reduce(Text key, Iterator<LongWritable> values, OutputCollector<Text, LongWritable> output, Reporter reporter)
-        throws IOException {
-      val.set(0L);
-      String k = ((Text)key).toString();
-      if (!k.equals("s")) {
-        while (values.hasNext()) {
-          LongWritable cnt = (LongWritable)values.next();
-          val.set(val.get() + cnt.get());
-        }
-        output.collect(key, val);
-      } else {
-        long total = 0;
-        long min = Long.MAX_VALUE;
-        long max = Long.MIN_VALUE;
-        while (values.hasNext()) {
-          LongWritable cnt = (LongWritable)values.next();
-          if (cnt.get() < min) min = cnt.get();
-          if (cnt.get() > max) max = cnt.get();
-          total += cnt.get();
-        }
-        output.collect(new Text("scn"), new LongWritable(min));
-        output.collect(new Text("scx"), new LongWritable(max));
-        output.collect(new Text("sct"), new LongWritable(total));
+
+    private void count(String key) {
+      long[] count = counts.get(key);
+      if (count == null) {
+        count = new long[1];
+        counts.put(key, count);
+      }
+      count[0]++;
+    }
+
+    private void flush() throws IOException {
+      for (Map.Entry<String, long[]> entry : counts.entrySet()) {
+        output.collect(new Text(entry.getKey()),
+                       new LongWritable(entry.getValue()[0]));
       }
+      counts.clear();
     }
   }
 
+  /** Adds up counts, and keeps the minimum and maximum of scores. */
   public static class CrawlDbStatReducer implements Reducer<Text, LongWritable, Text, LongWritable> {
     public void configure(JobConf job) {}
     public void close() {}
@@ -207,22 +222,7 @@ public class CrawlDbReader implements Closeable {
             throws IOException {
 
       String k = ((Text) key).toString();
-      if (k.equals("T")) {
-        // sum all values for this key
-        long sum = 0;
-        while (values.hasNext()) {
-          sum += ((LongWritable) values.next()).get();
-        }
-        // output sum
-        output.collect(key, new LongWritable(sum));
-      } else if (k.startsWith("status") || k.startsWith("retry")) {
-        LongWritable cnt = new LongWritable();
-        while (values.hasNext()) {
-          LongWritable val = (LongWritable)values.next();
-          cnt.set(cnt.get() + val.get());
-        }
-        output.collect(key, cnt);
-      } else if (k.equals("scx")) {
+      if (k.equals("scx")) {
         LongWritable cnt = new LongWritable(Long.MIN_VALUE);
         while (values.hasNext()) {
           LongWritable val = (LongWritable)values.next();
@@ -236,7 +236,8 @@ public class CrawlDbReader implements Closeable {
           if (cnt.get() > val.get()) cnt.set(val.get());
         }
         output.collect(key, cnt);
-      } else if (k.equals("sct")) {
+      } else {
+        // totals, counts by status and retries, score sum, buckets
         LongWritable cnt = new LongWritable();
         while (values.hasNext()) {
           LongWritable val = (LongWritable)values.next();
@@ -247,22 +248,136 @@ public class CrawlDbReader implements Closeable {
     }
   }
 
+  /** Key prefix of the counts of scores by {@link Buckets bucket}. */
+  static final String SCORE_BUCKET = "scq";
+
+  /** Key prefix of the counts of fetch intervals by {@link Buckets bucket}. */
+  static final String INTERVAL_BUCKET = "ftq";
+
+  private static final double[] QUANTILES = { 0.1, 0.25, 0.5, 0.75, 0.9, 0.99 };
+
+  /**
+   * The buckets of a histogram on a log scale, in which each value is
+   * represented by its bucket with a relative error of at most
+   * {@link #ACCURACY}. Bucket counts of parts of the db simply add up to
+   * those of the whole db, so quantiles come out of the same pass as the
+   * other statistics.
+   */
+  static class Buckets {
+    static final double ACCURACY = 0.01;
+    private static final double GAMMA = (1 + ACCURACY) / (1 - ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+    /** Values closer to zero than this are counted as zero. */
+    private static final double MIN_VALUE = 1e-9;
+    /** Makes the bucket numbers of all values above MIN_VALUE positive. */
+    private static final int OFFSET =
+      (int) Math.ceil(-Math.log(MIN_VALUE) / LOG_GAMMA) + 1;
+
+    /** Return the bucket of a value. Buckets sort like their values. */
+    static int bucket(double value) {
+      double abs = Math.abs(value);
+      if (abs < MIN_VALUE) {
+        return 0;
+      }
+      int bucket = (int) Math.ceil(Math.log(abs) / LOG_GAMMA) + OFFSET;
+      return value < 0 ? -bucket : bucket;
+    }
+
+    /** Return the value representing a bucket. */
+    static double value(int bucket) {
+      if (bucket == 0) {
+        return 0.0;
+      }
+      double value = 2 * Math.pow(GAMMA, Math.abs(bucket) - OFFSET) / (GAMMA + 1);
+      return bucket < 0 ? -value : value;
+    }
+  }
+
+  /**
+   * Return the <code>q</code>-quantile of the values counted in the buckets
+   * with key <code>prefix</code>, or NaN if none were counted.
+   */
+  static double quantile(Map<String, LongWritable> stats, String prefix,
+                         double q) {
+    TreeMap<Integer, Long> buckets = new TreeMap<Integer, Long>();
+    long total = 0;
+    for (Map.Entry<String, LongWritable> entry : stats.entrySet()) {
+      String k = entry.getKey();
+      if (k.startsWith(prefix + " ")) {
+        long count = entry.getValue().get();
+        buckets.put(Integer.valueOf(k.substring(prefix.length() + 1)),
+                    Long.valueOf(count));
+        total += count;
+      }
+    }
+    long rank = Math.max(1, (long) Math.ceil(q * total));
+    long seen = 0;
+    for (Map.Entry<Integer, Long> bucket : buckets.entrySet()) {
+      seen += bucket.getValue().longValue();
+      if (seen >= rank) {
+        return Buckets.value(bucket.getKey().intValue());
+      }
+    }
+    return Double.NaN;
+  }
+
+  /**
+   * Keeps the <code>db.reader.topn</code> best scoring entries of a map task
+   * in a bounded heap, and collects them when the task is done, keyed by
+   * their negated score so that they reach the reducer best first.
+   */
   public static class CrawlDbTopNMapper implements Mapper<Text, CrawlDatum, FloatWritable, Text> {
-    private static final FloatWritable fw = new FloatWritable();
+    private static final Comparator<ScoredUrl> LOWEST_FIRST =
+      new Comparator<ScoredUrl>() {
+        public int compare(ScoredUrl u1, ScoredUrl u2) {
+          return Float.compare(u1.score, u2.score);
+        }
+      };
+
+    private static class ScoredUrl {
+      float score;
+      Text url = new Text();
+    }
+
     private float min = 0.0f;
+    private long topN;
+    private PriorityQueue<ScoredUrl> heap;
+    private OutputCollector<FloatWritable, Text> output;
     
     public void configure(JobConf job) {
       long lmin = job.getLong("db.reader.topn.min", 0);
       if (lmin != 0) {
         min = (float)lmin / 1000000.0f;
       }
+      topN = job.getLong("db.reader.topn", 100);
+      heap = new PriorityQueue<ScoredUrl>((int) Math.min(topN, 1024) + 1,
+                                          LOWEST_FIRST);
     }
-    public void close() {}
+
+    public void close() throws IOException {
+      FloatWritable fw = new FloatWritable();
+      while (!heap.isEmpty()) {
+        ScoredUrl best = heap.poll();
+        fw.set(-best.score); // reverse sorting order
+        output.collect(fw, best.url); // invert mapping: score -> url
+      }
+    }
+
     public void map(Text key, CrawlDatum value, OutputCollector<FloatWritable, Text> output, Reporter reporter)
             throws IOException {
+      this.output = output;
       if (value.getScore() < min) return; // don't collect low-scoring records
-      fw.set(-value.getScore()); // reverse sorting order
-      output.collect(fw, key); // invert mapping: score -> url
+      ScoredUrl entry;
+      if (heap.size() < topN) {
+        entry = new ScoredUrl();
+      } else if (topN > 0 && value.getScore() > heap.peek().score) {
+        entry = heap.poll();
+      } else {
+        return;
+      }
+      entry.score = value.getScore();
+      entry.url.set(key);
+      heap.add(entry);
     }
   }
   
@@ -271,8 +386,8 @@ public class CrawlDbReader implements Closeable {
     private long count = 0L;
     
     public void reduce(FloatWritable key, Iterator<Text> values, OutputCollector<FloatWritable, Text> output, Reporter reporter) throws IOException {
+      key.set(-key.get());
       while (values.hasNext() && count < topN) {
-        key.set(-key.get());
         output.collect(key, values.next());
         count++;
       }
@@ -294,7 +409,56 @@ public class CrawlDbReader implements Closeable {
     if (LOG.isInfoEnabled()) {
       LOG.info("CrawlDb statistics start: " + crawlDb);
     }
-    
+
+    TreeMap<String, LongWritable> stats = getStatistics(crawlDb, config, sort);
+
+    if (LOG.isInfoEnabled()) {
+      LOG.info("Statistics for CrawlDb: " + crawlDb);
+      LongWritable totalCnt = stats.get("T");
+      stats.remove("T");
+      LOG.info("TOTAL urls:\t" + totalCnt.get());
+      for (Map.Entry<String, LongWritable> entry : stats.entrySet()) {
+        String k = entry.getKey();
+        LongWritable val = entry.getValue();
+        if (k.equals("scn")) {
+          LOG.info("min score:\t" + (float) (val.get() / 1000.0f));
+        } else if (k.equals("scx")) {
+          LOG.info("max score:\t" + (float) (val.get() / 1000.0f));
+        } else if (k.equals("sct")) {
+          LOG.info("avg score:\t" + (float) ((((double)val.get()) / totalCnt.get()) / 1000.0));
+        } else if (k.startsWith(SCORE_BUCKET + " ")
+                   || k.startsWith(INTERVAL_BUCKET + " ")) {
+          continue;                               // reported as quantiles
+        } else if (k.startsWith("status")) {
+          String[] st = k.split(" ");
+          int code = Integer.parseInt(st[1]);
+          if(st.length >2 ) LOG.info("   " + st[2] +" :\t" + val);
+          else LOG.info(st[0] +" " +code + " (" + CrawlDatum.getStatusName((byte) code) + "):\t" + val);
+        } else LOG.info(k + ":\t" + val);
+      }
+      StringBuffer scores = new StringBuffer();
+      StringBuffer intervals = new StringBuffer();
+      for (int i = 0; i < QUANTILES.length; i++) {
+        String name = " p" + Math.round(QUANTILES[i] * 100) + "=";
+        scores.append(name).append(
+            (float) quantile(stats, SCORE_BUCKET, QUANTILES[i]));
+        intervals.append(name).append((float) (quantile(stats,
+            INTERVAL_BUCKET, QUANTILES[i]) / FetchSchedule.SECONDS_PER_DAY));
+      }
+      LOG.info("score quantiles:" + scores);
+      LOG.info("fetch interval quantiles (days):" + intervals);
+    }
+    if (LOG.isInfoEnabled()) { LOG.info("CrawlDb statistics: done"); }
+
+  }
+
+  /**
+   * Run the statistics job.
+   * @return counts and scores by statistics key, as listed by
+   * {@link #processStatJob(String, Configuration, boolean)}.
+   */
+  public TreeMap<String, LongWritable> getStatistics(String crawlDb,
+      Configuration config, boolean sort) throws IOException {
     Path tmpFolder = new Path(crawlDb, "stat_tmp" + System.currentTimeMillis());
 
     JobConf job = new NutchJob(config);
@@ -305,7 +469,7 @@ public class CrawlDbReader implements Closeable {
     job.setInputFormat(SequenceFileInputFormat.class);
 
     job.setMapperClass(CrawlDbStatMapper.class);
-    job.setCombinerClass(CrawlDbStatCombiner.class);
+    job.setCombinerClass(CrawlDbStatReducer.class);
     job.setReducerClass(CrawlDbStatReducer.class);
 
     FileOutputFormat.setOutputPath(job, tmpFolder);
@@ -344,33 +508,12 @@ public class CrawlDbReader implements Closeable {
       }
       reader.close();
     }
-    
-    if (LOG.isInfoEnabled()) {
-      LOG.info("Statistics for CrawlDb: " + crawlDb);
-      LongWritable totalCnt = stats.get("T");
-      stats.remove("T");
-      LOG.info("TOTAL urls:\t" + totalCnt.get());
-      for (Map.Entry<String, LongWritable> entry : stats.entrySet()) {
-        String k = entry.getKey();
-        LongWritable val = entry.getValue();
-        if (k.equals("scn")) {
-          LOG.info("min score:\t" + (float) (val.get() / 1000.0f));
-        } else if (k.equals("scx")) {
-          LOG.info("max score:\t" + (float) (val.get() / 1000.0f));
-        } else if (k.equals("sct")) {
-          LOG.info("avg score:\t" + (float) ((((double)val.get()) / totalCnt.get()) / 1000.0));
-        } else if (k.startsWith("status")) {
-          String[] st = k.split(" ");
-          int code = Integer.parseInt(st[1]);
-          if(st.length >2 ) LOG.info("   " + st[2] +" :\t" + val);
-          else LOG.info(st[0] +" " +code + " (" + CrawlDatum.getStatusName((byte) code) + "):\t" + val);
-        } else LOG.info(k + ":\t" + val);
-      }
-    }
     // removing the tmp folder
     fileSystem.delete(tmpFolder, true);
-    if (LOG.isInfoEnabled()) { LOG.info("CrawlDb statistics: done"); }
-
+    if (!stats.containsKey("T")) {
+      stats.put("T", new LongWritable(0));
+    }
+    return stats;
   }
   
   public CrawlDatum get(String crawlDb, String url, Configuration config) throws IOException {
@@ -425,37 +568,14 @@ public class CrawlDbReader implements Closeable {
     }
     
     Path outFolder = new Path(output);
-    Path tempDir =
-      new Path(config.get("mapred.temp.dir", ".") +
-               "/readdb-topN-temp-"+
-               Integer.toString(new Random().nextInt(Integer.MAX_VALUE)));
 
+    // each map task keeps its best topN, a single reducer the best of these
     JobConf job = new NutchJob(config);
-    job.setJobName("topN prepare " + crawlDb);
+    job.setJobName("topN " + crawlDb);
+    job.setLong("db.reader.topn", topN);
     FileInputFormat.addInputPath(job, new Path(crawlDb, CrawlDb.CURRENT_NAME));
     job.setInputFormat(SequenceFileInputFormat.class);
     job.setMapperClass(CrawlDbTopNMapper.class);
-    job.setReducerClass(IdentityReducer.class);
-
-    FileOutputFormat.setOutputPath(job, tempDir);
-    job.setOutputFormat(SequenceFileOutputFormat.class);
-    job.setOutputKeyClass(FloatWritable.class);
-    job.setOutputValueClass(Text.class);
-
-    // XXX hmmm, no setFloat() in the API ... :(
-    job.setLong("db.reader.topn.min", Math.round(1000000.0 * min));
-    JobClient.runJob(job); 
-    
-    if (LOG.isInfoEnabled()) {
-      LOG.info("CrawlDb topN: collecting topN scores.");
-    }
-    job = new NutchJob(config);
-    job.setJobName("topN collect " + crawlDb);
-    job.setLong("db.reader.topn", topN);
-
-    FileInputFormat.addInputPath(job, tempDir);
-    job.setInputFormat(SequenceFileInputFormat.class);
-    job.setMapperClass(IdentityMapper.class);
     job.setReducerClass(CrawlDbTopNReducer.class);
 
     FileOutputFormat.setOutputPath(job, outFolder);
@@ -463,11 +583,11 @@ public class CrawlDbReader implements Closeable {
     job.setOutputKeyClass(FloatWritable.class);
     job.setOutputValueClass(Text.class);
 
+    // XXX hmmm, no setFloat() in the API ... :(
+    job.setLong("db.reader.topn.min", Math.round(1000000.0 * min));
     job.setNumReduceTasks(1); // create a single file.
     
     JobClient.runJob(job);
-    FileSystem fs = FileSystem.get(config);
-    fs.delete(tempDir, true);
     if (LOG.isInfoEnabled()) { LOG.info("CrawlDb topN: done"); }
 
   }
@@ -29,11 +29,16 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.io.*;
 import org.apache.hadoop.conf.*;
 import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.mapred.lib.MultipleSequenceFileOutputFormat;
 import org.apache.hadoop.util.*;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
 
 import org.apache.nutch.metadata.Nutch;
+import org.apache.nutch.net.DnsResolver;
 import org.apache.nutch.net.URLFilterException;
 import org.apache.nutch.net.URLFilters;
 import org.apache.nutch.net.URLNormalizers;
@@ -50,14 +55,24 @@ public class Generator extends Configured implements Tool {
   public static final String GENERATE_MAX_PER_HOST_BY_IP = "generate.max.per.host.by.ip";
   public static final String GENERATE_MAX_PER_HOST = "generate.max.per.host";
   public static final String GENERATE_UPDATE_CRAWLDB = "generate.update.crawldb";
+  public static final String GENERATE_SINGLE_PASS = "generate.single.pass";
+  public static final String GENERATE_WRITE_DNS = "generate.write.dns";
+  public static final String GENERATE_DNS_DIR = "generate.dns.dir";
+  /** Directory in a segment with the host addresses resolved by Generator. */
+  public static final String DNS_DIR_NAME = "crawl_dns";
   public static final String CRAWL_TOP_N = "crawl.topN";
   public static final String CRAWL_GEN_CUR_TIME = "crawl.gen.curTime";
   public static final String CRAWL_GEN_DELAY = "crawl.gen.delay";
+  public static final String GENERATE_NUM_SEGMENTS = "generate.num.segments";
+  /** Prefix of the directories the selected entries of each segment go to. */
+  public static final String FETCHLIST_PREFIX = "fetchlist-";
   public static final Log LOG = LogFactory.getLog(Generator.class);
   
   public static class SelectorEntry implements Writable {
     public Text url;
     public CrawlDatum datum;
+    /** The segment the entry is generated in. */
+    public int segnum;
     
     public SelectorEntry() {
       url = new Text();
@@ -67,11 +82,13 @@ public class Generator extends Configured implements Tool {
     public void readFields(DataInput in) throws IOException {
       url.readFields(in);
       datum.readFields(in);
+      segnum = WritableUtils.readVInt(in);
     }
 
     public void write(DataOutput out) throws IOException {
       url.write(out);
       datum.write(out);
+      WritableUtils.writeVInt(out, segnum);
     }
     
     public String toString() {
@@ -84,9 +101,12 @@ public class Generator extends Configured implements Tool {
     private LongWritable genTime = new LongWritable(System.currentTimeMillis());
     private long curTime;
     private long limit;
+    private long totalLimit;
     private long count;
-    private HashMap<String, IntWritable> hostCounts =
-      new HashMap<String, IntWritable>();
+    private int numSegments;
+    private long[] segmentCounts;
+    /** Per host, its count in each segment, then the count of urls skipped. */
+    private HashMap<String, int[]> hostCounts = new HashMap<String, int[]>();
     private int maxPerHost;
     private Partitioner<Text, Writable> hostPartitioner = new PartitionUrlByHost();
     private URLFilters filters;
@@ -96,6 +116,8 @@ public class Generator extends Configured implements Tool {
     private FloatWritable sortValue = new FloatWritable();
     private boolean byIP;
     private long dnsFailure = 0L;
+    private DnsResolver resolver;
+    private Path dnsFile;
     private boolean filter;
     private long genDelay;
     private FetchSchedule schedule;
@@ -103,8 +125,17 @@ public class Generator extends Configured implements Tool {
     public void configure(JobConf job) {
       curTime = job.getLong(CRAWL_GEN_CUR_TIME, System.currentTimeMillis());
       limit = job.getLong(CRAWL_TOP_N,Long.MAX_VALUE)/job.getNumReduceTasks();
+      numSegments = job.getInt(GENERATE_NUM_SEGMENTS, 1);
+      segmentCounts = new long[numSegments];
+      totalLimit = limit > Long.MAX_VALUE / numSegments
+        ? Long.MAX_VALUE : limit * numSegments;
       maxPerHost = job.getInt(GENERATE_MAX_PER_HOST, -1);
       byIP = job.getBoolean(GENERATE_MAX_PER_HOST_BY_IP, false);
+      resolver = DnsResolver.get(job);
+      String dnsDir = job.get(GENERATE_DNS_DIR);
+      if (dnsDir != null) {
+        dnsFile = new Path(dnsDir, "part-" + job.getInt("mapred.task.partition", 0));
+      }
       filters = new URLFilters(job);
       normalizers = new URLNormalizers(job, URLNormalizers.SCOPE_GENERATE_HOST_COUNT);
       scfilters = new ScoringFilters(job);
@@ -116,18 +147,37 @@ public class Generator extends Configured implements Tool {
       schedule = FetchScheduleFactory.getFetchSchedule(job);
     }
 
-    public void close() {}
+    /** Write the addresses resolved by a reduce task, if requested. */
+    public void close() throws IOException {
+      if (dnsFile != null && count > 0) {
+        resolver.save(dnsFile);
+      }
+    }
 
     /** Select & invert subset due for fetch. */
     public void map(Text key, CrawlDatum value,
                     OutputCollector<FloatWritable, SelectorEntry> output, Reporter reporter)
       throws IOException {
-      Text url = key;
+      FloatWritable sort = select(key, value);
+      if (sort == null) {
+        return;
+      }
+      entry.datum = value;
+      entry.url = key;
+      output.collect(sort, entry);               // invert for sort by score
+    }
+
+    /**
+     * Check whether an entry is due for fetch, and if so record the
+     * generation time in it.
+     * @return the value to sort the entry by, or null if it is not selected.
+     */
+    FloatWritable select(Text url, CrawlDatum crawlDatum) {
       if (filter) {
         // If filtering is on don't generate URLs that don't pass URLFilters
         try {
           if (filters.filter(url.toString()) == null)
-            return;
+            return null;
         } catch (URLFilterException e) {
           if (LOG.isWarnEnabled()) {
             LOG.warn("Couldn't filter url: " + url + " (" + e.getMessage()
@@ -135,34 +185,31 @@ public class Generator extends Configured implements Tool {
           }
         }
       }
-      CrawlDatum crawlDatum = value;
 
       // check fetch schedule
       if (!schedule.shouldFetch(url, crawlDatum, curTime)) {
         LOG.debug("-shouldFetch rejected '" + url+ "', fetchTime=" + crawlDatum.getFetchTime() + ", curTime=" + curTime);
-        return;
+        return null;
       }
 
       LongWritable oldGenTime = (LongWritable)crawlDatum.getMetaData().get(Nutch.WRITABLE_GENERATE_TIME_KEY);
       if (oldGenTime != null) { // awaiting fetch & update
         if (oldGenTime.get() + genDelay > curTime) // still wait for update
-          return;
+          return null;
       }
       float sort = 1.0f;
       try {
-        sort = scfilters.generatorSortValue((Text)key, crawlDatum, sort);
+        sort = scfilters.generatorSortValue(url, crawlDatum, sort);
       } catch (ScoringFilterException sfe) {
         if (LOG.isWarnEnabled()) {
-          LOG.warn("Couldn't filter generatorSortValue for " + key + ": " + sfe);
+          LOG.warn("Couldn't filter generatorSortValue for " + url + ": " + sfe);
         }
       }
       // sort by decreasing score, using DecreasingFloatComparator
       sortValue.set(sort);
       // record generation time
       crawlDatum.getMetaData().put(Nutch.WRITABLE_GENERATE_TIME_KEY, genTime);
-      entry.datum = crawlDatum;
-      entry.url = (Text)key;
-      output.collect(sortValue, entry);          // invert for sort by score
+      return sortValue;
     }
 
     /** Partition by host. */
@@ -178,84 +225,116 @@ public class Generator extends Configured implements Tool {
                        Reporter reporter)
       throws IOException {
 
-      while (values.hasNext() && count < limit) {
+      while (values.hasNext() && count < totalLimit) {
 
         SelectorEntry entry = values.next();
-        Text url = entry.url;        
-        String urlString = url.toString();        
-        URL u = null;
-        
-        // skip bad urls, including empty and null urls
-        try {
-          u = new URL(url.toString());
-        } catch (MalformedURLException e) {
-          LOG.info("Bad protocol in url: " + url.toString());
+        String host = countedHost(entry.url);
+        if (host == null) {
           continue;
         }
-        
-        String host = u.getHost();
-        host = host.toLowerCase();
-        
-        // partitioning by ip will generate lots of DNS requests here, and will 
-        // be up to double the overall dns load, do not run this way unless you
-        // are running a local caching DNS server or a two layer DNS cache
-        if (byIP) {
-          try {
-            InetAddress ia = InetAddress.getByName(host);
-            host = ia.getHostAddress();
-            urlString = new URL(u.getProtocol(), host, u.getPort(), u.getFile()).toString();
-          } 
-          catch (UnknownHostException uhe) {
-            if (LOG.isDebugEnabled()) {
-              LOG.debug("DNS lookup failed: " + host + ", skipping.");
-            }
-            dnsFailure++;
-            if ((dnsFailure % 1000 == 0) && (LOG.isWarnEnabled())) {
-              LOG.warn("DNS failures: " + dnsFailure);
-            }
-            continue;
-          }
-        }
-        
-        try {
-          urlString = normalizers.normalize(urlString, URLNormalizers.SCOPE_GENERATE_HOST_COUNT);
-          host = new URL(urlString).getHost();
-        } catch (Exception e) {
-          LOG.warn("Malformed URL: '" + urlString + "', skipping (" +
-              StringUtils.stringifyException(e) + ")");
-          continue;
+
+        int[] hostCount = hostCounts.get(host);
+        if (hostCount == null) {
+          hostCount = new int[numSegments + 1];
+          hostCounts.put(host, hostCount);
         }
-        
-        // only filter if we are counting hosts
-        if (maxPerHost > 0) {
-          
-          IntWritable hostCount = hostCounts.get(host);
-          if (hostCount == null) {
-            hostCount = new IntWritable();
-            hostCounts.put(host, hostCount);
+
+        // a host stays in its own segment until the segment is full, or
+        // until the host reaches its limit there (if we are counting hosts)
+        int home = (host.hashCode() & Integer.MAX_VALUE) % numSegments;
+        int segnum = -1;
+        for (int i = 0; i < numSegments && segnum == -1; i++) {
+          int s = (home + i) % numSegments;
+          if (segmentCounts[s] < limit
+              && (maxPerHost <= 0 || hostCount[s] < maxPerHost)) {
+            segnum = s;
           }
-  
-          // increment hostCount
-          hostCount.set(hostCount.get() + 1);
-  
-          // skip URL if above the limit per host.
-          if (hostCount.get() > maxPerHost) {
-            if (hostCount.get() == maxPerHost + 1) {
-              if (LOG.isInfoEnabled()) {
-                LOG.info("Host " + host + " has more than " + maxPerHost +
-                         " URLs." + " Skipping additional.");
-              }
+        }
+
+        // skip URL if above the limit per host.
+        if (segnum == -1) {
+          if (maxPerHost > 0 && ++hostCount[numSegments] == 1) {
+            if (LOG.isInfoEnabled()) {
+              LOG.info("Host " + host + " has more than " + maxPerHost +
+                       " URLs." + " Skipping additional.");
             }
-            continue;
           }
+          continue;
         }
+        hostCount[segnum]++;
+        segmentCounts[segnum]++;
 
+        entry.segnum = segnum;
         output.collect(key, entry);
 
         // Count is incremented only when we keep the URL
         // maxPerHost may cause us to skip it.
-        count++;
+        selected(entry.url);
+      }
+    }
+
+    /**
+     * Return the host a url is counted under for generate.max.per.host: its
+     * normalized host name, or its address if counting by IP.
+     * @return the host, or null if the url should be skipped.
+     */
+    String countedHost(Text url) throws IOException {
+      String urlString = url.toString();
+      URL u = null;
+
+      // skip bad urls, including empty and null urls
+      try {
+        u = new URL(urlString);
+      } catch (MalformedURLException e) {
+        LOG.info("Bad protocol in url: " + urlString);
+        return null;
       }
+
+      String host = u.getHost();
+      host = host.toLowerCase();
+
+      // partitioning by ip will generate lots of DNS requests here, and will 
+      // be up to double the overall dns load, do not run this way unless you
+      // are running a local caching DNS server or a two layer DNS cache
+      if (byIP) {
+        try {
+          InetAddress ia = resolver.resolve(host);
+          host = ia.getHostAddress();
+          urlString = new URL(u.getProtocol(), host, u.getPort(), u.getFile()).toString();
+        } 
+        catch (UnknownHostException uhe) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("DNS lookup failed: " + host + ", skipping.");
+          }
+          dnsFailure++;
+          if ((dnsFailure % 1000 == 0) && (LOG.isWarnEnabled())) {
+            LOG.warn("DNS failures: " + dnsFailure);
+          }
+          return null;
+        }
+      }
+
+      try {
+        urlString = normalizers.normalize(urlString, URLNormalizers.SCOPE_GENERATE_HOST_COUNT);
+        host = new URL(urlString).getHost();
+      } catch (Exception e) {
+        LOG.warn("Malformed URL: '" + urlString + "', skipping (" +
+            StringUtils.stringifyException(e) + ")");
+        return null;
+      }
+      return host;
+    }
+
+    /** Count a url written to the fetch list, and prefetch its host. */
+    void selected(Text url) {
+      if (dnsFile != null && !byIP) {
+        try {
+          resolver.prefetch(new URL(url.toString()).getHost());
+        } catch (MalformedURLException e) {
+          // already checked by countedHost()
+        }
+      }
+      count++;
     }
   }
 
@@ -268,6 +347,17 @@ public class Generator extends Configured implements Tool {
     }
   }
 
+  /** Writes the entries selected for each segment to their own directory. */
+  public static class GeneratorOutputFormat
+    extends MultipleSequenceFileOutputFormat<FloatWritable, SelectorEntry> {
+
+    protected String generateFileNameForKeyValue(FloatWritable key,
+                                                 SelectorEntry value,
+                                                 String name) {
+      return FETCHLIST_PREFIX + value.segnum + "/" + name;
+    }
+  }
+
   public static class SelectorInverseMapper extends MapReduceBase implements Mapper<FloatWritable, SelectorEntry, Text, SelectorEntry> {
 
     public void map(FloatWritable key, SelectorEntry value, OutputCollector<Text, SelectorEntry> output, Reporter reporter) throws IOException {
@@ -311,7 +401,7 @@ public class Generator extends Configured implements Tool {
       return (hash1 < hash2 ? -1 : (hash1 == hash2 ? 0 : 1));
     }
 
-    private static int hash(byte[] bytes, int start, int length) {
+    static int hash(byte[] bytes, int start, int length) {
       int hash = 1;
       // make later bytes more significant in hash code, so that sorting by
       // hashcode correlates less with by-host ordering.
@@ -321,6 +411,219 @@ public class Generator extends Configured implements Tool {
     }
   }
 
+  /** A selected entry of a host, with the value it is sorted by. */
+  public static class HostEntry extends SelectorEntry {
+    public float score;
+
+    public void set(HostEntry that) {
+      url.set(that.url);
+      datum.set(that.datum);
+      score = that.score;
+    }
+
+    public void readFields(DataInput in) throws IOException {
+      super.readFields(in);
+      score = in.readFloat();
+    }
+
+    public void write(DataOutput out) throws IOException {
+      super.write(out);
+      out.writeFloat(score);
+    }
+  }
+
+  /**
+   * The best scoring entries offered so far, at most a fixed number of them.
+   * Offered entries are copied only if they are kept, so the instances
+   * reused by Hadoop's value iterators can be offered directly.
+   */
+  static class TopEntries {
+    private static final Comparator<HostEntry> LOWEST_FIRST =
+      new Comparator<HostEntry>() {
+        public int compare(HostEntry e1, HostEntry e2) {
+          return Float.compare(e1.score, e2.score);
+        }
+      };
+
+    private final int size;
+    private final java.util.PriorityQueue<HostEntry> heap;
+
+    TopEntries(int size) {
+      this.size = size;
+      this.heap = new java.util.PriorityQueue<HostEntry>(
+        Math.min(size, 1024) + 1, LOWEST_FIRST);
+    }
+
+    /** Keep a copy of the entry if it is among the best so far. */
+    void offer(HostEntry entry) {
+      if (heap.size() < size) {
+        HostEntry copy = new HostEntry();
+        copy.set(entry);
+        heap.add(copy);
+      } else if (size > 0 && entry.score > heap.peek().score) {
+        HostEntry worst = heap.poll();
+        worst.set(entry);
+        heap.add(worst);
+      }
+    }
+
+    /** Remove and return the entries kept, best first. */
+    List<HostEntry> drain() {
+      HostEntry[] entries = heap.toArray(new HostEntry[heap.size()]);
+      heap.clear();
+      Arrays.sort(entries, Collections.reverseOrder(LOWEST_FIRST));
+      return Arrays.asList(entries);
+    }
+  }
+
+  /**
+   * Return the number of entries a host may have in one fetch list, or -1
+   * if it is not limited. Neither generate.max.per.host nor the share of
+   * topN of a list may be exceeded.
+   */
+  static int getMaxPerHost(JobConf job, int numLists) {
+    long limit = job.getLong(CRAWL_TOP_N, Long.MAX_VALUE) / numLists;
+    int maxPerHost = job.getInt(GENERATE_MAX_PER_HOST, -1);
+    if (maxPerHost > 0 && maxPerHost < limit) {
+      return maxPerHost;
+    }
+    return limit < Integer.MAX_VALUE ? (int)limit : -1;
+  }
+
+  /**
+   * Selects entries due for fetch in a single pass, without sorting the
+   * crawl db by score. Entries are grouped by host instead, so that each
+   * host's best entries can be picked with a bounded heap, and a reduce
+   * task keeps the best topN / numLists of those in a second heap. The
+   * reduce tasks write the fetch lists directly, one partition per fetch
+   * list, sorted by hash of url like those written by {@link PartitionReducer}.
+   * To sort them, a reduce task holds the entries it selects in its heap
+   * until it is done, so single pass mode is only used with topN.
+   */
+  public static class HostSelector extends MapReduceBase
+    implements Mapper<Text, CrawlDatum, Text, HostEntry>,
+               Reducer<Text, HostEntry, Text, CrawlDatum> {
+    private Selector selector = new Selector();
+    private Text host = new Text();
+    private HostEntry entry = new HostEntry();
+    private int maxPerHost;
+    private TopEntries selected;
+    private OutputCollector<Text, CrawlDatum> output;
+
+    public void configure(JobConf job) {
+      selector.configure(job);
+      maxPerHost = getMaxPerHost(job, job.getNumReduceTasks());
+      long limit = job.getLong(CRAWL_TOP_N, Long.MAX_VALUE) / job.getNumReduceTasks();
+      selected = new TopEntries((int)Math.min(limit, Integer.MAX_VALUE));
+    }
+
+    /** Select entries due for fetch, and key them by host. */
+    public void map(Text key, CrawlDatum value,
+                    OutputCollector<Text, HostEntry> output, Reporter reporter)
+      throws IOException {
+      FloatWritable sort = selector.select(key, value);
+      if (sort == null) {
+        return;
+      }
+      String counted = selector.countedHost(key);
+      if (counted == null) {
+        return;
+      }
+      host.set(counted);
+      entry.url = key;
+      entry.datum = value;
+      entry.score = sort.get();
+      output.collect(host, entry);
+    }
+
+    /** Keep the best entries of a host. */
+    public void reduce(Text key, Iterator<HostEntry> values,
+                       OutputCollector<Text, CrawlDatum> output,
+                       Reporter reporter)
+      throws IOException {
+      this.output = output;
+      if (maxPerHost < 0) {                       // nothing to limit per host
+        while (values.hasNext()) {
+          selected.offer(values.next());
+        }
+        return;
+      }
+      TopEntries top = new TopEntries(maxPerHost);
+      while (values.hasNext()) {
+        top.offer(values.next());
+      }
+      for (HostEntry entry : top.drain()) {
+        selected.offer(entry);
+      }
+    }
+
+    /** Write the entries kept, sorted by hash of url. */
+    public void close() throws IOException {
+      if (output != null) {
+        HostEntry[] entries = selected.drain().toArray(new HostEntry[0]);
+        Arrays.sort(entries, new Comparator<HostEntry>() {
+          public int compare(HostEntry e1, HostEntry e2) {
+            int hash1 = HashComparator.hash(e1.url.getBytes(), 0, e1.url.getLength());
+            int hash2 = HashComparator.hash(e2.url.getBytes(), 0, e2.url.getLength());
+            return (hash1 < hash2 ? -1 : (hash1 == hash2 ? 0 : 1));
+          }
+        });
+        for (int i = 0; i < entries.length; i++) {
+          output.collect(entries[i].url, entries[i].datum);
+          selector.selected(entries[i].url);
+        }
+      }
+      selector.close();
+    }
+  }
+
+  /** Keeps the best entries of each host in the output of a map task. */
+  public static class HostCombiner extends MapReduceBase
+    implements Reducer<Text, HostEntry, Text, HostEntry> {
+    private int maxPerHost;
+
+    public void configure(JobConf job) {
+      maxPerHost = getMaxPerHost(job, job.getNumReduceTasks());
+    }
+
+    public void reduce(Text key, Iterator<HostEntry> values,
+                       OutputCollector<Text, HostEntry> output,
+                       Reporter reporter)
+      throws IOException {
+      if (maxPerHost < 0) {
+        while (values.hasNext()) {
+          output.collect(key, values.next());
+        }
+        return;
+      }
+      TopEntries top = new TopEntries(maxPerHost);
+      while (values.hasNext()) {
+        top.offer(values.next());
+      }
+      for (HostEntry entry : top.drain()) {
+        output.collect(key, entry);
+      }
+    }
+  }
+
+  /** Partition host keys, like {@link PartitionUrlByHost} does urls. */
+  public static class PartitionByHost implements Partitioner<Text, Writable> {
+    private int seed;
+
+    public void configure(JobConf job) {
+      seed = job.getInt("partition.url.by.host.seed", 0);
+    }
+
+    public int getPartition(Text key, Writable value, int numReduceTasks) {
+      int hashCode = key.toString().hashCode();
+
+      // make hosts wind up in different partitions on different runs
+      hashCode ^= seed;
+
+      return (hashCode & Integer.MAX_VALUE) % numReduceTasks;
+    }
+  }
+
   /**
    * Update the CrawlDB so that the next generate won't include the same URLs.
    */
@@ -402,28 +705,59 @@ public class Generator extends Configured implements Tool {
                        int numLists, long topN, long curTime, boolean filter,
                        boolean force)
     throws IOException {
+    Path[] generated =
+      generate(dbDir, segments, numLists, topN, curTime, filter, force, 1);
+    return generated == null ? null : generated[0];
+  }
+
+  /**
+   * Generate fetchlists in up to <code>numSegments</code> segments, with a
+   * single pass over the crawl db. Each segment holds up to
+   * <code>topN</code> urls and up to generate.max.per.host urls of a host;
+   * the urls of a host go to the same segment as long as these limits allow.
+   * @return Paths to the generated segments, or null if no entries were
+   *         selected.
+   */
+  public Path[] generate(Path dbDir, Path segments,
+                         int numLists, long topN, long curTime, boolean filter,
+                         boolean force, int numSegments)
+    throws IOException {
 
     Path tempDir =
       new Path(getConf().get("mapred.temp.dir", ".") +
                "/generate-temp-"+ System.currentTimeMillis());
 
-    Path segment = new Path(segments, generateSegmentName());
-    Path output = new Path(segment, CrawlDatum.GENERATE_DIR_NAME);
-    
     Path lock = new Path(dbDir, CrawlDb.LOCK_NAME);
     FileSystem fs = FileSystem.get(getConf());
     LockUtil.createLockFile(fs, lock, force);
 
+    // map to inverted subset due for fetch, sort by score
+    JobConf job = new NutchJob(getConf());
+
+    boolean singlePass = job.getBoolean(GENERATE_SINGLE_PASS, false);
+    if (singlePass && numSegments > 1) {
+      LOG.warn("Generator: single pass mode generates one segment, "
+               + "selecting in two passes instead.");
+      singlePass = false;
+    }
+    if (singlePass && topN == Long.MAX_VALUE) {
+      LOG.warn("Generator: single pass mode needs topN to bound its memory, "
+               + "selecting in two passes instead.");
+      singlePass = false;
+    }
+    Path segment = new Path(segments, generateSegmentName());
+    Path output = new Path(segment, CrawlDatum.GENERATE_DIR_NAME);
+
     LOG.info("Generator: Selecting best-scoring urls due for fetch.");
     LOG.info("Generator: starting");
-    LOG.info("Generator: segment: " + segment);
     LOG.info("Generator: filtering: " + filter);
     if (topN != Long.MAX_VALUE) {
       LOG.info("Generator: topN: " + topN);
     }
+    if (numSegments > 1) {
+      LOG.info("Generator: segments: " + numSegments);
+    }
 
-    // map to inverted subset due for fetch, sort by score
-    JobConf job = new NutchJob(getConf());
     job.setJobName("generate: select " + segment);
 
     if (numLists == -1) {                         // for politeness make
@@ -440,80 +774,97 @@ public class Generator extends Configured implements Tool {
     job.setLong(Nutch.GENERATE_TIME_KEY, generateTime);
     job.setLong(CRAWL_TOP_N, topN);
     job.setBoolean(CRAWL_GENERATE_FILTER, filter);
+    job.setInt(GENERATE_NUM_SEGMENTS, numSegments);
+    Path dnsDir = null;
+    if (job.getBoolean(GENERATE_WRITE_DNS, false)) {
+      dnsDir = new Path(tempDir, DNS_DIR_NAME);
+      job.set(GENERATE_DNS_DIR, dnsDir.toString());
+    }
 
     FileInputFormat.addInputPath(job, new Path(dbDir, CrawlDb.CURRENT_NAME));
     job.setInputFormat(SequenceFileInputFormat.class);
 
-    job.setMapperClass(Selector.class);
-    job.setPartitionerClass(Selector.class);
-    job.setReducerClass(Selector.class);
+    if (singlePass) {
+      // select the best urls of each host, and write the fetch lists at once
+      LOG.info("Generator: selecting and partitioning by host in a single pass.");
+      job.setInt("partition.url.by.host.seed", new Random().nextInt());
+      job.setNumReduceTasks(numLists);
 
-    FileOutputFormat.setOutputPath(job, tempDir);
-    job.setOutputFormat(SequenceFileOutputFormat.class);
-    job.setOutputKeyClass(FloatWritable.class);
-    job.setOutputKeyComparatorClass(DecreasingFloatComparator.class);
-    job.setOutputValueClass(SelectorEntry.class);
+      job.setMapperClass(HostSelector.class);
+      if (getMaxPerHost(job, numLists) >= 0) {
+        job.setCombinerClass(HostCombiner.class);
+      }
+      job.setPartitionerClass(PartitionByHost.class);
+      job.setReducerClass(HostSelector.class);
+      job.setMapOutputKeyClass(Text.class);
+      job.setMapOutputValueClass(HostEntry.class);
+
+      FileOutputFormat.setOutputPath(job, output);
+      job.setOutputFormat(SequenceFileOutputFormat.class);
+      job.setOutputKeyClass(Text.class);
+      job.setOutputValueClass(CrawlDatum.class);
+    } else {
+      job.setMapperClass(Selector.class);
+      job.setPartitionerClass(Selector.class);
+      job.setReducerClass(Selector.class);
+
+      FileOutputFormat.setOutputPath(job, tempDir);
+      job.setOutputFormat(GeneratorOutputFormat.class);
+      job.setOutputKeyClass(FloatWritable.class);
+      job.setOutputKeyComparatorClass(DecreasingFloatComparator.class);
+      job.setOutputValueClass(SelectorEntry.class);
+    }
     try {
       JobClient.runJob(job);
     } catch (IOException e) {
       LockUtil.removeLockFile(fs, lock);
+      fs.delete(tempDir, true);
       throw e;
     }
-    
-    // check that we selected at least some entries ...
-    SequenceFile.Reader[] readers = SequenceFileOutputFormat.getReaders(job, tempDir);
-    boolean empty = true;
-    if (readers != null && readers.length > 0) {
-      for (int num = 0; num < readers.length; num++) {
-        if (readers[num].next(new FloatWritable())) {
-          empty = false;
-          break;
-        }
+
+    // check that we selected at least some entries for each segment ...
+    Path[] selected = new Path[numSegments];
+    Path[] generated = new Path[numSegments];
+    int numGenerated = 0;
+    for (int i = 0; i < numSegments; i++) {
+      Path fetchlist = singlePass ? output : new Path(tempDir, FETCHLIST_PREFIX + i);
+      if (isEmpty(fs, fetchlist, job)) {
+        continue;
       }
+      selected[numGenerated] = fetchlist;
+      if (numGenerated > 0) {
+        segment = new Path(segments, generateSegmentName());
+      }
+      generated[numGenerated++] = segment;
     }
-    
-    for (int i = 0; i < readers.length; i++) readers[i].close();
-    
-    if (empty) {
+
+    if (numGenerated == 0) {
       LOG.warn("Generator: 0 records selected for fetching, exiting ...");
       LockUtil.removeLockFile(fs, lock);
       fs.delete(tempDir, true);
+      fs.delete(segment, true);
       return null;
     }
 
-    // invert again, paritition by host, sort by url hash
-    if (LOG.isInfoEnabled()) {
-      LOG.info("Generator: Partitioning selected urls by host, for politeness.");
+    for (int i = 0; i < numGenerated; i++) {
+      LOG.info("Generator: segment: " + generated[i]);
+      if (!singlePass) {
+        try {
+          partitionSegment(selected[i], generated[i], numLists);
+        } catch (IOException e) {
+          LockUtil.removeLockFile(fs, lock);
+          fs.delete(tempDir, true);
+          throw e;
+        }
+      }
+      if (dnsDir != null && fs.exists(dnsDir)) {
+        FileUtil.copy(fs, dnsDir, fs, new Path(generated[i], DNS_DIR_NAME),
+                      false, getConf());
+      }
     }
-    job = new NutchJob(getConf());
-    job.setJobName("generate: partition " + segment);
-    
-    job.setInt("partition.url.by.host.seed", new Random().nextInt());
-
-    FileInputFormat.addInputPath(job, tempDir);
-    job.setInputFormat(SequenceFileInputFormat.class);
 
-    job.setMapperClass(SelectorInverseMapper.class);
-    job.setMapOutputKeyClass(Text.class);
-    job.setMapOutputValueClass(SelectorEntry.class);
-    job.setPartitionerClass(PartitionUrlByHost.class);
-    job.setReducerClass(PartitionReducer.class);
-    job.setNumReduceTasks(numLists);
-
-    FileOutputFormat.setOutputPath(job, output);
-    job.setOutputFormat(SequenceFileOutputFormat.class);
-    job.setOutputKeyClass(Text.class);
-    job.setOutputValueClass(CrawlDatum.class);
-    job.setOutputKeyComparatorClass(HashComparator.class);
-    try {
-      JobClient.runJob(job);
-    } catch (IOException e) {
-      LockUtil.removeLockFile(fs, lock);
-      fs.delete(tempDir, true);
-      throw e;
-    }
     if (getConf().getBoolean(GENERATE_UPDATE_CRAWLDB, false)) {
-      // update the db from tempDir
+      // update the db from the entries selected for all segments at once
       Path tempDir2 =
         new Path(getConf().get("mapred.temp.dir", ".") +
                  "/generate-temp-"+ System.currentTimeMillis());
@@ -521,7 +872,9 @@ public class Generator extends Configured implements Tool {
       job = new NutchJob(getConf());
       job.setJobName("generate: updatedb " + dbDir);
       job.setLong(Nutch.GENERATE_TIME_KEY, generateTime);
-      FileInputFormat.addInputPath(job, tempDir);
+      for (int i = 0; i < numGenerated; i++) {
+        FileInputFormat.addInputPath(job, selected[i]);
+      }
       FileInputFormat.addInputPath(job, new Path(dbDir, CrawlDb.CURRENT_NAME));
       job.setInputFormat(SequenceFileInputFormat.class);
       job.setMapperClass(CrawlDbUpdater.class);
@@ -546,7 +899,71 @@ public class Generator extends Configured implements Tool {
 
     if (LOG.isInfoEnabled()) { LOG.info("Generator: done."); }
 
-    return segment;
+    if (numGenerated < numSegments) {
+      Path[] result = new Path[numGenerated];
+      System.arraycopy(generated, 0, result, 0, numGenerated);
+      generated = result;
+    }
+    return generated;
+  }
+
+  /** Invert the entries selected for a segment, partition by host, sort by url hash. */
+  private void partitionSegment(Path selected, Path segment, int numLists)
+    throws IOException {
+    if (LOG.isInfoEnabled()) {
+      LOG.info("Generator: Partitioning selected urls by host, for politeness.");
+    }
+    JobConf job = new NutchJob(getConf());
+    job.setJobName("generate: partition " + segment);
+    
+    job.setInt("partition.url.by.host.seed", new Random().nextInt());
+
+    FileInputFormat.addInputPath(job, selected);
+    job.setInputFormat(SequenceFileInputFormat.class);
+
+    job.setMapperClass(SelectorInverseMapper.class);
+    job.setMapOutputKeyClass(Text.class);
+    job.setMapOutputValueClass(SelectorEntry.class);
+    job.setPartitionerClass(PartitionUrlByHost.class);
+    job.setReducerClass(PartitionReducer.class);
+    job.setNumReduceTasks(numLists);
+
+    FileOutputFormat.setOutputPath(job, new Path(segment, CrawlDatum.GENERATE_DIR_NAME));
+    job.setOutputFormat(SequenceFileOutputFormat.class);
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(CrawlDatum.class);
+    job.setOutputKeyComparatorClass(HashComparator.class);
+    JobClient.runJob(job);
+  }
+
+  /**
+   * Return true if no part of <code>dir</code> holds a record. Only the
+   * parts are read, the fetch lists' directory may also hold job logs.
+   */
+  private static boolean isEmpty(FileSystem fs, Path dir, Configuration conf)
+    throws IOException {
+    if (!fs.exists(dir)) {
+      return true;
+    }
+    FileStatus[] parts = fs.listStatus(dir, new PathFilter() {
+      public boolean accept(Path path) {
+        return path.getName().startsWith("part-");
+      }
+    });
+    for (int num = 0; parts != null && num < parts.length; num++) {
+      SequenceFile.Reader reader =
+        new SequenceFile.Reader(fs, parts[num].getPath(), conf);
+      try {
+        Writable key = (Writable)
+          ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+        if (reader.next(key)) {
+          return false;
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    return true;
   }
   
   private static SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmmss");
@@ -569,7 +986,7 @@ public class Generator extends Configured implements Tool {
   
   public int run(String[] args) throws Exception {
     if (args.length < 2) {
-      System.out.println("Usage: Generator <crawldb> <segments_dir> [-force] [-topN N] [-numFetchers numFetchers] [-adddays numDays] [-noFilter]");
+      System.out.println("Usage: Generator <crawldb> <segments_dir> [-force] [-topN N] [-numFetchers numFetchers] [-adddays numDays] [-noFilter] [-maxNumSegments num]");
       return -1;
     }
 
@@ -580,6 +997,7 @@ public class Generator extends Configured implements Tool {
     int numFetchers = -1;
     boolean filter = true;
     boolean force = false;
+    int maxNumSegments = 1;
 
     for (int i = 2; i < args.length; i++) {
       if ("-topN".equals(args[i])) {
@@ -595,13 +1013,17 @@ public class Generator extends Configured implements Tool {
         filter = false;
       } else if ("-force".equals(args[i])) {
         force = true;
+      } else if ("-maxNumSegments".equals(args[i])) {
+        maxNumSegments = Integer.parseInt(args[i+1]);
+        i++;
       }
       
     }
 
     try {
-      Path seg = generate(dbDir, segmentsDir, numFetchers, topN, curTime, filter, force);
-      if (seg == null) return -2;
+      Path[] segs = generate(dbDir, segmentsDir, numFetchers, topN, curTime,
+                             filter, force, maxNumSegments);
+      if (segs == null) return -2;
       else return 0;
     } catch (Exception e) {
       LOG.fatal("Generator: " + StringUtils.stringifyException(e));
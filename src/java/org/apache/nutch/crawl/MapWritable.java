@@ -20,11 +20,11 @@ package org.apache.nutch.crawl;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
 
@@ -56,25 +56,43 @@ import org.apache.nutch.protocol.ProtocolStatus;
  * For these custom Writables we write the byte id - utf class name tuple
  * into the header of each MapWritable that uses these types.
  *
+ * <p>Entries are kept in insertion order in parallel arrays. Small maps, such
+ * as the metadata of most {@link CrawlDatum}s, are searched linearly; larger
+ * ones also keep an open addressing hash table of entry positions. As with
+ * <code>java.util.HashMap</code>, keys must not be modified while they are in
+ * a map.</p>
+ *
  * @author Stefan Groschupf
  */
 public class MapWritable implements Writable {
 
   public static final Log LOG = LogFactory.getLog(MapWritable.class);
 
-  private KeyValueEntry fFirst;
+  /** Maps up to this size are searched without a hash table. */
+  private static final int LINEAR_MAX = 8;
+
+  private static final Writable[] NO_ENTRIES = new Writable[0];
 
-  private KeyValueEntry fLast;
+  private Writable[] fKeys = NO_ENTRIES;
 
-  private KeyValueEntry fOld;
+  private Writable[] fValues = NO_ENTRIES;
 
   private int fSize = 0;
 
+  /** Spread hash codes of the keys, valid while {@link #fIndex} is set. */
+  private int[] fHashes;
+
+  /** Entry positions plus one by key hash, <code>null</code> for small maps. */
+  private int[] fIndex;
+
   private int fIdCount = 0;
 
-  private ClassIdEntry fIdLast;
+  private byte[] fIds;
 
-  private ClassIdEntry fIdFirst;
+  private Class[] fIdClasses;
+
+  /** Class ids of the keys and values, filled in when writing. */
+  private byte[] fClassIds;
 
   private static Map<Class, Byte> CLASS_ID_MAP = new HashMap<Class, Byte>();
 
@@ -108,133 +126,132 @@ public class MapWritable implements Writable {
   public MapWritable() { }
   
   /**
-   * Copy constructor. This constructor makes a deep copy, using serialization /
-   * deserialization to break any possible references to contained objects.
+   * Copy constructor. This constructor makes a deep copy, so that no
+   * contained objects are shared. Keys and values of the common Writable
+   * types are copied directly, others using serialization / deserialization.
    * 
    * @param map map to copy from
    */
   public MapWritable(MapWritable map) {
-    if (map != null) {
+    if (map != null && map.fSize > 0) {
+      fKeys = new Writable[map.fKeys.length];
+      fValues = new Writable[map.fKeys.length];
       try {
-        DataOutputBuffer dob = new DataOutputBuffer();
-        map.write(dob);
-        DataInputBuffer dib = new DataInputBuffer();
-        dib.reset(dob.getData(), dob.getLength());
-        readFields(dib);
+        DataOutputBuffer buffer = new DataOutputBuffer();
+        for (int i = 0; i < map.fSize; i++) {
+          fKeys[i] = copy(map.fKeys[i], buffer);
+          fValues[i] = copy(map.fValues[i], buffer);
+        }
       } catch (IOException e) {
         throw new IllegalArgumentException("this map cannot be copied: " +
                 StringUtils.stringifyException(e));
       }
+      fSize = map.fSize;
+      if (map.fIndex != null) {
+        fHashes = (int[]) map.fHashes.clone();
+        fIndex = (int[]) map.fIndex.clone();
+      }
     }
   }
 
   public void clear() {
-    fOld = fFirst;
-    fFirst = fLast = null;
+    // the arrays are kept, the entries may belong to the caller
+    Arrays.fill(fKeys, 0, fSize, null);
+    Arrays.fill(fValues, 0, fSize, null);
     fSize = 0;
+    fIndex = null;
   }
 
   public boolean containsKey(Writable key) {
-    return findEntryByKey(key) != null;
+    return indexOf(key) >= 0;
   }
 
   public boolean containsValue(Writable value) {
-    KeyValueEntry entry = fFirst;
-    while (entry != null) {
-      if (entry.fValue.equals(value)) {
+    for (int i = 0; i < fSize; i++) {
+      if (fValues[i].equals(value)) {
         return true;
       }
-      entry = entry.fNextEntry;
     }
     return false;
   }
 
   public Writable get(Writable key) {
-    KeyValueEntry entry = findEntryByKey(key);
-    if (entry != null) {
-      return entry.fValue;
-    }
-    return null;
+    int i = indexOf(key);
+    return i < 0 ? null : fValues[i];
   }
 
   public int hashCode() {
     final int seed = 23;
     int hash = 0;
-    KeyValueEntry entry = fFirst;
-    while (entry != null) {
-      hash += entry.fKey.hashCode() * seed;
-      hash += entry.fValue.hashCode() * seed;
-      entry = entry.fNextEntry;
+    for (int i = 0; i < fSize; i++) {
+      hash += fKeys[i].hashCode() * seed;
+      hash += fValues[i].hashCode() * seed;
     }
     return hash;
-
   }
 
   public boolean isEmpty() {
-    return fFirst == null;
+    return fSize == 0;
   }
 
   public Set<Writable> keySet() {
     HashSet<Writable> set = new HashSet<Writable>();
-    if (isEmpty()) return set;
-    set.add(fFirst.fKey);
-    KeyValueEntry entry = fFirst;
-    while ((entry = entry.fNextEntry) != null) {
-      set.add(entry.fKey);
+    for (int i = 0; i < fSize; i++) {
+      set.add(fKeys[i]);
     }
     return set;
   }
 
   public Writable put(Writable key, Writable value) {
-    KeyValueEntry entry = findEntryByKey(key);
-    if (entry != null) {
-      Writable oldValue = entry.fValue;
-      entry.fValue = value;
+    int i = indexOf(key);
+    if (i >= 0) {
+      Writable oldValue = fValues[i];
+      fValues[i] = value;
       return oldValue;
     }
-    KeyValueEntry newEntry = new KeyValueEntry(key, value);
+    ensureCapacity(fSize + 1);
+    fKeys[fSize] = key;
+    fValues[fSize] = value;
     fSize++;
-    if (fLast != null) {
-      fLast = fLast.fNextEntry = newEntry;
-      return null;
+    if (fIndex != null) {
+      if (fSize * 2 > fIndex.length) {
+        buildIndex();
+      } else {
+        fHashes[fSize - 1] = hash(key);
+        insert(fSize - 1);
+      }
+    } else if (fSize > LINEAR_MAX) {
+      buildIndex();
     }
-    fLast = fFirst = newEntry;
     return null;
-
   }
 
   public void putAll(MapWritable map) {
-    if (map == null || map.size() == 0) {
+    if (map == null || map.fSize == 0) {
       return;
     }
-    Iterator<Writable> iterator = map.keySet().iterator();
-    while (iterator.hasNext()) {
-      Writable key = iterator.next();
-      Writable value = map.get(key);
-      put(key, value);
+    for (int i = 0; i < map.fSize; i++) {
+      put(map.fKeys[i], map.fValues[i]);
     }
   }
 
   public Writable remove(Writable key) {
-    Writable oldValue = null;
-    KeyValueEntry entry = fFirst;
-    KeyValueEntry predecessor = null;
-    while (entry != null) {
-      if (entry.fKey.equals(key)) {
-        oldValue = entry.fValue;
-        if (predecessor == null) {
-          fFirst = fFirst.fNextEntry;
-        } else {
-          predecessor.fNextEntry = entry.fNextEntry;
-        }
-        if (fLast.equals(entry)) {
-          fLast = predecessor;
-        }
-        fSize--;
-        return oldValue;
+    int i = indexOf(key);
+    if (i < 0) {
+      return null;
+    }
+    Writable oldValue = fValues[i];
+    fSize--;
+    System.arraycopy(fKeys, i + 1, fKeys, i, fSize - i);
+    System.arraycopy(fValues, i + 1, fValues, i, fSize - i);
+    fKeys[fSize] = null;
+    fValues[fSize] = null;
+    if (fIndex != null) {
+      if (fSize > LINEAR_MAX) {
+        buildIndex();
+      } else {
+        fIndex = null;
       }
-      predecessor = entry;
-      entry = entry.fNextEntry;
     }
     return oldValue;
   }
@@ -244,11 +261,9 @@ public class MapWritable implements Writable {
   }
 
   public Collection<Writable> values() {
-    LinkedList<Writable> list = new LinkedList<Writable>();
-    KeyValueEntry entry = fFirst;
-    while (entry != null) {
-      list.add(entry.fValue);
-      entry = entry.fNextEntry;
+    ArrayList<Writable> list = new ArrayList<Writable>(fSize);
+    for (int i = 0; i < fSize; i++) {
+      list.add(fValues[i]);
     }
     return list;
   }
@@ -257,43 +272,134 @@ public class MapWritable implements Writable {
     if (obj instanceof MapWritable) {
       MapWritable map = (MapWritable) obj;
       if (fSize != map.fSize) return false;
-      HashSet<KeyValueEntry> set1 = new HashSet<KeyValueEntry>();
-      KeyValueEntry e1 = fFirst;
-      while (e1 != null) {
-        set1.add(e1);
-        e1 = e1.fNextEntry;
-      }
-      HashSet<KeyValueEntry> set2 = new HashSet<KeyValueEntry>();
-      KeyValueEntry e2 = map.fFirst;
-      while (e2 != null) {
-        set2.add(e2);
-        e2 = e2.fNextEntry;
+      for (int i = 0; i < fSize; i++) {
+        int j = map.indexOf(fKeys[i]);
+        if (j < 0 || !fValues[i].equals(map.fValues[j])) {
+          return false;
+        }
       }
-      return set1.equals(set2);
+      return true;
     }
     return false;
   }
 
   public String toString() {
-    if (fFirst != null) {
+    if (fSize > 0) {
       StringBuffer buffer = new StringBuffer();
-      KeyValueEntry entry = fFirst;
-      while (entry != null) {
-        buffer.append(entry.toString());
+      for (int i = 0; i < fSize; i++) {
+        buffer.append(fKeys[i].toString());
+        buffer.append(":");
+        buffer.append(fValues[i].toString());
         buffer.append(" ");
-        entry = entry.fNextEntry;
       }
       return buffer.toString();
     }
     return null;
   }
 
-  private KeyValueEntry findEntryByKey(final Writable key) {
-    KeyValueEntry entry = fFirst;
-    while (entry != null && !entry.fKey.equals(key)) {
-      entry = entry.fNextEntry;
+  private int indexOf(final Writable key) {
+    if (fIndex == null) {
+      for (int i = 0; i < fSize; i++) {
+        if (fKeys[i].equals(key)) {
+          return i;
+        }
+      }
+      return -1;
     }
-    return entry;
+    int hash = hash(key);
+    int mask = fIndex.length - 1;
+    for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+      int i = fIndex[slot] - 1;
+      if (i < 0) {
+        return -1;
+      }
+      if (fHashes[i] == hash && fKeys[i].equals(key)) {
+        return i;
+      }
+    }
+  }
+
+  private static int hash(Writable key) {
+    int h = key.hashCode();
+    return h ^ (h >>> 16);                      // spread the high bits
+  }
+
+  /** Rebuild the hash table, leaving it at most a quarter full. */
+  private void buildIndex() {
+    int slots = 4;
+    while (slots < fSize * 4) slots <<= 1;
+    fIndex = new int[slots];
+    if (fHashes == null || fHashes.length < fKeys.length) {
+      fHashes = new int[fKeys.length];
+    }
+    for (int i = 0; i < fSize; i++) {
+      fHashes[i] = hash(fKeys[i]);
+      insert(i);
+    }
+  }
+
+  private void insert(int i) {
+    int mask = fIndex.length - 1;
+    int slot = fHashes[i] & mask;
+    while (fIndex[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    fIndex[slot] = i + 1;
+  }
+
+  private void ensureCapacity(int size) {
+    if (size <= fKeys.length) {
+      return;
+    }
+    int capacity = Math.max(4, fKeys.length * 2);
+    while (capacity < size) capacity <<= 1;
+    Writable[] keys = new Writable[capacity];
+    Writable[] values = new Writable[capacity];
+    System.arraycopy(fKeys, 0, keys, 0, fKeys.length);
+    System.arraycopy(fValues, 0, values, 0, fValues.length);
+    fKeys = keys;
+    fValues = values;
+    if (fHashes != null) {
+      int[] hashes = new int[capacity];
+      System.arraycopy(fHashes, 0, hashes, 0, fHashes.length);
+      fHashes = hashes;
+    }
+  }
+
+  /** Copy a key or value, directly if its class is a known one. */
+  private static Writable copy(Writable writable, DataOutputBuffer buffer)
+    throws IOException {
+    Class clazz = writable.getClass();
+    if (clazz == Text.class) {
+      return new Text((Text) writable);
+    } else if (clazz == LongWritable.class) {
+      return new LongWritable(((LongWritable) writable).get());
+    } else if (clazz == IntWritable.class) {
+      return new IntWritable(((IntWritable) writable).get());
+    } else if (clazz == FloatWritable.class) {
+      return new FloatWritable(((FloatWritable) writable).get());
+    } else if (clazz == BytesWritable.class) {
+      BytesWritable bytes = (BytesWritable) writable;
+      byte[] copy = new byte[bytes.getLength()];
+      System.arraycopy(bytes.getBytes(), 0, copy, 0, copy.length);
+      return new BytesWritable(copy);
+    } else if (clazz == MD5Hash.class) {
+      return new MD5Hash((byte[]) ((MD5Hash) writable).getDigest().clone());
+    } else if (clazz == NullWritable.class) {
+      return writable;
+    }
+    Writable copy;
+    try {
+      copy = (Writable) clazz.newInstance();
+    } catch (Exception e) {
+      throw new IOException("unable to instantiate class: " + e.toString());
+    }
+    buffer.reset();
+    writable.write(buffer);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(buffer.getData(), buffer.getLength());
+    copy.readFields(in);
+    return copy;
   }
 
   // serialization methods
@@ -306,24 +412,17 @@ public class MapWritable implements Writable {
       createInternalIdClassEntries();
       // write internal map
       out.writeByte(fIdCount);
-      if (fIdCount > 0) {
-        ClassIdEntry entry = fIdFirst;
-        while (entry != null) {
-          out.writeByte(entry.fId);
-          Text.writeString(out, entry.fclazz.getName());
-          entry = entry.fNextIdEntry;
-        }
+      for (int i = 0; i < fIdCount; i++) {
+        out.writeByte(fIds[i]);
+        Text.writeString(out, fIdClasses[i].getName());
       }
       // write meta data
-      KeyValueEntry entry = fFirst;
-      while (entry != null) {
-        out.writeByte(entry.fKeyClassId);
-        out.writeByte(entry.fValueClassId);
-
-        entry.fKey.write(out);
-        entry.fValue.write(out);
+      for (int i = 0; i < fSize; i++) {
+        out.writeByte(fClassIds[2 * i]);
+        out.writeByte(fClassIds[2 * i + 1]);
 
-        entry = entry.fNextEntry;
+        fKeys[i].write(out);
+        fValues[i].write(out);
       }
 
     }
@@ -332,13 +431,14 @@ public class MapWritable implements Writable {
 
   public void readFields(DataInput in) throws IOException {
     clear();
-    fSize = in.readInt();
-    if (fSize > 0) {
+    fIdCount = 0;
+    int size = in.readInt();
+    if (size > 0) {
       // read class-id map
-      fIdCount = in.readByte();
+      int idCount = in.readByte();
       byte id;
       Class clazz;
-      for (int i = 0; i < fIdCount; i++) {
+      for (int i = 0; i < idCount; i++) {
         try {
           id = in.readByte();
           clazz = Class.forName(Text.readString(in));
@@ -347,57 +447,74 @@ public class MapWritable implements Writable {
           if (LOG.isWarnEnabled()) { 
             LOG.warn("Unable to load internal map entry" + e.toString());
           }
-          fIdCount--;
         }
       }
-      KeyValueEntry entry;
-      for (int i = 0; i < fSize; i++) {
+      ensureCapacity(size);
+      byte keyId;
+      byte valueId;
+      for (int i = 0; i < size; i++) {
         try {
-          entry = getKeyValueEntry(in.readByte(), in.readByte());
-          entry.fKey.readFields(in);
-          entry.fValue.readFields(in);
-          if (fFirst == null) {
-            fFirst = fLast = entry;
-          } else {
-            fLast = fLast.fNextEntry = entry;
-          }
+          keyId = in.readByte();
+          valueId = in.readByte();
+          Writable key = newInstance(getClass(keyId));
+          Writable value = newInstance(getClass(valueId));
+          key.readFields(in);
+          value.readFields(in);
+          fKeys[fSize] = key;
+          fValues[fSize] = value;
+          fSize++;
         } catch (IOException e) {
           if (LOG.isWarnEnabled()) {
             LOG.warn("Unable to load meta data entry, ignoring.. : "  +
                      e.toString());
           }
-          fSize--;
         }
       }
+      if (fSize > LINEAR_MAX) {
+        buildIndex();
+      }
+    }
+  }
+
+  private static Writable newInstance(Class clazz) throws IOException {
+    try {
+      return (Writable) clazz.newInstance();
+    } catch (Exception e) {
+      throw new IOException("unable to instantiate class: " + e.toString());
     }
   }
 
   private void createInternalIdClassEntries() {
-    KeyValueEntry entry = fFirst;
-    byte id;
-    while (entry != null) {
-      id = getClassId(entry.fKey.getClass());
-      if (id == -128) {
-        id = addIdEntry((byte) (-128 + CLASS_ID_MAP.size() + ++fIdCount),
-            entry.fKey.getClass());
-      }
-      entry.fKeyClassId = id;
-      id = getClassId(entry.fValue.getClass());
+    if (fClassIds == null || fClassIds.length < 2 * fSize) {
+      fClassIds = new byte[2 * fKeys.length];
+    }
+    fIdCount = 0;
+    for (int i = 0; i < 2 * fSize; i++) {
+      Writable writable = (i % 2 == 0) ? fKeys[i / 2] : fValues[i / 2];
+      byte id = getClassId(writable.getClass());
       if (id == -128) {
-        id = addIdEntry((byte) (-128 + CLASS_ID_MAP.size() + ++fIdCount),
-            entry.fValue.getClass());
+        id = addIdEntry((byte) (-128 + CLASS_ID_MAP.size() + fIdCount + 1),
+            writable.getClass());
       }
-      entry.fValueClassId = id;
-      entry = entry.fNextEntry;
+      fClassIds[i] = id;
     }
   }
 
   private byte addIdEntry(byte id, Class clazz) {
-    if (fIdFirst == null) {
-      fIdFirst = fIdLast = new ClassIdEntry(id, clazz);
-    } else {
-      fIdLast.fNextIdEntry = fIdLast = new ClassIdEntry(id, clazz);
+    if (fIds == null || fIdCount == fIds.length) {
+      int capacity = fIds == null ? 4 : fIds.length * 2;
+      byte[] ids = new byte[capacity];
+      Class[] classes = new Class[capacity];
+      if (fIds != null) {
+        System.arraycopy(fIds, 0, ids, 0, fIdCount);
+        System.arraycopy(fIdClasses, 0, classes, 0, fIdCount);
+      }
+      fIds = ids;
+      fIdClasses = classes;
     }
+    fIds[fIdCount] = id;
+    fIdClasses[fIdCount] = clazz;
+    fIdCount++;
     return id;
   }
 
@@ -406,111 +523,25 @@ public class MapWritable implements Writable {
     if (classId != null) {
       return classId.byteValue();
     }
-    ClassIdEntry entry = fIdFirst;
-    while (entry != null) {
-      if (entry.fclazz.equals(clazz)) {
-        return entry.fId;
+    for (int i = 0; i < fIdCount; i++) {
+      if (fIdClasses[i].equals(clazz)) {
+        return fIds[i];
       }
-      entry = entry.fNextIdEntry;
     }
     return -128;
   }
 
-  private KeyValueEntry getKeyValueEntry(final byte keyId, final byte valueId)
-      throws IOException {
-    KeyValueEntry entry = fOld;
-    KeyValueEntry last = null;
-    byte entryKeyId;
-    byte entryValueId;
-    while (entry != null) {
-      entryKeyId = getClassId(entry.fKey.getClass());
-      entryValueId = getClassId(entry.fValue.getClass());
-      if (entryKeyId == keyId && entryValueId == valueId) {
-        if (last != null) {
-          last.fNextEntry = entry.fNextEntry;
-        } else {
-          fOld = entry.fNextEntry;
-        }
-        entry.fNextEntry = null; // reset next entry
-        return entry;
-      }
-      last = entry;
-      entry = entry.fNextEntry;
-    }
-    Class keyClass = getClass(keyId);
-    Class valueClass = getClass(valueId);
-    try {
-      return new KeyValueEntry((Writable) keyClass.newInstance(),
-          (Writable) valueClass.newInstance());
-    } catch (Exception e) {
-      throw new IOException("unable to instantiate class: " + e.toString());
-    }
-
-  }
-
   private Class getClass(final byte id) throws IOException {
     Class clazz = ID_CLASS_MAP.get(new Byte(id));
-    if (clazz == null) {
-      ClassIdEntry entry = fIdFirst;
-      while (entry != null) {
-        if (entry.fId == id) {
-          return entry.fclazz;
-        }
-
-        entry = entry.fNextIdEntry;
-      }
-    } else {
+    if (clazz != null) {
       return clazz;
     }
-    throw new IOException("unable to load class for id: " + id);
-  }
-
-  /** an entry holds writable key and value */
-  private class KeyValueEntry {
-    private byte fKeyClassId;
-
-    private byte fValueClassId;
-
-    private Writable fKey;
-
-    private Writable fValue;
-
-    private KeyValueEntry fNextEntry;
-
-    public KeyValueEntry(Writable key, Writable value) {
-      this.fKey = key;
-      this.fValue = value;
-    }
-
-    public String toString() {
-      return fKey.toString() + ":" + fValue.toString();
-    }
-
-    public boolean equals(Object obj) {
-      if (obj instanceof KeyValueEntry) {
-        KeyValueEntry entry = (KeyValueEntry) obj;
-        return entry.fKey.equals(fKey) && entry.fValue.equals(fValue);
+    for (int i = 0; i < fIdCount; i++) {
+      if (fIds[i] == id) {
+        return fIdClasses[i];
       }
-      return false;
-    }
-
-    public int hashCode() {
-      return toString().hashCode();
-    }
-  }
-
-  /** container for Id class tuples */
-  private class ClassIdEntry {
-    public ClassIdEntry(byte id, Class clazz) {
-      fId = id;
-      fclazz = clazz;
     }
-
-    private byte fId;
-
-    private Class fclazz;
-
-    private ClassIdEntry fNextIdEntry;
+    throw new IOException("unable to load class for id: " + id);
   }
 
 }
@@ -0,0 +1,138 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.fetcher;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.protocol.ProtocolStatus;
+
+/**
+ * Adapts the delay between requests and the number of concurrent requests
+ * to one host to how that host responds.
+ *
+ * <p>The delay is <code>fetcher.adaptive.delay.factor</code> times the
+ * average response time of the host, multiplied by a penalty that doubles
+ * when the host asks us to slow down (HTTP 429 and 503, reported as
+ * {@link ProtocolStatus#RETRY}), grows on errors and slowly decays back
+ * while the host responds normally. The delay is kept between
+ * <code>fetcher.adaptive.delay.min</code> and
+ * <code>fetcher.adaptive.delay.max</code>, and never drops below a
+ * Crawl-Delay from robots.txt.</p>
+ *
+ * <p>Concurrency starts at one request and grows by one after every
+ * {@link #INCREASE_AFTER} consecutive normal responses while the error rate
+ * is low, up to <code>fetcher.threads.per.host</code>. It is halved when the
+ * host throttles us and reduced by one on errors.</p>
+ *
+ * <p>Instances are not thread-safe, callers synchronize on their queue.</p>
+ */
+class AdaptivePoliteness {
+
+  /** The host answered normally. */
+  static final int OK = 0;
+  /** The request failed or the server reported an error. */
+  static final int ERROR = 1;
+  /** The server asked us to slow down. */
+  static final int THROTTLED = 2;
+
+  /** Consecutive normal responses needed before concurrency is raised. */
+  static final int INCREASE_AFTER = 10;
+
+  /** Weight of the newest sample in the moving averages. */
+  private static final double ALPHA = 0.2;
+  private static final double MAX_PENALTY = 64;
+
+  private long minDelay;
+  private long maxDelay;
+  private float delayFactor;
+  private int maxThreads;
+  private long robotsDelay = -1;
+
+  private double latency = -1;
+  private double errorRate;
+  private double penalty = 1;
+  private int threads = 1;
+  private int successes;
+
+  AdaptivePoliteness(Configuration conf, int maxThreads) {
+    this.minDelay = (long) (conf.getFloat("fetcher.adaptive.delay.min", 0.5f) * 1000);
+    this.maxDelay = (long) (conf.getFloat("fetcher.adaptive.delay.max", 30.0f) * 1000);
+    this.delayFactor = conf.getFloat("fetcher.adaptive.delay.factor", 2.0f);
+    this.maxThreads = Math.max(1, maxThreads);
+  }
+
+  /** Map a {@link ProtocolStatus} code to an outcome. */
+  static int getOutcome(int protocolStatusCode) {
+    switch (protocolStatusCode) {
+    case ProtocolStatus.RETRY:
+      return THROTTLED;
+    case ProtocolStatus.EXCEPTION:
+    case ProtocolStatus.FAILED:
+      return ERROR;
+    default:
+      return OK;
+    }
+  }
+
+  /** Set the Crawl-Delay from robots.txt, in milliseconds. */
+  void setRobotsDelay(long robotsDelay) {
+    this.robotsDelay = robotsDelay;
+  }
+
+  /** Account for a finished request that took <code>elapsed</code> ms. */
+  void record(long elapsed, int outcome) {
+    latency = latency < 0 ? elapsed : ALPHA * elapsed + (1 - ALPHA) * latency;
+    errorRate = ALPHA * (outcome == OK ? 0 : 1) + (1 - ALPHA) * errorRate;
+    switch (outcome) {
+    case THROTTLED:
+      penalty = Math.min(MAX_PENALTY, penalty * 2);
+      threads = Math.max(1, threads / 2);
+      successes = 0;
+      break;
+    case ERROR:
+      penalty = Math.min(MAX_PENALTY, penalty * 1.5);
+      threads = Math.max(1, threads - 1);
+      successes = 0;
+      break;
+    default:
+      penalty = Math.max(1, penalty * 0.9);
+      if (++successes >= INCREASE_AFTER && errorRate < 0.1) {
+        threads = Math.min(maxThreads, threads + 1);
+        successes = 0;
+      }
+    }
+  }
+
+  /** The delay to wait after a request before the next one, in ms. */
+  long getDelay() {
+    long floor = Math.max(minDelay, robotsDelay);
+    long delay = latency < 0 ? floor
+      : (long) (delayFactor * latency * penalty);
+    return Math.max(floor, Math.min(maxDelay, delay));
+  }
+
+  /** The number of requests that may run concurrently. */
+  int getThreads() {
+    return threads;
+  }
+
+  public String toString() {
+    return "latency=" + (long) latency + ", errorRate=" + errorRate
+      + ", penalty=" + penalty + ", delay=" + getDelay()
+      + ", threads=" + threads;
+  }
+
+}
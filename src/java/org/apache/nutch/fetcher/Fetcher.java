@@ -429,6 +429,7 @@ public class Fetcher extends Configured implements Tool, MapRunnable<WritableCom
         + Math.round(((((float)bytes)*8)/1024)/elapsed)+" kb/s, ";
     }
     reporter.setStatus(status);
+    NutchCounters.report(reporter);
   }
 
   public Fetcher() {
@@ -469,6 +470,7 @@ public class Fetcher extends Configured implements Tool, MapRunnable<WritableCom
     this.reporter = reporter;
 
     this.maxRedirect = getConf().getInt("http.redirect.max", 3);
+    RobotRulesCache.preload(getConf());
     
     int threadCount = getConf().getInt("fetcher.threads.fetch", 10);
     if (LOG.isInfoEnabled()) { LOG.info("Fetcher: threads: " + threadCount); }
@@ -493,11 +495,12 @@ public class Fetcher extends Configured implements Tool, MapRunnable<WritableCom
           if (LOG.isWarnEnabled()) {
             LOG.warn("Aborting with "+activeThreads+" hung threads.");
           }
-          return;
+          break;
         }
       }
 
     } while (activeThreads > 0);
+    RobotRulesCache.persist(getConf(), segmentName);
     
   }
 
@@ -23,6 +23,13 @@ import java.net.URL;
 import java.net.UnknownHostException;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -37,6 +44,7 @@ import org.apache.hadoop.mapred.*;
 import org.apache.hadoop.util.StringUtils;
 
 import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.crawl.Generator;
 import org.apache.nutch.crawl.NutchWritable;
 import org.apache.nutch.crawl.SignatureFactory;
 import org.apache.nutch.metadata.Metadata;
@@ -76,10 +84,21 @@ import org.apache.nutch.util.*;
  * queues may return eligible items or null if for "politeness" reasons this
  * host's queue is not yet ready.
  * 
- * <p>If there are still unfetched items in the queues, but none of the items
- * are ready, FetcherThread-s will spin-wait until either some items become
- * available, or a timeout is reached (at which point the Fetcher will abort,
- * assuming the task is hung).
+ * <p>Queues that hold items are ordered by the time when their host may be
+ * contacted next. If there are still unfetched items in the queues, but none
+ * of the items are ready, FetcherThread-s block until the earliest queue
+ * becomes ready, or a timeout is reached (at which point the Fetcher will
+ * abort, assuming the task is hung). The QueueFeeder likewise blocks while
+ * the queues are full, and is woken up as soon as items are consumed.
+ * 
+ * <p>If <code>fetcher.async.requests</code> is positive, items whose
+ * protocol is an {@link AsyncProtocol} are not waited for. The FetcherThread
+ * hands the request to the protocol and takes the next item, up to that
+ * many requests in flight in the task. When a request is done the protocol
+ * queues an AsyncFetch, and the next FetcherThread that is free outputs it
+ * and follows its redirect. A few threads can then keep thousands of
+ * requests in flight, and the per-host queues still limit how many of them
+ * go to one host.
  * 
  * @author Andrzej Bialecki
  */
@@ -123,6 +142,21 @@ public class Fetcher2 extends Configured implements
   FetchItemQueues fetchQueues;
   QueueFeeder feeder;
   
+  /** Fetched content waiting to be parsed, null if fetcher threads parse. */
+  private BlockingQueue<ParseTask> parseQueue;
+  private AtomicInteger activeParsers = new AtomicInteger(0);
+  /** Set once all fetcher threads exited, so nothing more will be parsed. */
+  private volatile boolean fetchingDone = false;
+  private volatile boolean parsingAborted = false;
+  private List<ParseWorker> parseWorkers = new ArrayList<ParseWorker>();
+
+  /** The most requests in flight with an {@link AsyncProtocol}, 0 if none. */
+  private int maxAsyncRequests;
+  private AtomicInteger asyncRequests = new AtomicInteger(0);
+  /** Asynchronous fetches that are done, waiting for a fetcher thread. */
+  private BlockingQueue<AsyncFetch> asyncResults =
+    new LinkedBlockingQueue<AsyncFetch>();
+  
   /**
    * This class described the item to be fetched.
    */
@@ -141,9 +175,10 @@ public class Fetcher2 extends Configured implements
     
     /** Create an item. Queue id will be created based on <code>byIP</code>
      * argument, either as a protocol + hostname pair, or protocol + IP
-     * address pair.
+     * address pair, with the IP address taken from <code>resolver</code>.
      */
-    public static FetchItem create(Text url, CrawlDatum datum, boolean byIP) {
+    public static FetchItem create(Text url, CrawlDatum datum, boolean byIP,
+        DnsResolver resolver) {
       String queueID;
       URL u = null;
       try {
@@ -156,7 +191,7 @@ public class Fetcher2 extends Configured implements
       String host;
       if (byIP) {
         try {
-          InetAddress addr = InetAddress.getByName(u.getHost());
+          InetAddress addr = resolver.resolve(u.getHost());
           host = addr.getHostAddress();
         } catch (UnknownHostException e) {
           // unable to resolve it, so don't fall back to host name
@@ -196,71 +231,127 @@ public class Fetcher2 extends Configured implements
    * This class handles FetchItems which come from the same host ID (be it
    * a proto/hostname or proto/IP pair). It also keeps track of requests in
    * progress and elapsed time between requests.
+   * 
+   * <p>Queues implement {@link Delayed} so that {@link FetchItemQueues} can
+   * keep the queues that have items waiting in a {@link DelayQueue}, ordered
+   * by the time when the next request to this host is allowed. All state is
+   * guarded by the queue's own monitor, so threads working on different hosts
+   * never contend with each other.
    */
-  private static class FetchItemQueue {
-    List<FetchItem> queue = Collections.synchronizedList(new LinkedList<FetchItem>());
-    Set<FetchItem>  inProgress = Collections.synchronizedSet(new HashSet<FetchItem>());
-    AtomicLong nextFetchTime = new AtomicLong();
-    long crawlDelay;
+  private static class FetchItemQueue implements Delayed {
+    String id;
+    LinkedList<FetchItem> queue = new LinkedList<FetchItem>();
+    Set<FetchItem>  inProgress = new HashSet<FetchItem>();
+    long nextFetchTime;
+    volatile long crawlDelay;
     long minCrawlDelay;
     int maxThreads;
     Configuration conf;
+    /** True if this queue is currently waiting in the ready queue. */
+    boolean scheduled;
+    /** The ordering key, fixed for as long as this queue is scheduled. */
+    volatile long scheduledTime;
+    /** True if this queue has been removed from the set of active queues. */
+    boolean reaped;
+    /** Adapts delay and concurrency to the host, null if disabled. */
+    AdaptivePoliteness politeness;
     
-    public FetchItemQueue(Configuration conf, int maxThreads, long crawlDelay, long minCrawlDelay) {
+    public FetchItemQueue(String id, Configuration conf, int maxThreads, long crawlDelay, long minCrawlDelay) {
+      this.id = id;
       this.conf = conf;
       this.maxThreads = maxThreads;
       this.crawlDelay = crawlDelay;
       this.minCrawlDelay = minCrawlDelay;
+      if (conf.getBoolean("fetcher.adaptive.politeness", false)) {
+        politeness = new AdaptivePoliteness(conf, maxThreads);
+      }
       // ready to start
       setEndTime(System.currentTimeMillis() - crawlDelay);
     }
     
-    public int getQueueSize() {
+    public synchronized int getQueueSize() {
       return queue.size();
     }
     
-    public int getInProgressSize() {
+    public synchronized int getInProgressSize() {
       return inProgress.size();
     }
     
-    public void finishFetchItem(FetchItem it, boolean asap) {
+    /** Returns true if no items are waiting or being fetched. */
+    public synchronized boolean isIdle() {
+      return queue.size() == 0 && inProgress.size() == 0;
+    }
+    
+    /** Returns true if an item could be handed out once the delay expires. */
+    public synchronized boolean hasEligibleItems() {
+      return queue.size() > 0 && inProgress.size() < getMaxThreads();
+    }
+    
+    /** Returns the number of requests allowed to run concurrently. */
+    private int getMaxThreads() {
+      return politeness == null ? maxThreads : politeness.getThreads();
+    }
+    
+    public synchronized void setCrawlDelay(long delay) {
+      crawlDelay = delay;
+      if (politeness != null) politeness.setRobotsDelay(delay);
+    }
+    
+    /** Account for how the host responded to a request. */
+    public synchronized void recordFetch(long elapsed, int protocolStatusCode) {
+      if (politeness != null) {
+        politeness.record(elapsed,
+            AdaptivePoliteness.getOutcome(protocolStatusCode));
+      }
+    }
+    
+    public synchronized void finishFetchItem(FetchItem it, boolean asap) {
       if (it != null) {
         inProgress.remove(it);
         setEndTime(System.currentTimeMillis(), asap);
       }
     }
     
-    public void addFetchItem(FetchItem it) {
+    public synchronized void addFetchItem(FetchItem it) {
       if (it == null) return;
       queue.add(it);
     }
     
-    public void addInProgressFetchItem(FetchItem it) {
+    public synchronized void addInProgressFetchItem(FetchItem it) {
       if (it == null) return;
       inProgress.add(it);
     }
     
-    public FetchItem getFetchItem() {
-      if (inProgress.size() >= maxThreads) return null;
+    public synchronized FetchItem getFetchItem() {
+      if (inProgress.size() >= getMaxThreads()) return null;
       long now = System.currentTimeMillis();
-      if (nextFetchTime.get() > now) return null;
-      FetchItem it = null;
+      if (nextFetchTime > now) return null;
       if (queue.size() == 0) return null;
-      try {
-        it = queue.remove(0);
-        inProgress.add(it);
-      } catch (Exception e) {
-        LOG.error("Cannot remove FetchItem from queue or cannot add it to inProgress queue", e);
-      }
+      FetchItem it = queue.removeFirst();
+      inProgress.add(it);
       return it;
     }
     
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(scheduledTime - System.currentTimeMillis(),
+          TimeUnit.MILLISECONDS);
+    }
+    
+    public int compareTo(Delayed o) {
+      long other = ((FetchItemQueue)o).scheduledTime;
+      long self = scheduledTime;
+      return self < other ? -1 : (self == other ? 0 : 1);
+    }
+    
     public synchronized void dump() {
       LOG.info("  maxThreads    = " + maxThreads);
       LOG.info("  inProgress    = " + inProgress.size());
       LOG.info("  crawlDelay    = " + crawlDelay);
       LOG.info("  minCrawlDelay = " + minCrawlDelay);
-      LOG.info("  nextFetchTime = " + nextFetchTime.get());
+      if (politeness != null) {
+        LOG.info("  politeness    = " + politeness);
+      }
+      LOG.info("  nextFetchTime = " + nextFetchTime);
       LOG.info("  now           = " + System.currentTimeMillis());
       for (int i = 0; i < queue.size(); i++) {
         FetchItem it = queue.get(i);
@@ -273,23 +364,36 @@ public class Fetcher2 extends Configured implements
     }
     
     private void setEndTime(long endTime, boolean asap) {
-      if (!asap)
-        nextFetchTime.set(endTime + (maxThreads > 1 ? minCrawlDelay : crawlDelay));
+      if (asap)
+        nextFetchTime = endTime;
+      else if (politeness != null)
+        nextFetchTime = endTime + politeness.getDelay();
       else
-        nextFetchTime.set(endTime);
+        nextFetchTime = endTime + (maxThreads > 1 ? minCrawlDelay : crawlDelay);
     }
   }
   
   /**
    * Convenience class - a collection of queues that keeps track of the total
    * number of items, and provides items eligible for fetching from any queue.
+   * 
+   * <p>Queues with items waiting are kept in a {@link DelayQueue}, so that
+   * consumers block until the earliest host becomes ready instead of scanning
+   * all queues. A queue is present in the delay queue at most once, and is
+   * re-scheduled whenever an item is added, taken or finished.
    */
   private static class FetchItemQueues {
     public static final String DEFAULT_ID = "default";
-    Map<String, FetchItemQueue> queues = new HashMap<String, FetchItemQueue>();
+    Map<String, FetchItemQueue> queues = new ConcurrentHashMap<String, FetchItemQueue>();
+    DelayQueue<FetchItemQueue> readyQueues = new DelayQueue<FetchItemQueue>();
     AtomicInteger totalSize = new AtomicInteger(0);
+    Object capacityLock = new Object();
+    volatile boolean waitingForCapacity = false;
+    /** Set when fetching stops early, no more items are handed out. */
+    volatile boolean halted = false;
     int maxThreads;
     boolean byIP;
+    DnsResolver resolver;
     long crawlDelay;
     long minCrawlDelay;
     Configuration conf;    
@@ -299,6 +403,7 @@ public class Fetcher2 extends Configured implements
       this.maxThreads = conf.getInt("fetcher.threads.per.host", 1);
       // backward-compatible default setting
       this.byIP = conf.getBoolean("fetcher.threads.per.host.by.ip", false);
+      this.resolver = DnsResolver.get(conf);
       this.crawlDelay = (long) (conf.getFloat("fetcher.server.delay", 1.0f) * 1000);
       this.minCrawlDelay = (long) (conf.getFloat("fetcher.server.min.delay", 0.0f) * 1000);
     }
@@ -312,14 +417,42 @@ public class Fetcher2 extends Configured implements
     }
     
     public void addFetchItem(Text url, CrawlDatum datum) {
-      FetchItem it = FetchItem.create(url, datum, byIP);
+      FetchItem it = FetchItem.create(url, datum, byIP, resolver);
       if (it != null) addFetchItem(it);
     }
     
     public void addFetchItem(FetchItem it) {
-      FetchItemQueue fiq = getFetchItemQueue(it.queueID);
-      fiq.addFetchItem(it);
-      totalSize.incrementAndGet();
+      while (true) {
+        FetchItemQueue fiq = getFetchItemQueue(it.queueID);
+        synchronized (fiq) {
+          if (fiq.reaped) continue;
+          fiq.addFetchItem(it);
+          totalSize.incrementAndGet();
+          schedule(fiq);
+          return;
+        }
+      }
+    }
+    
+    public void addInProgressFetchItem(FetchItem it) {
+      while (true) {
+        FetchItemQueue fiq = getFetchItemQueue(it.queueID);
+        synchronized (fiq) {
+          if (fiq.reaped) continue;
+          fiq.addInProgressFetchItem(it);
+          return;
+        }
+      }
+    }
+    
+    public void setCrawlDelay(String id, long delay) {
+      FetchItemQueue fiq = queues.get(id);
+      if (fiq != null) fiq.setCrawlDelay(delay);
+    }
+    
+    public void recordFetch(FetchItem it, long elapsed, int protocolStatusCode) {
+      FetchItemQueue fiq = queues.get(it.queueID);
+      if (fiq != null) fiq.recordFetch(elapsed, protocolStatusCode);
     }
     
     public void finishFetchItem(FetchItem it) {
@@ -332,43 +465,136 @@ public class Fetcher2 extends Configured implements
         LOG.warn("Attempting to finish item from unknown queue: " + it);
         return;
       }
-      fiq.finishFetchItem(it, asap);
+      synchronized (fiq) {
+        fiq.finishFetchItem(it, asap);
+        // the queue may now be eligible earlier than it was scheduled for
+        if (fiq.scheduled && fiq.scheduledTime > fiq.nextFetchTime
+            && readyQueues.remove(fiq)) {
+          fiq.scheduled = false;
+        }
+        schedule(fiq);
+        reapIfIdle(fiq);
+      }
     }
     
-    public synchronized FetchItemQueue getFetchItemQueue(String id) {
+    public FetchItemQueue getFetchItemQueue(String id) {
       FetchItemQueue fiq = queues.get(id);
       if (fiq == null) {
-        // initialize queue
-        fiq = new FetchItemQueue(conf, maxThreads, crawlDelay, minCrawlDelay);
-        queues.put(id, fiq);
+        synchronized (queues) {
+          fiq = queues.get(id);
+          if (fiq == null) {
+            // initialize queue
+            fiq = new FetchItemQueue(id, conf, maxThreads, crawlDelay, minCrawlDelay);
+            queues.put(id, fiq);
+          }
+        }
       }
       return fiq;
     }
     
-    public synchronized FetchItem getFetchItem() {
-      Iterator<Map.Entry<String, FetchItemQueue>> it =
-        queues.entrySet().iterator();
-      while (it.hasNext()) {
-        FetchItemQueue fiq = it.next().getValue();
-        // reap empty queues
-        if (fiq.getQueueSize() == 0 && fiq.getInProgressSize() == 0) {
-          it.remove();
-          continue;
+    /**
+     * Get an item that is eligible for fetching, waiting for at most
+     * <code>timeout</code> milliseconds for a queue to become ready.
+     * @return an item, or null if none became ready within the timeout
+     */
+    public FetchItem getFetchItem(long timeout) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + timeout;
+      while (!halted) {
+        long wait = deadline - System.currentTimeMillis();
+        FetchItemQueue fiq = readyQueues.poll(wait, TimeUnit.MILLISECONDS);
+        if (fiq == null) return null;
+        FetchItem fit;
+        synchronized (fiq) {
+          fiq.scheduled = false;
+          // delay or concurrency may have changed since it was scheduled
+          fit = fiq.getFetchItem();
+          schedule(fiq);
+          reapIfIdle(fiq);
         }
-        FetchItem fit = fiq.getFetchItem();
         if (fit != null) {
           totalSize.decrementAndGet();
+          if (waitingForCapacity) {
+            synchronized (capacityLock) {
+              capacityLock.notifyAll();
+            }
+          }
           return fit;
         }
       }
       return null;
     }
     
-    public synchronized void dump() {
-      for (String id : queues.keySet()) {
-        FetchItemQueue fiq = queues.get(id);
+    /**
+     * Block until the total number of queued items drops below
+     * <code>maxSize</code>.
+     */
+    public void waitForCapacity(int maxSize) throws InterruptedException {
+      synchronized (capacityLock) {
+        waitingForCapacity = true;
+        try {
+          while (!halted && totalSize.get() >= maxSize) {
+            capacityLock.wait(1000);
+          }
+        } finally {
+          waitingForCapacity = false;
+        }
+      }
+    }
+    
+    /** Stop handing out items, and wake up a feeder waiting for capacity. */
+    public void halt() {
+      halted = true;
+      synchronized (capacityLock) {
+        capacityLock.notifyAll();
+      }
+    }
+    
+    /** Remove and return all items still waiting in the queues. */
+    public List<FetchItem> drain() {
+      List<FetchItem> items = new ArrayList<FetchItem>();
+      for (FetchItemQueue fiq : queues.values()) {
+        synchronized (fiq) {
+          items.addAll(fiq.queue);
+          totalSize.addAndGet(-fiq.queue.size());
+          fiq.queue.clear();
+          if (fiq.scheduled && readyQueues.remove(fiq)) {
+            fiq.scheduled = false;
+          }
+        }
+      }
+      return items;
+    }
+    
+    /** Put the queue in the ready queue, if needed. Caller must hold its lock. */
+    private void schedule(FetchItemQueue fiq) {
+      if (fiq.scheduled || !fiq.hasEligibleItems()) return;
+      fiq.scheduled = true;
+      fiq.scheduledTime = fiq.nextFetchTime;
+      readyQueues.offer(fiq);
+    }
+    
+    /**
+     * Reap the queue if it's empty. Queues are kept until their crawl delay
+     * expires, so that new items for the same host still wait politely.
+     * Caller must hold its lock.
+     */
+    private void reapIfIdle(FetchItemQueue fiq) {
+      if (fiq.scheduled || !fiq.isIdle()) return;
+      if (fiq.nextFetchTime > System.currentTimeMillis()) {
+        // check again when the delay expires
+        fiq.scheduled = true;
+        fiq.scheduledTime = fiq.nextFetchTime;
+        readyQueues.offer(fiq);
+        return;
+      }
+      fiq.reaped = true;
+      queues.remove(fiq.id);
+    }
+    
+    public void dump() {
+      for (FetchItemQueue fiq : queues.values()) {
         if (fiq.getQueueSize() == 0) continue;
-        LOG.info("* queue: " + id);
+        LOG.info("* queue: " + fiq.id);
         fiq.dump();
       }
     }
@@ -376,18 +602,22 @@ public class Fetcher2 extends Configured implements
   
   /**
    * This class feeds the queues with input items, and re-fills them as
-   * items are consumed by FetcherThread-s.
+   * items are consumed by FetcherThread-s. Input is read in batches, and
+   * the hosts of a batch are resolved in the background before its items
+   * are queued, so that slow DNS lookups overlap instead of adding up.
    */
   private static class QueueFeeder extends Thread {
     private RecordReader<Text, CrawlDatum> reader;
     private FetchItemQueues queues;
     private int size;
+    private boolean prefetch;
     
     public QueueFeeder(RecordReader<Text, CrawlDatum> reader,
-        FetchItemQueues queues, int size) {
+        FetchItemQueues queues, int size, boolean prefetch) {
       this.reader = reader;
       this.queues = queues;
       this.size = size;
+      this.prefetch = prefetch;
       this.setDaemon(true);
       this.setName("QueueFeeder");
     }
@@ -396,23 +626,30 @@ public class Fetcher2 extends Configured implements
       boolean hasMore = true;
       int cnt = 0;
       
-      while (hasMore) {
+      while (hasMore && !queues.halted) {
         int feed = size - queues.getTotalSize();
         if (feed <= 0) {
-          // queues are full - spin-wait until they have some free space
+          // queues are full - wait until they have some free space
           try {
-            Thread.sleep(1000);
-          } catch (Exception e) {};
+            queues.waitForCapacity(size);
+          } catch (InterruptedException e) {
+            LOG.warn("QueueFeeder interrupted, record " + cnt);
+            return;
+          }
           continue;
         } else {
           LOG.debug("-feeding " + feed + " input urls ...");
-          while (feed > 0 && hasMore) {
+          List<Text> urls = new ArrayList<Text>(feed);
+          List<CrawlDatum> datums = new ArrayList<CrawlDatum>(feed);
+          while (feed > 0 && hasMore && !queues.halted) {
             try {
               Text url = new Text();
               CrawlDatum datum = new CrawlDatum();
               hasMore = reader.next(url, datum);
               if (hasMore) {
-                queues.addFetchItem(url, datum);
+                if (prefetch) queues.resolver.prefetch(getHost(url));
+                urls.add(url);
+                datums.add(datum);
                 cnt++;
                 feed--;
               }
@@ -421,12 +658,148 @@ public class Fetcher2 extends Configured implements
               return;
             }
           }
+          for (int i = 0; i < urls.size(); i++) {
+            queues.addFetchItem(urls.get(i), datums.get(i));
+          }
         }
       }
       LOG.info("QueueFeeder finished: total " + cnt + " records.");
     }
+
+    private static String getHost(Text url) {
+      try {
+        return new URL(url.toString()).getHost();
+      } catch (MalformedURLException e) {
+        return null;
+      }
+    }
+  }
+  
+  /** Fetched content handed from a fetcher thread to the parse stage. */
+  private static class ParseTask {
+    Text url;
+    CrawlDatum datum;
+    Content content;
+    
+    public ParseTask(Text url, CrawlDatum datum, Content content) {
+      this.url = url;
+      this.datum = datum;
+      this.content = content;
+    }
+  }
+  
+  /**
+   * This class parses the content fetched by FetcherThread-s and outputs
+   * the results, so that slow parsers do not hold network threads. Meta
+   * refresh redirects found here are not followed at once but output as
+   * links, to be fetched in a later cycle.
+   */
+  private class ParseWorker extends Thread {
+    private ParseUtil parseUtil;
+    private ScoringFilters scfilters;
+    private URLFilters urlFilters;
+    private URLNormalizers normalizers;
+    
+    public ParseWorker(Configuration conf) {
+      this.setDaemon(true);
+      this.setName("ParseWorker");
+      this.parseUtil = new ParseUtil(conf);
+      this.scfilters = new ScoringFilters(conf);
+      this.urlFilters = new URLFilters(conf);
+      this.normalizers = new URLNormalizers(conf, URLNormalizers.SCOPE_FETCHER);
+      activeParsers.incrementAndGet();
+    }
+    
+    public void run() {
+      try {
+        while (!parsingAborted) {
+          // check before polling: once fetching is done the queue only shrinks
+          boolean done = fetchingDone;
+          ParseTask task;
+          try {
+            task = parseQueue.poll(500, TimeUnit.MILLISECONDS);
+          } catch (InterruptedException e) {
+            continue;                           // aborted, checked above
+          }
+          if (task == null) {
+            if (done) return;
+            continue;
+          }
+          // a failing page must not stop the worker, or fetcher threads
+          // would block once all workers are gone
+          try {
+            ParseStatus pstatus = outputContent(task.url, task.datum,
+                task.content, CrawlDatum.STATUS_FETCH_SUCCESS, parseUtil,
+                scfilters);
+            if (pstatus != null && pstatus.isSuccess() &&
+                pstatus.getMinorCode() == ParseStatus.SUCCESS_REDIRECT) {
+              int refreshTime = Integer.valueOf(pstatus.getArgs()[1]);
+              outputRedirect(task, pstatus.getMessage(),
+                  refreshTime < Fetcher.PERM_REFRESH_TIME);
+            }
+          } catch (Throwable e) {
+            if (LOG.isErrorEnabled()) {
+              e.printStackTrace(LogUtil.getErrorStream(LOG));
+              LOG.error("parser caught (" + task.url + "): " + e.toString());
+            }
+          }
+        }
+      } finally {
+        activeParsers.decrementAndGet();
+      }
+    }
+    
+    private void outputRedirect(ParseTask task, String newUrl, boolean temp)
+      throws MalformedURLException, URLFilterException {
+      newUrl = normalizers.normalize(newUrl, URLNormalizers.SCOPE_FETCHER);
+      newUrl = urlFilters.filter(newUrl);
+      if (newUrl == null || newUrl.equals(task.url.toString())) return;
+      Text reprUrlWritable =
+        (Text) task.datum.getMetaData().get(Nutch.WRITABLE_REPR_URL_KEY);
+      String reprUrl = URLUtil.chooseRepr(reprUrlWritable == null
+          ? task.url.toString() : reprUrlWritable.toString(), newUrl, temp);
+      CrawlDatum newDatum = new CrawlDatum(CrawlDatum.STATUS_LINKED,
+          task.datum.getFetchInterval());
+      if (reprUrl != null) {
+        newDatum.getMetaData().put(Nutch.WRITABLE_REPR_URL_KEY,
+            new Text(reprUrl));
+      }
+      newDatum.setFetchTime(System.currentTimeMillis());
+      outputContent(new Text(newUrl), newDatum, null,
+          CrawlDatum.STATUS_LINKED, parseUtil, scfilters);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(" - " + Fetcher.CONTENT_REDIR + " redirect to " + newUrl
+            + " (fetching later)");
+      }
+    }
   }
   
+  /**
+   * A request handed to an {@link AsyncProtocol}, with the redirect state
+   * of the fetcher thread that started it. Queued for a fetcher thread once
+   * the protocol is done.
+   */
+  private class AsyncFetch implements AsyncProtocol.Callback {
+    FetchItem fit;
+    String reprUrl;
+    int redirectCount;
+    long start = System.currentTimeMillis();
+    ProtocolOutput output;
+    long elapsed;
+
+    public AsyncFetch(FetchItem fit, String reprUrl, int redirectCount) {
+      this.fit = fit;
+      this.reprUrl = reprUrl;
+      this.redirectCount = redirectCount;
+    }
+
+    public void done(ProtocolOutput output) {
+      this.output = output;
+      this.elapsed = System.currentTimeMillis() - start;
+      asyncResults.add(this);
+    }
+  }
+
   /**
    * This class picks items from queues and fetches the pages.
    */
@@ -439,6 +812,7 @@ public class Fetcher2 extends Configured implements
     private ProtocolFactory protocolFactory;
     private long maxCrawlDelay;
     private boolean byIP;
+    private DnsResolver resolver;
     private int maxRedirect;
     private String reprUrl;
     private boolean redirecting;
@@ -456,6 +830,7 @@ public class Fetcher2 extends Configured implements
       this.maxCrawlDelay = conf.getInt("fetcher.max.crawl.delay", 30) * 1000;
       // backward-compatible default setting
       this.byIP = conf.getBoolean("fetcher.threads.per.host.by.ip", true);
+      this.resolver = DnsResolver.get(conf);
       this.maxRedirect = conf.getInt("http.redirect.max", 3);
     }
 
@@ -466,16 +841,34 @@ public class Fetcher2 extends Configured implements
       try {
         
         while (true) {
-          fit = fetchQueues.getFetchItem();
+          // finish asynchronous fetches first, their queues wait for them
+          AsyncFetch done = asyncResults.poll();
+          if (done == null && asyncRequests.get() > 0
+              && (asyncRequests.get() >= maxAsyncRequests || fetchQueues.halted)) {
+            done = asyncResults.poll(500, TimeUnit.MILLISECONDS);
+            if (done == null) continue;
+          }
+          if (done != null) {
+            finish(done);
+            continue;
+          }
+
+          // block until the earliest queue is ready
+          spinWaiting.incrementAndGet();
+          try {
+            fit = fetchQueues.getFetchItem(asyncRequests.get() > 0 ? 10 : 500);
+          } finally {
+            spinWaiting.decrementAndGet();
+          }
           if (fit == null) {
-            if (feeder.isAlive() || fetchQueues.getTotalSize() > 0) {
-              LOG.debug(getName() + " spin-waiting ...");
-              // spin-wait.
-              spinWaiting.incrementAndGet();
-              try {
-                Thread.sleep(500);
-              } catch (Exception e) {}
-                spinWaiting.decrementAndGet();
+            if (asyncRequests.get() > 0) {
+              // wait for the requests in flight
+              continue;
+            } else if (fetchQueues.halted) {
+              // fetching stopped early, remaining items are drained
+              return;
+            } else if (feeder.isAlive() || fetchQueues.getTotalSize() > 0) {
+              LOG.debug(getName() + " waiting ...");
               continue;
             } else {
               // all done, finish this thread
@@ -490,169 +883,9 @@ public class Fetcher2 extends Configured implements
           } else {
             reprUrl = reprUrlWritable.toString();
           }
-          try {
-            if (LOG.isInfoEnabled()) { LOG.info("fetching " + fit.url); }
-
-            // fetch the page
-            redirecting = false;
-            redirectCount = 0;
-            do {
-              if (LOG.isDebugEnabled()) {
-                LOG.debug("redirectCount=" + redirectCount);
-              }
-              redirecting = false;
-              Protocol protocol = this.protocolFactory.getProtocol(fit.url.toString());
-              RobotRules rules = protocol.getRobotRules(fit.url, fit.datum);
-              if (!rules.isAllowed(fit.u)) {
-                // unblock
-                fetchQueues.finishFetchItem(fit, true);
-                if (LOG.isDebugEnabled()) {
-                  LOG.debug("Denied by robots.txt: " + fit.url);
-                }
-                output(fit.url, fit.datum, null, ProtocolStatus.STATUS_ROBOTS_DENIED, CrawlDatum.STATUS_FETCH_GONE);
-                continue;
-              }
-              if (rules.getCrawlDelay() > 0) {
-                if (rules.getCrawlDelay() > maxCrawlDelay) {
-                  // unblock
-                  fetchQueues.finishFetchItem(fit, true);
-                  LOG.debug("Crawl-Delay for " + fit.url + " too long (" + rules.getCrawlDelay() + "), skipping");
-                  output(fit.url, fit.datum, null, ProtocolStatus.STATUS_ROBOTS_DENIED, CrawlDatum.STATUS_FETCH_GONE);
-                  continue;
-                } else {
-                  FetchItemQueue fiq = fetchQueues.getFetchItemQueue(fit.queueID);
-                  fiq.crawlDelay = rules.getCrawlDelay();
-                }
-              }
-              ProtocolOutput output = protocol.getProtocolOutput(fit.url, fit.datum);
-              ProtocolStatus status = output.getStatus();
-              Content content = output.getContent();
-              ParseStatus pstatus = null;
-              // unblock queue
-              fetchQueues.finishFetchItem(fit);
-
-              String urlString = fit.url.toString();
-
-              switch(status.getCode()) {
-                
-              case ProtocolStatus.WOULDBLOCK:
-                // retry ?
-                fetchQueues.addFetchItem(fit);
-                break;
-
-              case ProtocolStatus.SUCCESS:        // got a page
-                pstatus = output(fit.url, fit.datum, content, status, CrawlDatum.STATUS_FETCH_SUCCESS);
-                updateStatus(content.getContent().length);
-                if (pstatus != null && pstatus.isSuccess() &&
-                        pstatus.getMinorCode() == ParseStatus.SUCCESS_REDIRECT) {
-                  String newUrl = pstatus.getMessage();
-                  int refreshTime = Integer.valueOf(pstatus.getArgs()[1]);
-                  Text redirUrl =
-                    handleRedirect(fit.url, fit.datum,
-                                   urlString, newUrl,
-                                   refreshTime < Fetcher.PERM_REFRESH_TIME,
-                                   Fetcher.CONTENT_REDIR);
-                  if (redirUrl != null) {
-                    CrawlDatum newDatum = new CrawlDatum(CrawlDatum.STATUS_DB_UNFETCHED,
-                        fit.datum.getFetchInterval(), fit.datum.getScore());
-                    if (reprUrl != null) {
-                      newDatum.getMetaData().put(Nutch.WRITABLE_REPR_URL_KEY,
-                          new Text(reprUrl));
-                    }
-                    fit = FetchItem.create(redirUrl, newDatum, byIP);
-                    if (fit != null) {
-                      FetchItemQueue fiq =
-                        fetchQueues.getFetchItemQueue(fit.queueID);
-                      fiq.addInProgressFetchItem(fit);
-                    } else {
-                      // stop redirecting
-                      redirecting = false;
-                    }
-                  }
-                }
-                break;
-
-              case ProtocolStatus.MOVED:         // redirect
-              case ProtocolStatus.TEMP_MOVED:
-                int code;
-                boolean temp;
-                if (status.getCode() == ProtocolStatus.MOVED) {
-                  code = CrawlDatum.STATUS_FETCH_REDIR_PERM;
-                  temp = false;
-                } else {
-                  code = CrawlDatum.STATUS_FETCH_REDIR_TEMP;
-                  temp = true;
-                }
-                output(fit.url, fit.datum, content, status, code);
-                String newUrl = status.getMessage();
-                Text redirUrl =
-                  handleRedirect(fit.url, fit.datum,
-                                 urlString, newUrl, temp,
-                                 Fetcher.PROTOCOL_REDIR);
-                if (redirUrl != null) {
-                  CrawlDatum newDatum = new CrawlDatum(CrawlDatum.STATUS_DB_UNFETCHED,
-                      fit.datum.getFetchInterval(), fit.datum.getScore());
-                  if (reprUrl != null) {
-                    newDatum.getMetaData().put(Nutch.WRITABLE_REPR_URL_KEY,
-                        new Text(reprUrl));
-                  }
-                  fit = FetchItem.create(redirUrl, newDatum, byIP);
-                  if (fit != null) {
-                    FetchItemQueue fiq =
-                      fetchQueues.getFetchItemQueue(fit.queueID);
-                    fiq.addInProgressFetchItem(fit);
-                  } else {
-                    // stop redirecting
-                    redirecting = false;
-                  }
-                } else {
-                  // stop redirecting
-                  redirecting = false;
-                }
-                break;
-
-              case ProtocolStatus.EXCEPTION:
-                logError(fit.url, status.getMessage());
-                /* FALLTHROUGH */
-              case ProtocolStatus.RETRY:          // retry
-              case ProtocolStatus.BLOCKED:
-                output(fit.url, fit.datum, null, status, CrawlDatum.STATUS_FETCH_RETRY);
-                break;
-                
-              case ProtocolStatus.GONE:           // gone
-              case ProtocolStatus.NOTFOUND:
-              case ProtocolStatus.ACCESS_DENIED:
-              case ProtocolStatus.ROBOTS_DENIED:
-                output(fit.url, fit.datum, null, status, CrawlDatum.STATUS_FETCH_GONE);
-                break;
-
-              case ProtocolStatus.NOTMODIFIED:
-                output(fit.url, fit.datum, null, status, CrawlDatum.STATUS_FETCH_NOTMODIFIED);
-                break;
-
-              default:
-                if (LOG.isWarnEnabled()) {
-                  LOG.warn("Unknown ProtocolStatus: " + status.getCode());
-                }
-                output(fit.url, fit.datum, null, status, CrawlDatum.STATUS_FETCH_RETRY);
-              }
-
-              if (redirecting && redirectCount >= maxRedirect) {
-                fetchQueues.finishFetchItem(fit);
-                if (LOG.isInfoEnabled()) {
-                  LOG.info(" - redirect count exceeded " + fit.url);
-                }
-                output(fit.url, fit.datum, null, ProtocolStatus.STATUS_REDIR_EXCEEDED, CrawlDatum.STATUS_FETCH_GONE);
-              }
-
-            } while (redirecting && (redirectCount < maxRedirect));
-            
-          } catch (Throwable t) {                 // unexpected exception
-            // unblock
-            fetchQueues.finishFetchItem(fit);
-            logError(fit.url, t.toString());
-            output(fit.url, fit.datum, null, ProtocolStatus.STATUS_FAILED, CrawlDatum.STATUS_FETCH_RETRY);
-          }
+          if (LOG.isInfoEnabled()) { LOG.info("fetching " + fit.url); }
+          redirectCount = 0;
+          fetch(fit);
         }
 
       } catch (Throwable e) {
@@ -667,6 +900,214 @@ public class Fetcher2 extends Configured implements
       }
     }
 
+    /**
+     * Fetch an item and follow its redirects, until it is done or handed
+     * to an {@link AsyncProtocol}.
+     */
+    private void fetch(FetchItem fit) {
+      try {
+        // fetch the page
+        redirecting = false;
+        do {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("redirectCount=" + redirectCount);
+          }
+          redirecting = false;
+          Protocol protocol = this.protocolFactory.getProtocol(fit.url.toString());
+          RobotRules rules = protocol.getRobotRules(fit.url, fit.datum);
+          if (!rules.isAllowed(fit.u)) {
+            // unblock
+            fetchQueues.finishFetchItem(fit, true);
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Denied by robots.txt: " + fit.url);
+            }
+            output(fit.url, fit.datum, null, ProtocolStatus.STATUS_ROBOTS_DENIED, CrawlDatum.STATUS_FETCH_GONE);
+            continue;
+          }
+          if (rules.getCrawlDelay() > 0) {
+            if (rules.getCrawlDelay() > maxCrawlDelay) {
+              // unblock
+              fetchQueues.finishFetchItem(fit, true);
+              LOG.debug("Crawl-Delay for " + fit.url + " too long (" + rules.getCrawlDelay() + "), skipping");
+              output(fit.url, fit.datum, null, ProtocolStatus.STATUS_ROBOTS_DENIED, CrawlDatum.STATUS_FETCH_GONE);
+              continue;
+            } else {
+              fetchQueues.setCrawlDelay(fit.queueID, rules.getCrawlDelay());
+            }
+          }
+          if (maxAsyncRequests > 0 && protocol instanceof AsyncProtocol) {
+            // a fetcher thread will finish it once the protocol is done
+            AsyncFetch fetch = new AsyncFetch(fit, reprUrl, redirectCount);
+            asyncRequests.incrementAndGet();
+            ((AsyncProtocol) protocol).getProtocolOutput(fit.url, fit.datum, fetch);
+            return;
+          }
+          long fetchStart = System.currentTimeMillis();
+          ProtocolOutput output = protocol.getProtocolOutput(fit.url, fit.datum);
+          fit = handleOutput(fit, output, System.currentTimeMillis() - fetchStart);
+
+        } while (redirecting && (redirectCount < maxRedirect));
+        
+      } catch (Throwable t) {                 // unexpected exception
+        // unblock
+        fetchQueues.finishFetchItem(fit);
+        logError(fit.url, t.toString());
+        output(fit.url, fit.datum, null, ProtocolStatus.STATUS_FAILED, CrawlDatum.STATUS_FETCH_RETRY);
+      }
+    }
+
+    /**
+     * Handle the output of an asynchronous fetch, then follow its redirect
+     * if there is one.
+     */
+    private void finish(AsyncFetch done) {
+      FetchItem fit = done.fit;
+      reprUrl = done.reprUrl;
+      redirectCount = done.redirectCount;
+      redirecting = false;
+      try {
+        fit = handleOutput(fit, done.output, done.elapsed);
+      } catch (Throwable t) {                 // unexpected exception
+        // unblock
+        fetchQueues.finishFetchItem(fit);
+        logError(fit.url, t.toString());
+        output(fit.url, fit.datum, null, ProtocolStatus.STATUS_FAILED, CrawlDatum.STATUS_FETCH_RETRY);
+        redirecting = false;
+      } finally {
+        asyncRequests.decrementAndGet();
+      }
+      if (redirecting && redirectCount < maxRedirect) {
+        fetch(fit);
+      }
+    }
+
+    /**
+     * Unblock the queue of a fetched item and output it according to its
+     * protocol status.
+     * @return the item to fetch next if the page redirects and the redirect
+     * is followed at once, or the fetched item
+     */
+    private FetchItem handleOutput(FetchItem fit, ProtocolOutput output,
+        long elapsed) throws IOException, URLFilterException {
+      ProtocolStatus status = output.getStatus();
+      Content content = output.getContent();
+      ParseStatus pstatus = null;
+      fetchQueues.recordFetch(fit, elapsed, status.getCode());
+      // unblock queue
+      fetchQueues.finishFetchItem(fit);
+
+      String urlString = fit.url.toString();
+
+      switch(status.getCode()) {
+        
+      case ProtocolStatus.WOULDBLOCK:
+        // retry ?
+        fetchQueues.addFetchItem(fit);
+        break;
+
+      case ProtocolStatus.SUCCESS:        // got a page
+        pstatus = output(fit.url, fit.datum, content, status, CrawlDatum.STATUS_FETCH_SUCCESS);
+        updateStatus(content.getContent().length);
+        if (pstatus != null && pstatus.isSuccess() &&
+                pstatus.getMinorCode() == ParseStatus.SUCCESS_REDIRECT) {
+          String newUrl = pstatus.getMessage();
+          int refreshTime = Integer.valueOf(pstatus.getArgs()[1]);
+          Text redirUrl =
+            handleRedirect(fit.url, fit.datum,
+                           urlString, newUrl,
+                           refreshTime < Fetcher.PERM_REFRESH_TIME,
+                           Fetcher.CONTENT_REDIR);
+          if (redirUrl != null) {
+            CrawlDatum newDatum = new CrawlDatum(CrawlDatum.STATUS_DB_UNFETCHED,
+                fit.datum.getFetchInterval(), fit.datum.getScore());
+            if (reprUrl != null) {
+              newDatum.getMetaData().put(Nutch.WRITABLE_REPR_URL_KEY,
+                  new Text(reprUrl));
+            }
+            fit = FetchItem.create(redirUrl, newDatum, byIP, resolver);
+            if (fit != null) {
+              fetchQueues.addInProgressFetchItem(fit);
+            } else {
+              // stop redirecting
+              redirecting = false;
+            }
+          }
+        }
+        break;
+
+      case ProtocolStatus.MOVED:         // redirect
+      case ProtocolStatus.TEMP_MOVED:
+        int code;
+        boolean temp;
+        if (status.getCode() == ProtocolStatus.MOVED) {
+          code = CrawlDatum.STATUS_FETCH_REDIR_PERM;
+          temp = false;
+        } else {
+          code = CrawlDatum.STATUS_FETCH_REDIR_TEMP;
+          temp = true;
+        }
+        output(fit.url, fit.datum, content, status, code);
+        String newUrl = status.getMessage();
+        Text redirUrl =
+          handleRedirect(fit.url, fit.datum,
+                         urlString, newUrl, temp,
+                         Fetcher.PROTOCOL_REDIR);
+        if (redirUrl != null) {
+          CrawlDatum newDatum = new CrawlDatum(CrawlDatum.STATUS_DB_UNFETCHED,
+              fit.datum.getFetchInterval(), fit.datum.getScore());
+          if (reprUrl != null) {
+            newDatum.getMetaData().put(Nutch.WRITABLE_REPR_URL_KEY,
+                new Text(reprUrl));
+          }
+          fit = FetchItem.create(redirUrl, newDatum, byIP, resolver);
+          if (fit != null) {
+            fetchQueues.addInProgressFetchItem(fit);
+          } else {
+            // stop redirecting
+            redirecting = false;
+          }
+        } else {
+          // stop redirecting
+          redirecting = false;
+        }
+        break;
+
+      case ProtocolStatus.EXCEPTION:
+        logError(fit.url, status.getMessage());
+        /* FALLTHROUGH */
+      case ProtocolStatus.RETRY:          // retry
+      case ProtocolStatus.BLOCKED:
+        output(fit.url, fit.datum, null, status, CrawlDatum.STATUS_FETCH_RETRY);
+        break;
+        
+      case ProtocolStatus.GONE:           // gone
+      case ProtocolStatus.NOTFOUND:
+      case ProtocolStatus.ACCESS_DENIED:
+      case ProtocolStatus.ROBOTS_DENIED:
+        output(fit.url, fit.datum, null, status, CrawlDatum.STATUS_FETCH_GONE);
+        break;
+
+      case ProtocolStatus.NOTMODIFIED:
+        output(fit.url, fit.datum, null, status, CrawlDatum.STATUS_FETCH_NOTMODIFIED);
+        break;
+
+      default:
+        if (LOG.isWarnEnabled()) {
+          LOG.warn("Unknown ProtocolStatus: " + status.getCode());
+        }
+        output(fit.url, fit.datum, null, status, CrawlDatum.STATUS_FETCH_RETRY);
+      }
+
+      if (redirecting && redirectCount >= maxRedirect) {
+        fetchQueues.finishFetchItem(fit);
+        if (LOG.isInfoEnabled()) {
+          LOG.info(" - redirect count exceeded " + fit.url);
+        }
+        output(fit.url, fit.datum, null, ProtocolStatus.STATUS_REDIR_EXCEEDED, CrawlDatum.STATUS_FETCH_GONE);
+      }
+      return fit;
+    }
+
     private Text handleRedirect(Text url, CrawlDatum datum,
                                 String urlString, String newUrl,
                                 boolean temp, String redirType)
@@ -721,102 +1162,130 @@ public class Fetcher2 extends Configured implements
       datum.setFetchTime(System.currentTimeMillis());
       if (pstatus != null) datum.getMetaData().put(Nutch.WRITABLE_PROTO_STATUS_KEY, pstatus);
 
-      ParseResult parseResult = null;
-      if (content != null) {
-        Metadata metadata = content.getMetadata();
-        // add segment to metadata
-        metadata.set(Nutch.SEGMENT_NAME_KEY, segmentName);
-        // add score to content metadata so that ParseSegment can pick it up.
+      if (parseQueue != null && parsing && content != null
+          && status == CrawlDatum.STATUS_FETCH_SUCCESS) {
+        // leave parsing and output to the parse stage
+        ParseTask task = new ParseTask(key, datum, content);
         try {
-          scfilters.passScoreBeforeParsing(key, datum, content);
-        } catch (Exception e) {
-          if (LOG.isWarnEnabled()) {
-            e.printStackTrace(LogUtil.getWarnStream(LOG));
-            LOG.warn("Couldn't pass score, url " + key + " (" + e + ")");
+          while (!parseQueue.offer(task, 1, TimeUnit.SECONDS)) {
+            if (parsingAborted) {
+              LOG.warn("Parsing aborted, dropping " + key);
+              break;
+            }
           }
+        } catch (InterruptedException e) {
+          LOG.warn("Interrupted while queueing " + key + " for parsing");
         }
-        /* Note: Fetcher will only follow meta-redirects coming from the
-         * original URL. */ 
-        if (parsing && status == CrawlDatum.STATUS_FETCH_SUCCESS) {
-          try {
-            parseResult = this.parseUtil.parse(content);
-          } catch (Exception e) {
-            LOG.warn("Error parsing: " + key + ": " + StringUtils.stringifyException(e));
-          }
+        return null;
+      }
+      return outputContent(key, datum, content, status, parseUtil, scfilters);
+    }
+    
+  }
 
-          if (parseResult == null) {
-            byte[] signature = 
-              SignatureFactory.getSignature(getConf()).calculate(content, 
-                  new ParseStatus().getEmptyParse(conf));
-            datum.setSignature(signature);
-          }
+  /**
+   * Parse the content if needed, then output the datum, the content and
+   * the parse results. Called by fetcher threads, or by parse workers when
+   * parsing is done in a separate stage.
+   * @return the parse status of the fetched page, or null
+   */
+  private ParseStatus outputContent(Text key, CrawlDatum datum,
+      Content content, int status, ParseUtil parseUtil,
+      ScoringFilters scfilters) {
+    ParseResult parseResult = null;
+    if (content != null) {
+      Metadata metadata = content.getMetadata();
+      // add segment to metadata
+      metadata.set(Nutch.SEGMENT_NAME_KEY, segmentName);
+      // add score to content metadata so that ParseSegment can pick it up.
+      try {
+        scfilters.passScoreBeforeParsing(key, datum, content);
+      } catch (Exception e) {
+        if (LOG.isWarnEnabled()) {
+          e.printStackTrace(LogUtil.getWarnStream(LOG));
+          LOG.warn("Couldn't pass score, url " + key + " (" + e + ")");
         }
-        
-        /* Store status code in content So we can read this value during 
-         * parsing (as a separate job) and decide to parse or not.
-         */
-        content.getMetadata().add(Nutch.FETCH_STATUS_KEY, Integer.toString(status));
       }
+      /* Note: Fetcher will only follow meta-redirects coming from the
+       * original URL. */ 
+      if (parsing && status == CrawlDatum.STATUS_FETCH_SUCCESS) {
+        try {
+          parseResult = parseUtil.parse(content);
+        } catch (Exception e) {
+          LOG.warn("Error parsing: " + key + ": " + StringUtils.stringifyException(e));
+        }
 
-      try {
-        output.collect(key, new NutchWritable(datum));
-        if (content != null && storingContent)
-          output.collect(key, new NutchWritable(content));
-        if (parseResult != null) {
-          for (Entry<Text, Parse> entry : parseResult) {
-            Text url = entry.getKey();
-            Parse parse = entry.getValue();
-            ParseStatus parseStatus = parse.getData().getStatus();
-            
-            if (!parseStatus.isSuccess()) {
-              LOG.warn("Error parsing: " + key + ": " + parseStatus);
-              parse = parseStatus.getEmptyParse(getConf());
-            }
+        if (parseResult == null) {
+          byte[] signature = 
+            SignatureFactory.getSignature(getConf()).calculate(content, 
+                new ParseStatus().getEmptyParse(getConf()));
+          datum.setSignature(signature);
+        }
+      }
+      
+      /* Store status code in content So we can read this value during 
+       * parsing (as a separate job) and decide to parse or not.
+       */
+      content.getMetadata().add(Nutch.FETCH_STATUS_KEY, Integer.toString(status));
+    }
 
-            // Calculate page signature. For non-parsing fetchers this will
-            // be done in ParseSegment
-            byte[] signature = 
-              SignatureFactory.getSignature(getConf()).calculate(content, parse);
-            // Ensure segment name and score are in parseData metadata
-            parse.getData().getContentMeta().set(Nutch.SEGMENT_NAME_KEY, 
-                segmentName);
-            parse.getData().getContentMeta().set(Nutch.SIGNATURE_KEY, 
-                StringUtil.toHexString(signature));
-            // Pass fetch time to content meta
-            parse.getData().getContentMeta().set(Nutch.FETCH_TIME_KEY,
-                Long.toString(datum.getFetchTime()));
-            if (url.equals(key))
-              datum.setSignature(signature);
-            try {
-              scfilters.passScoreAfterParsing(url, content, parse);
-            } catch (Exception e) {
-              if (LOG.isWarnEnabled()) {
-                e.printStackTrace(LogUtil.getWarnStream(LOG));
-                LOG.warn("Couldn't pass score, url " + key + " (" + e + ")");
-              }
+    try {
+      output.collect(key, new NutchWritable(datum));
+      if (content != null && storingContent)
+        output.collect(key, new NutchWritable(content));
+      if (parseResult != null) {
+        for (Entry<Text, Parse> entry : parseResult) {
+          Text url = entry.getKey();
+          Parse parse = entry.getValue();
+          ParseStatus parseStatus = parse.getData().getStatus();
+          
+          if (!parseStatus.isSuccess()) {
+            LOG.warn("Error parsing: " + key + ": " + parseStatus);
+            parse = parseStatus.getEmptyParse(getConf());
+          }
+
+          // Calculate page signature. For non-parsing fetchers this will
+          // be done in ParseSegment
+          byte[] signature = 
+            SignatureFactory.getSignature(getConf()).calculate(content, parse);
+          // Ensure segment name and score are in parseData metadata
+          parse.getData().getContentMeta().set(Nutch.SEGMENT_NAME_KEY, 
+              segmentName);
+          parse.getData().getContentMeta().set(Nutch.SIGNATURE_KEY, 
+              StringUtil.toHexString(signature));
+          // Pass fetch time to content meta
+          parse.getData().getContentMeta().set(Nutch.FETCH_TIME_KEY,
+              Long.toString(datum.getFetchTime()));
+          if (url.equals(key))
+            datum.setSignature(signature);
+          try {
+            scfilters.passScoreAfterParsing(url, content, parse);
+          } catch (Exception e) {
+            if (LOG.isWarnEnabled()) {
+              e.printStackTrace(LogUtil.getWarnStream(LOG));
+              LOG.warn("Couldn't pass score, url " + key + " (" + e + ")");
             }
-            output.collect(url, new NutchWritable(
-                    new ParseImpl(new ParseText(parse.getText()), 
-                                  parse.getData(), parse.isCanonical())));
           }
+          output.collect(url, new NutchWritable(
+                  new ParseImpl(new ParseText(parse.getText()), 
+                                parse.getData(), parse.isCanonical())));
         }
-      } catch (IOException e) {
-        if (LOG.isFatalEnabled()) {
-          e.printStackTrace(LogUtil.getFatalStream(LOG));
-          LOG.fatal("fetcher caught:"+e.toString());
-        }
       }
+    } catch (IOException e) {
+      if (LOG.isFatalEnabled()) {
+        e.printStackTrace(LogUtil.getFatalStream(LOG));
+        LOG.fatal("fetcher caught:"+e.toString());
+      }
+    }
 
-      // return parse status if it exits
-      if (parseResult != null && !parseResult.isEmpty()) {
-        Parse p = parseResult.get(content.getUrl());
-        if (p != null) {
-          return p.getData().getStatus();
-        }
+    // return parse status if it exits
+    if (parseResult != null && !parseResult.isEmpty()) {
+      Parse p = parseResult.get(content.getUrl());
+      if (p != null) {
+        return p.getData().getStatus();
       }
-      return null;
     }
-    
+    return null;
   }
 
   public Fetcher2() { super(null); }
@@ -837,6 +1306,7 @@ public class Fetcher2 extends Configured implements
       + Math.round(((float)pages.get()*10)/elapsed)/10.0+" pages/s, "
       + Math.round(((((float)bytes.get())*8)/1024)/elapsed)+" kb/s, ";
     reporter.setStatus(status);
+    NutchCounters.report(reporter);
   }
 
   public void configure(JobConf job) {
@@ -868,11 +1338,26 @@ public class Fetcher2 extends Configured implements
     this.output = output;
     this.reporter = reporter;
     this.fetchQueues = new FetchItemQueues(getConf());
+    RobotRulesCache.preload(getConf());
+    String dnsDir = getConf().get("fetcher.dns.dir");
+    if (dnsDir != null) {
+      try {
+        fetchQueues.resolver.load(new Path(dnsDir));
+      } catch (IOException e) {
+        LOG.warn("Could not load DNS entries from " + dnsDir + ": " + e);
+      }
+    }
 
     int threadCount = getConf().getInt("fetcher.threads.fetch", 10);
     if (LOG.isInfoEnabled()) { LOG.info("Fetcher: threads: " + threadCount); }
+    maxAsyncRequests = getConf().getInt("fetcher.async.requests", 0);
+    if (maxAsyncRequests > 0 && LOG.isInfoEnabled()) {
+      LOG.info("Fetcher: asynchronous requests: " + maxAsyncRequests);
+    }
 
-    feeder = new QueueFeeder(input, fetchQueues, threadCount * 50);
+    feeder = new QueueFeeder(input, fetchQueues,
+        Math.max(threadCount, maxAsyncRequests) * 50,
+        getConf().getBoolean("fetcher.dns.prefetch", true));
     //feeder.setPriority((Thread.MAX_PRIORITY + Thread.NORM_PRIORITY) / 2);
     feeder.start();
 
@@ -880,6 +1365,22 @@ public class Fetcher2 extends Configured implements
     getConf().setBoolean(Protocol.CHECK_BLOCKING, false);
     getConf().setBoolean(Protocol.CHECK_ROBOTS, false);
     
+    // parse in a separate pool, unless fetcher threads should parse
+    int parseThreads = getConf().getInt("fetcher.parse.threads", -1);
+    if (parsing && parseThreads >= 0) {
+      if (parseThreads == 0) {
+        parseThreads = Runtime.getRuntime().availableProcessors();
+      }
+      if (LOG.isInfoEnabled()) { LOG.info("Fetcher: parse threads: " + parseThreads); }
+      parseQueue = new ArrayBlockingQueue<ParseTask>(
+          getConf().getInt("fetcher.parse.queue.size", 50));
+      for (int i = 0; i < parseThreads; i++) {
+        ParseWorker worker = new ParseWorker(getConf());
+        parseWorkers.add(worker);
+        worker.start();
+      }
+    }
+    
     for (int i = 0; i < threadCount; i++) {       // spawn threads
       new FetcherThread(getConf()).start();
     }
@@ -887,6 +1388,16 @@ public class Fetcher2 extends Configured implements
     // select a timeout that avoids a task timeout
     long timeout = getConf().getInt("mapred.task.timeout", 10*60*1000)/2;
 
+    // stop at the time limit, or when throughput stays below the threshold
+    long timelimit = getConf().getLong("fetcher.timelimit", -1);
+    float minThroughput =
+      getConf().getFloat("fetcher.throughput.threshold.pages", -1);
+    long window =
+      getConf().getInt("fetcher.throughput.threshold.window", 60) * 1000L;
+    long checkAfter = start +
+      getConf().getInt("fetcher.throughput.threshold.check.after", 300) * 1000L;
+    LinkedList<long[]> samples = new LinkedList<long[]>();
+
     do {                                          // wait for threads to exit
       try {
         Thread.sleep(1000);
@@ -894,24 +1405,117 @@ public class Fetcher2 extends Configured implements
 
       reportStatus();
       LOG.info("-activeThreads=" + activeThreads + ", spinWaiting=" + spinWaiting.get()
-          + ", fetchQueues.totalSize=" + fetchQueues.getTotalSize());
+          + ", fetchQueues.totalSize=" + fetchQueues.getTotalSize()
+          + (maxAsyncRequests > 0 ? ", asyncRequests=" + asyncRequests : ""));
 
       if (!feeder.isAlive() && fetchQueues.getTotalSize() < 5) {
         fetchQueues.dump();
       }
+
+      long now = System.currentTimeMillis();
+      if (!fetchQueues.halted && timelimit != -1 && now >= timelimit) {
+        LOG.info("Fetcher: time limit reached, stopping.");
+        reporter.incrCounter("FetcherStatus", "hitByTimeLimit", 1);
+        fetchQueues.halt();
+      }
+      if (!fetchQueues.halted && minThroughput > 0) {
+        // keep one sample at least as old as the window
+        samples.addLast(new long[] { now, pages.get() });
+        while (samples.size() > 1 && now - samples.get(1)[0] >= window) {
+          samples.removeFirst();
+        }
+        long[] oldest = samples.getFirst();
+        if (now >= checkAfter && now - oldest[0] >= window) {
+          float throughput = (pages.get() - oldest[1]) * 1000f / (now - oldest[0]);
+          if (throughput < minThroughput) {
+            LOG.info("Fetcher: throughput " + throughput + " pages/s below "
+                + minThroughput + ", stopping.");
+            reporter.incrCounter("FetcherStatus", "hitByThroughputThreshold", 1);
+            fetchQueues.halt();
+          }
+        }
+      }
       // some requests seem to hang, despite all intentions
       if ((System.currentTimeMillis() - lastRequestStart.get()) > timeout) {
         if (LOG.isWarnEnabled()) {
           LOG.warn("Aborting with "+activeThreads+" hung threads.");
         }
+        abortParsing();
+        RobotRulesCache.persist(getConf(), segmentName);
         return;
       }
 
     } while (activeThreads.get() > 0);
+    if (fetchQueues.halted) {
+      drain(input);
+    }
+    fetchingDone = true;
+    while (activeParsers.get() > 0) {             // wait for parsers to exit
+      try {
+        Thread.sleep(1000);
+      } catch (InterruptedException e) {}
+      reportStatus();
+      LOG.info("-activeParsers=" + activeParsers + ", parseQueue.size="
+          + parseQueue.size());
+    }
+    reportStatus();
     LOG.info("-activeThreads=" + activeThreads);
+    RobotRulesCache.persist(getConf(), segmentName);
     
   }
 
+  /**
+   * Stop the parse workers without parsing what is left in the queue, so
+   * that they don't output after the task ended. Hung fetcher threads that
+   * are waiting to queue a page give up.
+   */
+  private void abortParsing() {
+    fetchingDone = true;
+    parsingAborted = true;
+    if (parseQueue != null) {
+      parseQueue.clear();
+    }
+    for (ParseWorker worker : parseWorkers) {
+      worker.interrupt();
+    }
+  }
+
+  /**
+   * Output the items left in the queues and in the input as
+   * {@link CrawlDatum#STATUS_FETCH_RETRY}, so that they are scheduled again.
+   * Called after fetching was halted and all fetcher threads exited.
+   */
+  private void drain(RecordReader<Text, CrawlDatum> input) throws IOException {
+    try {
+      feeder.join();
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while waiting for QueueFeeder");
+    }
+    ProtocolStatus pstatus =
+      new ProtocolStatus(ProtocolStatus.NOTFETCHING, "fetching halted");
+    int count = 0;
+    for (FetchItem it : fetchQueues.drain()) {
+      outputRetry(it.url, it.datum, pstatus);
+      count++;
+    }
+    Text url = new Text();
+    CrawlDatum datum = new CrawlDatum();
+    while (input.next(url, datum)) {
+      outputRetry(url, datum, pstatus);
+      count++;
+    }
+    LOG.info("Fetcher: " + count + " unfetched items marked for retry.");
+    reporter.incrCounter("FetcherStatus", "drained", count);
+  }
+
+  private void outputRetry(Text url, CrawlDatum datum, ProtocolStatus pstatus)
+    throws IOException {
+    datum.setStatus(CrawlDatum.STATUS_FETCH_RETRY);
+    datum.setFetchTime(System.currentTimeMillis());
+    datum.getMetaData().put(Nutch.WRITABLE_PROTO_STATUS_KEY, pstatus);
+    output.collect(url, new NutchWritable(datum));
+  }
+
   public void fetch(Path segment, int threads, boolean parsing)
     throws IOException {
 
@@ -927,12 +1531,25 @@ public class Fetcher2 extends Configured implements
     job.set(Nutch.SEGMENT_NAME_KEY, segment.getName());
     job.setBoolean("fetcher.parse", parsing);
 
+    // the time limit is shared by all tasks of the job
+    long timelimit = getConf().getLong("fetcher.timelimit.mins", -1);
+    if (timelimit != -1) {
+      job.setLong("fetcher.timelimit",
+          System.currentTimeMillis() + timelimit * 60 * 1000);
+    }
+
     // for politeness, don't permit parallel execution of a single task
     job.setSpeculativeExecution(false);
 
     FileInputFormat.addInputPath(job, new Path(segment, CrawlDatum.GENERATE_DIR_NAME));
     job.setInputFormat(InputFormat.class);
 
+    // reuse the host addresses resolved by Generator, if any
+    Path dnsDir = new Path(segment, Generator.DNS_DIR_NAME);
+    if (dnsDir.getFileSystem(job).exists(dnsDir)) {
+      job.set("fetcher.dns.dir", dnsDir.toString());
+    }
+
     job.setMapRunnerClass(Fetcher2.class);
 
     FileOutputFormat.setOutputPath(job, segment);
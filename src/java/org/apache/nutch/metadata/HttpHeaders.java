@@ -46,4 +46,6 @@ public interface HttpHeaders {
   
   public final static String LOCATION = "Location";
 
+  public final static String TRANSFER_ENCODING = "Transfer-Encoding";
+
 }
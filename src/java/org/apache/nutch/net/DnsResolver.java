@@ -0,0 +1,296 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.util.NutchCounters;
+
+/**
+ * A JVM-wide DNS resolver with its own thread pool and a cache of lookup
+ * results.
+ *
+ * <p>{@link #prefetch(String)} starts a lookup on one of
+ * <code>dns.resolver.threads</code> background threads and returns at once,
+ * so that a later {@link #resolve(String)} of the same host finds the
+ * address ready. A lookup that has not started yet when it is needed is
+ * run by the calling thread, and a lookup in progress is waited for rather
+ * than started twice.</p>
+ *
+ * <p>At most <code>dns.cache.size</code> hosts are cached, the least
+ * recently used ones are dropped first. Addresses expire after
+ * <code>dns.cache.ttl</code> seconds, failed lookups after
+ * <code>dns.cache.negative.ttl</code> seconds.</p>
+ *
+ * <p>Resolved addresses can be written to and read back from the
+ * FileSystem, see {@link #save(Path)} and {@link #load(Path)}. Cache hits,
+ * misses, failures and the time spent resolving are counted in the
+ * {@link #COUNTER_GROUP} group of {@link NutchCounters}.</p>
+ */
+public class DnsResolver {
+
+  public static final Log LOG = LogFactory.getLog(DnsResolver.class);
+
+  public static final String COUNTER_GROUP = "DNS";
+
+  private static DnsResolver instance;
+
+  /** A lookup, pending or done, and when its result expires. */
+  private class Lookup extends FutureTask<InetAddress> {
+    volatile long expireTime = Long.MAX_VALUE;
+
+    Lookup(final String host) {
+      super(new Callable<InetAddress>() {
+        public InetAddress call() {
+          return lookup(host);
+        }
+      });
+    }
+
+    Lookup(InetAddress address, long expireTime) {
+      super(new Callable<InetAddress>() {
+        public InetAddress call() {
+          return null;
+        }
+      });
+      set(address);
+      this.expireTime = expireTime;
+    }
+
+    /** Run the lookup in this thread unless it was started already. */
+    InetAddress get(String host) throws UnknownHostException {
+      run();
+      try {
+        return get();
+      } catch (InterruptedException e) {
+        throw new UnknownHostException(host + " (interrupted)");
+      } catch (ExecutionException e) {
+        throw new UnknownHostException(host + " (" + e.getCause() + ")");
+      }
+    }
+  }
+
+  private Configuration conf;
+  private int maxSize;
+  private long ttl;
+  private long negativeTtl;
+  private Map<String, Lookup> cache;
+  private ThreadPoolExecutor executor;
+
+  /** Return the resolver shared by this JVM, creating it on first use. */
+  public static synchronized DnsResolver get(Configuration conf) {
+    if (instance == null) {
+      instance = new DnsResolver(conf);
+    }
+    return instance;
+  }
+
+  public DnsResolver(Configuration conf) {
+    this.conf = conf;
+    maxSize = conf.getInt("dns.cache.size", 100000);
+    ttl = conf.getLong("dns.cache.ttl", 3600) * 1000;
+    negativeTtl = conf.getLong("dns.cache.negative.ttl", 600) * 1000;
+    cache = new LinkedHashMap<String, Lookup>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, Lookup> eldest) {
+        return size() > maxSize;
+      }
+    };
+    int threads = conf.getInt("dns.resolver.threads", 10);
+    // prefetches beyond the queue capacity are dropped, the lookup is then
+    // run by the thread that needs the address
+    executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(threads * 100),
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "DnsResolver");
+            t.setDaemon(true);
+            return t;
+          }
+        },
+        new ThreadPoolExecutor.DiscardPolicy());
+  }
+
+  /** Start resolving a host in the background, unless it is cached. */
+  public void prefetch(String host) {
+    if (host == null) return;
+    Lookup lookup = getLookup(host.toLowerCase(), false);
+    if (lookup != null) {
+      executor.execute(lookup);
+    }
+  }
+
+  /**
+   * Return the address of a host, from the cache if possible.
+   * @throws UnknownHostException if the host could not be resolved, now or
+   * within the negative time to live
+   */
+  public InetAddress resolve(String host) throws UnknownHostException {
+    if (host == null) throw new UnknownHostException("null");
+    InetAddress address = getLookup(host.toLowerCase(), true).get(host);
+    if (address == null) {
+      throw new UnknownHostException(host);
+    }
+    return address;
+  }
+
+  /**
+   * Return the cached or a new lookup for a host. When
+   * <code>cached</code> is false, only a new lookup is returned.
+   */
+  private synchronized Lookup getLookup(String host, boolean cached) {
+    Lookup lookup = cache.get(host);
+    if (lookup != null) {
+      if (lookup.expireTime > System.currentTimeMillis()) {
+        if (cached) {
+          NutchCounters.incr(COUNTER_GROUP, "cache hits", 1);
+          return lookup;
+        }
+        return null;
+      }
+      cache.remove(host);
+    }
+    NutchCounters.incr(COUNTER_GROUP, "cache misses", 1);
+    lookup = new Lookup(host);
+    cache.put(host, lookup);
+    return lookup;
+  }
+
+  private InetAddress lookup(String host) {
+    long start = System.currentTimeMillis();
+    InetAddress address = null;
+    try {
+      address = InetAddress.getByName(host);
+    } catch (UnknownHostException e) {
+      NutchCounters.incr(COUNTER_GROUP, "failures", 1);
+    } catch (SecurityException e) {
+      NutchCounters.incr(COUNTER_GROUP, "failures", 1);
+    }
+    long end = System.currentTimeMillis();
+    NutchCounters.incr(COUNTER_GROUP, "lookup time ms", end - start);
+    Lookup lookup;
+    synchronized (this) {
+      lookup = cache.get(host);
+    }
+    if (lookup != null) {
+      lookup.expireTime = end + (address == null ? negativeTtl : ttl);
+    }
+    return address;
+  }
+
+  /**
+   * Add the host to address mappings stored in the files of a directory
+   * to the cache. The mappings are kept for the positive time to live.
+   */
+  public void load(Path dir) throws IOException {
+    FileSystem fs = dir.getFileSystem(conf);
+    if (!fs.exists(dir)) return;
+    long expireTime = System.currentTimeMillis() + ttl;
+    FileStatus[] files = fs.listStatus(dir);
+    int count = 0;
+    Text host = new Text();
+    Text ip = new Text();
+    for (int i = 0; files != null && i < files.length; i++) {
+      if (files[i].isDir() || files[i].getPath().getName().startsWith(".")) {
+        continue;
+      }
+      SequenceFile.Reader reader =
+        new SequenceFile.Reader(fs, files[i].getPath(), conf);
+      try {
+        while (reader.next(host, ip)) {
+          // an IP literal is not looked up
+          InetAddress address = InetAddress.getByAddress(host.toString(),
+              InetAddress.getByName(ip.toString()).getAddress());
+          synchronized (this) {
+            cache.put(host.toString(), new Lookup(address, expireTime));
+          }
+          count++;
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    if (LOG.isInfoEnabled()) {
+      LOG.info("Loaded " + count + " DNS entries from " + dir);
+    }
+  }
+
+  /**
+   * Write the hosts resolved so far to a file, waiting for lookups that
+   * are still running. Failed lookups are not written.
+   */
+  public void save(Path file) throws IOException {
+    List<String> hosts = new ArrayList<String>();
+    List<Lookup> lookups = new ArrayList<Lookup>();
+    synchronized (this) {
+      Iterator<Map.Entry<String, Lookup>> it = cache.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<String, Lookup> e = it.next();
+        hosts.add(e.getKey());
+        lookups.add(e.getValue());
+      }
+    }
+    FileSystem fs = file.getFileSystem(conf);
+    SequenceFile.Writer writer = SequenceFile.createWriter(fs, conf, file,
+        Text.class, Text.class, SequenceFile.CompressionType.BLOCK);
+    int count = 0;
+    try {
+      Text host = new Text();
+      Text ip = new Text();
+      for (int i = 0; i < hosts.size(); i++) {
+        InetAddress address;
+        try {
+          address = lookups.get(i).get(hosts.get(i));
+        } catch (UnknownHostException e) {
+          continue;
+        }
+        if (address == null) continue;
+        host.set(hosts.get(i));
+        ip.set(address.getHostAddress());
+        writer.append(host, ip);
+        count++;
+      }
+    } finally {
+      writer.close();
+    }
+    if (LOG.isInfoEnabled()) {
+      LOG.info("Saved " + count + " DNS entries to " + file);
+    }
+  }
+
+}
@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.net;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded cache of normalized urls, shared by all threads normalizing in
+ * one scope. It is direct-mapped: each url has a single slot chosen by its
+ * hash, and a new url simply replaces whatever was there. Lookups and
+ * updates take no lock, and urls seen over and over, such as navigation
+ * links repeated on every page of a site, stay in the cache.
+ */
+class NormalizerCache {
+
+  /** Cached value of urls that normalize to <code>null</code>. */
+  private static final String REJECTED = new String("");
+
+  private static class Entry {
+    final String url;
+    final String normalized;
+
+    Entry(String url, String normalized) {
+      this.url = url;
+      this.normalized = normalized;
+    }
+  }
+
+  private final AtomicReferenceArray<Entry> entries;
+  private final int mask;
+
+  /** Create a cache with at least <code>size</code> slots. */
+  NormalizerCache(int size) {
+    int slots = 1;
+    while (slots < size) slots <<= 1;
+    entries = new AtomicReferenceArray<Entry>(slots);
+    mask = slots - 1;
+  }
+
+  /**
+   * Return the cached normalized form of <code>url</code>, a value for which
+   * {@link #isRejected(String)} is true if it normalizes to
+   * <code>null</code>, or <code>null</code> if it is not cached.
+   */
+  String get(String url) {
+    Entry entry = entries.get(slot(url));
+    if (entry != null && entry.url.equals(url)) {
+      return entry.normalized;
+    }
+    return null;
+  }
+
+  /** Return true if <code>normalized</code> is the cached value of a rejected url. */
+  static boolean isRejected(String normalized) {
+    return normalized == REJECTED;
+  }
+
+  void put(String url, String normalized) {
+    entries.set(slot(url),
+                new Entry(url, normalized == null ? REJECTED : normalized));
+  }
+
+  private int slot(String url) {
+    int h = url.hashCode();
+    h ^= (h >>> 16);                          // spread the high bits
+    return h & mask;
+  }
+
+}
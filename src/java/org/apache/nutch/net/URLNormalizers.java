@@ -70,6 +70,10 @@ import org.apache.nutch.util.ObjectCache;
  * this loop up to the number of activated normalizers. This loop count can be configured
  * through <tt>urlnormalizer.loop.count</tt> property. As soon as the url is
  * unchanged the loop will stop and return the result.</p>
+ * <p>Urls repeated across many pages, such as navigation links, can be
+ * remembered in a bounded cache, shared by all threads normalizing in the
+ * same scope. Its size is set by <tt>urlnormalizer.cache.size</tt>, or by
+ * <tt>urlnormalizer.cache.size.&lt;scope_name&gt;</tt> for one scope.</p>
  * 
  * @author Andrzej Bialecki
  */
@@ -112,6 +116,10 @@ public final class URLNormalizers {
   
   private int loopCount;
 
+  private String scope;
+
+  private NormalizerCache cache;
+
   public URLNormalizers(Configuration conf, String scope) {
     this.conf = conf;
     this.extensionPoint = PluginRepository.get(conf).getExtensionPoint(
@@ -135,6 +143,21 @@ public final class URLNormalizers {
     }
     
     loopCount = conf.getInt("urlnormalizer.loop.count", 1);
+
+    // the cache is shared by all instances for this scope
+    this.scope = scope;
+    int cacheSize = conf.getInt("urlnormalizer.cache.size." + scope,
+                                conf.getInt("urlnormalizer.cache.size", 0));
+    if (cacheSize > 0) {
+      String key = NormalizerCache.class.getName() + "_" + scope;
+      synchronized (objectCache) {
+        cache = (NormalizerCache) objectCache.getObject(key);
+        if (cache == null) {
+          cache = new NormalizerCache(cacheSize);
+          objectCache.setObject(key, cache);
+        }
+      }
+    }
   }
 
   /**
@@ -277,6 +300,21 @@ public final class URLNormalizers {
    */
   public String normalize(String urlString, String scope)
           throws MalformedURLException {
+    if (cache == null || urlString == null || !scope.equals(this.scope)) {
+      return doNormalize(urlString, scope);
+    }
+    String normalized = cache.get(urlString);
+    if (normalized == null) {
+      normalized = doNormalize(urlString, scope);
+      cache.put(urlString, normalized);
+    } else if (NormalizerCache.isRejected(normalized)) {
+      normalized = null;
+    }
+    return normalized;
+  }
+
+  private String doNormalize(String urlString, String scope)
+          throws MalformedURLException {
     // optionally loop several times, and break if no further changes
     String initialString = urlString;
     for (int k = 0; k < loopCount; k++) {
@@ -86,6 +86,12 @@ public class ParseSegment extends Configured implements Tool,
     } catch (Exception e) {
       LOG.warn("Error parsing: " + key + ": " + StringUtils.stringifyException(e));
       return;
+    } finally {
+      NutchCounters.report(reporter);
+    }
+    if (parseResult == null) {
+      // no parser succeeded in time, already logged by ParseUtil
+      return;
     }
 
     for (Entry<Text, Parse> entry : parseResult) {
@@ -16,12 +16,24 @@
  */
 package org.apache.nutch.parse;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
 // Commons Logging imports
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 // Nutch Imports
 import org.apache.nutch.protocol.Content;
+import org.apache.nutch.util.NutchCounters;
 
 // Hadoop imports
 import org.apache.hadoop.conf.Configuration;
@@ -32,6 +44,18 @@ import org.apache.hadoop.conf.Configuration;
  * as iterating through a preferred list of {@link Parser}s to obtain
  * {@link Parse} objects.
  *
+ * <p>If <code>parser.timeout</code> is positive, each parser runs on a
+ * shared pool of daemon threads and is given that many seconds to finish.
+ * A parser that takes longer is interrupted and the next parser in the
+ * list is tried. Java offers no safe way to stop a thread that ignores the
+ * interrupt, so such a runaway parser keeps its thread until it returns;
+ * it is counted in {@link #getRunawayParsers()}. The pool holds at most
+ * <code>parser.timeout.threads</code> threads; once they are all taken,
+ * by running or runaway parsers, a parse fails at once instead of adding
+ * more threads. Timeouts, failures, rejected parses and runaway parsers
+ * are counted in the {@link #COUNTER_GROUP} group of
+ * {@link NutchCounters}.</p>
+ *
  * @author mattmann
  * @author J&eacute;r&ocirc;me Charron
  * @author S&eacute;bastien Le Callonnec
@@ -40,7 +64,29 @@ public class ParseUtil {
   
   /* our log stream */
   public static final Log LOG = LogFactory.getLog(ParseUtil.class);
+
+  public static final String COUNTER_GROUP = "Parser";
+
+  /**
+   * Threads that run parsers, grown on demand up to the limit set by the
+   * latest instance and shared by all instances.
+   */
+  private static final ThreadPoolExecutor EXECUTOR =
+    new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), new ThreadFactory() {
+          private int count = 0;
+          public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Parser-" + count++);
+            t.setDaemon(true);
+            return t;
+          }
+        });
+
+  /** Parsers that timed out and have not returned yet. */
+  private static final AtomicInteger RUNAWAY = new AtomicInteger();
+
   private ParserFactory parserFactory;
+  private long timeout;
   
   /**
    * 
@@ -48,6 +94,16 @@ public class ParseUtil {
    */
   public ParseUtil(Configuration conf) {
     this.parserFactory = new ParserFactory(conf);
+    this.timeout = conf.getInt("parser.timeout", 30) * 1000L;
+    if (timeout > 0) {
+      EXECUTOR.setMaximumPoolSize(
+          Math.max(1, conf.getInt("parser.timeout.threads", 100)));
+    }
+  }
+
+  /** Return the number of parsers that timed out but are still running. */
+  public static int getRunawayParsers() {
+    return RUNAWAY.get();
   }
   
   /**
@@ -74,12 +130,20 @@ public class ParseUtil {
       throw new ParseException(e.getMessage());
     }
     
+    return parse(parsers, content);
+  }
+
+  /**
+   * Try the parsers in turn until one returns a non-empty parse, or return
+   * <code>null</code> if none does.
+   */
+  ParseResult parse(Parser[] parsers, Content content) {
     ParseResult parseResult = null;
     for (int i=0; i<parsers.length; i++) {
       if (LOG.isDebugEnabled()) {
         LOG.debug("Parsing [" + content.getUrl() + "] with [" + parsers[i] + "]");
       }
-      parseResult = parsers[i].getParse(content);
+      parseResult = getParse(parsers[i], content);
       if (parseResult != null && !parseResult.isEmpty())
         return parseResult;
     }
@@ -124,7 +188,7 @@ public class ParseUtil {
       throw new ParseException(e.getMessage());
     }
     
-    ParseResult parseResult = p.getParse(content);
+    ParseResult parseResult = getParse(p, content);
     if (parseResult != null && !parseResult.isEmpty()) {
       return parseResult;
     } else {
@@ -136,4 +200,89 @@ public class ParseUtil {
     }
   }  
   
+  /**
+   * Run a parser, within the time limit if there is one. Returns
+   * <code>null</code> if the parser did not finish in time or failed, or
+   * if no thread was left to run it.
+   */
+  private ParseResult getParse(final Parser parser, final Content content) {
+    if (timeout <= 0) {
+      return parser.getParse(content);
+    }
+    final ParseTask task = new ParseTask(parser, content);
+    Future<ParseResult> future;
+    try {
+      future = EXECUTOR.submit(task);
+    } catch (RejectedExecutionException e) {
+      NutchCounters.incr(COUNTER_GROUP, "rejected", 1);
+      if (LOG.isWarnEnabled()) {
+        LOG.warn("No parser thread left for " + content.getUrl() + ", all "
+            + EXECUTOR.getMaximumPoolSize() + " are taken, "
+            + RUNAWAY.get() + " by runaway parser(s)");
+      }
+      return null;
+    }
+    try {
+      return future.get(timeout, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      NutchCounters.incr(COUNTER_GROUP, "timeouts", 1);
+      task.abandon();
+      future.cancel(true);
+      if (LOG.isWarnEnabled()) {
+        LOG.warn("Parser " + parser.getClass().getName() + " timed out after "
+            + (timeout / 1000) + "s on " + content.getUrl() + ", "
+            + RUNAWAY.get() + " runaway parser(s)");
+      }
+    } catch (ExecutionException e) {
+      NutchCounters.incr(COUNTER_GROUP, "failures", 1);
+      if (LOG.isWarnEnabled()) {
+        LOG.warn("Parser " + parser.getClass().getName() + " failed on "
+            + content.getUrl() + ": " + e.getCause());
+      }
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+    }
+    return null;
+  }
+
+  /** Runs one parser and keeps track of it once it is abandoned. */
+  private static class ParseTask implements Callable<ParseResult> {
+    private Parser parser;
+    private Content content;
+    private boolean started = false;
+    private boolean finished = false;
+    private boolean abandoned = false;
+
+    ParseTask(Parser parser, Content content) {
+      this.parser = parser;
+      this.content = content;
+    }
+
+    public ParseResult call() {
+      synchronized (this) {
+        if (abandoned) return null;
+        started = true;
+      }
+      try {
+        return parser.getParse(content);
+      } finally {
+        synchronized (this) {
+          finished = true;
+          if (abandoned) {
+            RUNAWAY.decrementAndGet();
+          }
+        }
+      }
+    }
+
+    synchronized void abandon() {
+      abandoned = true;
+      if (started && !finished) {
+        RUNAWAY.incrementAndGet();
+        NutchCounters.incr(COUNTER_GROUP, "abandoned", 1);
+      }
+    }
+  }
+
 }
@@ -0,0 +1,47 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.protocol;
+
+// Hadoop imports
+import org.apache.hadoop.io.Text;
+
+// Nutch imports
+import org.apache.nutch.crawl.CrawlDatum;
+
+
+/**
+ * A {@link Protocol} that can fetch without blocking the calling thread, so
+ * that a fetcher may keep more requests in flight than it has threads.
+ */
+public interface AsyncProtocol extends Protocol {
+
+  /** Receives the output of an asynchronous fetch. */
+  public interface Callback {
+
+    /**
+     * Called once when the fetch is done, usually by a thread of the
+     * protocol, so it should return quickly.
+     */
+    void done(ProtocolOutput output);
+  }
+
+  /**
+   * Starts fetching a fetchlist entry and returns without waiting for it.
+   * The callback may be called before this method returns.
+   */
+  void getProtocolOutput(Text url, CrawlDatum datum, Callback callback);
+}
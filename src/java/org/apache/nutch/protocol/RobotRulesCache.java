@@ -0,0 +1,310 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.protocol;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * A JVM-wide cache of robots.txt outcomes, keyed by host name.
+ *
+ * <p>The cache holds at most <code>http.robots.cache.size</code> hosts and
+ * evicts the least recently used one when full. Each entry expires at a
+ * fixed time: <code>http.robots.cache.ttl</code> seconds after the fetch
+ * when robots.txt was fetched or found to be missing, and
+ * <code>http.robots.cache.negative.ttl</code> seconds after a failed fetch
+ * (server errors, timeouts), so that a broken host is not asked again for
+ * every one of its urls.</p>
+ *
+ * <p>An entry keeps the status and raw content of the robots.txt fetch, so
+ * it can be written to and read back from the FileSystem by
+ * {@link #save(Path)} and {@link #load(Path)}. The parsed rules are attached
+ * by the protocol plugin, see {@link Entry#setRules(RobotRules)}.</p>
+ *
+ * <p>The implementation is chosen by <code>http.robots.cache.class</code>,
+ * which must name this class or a subclass of it.</p>
+ */
+public class RobotRulesCache implements Configurable {
+
+  public static final Log LOG = LogFactory.getLog(RobotRulesCache.class);
+
+  /** Status of an entry whose robots.txt could not be fetched at all. */
+  public static final int STATUS_FAILED = -1;
+
+  private static RobotRulesCache instance;
+
+  /** The outcome of one robots.txt fetch. */
+  public static class Entry implements Writable {
+    private int status;
+    private byte[] content;
+    private long expireTime;
+    private transient RobotRules rules;
+    private transient boolean saved;
+
+    public Entry() {
+    }
+
+    /**
+     * @param status status code of the robots.txt fetch, or
+     * {@link RobotRulesCache#STATUS_FAILED}
+     * @param content robots.txt content, needed only when rules were parsed
+     * from it
+     * @param rules rules derived from the outcome
+     */
+    public Entry(int status, byte[] content, RobotRules rules) {
+      this.status = status;
+      this.content = content == null ? new byte[0] : content;
+      this.rules = rules;
+    }
+
+    public int getStatus() {
+      return status;
+    }
+
+    public byte[] getContent() {
+      return content;
+    }
+
+    public long getExpireTime() {
+      return expireTime;
+    }
+
+    /** Rules derived from this entry, or null if it was loaded from disk. */
+    public RobotRules getRules() {
+      return rules;
+    }
+
+    public void setRules(RobotRules rules) {
+      this.rules = rules;
+    }
+
+    public void readFields(DataInput in) throws IOException {
+      status = WritableUtils.readVInt(in);
+      expireTime = WritableUtils.readVLong(in);
+      content = new byte[WritableUtils.readVInt(in)];
+      in.readFully(content);
+      rules = null;
+      saved = true;
+    }
+
+    public void write(DataOutput out) throws IOException {
+      WritableUtils.writeVInt(out, status);
+      WritableUtils.writeVLong(out, expireTime);
+      WritableUtils.writeVInt(out, content.length);
+      out.write(content);
+    }
+  }
+
+  private Configuration conf;
+  private int maxSize;
+  private long ttl;
+  private long negativeTtl;
+  private Map<String, Entry> entries;
+
+  /** Return the cache shared by this JVM, creating it on first use. */
+  public static synchronized RobotRulesCache get(Configuration conf) {
+    if (instance == null) {
+      Class<?> clazz = conf.getClass("http.robots.cache.class",
+                                     RobotRulesCache.class);
+      instance = (RobotRulesCache) ReflectionUtils.newInstance(clazz, conf);
+    }
+    return instance;
+  }
+
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+    maxSize = conf.getInt("http.robots.cache.size", 10000);
+    ttl = conf.getLong("http.robots.cache.ttl", 86400) * 1000;
+    negativeTtl = conf.getLong("http.robots.cache.negative.ttl", 3600) * 1000;
+    entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  public Configuration getConf() {
+    return conf;
+  }
+
+  /** Return the unexpired entry for a host, or null. */
+  public synchronized Entry get(String host) {
+    Entry entry = entries.get(host);
+    if (entry != null && entry.expireTime <= System.currentTimeMillis()) {
+      entries.remove(host);
+      entry = null;
+    }
+    return entry;
+  }
+
+  /**
+   * Cache an entry for a host. Its expiry time is set from the status:
+   * failed fetches and server errors use the negative time to live.
+   */
+  public synchronized void put(String host, Entry entry) {
+    long entryTtl = (entry.status == STATUS_FAILED || entry.status >= 500)
+      ? negativeTtl : ttl;
+    entry.expireTime = System.currentTimeMillis() + entryTtl;
+    entries.put(host, entry);
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  /**
+   * Read all cache files in a directory. Files older than the time to live
+   * are skipped, as are expired entries. When a host appears more than once
+   * the entry that expires last wins.
+   */
+  public void load(Path dir) throws IOException {
+    FileSystem fs = dir.getFileSystem(conf);
+    if (!fs.exists(dir)) return;
+    long now = System.currentTimeMillis();
+    FileStatus[] files = fs.listStatus(dir);
+    int count = 0;
+    for (int i = 0; files != null && i < files.length; i++) {
+      if (files[i].isDir() || files[i].getModificationTime() + ttl < now
+          || files[i].getPath().getName().startsWith(".")) {
+        continue;
+      }
+      SequenceFile.Reader reader =
+        new SequenceFile.Reader(fs, files[i].getPath(), conf);
+      try {
+        Text host = new Text();
+        Entry entry = new Entry();
+        while (reader.next(host, entry)) {
+          if (entry.expireTime > now) {
+            synchronized (this) {
+              Entry old = entries.get(host.toString());
+              if (old == null || old.expireTime < entry.expireTime) {
+                entries.put(host.toString(), entry);
+                count++;
+              }
+            }
+            entry = new Entry();
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    if (LOG.isInfoEnabled()) {
+      LOG.info("Loaded " + count + " robots.txt entries from " + dir);
+    }
+  }
+
+  /**
+   * Write the unexpired entries that were added since the last save and
+   * were not loaded from disk to <code>file</code>.
+   */
+  public void save(Path file) throws IOException {
+    List<String> hosts = new ArrayList<String>();
+    List<Entry> toSave = new ArrayList<Entry>();
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<String, Entry> e = it.next();
+        Entry entry = e.getValue();
+        if (!entry.saved && entry.expireTime > now) {
+          hosts.add(e.getKey());
+          toSave.add(entry);
+        }
+      }
+    }
+    if (toSave.isEmpty()) return;
+    FileSystem fs = file.getFileSystem(conf);
+    SequenceFile.Writer writer =
+      SequenceFile.createWriter(fs, conf, file, Text.class, Entry.class,
+                                CompressionType.BLOCK);
+    try {
+      Text host = new Text();
+      for (int i = 0; i < toSave.size(); i++) {
+        host.set(hosts.get(i));
+        writer.append(host, toSave.get(i));
+        toSave.get(i).saved = true;
+      }
+    } finally {
+      writer.close();
+    }
+    if (LOG.isInfoEnabled()) {
+      LOG.info("Saved " + toSave.size() + " robots.txt entries to " + file);
+    }
+  }
+
+  /**
+   * Load the cache shared by this JVM from <code>http.robots.cache.dir</code>,
+   * if set. Failures are logged, as fetching can go on without the cache.
+   */
+  public static void preload(Configuration conf) {
+    Path dir = getCacheDir(conf);
+    if (dir == null) return;
+    try {
+      get(conf).load(dir);
+    } catch (IOException e) {
+      LOG.warn("Could not load robots.txt cache from " + dir + ": " + e);
+    }
+  }
+
+  /**
+   * Save the new entries of the cache shared by this JVM to a file named
+   * after the segment and the task partition in
+   * <code>http.robots.cache.dir</code>, if set.
+   */
+  public static void persist(Configuration conf, String segmentName) {
+    Path dir = getCacheDir(conf);
+    if (dir == null) return;
+    Path file = new Path(dir, segmentName + "-"
+                         + conf.getInt("mapred.task.partition", 0));
+    try {
+      get(conf).save(file);
+    } catch (IOException e) {
+      LOG.warn("Could not save robots.txt cache to " + file + ": " + e);
+    }
+  }
+
+  private static Path getCacheDir(Configuration conf) {
+    String dir = conf.get("http.robots.cache.dir");
+    return (dir == null || dir.length() == 0) ? null : new Path(dir);
+  }
+
+}
@@ -137,6 +137,22 @@ public interface ScoringFilter extends Configurable, Pluggable {
    * @throws ScoringFilterException
    */
   public void updateDbScore(Text url, CrawlDatum old, CrawlDatum datum, List<CrawlDatum> inlinked) throws ScoringFilterException;
+
+  /**
+   * Merge two CrawlDatum-s from links pointing to the same page, so that
+   * {@link #updateDbScore(Text, CrawlDatum, CrawlDatum, List)} gets the same
+   * result from the merged datum as from both. This lets the CrawlDb update
+   * combine the many inlinked datums of popular pages before they are sent
+   * to the reducers.
+   * @param url url of the page
+   * @param merged inlinked datum to merge into. Filters should update this
+   * in-place.
+   * @param inlinked another inlinked datum
+   * @return false, leaving <code>merged</code> unchanged, if this filter needs
+   * to see the inlinked datums separately.
+   * @throws ScoringFilterException
+   */
+  public boolean mergeInlinked(Text url, CrawlDatum merged, CrawlDatum inlinked) throws ScoringFilterException;
   
   /**
    * This method calculates a Lucene document boost.
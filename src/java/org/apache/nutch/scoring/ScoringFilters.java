@@ -117,6 +117,19 @@ public class ScoringFilters extends Configured implements ScoringFilter {
     }
   }
 
+  /** Merge inlinked datums if all filters can, else leave them unchanged. */
+  public boolean mergeInlinked(Text url, CrawlDatum merged, CrawlDatum inlinked) throws ScoringFilterException {
+    CrawlDatum result = new CrawlDatum();
+    result.set(merged);
+    for (int i = 0; i < this.filters.length; i++) {
+      if (!this.filters[i].mergeInlinked(url, result, inlinked)) {
+        return false;
+      }
+    }
+    merged.set(result);
+    return true;
+  }
+
   public void passScoreBeforeParsing(Text url, CrawlDatum datum, Content content) throws ScoringFilterException {
     for (int i = 0; i < this.filters.length; i++) {
       this.filters[i].passScoreBeforeParsing(url, datum, content);
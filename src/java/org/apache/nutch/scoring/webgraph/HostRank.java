@@ -0,0 +1,397 @@
+package org.apache.nutch.scoring.webgraph;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapFileOutputFormat;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.util.StringUtils;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.nutch.util.FSUtils;
+import org.apache.nutch.util.NutchConfiguration;
+import org.apache.nutch.util.NutchJob;
+import org.apache.nutch.util.URLUtil;
+
+/**
+ * Ranks the hosts and the domains of a WebGraph. The outlinks of the WebGraph
+ * are aggregated into a host graph and a domain graph, in which a link from
+ * one host or domain to another is weighted by the number of url outlinks it
+ * stands for, and links within a host or domain are dropped. Both graphs are
+ * orders of magnitude smaller than the WebGraph, so they are ranked in memory
+ * on this machine, with the LinkRank formula except that a score is split
+ * over the outlinks by their weight instead of evenly.
+ *
+ * The graphs are stored as small WebGraphs of their own under the
+ * <code>hosts</code> and <code>domains</code> directories of the WebGraph,
+ * with outlinks and nodes keyed by host or domain name, so they can be read
+ * with the NodeDumper. The {@link ScoreUpdater} can blend the scores of the
+ * host and domain of a url into its score, which gives new urls of good hosts
+ * a head start. Since the ranking does not depend on LinkRank it can be run
+ * more often.
+ */
+public class HostRank
+  extends Configured
+  implements Tool {
+
+  public static final Log LOG = LogFactory.getLog(HostRank.class);
+  public static final String HOSTS_DIR = "hosts";
+  public static final String DOMAINS_DIR = "domains";
+
+  /**
+   * Aggregates url outlinks into weighted outlinks between hosts or domains.
+   * The reducer is also used as combiner.
+   */
+  private static class Aggregator
+    implements Mapper<Text, LinkDatum, Text, LinkDatum>,
+    Reducer<Text, LinkDatum, Text, LinkDatum> {
+
+    private boolean byDomain = false;
+    private String lastUrl = null;
+    private String lastName = null;
+
+    public void configure(JobConf conf) {
+      byDomain = conf.getBoolean("host.rank.domains", false);
+    }
+
+    /**
+     * Returns the host or domain of a url, or null if the url is malformed.
+     */
+    private String getName(String url) {
+      if (byDomain) {
+        try {
+          return URLUtil.getDomainName(url).toLowerCase();
+        }
+        catch (MalformedURLException e) {
+          return null;
+        }
+      }
+      return URLUtil.getHost(url);
+    }
+
+    /**
+     * Maps every outlink between different hosts or domains to a link of
+     * weight 1 between their names.
+     */
+    public void map(Text key, LinkDatum value,
+      OutputCollector<Text, LinkDatum> output, Reporter reporter)
+      throws IOException {
+
+      // the outlinks of a url are consecutive
+      String url = key.toString();
+      if (!url.equals(lastUrl)) {
+        lastUrl = url;
+        lastName = getName(url);
+      }
+      String toName = getName(value.getUrl());
+      if (lastName == null || toName == null || lastName.length() == 0
+        || toName.length() == 0 || lastName.equals(toName)) {
+        return;
+      }
+      LinkDatum link = new LinkDatum(toName, "", 0L);
+      link.setScore(1.0f);
+      link.setLinkType(LinkDatum.OUTLINK);
+      output.collect(new Text(lastName), link);
+    }
+
+    /**
+     * Sums the weights of the links to each host or domain.
+     */
+    public void reduce(Text key, Iterator<LinkDatum> values,
+      OutputCollector<Text, LinkDatum> output, Reporter reporter)
+      throws IOException {
+
+      Map<String, Float> weights = new TreeMap<String, Float>();
+      while (values.hasNext()) {
+        LinkDatum link = values.next();
+        Float weight = weights.get(link.getUrl());
+        weights.put(link.getUrl(), (weight != null ? weight : 0.0f)
+          + link.getScore());
+      }
+      for (Map.Entry<String, Float> entry : weights.entrySet()) {
+        LinkDatum link = new LinkDatum(entry.getKey(), "", 0L);
+        link.setScore(entry.getValue());
+        link.setLinkType(LinkDatum.OUTLINK);
+        output.collect(key, link);
+      }
+    }
+
+    public void close() {
+    }
+  }
+
+  /**
+   * Default constructor.
+   */
+  public HostRank() {
+    super();
+  }
+
+  /**
+   * Configurable constructor.
+   */
+  public HostRank(Configuration conf) {
+    super(conf);
+  }
+
+  /**
+   * Runs the aggregator job writing the weighted outlinks of hosts or domains.
+   */
+  private void runAggregator(Path outlinkDb, Path output, boolean byDomain)
+    throws IOException {
+
+    JobConf aggregator = new NutchJob(getConf());
+    aggregator.setJobName("HostRank Aggregator: "
+      + (byDomain ? "domains" : "hosts"));
+    FileInputFormat.addInputPath(aggregator, outlinkDb);
+    FileOutputFormat.setOutputPath(aggregator, output);
+    aggregator.setInputFormat(SequenceFileInputFormat.class);
+    aggregator.setMapperClass(Aggregator.class);
+    aggregator.setCombinerClass(Aggregator.class);
+    aggregator.setReducerClass(Aggregator.class);
+    aggregator.setMapOutputKeyClass(Text.class);
+    aggregator.setMapOutputValueClass(LinkDatum.class);
+    aggregator.setOutputKeyClass(Text.class);
+    aggregator.setOutputValueClass(LinkDatum.class);
+    aggregator.setOutputFormat(MapFileOutputFormat.class);
+    aggregator.setBoolean("host.rank.domains", byDomain);
+
+    LOG.info("Starting aggregator job");
+    try {
+      JobClient.runJob(aggregator);
+    }
+    catch (IOException e) {
+      LOG.error(StringUtils.stringifyException(e));
+      throw e;
+    }
+    LOG.info("Finished aggregator job");
+  }
+
+  /**
+   * Ranks an aggregated graph in memory and writes its nodes. Every node
+   * starts with the initial score, and every iteration gives a node
+   * <code>(1 - d) + d * (1 / numNodes + sum of inlink scores)</code>, where
+   * an inlink score is the share of the score of its source by link weight.
+   */
+  private void rank(FileSystem fs, Path graphDb)
+    throws IOException {
+
+    Configuration conf = getConf();
+
+    // number the names and read the weighted links
+    Map<String, Integer> ids = new HashMap<String, Integer>();
+    List<String> names = new ArrayList<String>();
+    List<int[]> links = new ArrayList<int[]>();
+    List<Float> linkWeights = new ArrayList<Float>();
+    Text key = new Text();
+    LinkDatum link = new LinkDatum();
+    Path[] parts = LinkGraph.getParts(fs, new Path(graphDb,
+      WebGraph.OUTLINK_DIR));
+    for (int p = 0; p < parts.length; p++) {
+      MapFile.Reader reader = new MapFile.Reader(fs, parts[p].toString(),
+        conf);
+      try {
+        while (reader.next(key, link)) {
+          int from = getId(ids, names, key.toString());
+          int to = getId(ids, names, link.getUrl());
+          links.add(new int[] { from, to });
+          linkWeights.add(link.getScore());
+        }
+      }
+      finally {
+        reader.close();
+      }
+    }
+
+    int numNodes = names.size();
+    int numLinks = links.size();
+    int[] sources = new int[numLinks];
+    int[] targets = new int[numLinks];
+    float[] weights = new float[numLinks];
+    float[] totalWeights = new float[numNodes];
+    int[] numInlinks = new int[numNodes];
+    int[] numOutlinks = new int[numNodes];
+    for (int j = 0; j < numLinks; j++) {
+      sources[j] = links.get(j)[0];
+      targets[j] = links.get(j)[1];
+      weights[j] = linkWeights.get(j);
+      totalWeights[sources[j]] += weights[j];
+      numOutlinks[sources[j]]++;
+      numInlinks[targets[j]]++;
+    }
+    links = null;
+    linkWeights = null;
+
+    float dampingFactor = conf.getFloat("link.analyze.damping.factor", 0.85f);
+    float initialScore = conf.getFloat("link.analyze.initial.score", 1.0f);
+    float epsilon = conf.getFloat("link.analyze.convergence.epsilon", 0.0f);
+    int numIterations = conf.getInt("link.analyze.num.iterations", 10);
+    float rankOne = numNodes > 0 ? 1f / (float)numNodes : 0f;
+    LOG.info("Ranking " + numNodes + " nodes with " + numLinks + " links");
+
+    float[] scores = new float[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+      scores[i] = initialScore;
+    }
+    float[] newScores = new float[numNodes];
+    for (int it = 0; it < numIterations; it++) {
+      for (int i = 0; i < numNodes; i++) {
+        newScores[i] = rankOne;
+      }
+      for (int j = 0; j < numLinks; j++) {
+        int from = sources[j];
+        newScores[targets[j]] += scores[from] * weights[j]
+          / totalWeights[from];
+      }
+      int changed = 0;
+      for (int i = 0; i < numNodes; i++) {
+        newScores[i] = (1 - dampingFactor) + (dampingFactor * newScores[i]);
+        if (Math.abs(newScores[i] - scores[i]) > epsilon) {
+          changed++;
+        }
+      }
+      float[] swap = scores;
+      scores = newScores;
+      newScores = swap;
+      if (changed == 0) {
+        LOG.info("Scores converged after " + (it + 1) + " iterations");
+        break;
+      }
+    }
+
+    // write the nodes in key order to a new node database
+    Map<Text, Integer> sorted = new TreeMap<Text, Integer>();
+    for (int i = 0; i < numNodes; i++) {
+      sorted.put(new Text(names.get(i)), i);
+    }
+    Path nodeDb = new Path(graphDb, WebGraph.NODE_DIR);
+    Path tempNodeDb = new Path(graphDb, WebGraph.NODE_DIR + "-"
+      + Integer.toString(new Random().nextInt(Integer.MAX_VALUE)));
+    MapFile.Writer writer = new MapFile.Writer(conf, fs, new Path(tempNodeDb,
+      "part-00000").toString(), Text.class, Node.class);
+    try {
+      for (Map.Entry<Text, Integer> entry : sorted.entrySet()) {
+        int i = entry.getValue();
+        Node node = new Node();
+        node.setInlinkScore(scores[i]);
+        node.setNumInlinks(numInlinks[i]);
+        node.setNumOutlinks(numOutlinks[i]);
+        writer.append(entry.getKey(), node);
+      }
+    }
+    finally {
+      writer.close();
+    }
+    FSUtils.replace(fs, nodeDb, tempNodeDb, true);
+  }
+
+  private static int getId(Map<String, Integer> ids, List<String> names,
+    String name) {
+    Integer id = ids.get(name);
+    if (id == null) {
+      id = names.size();
+      ids.put(name, id);
+      names.add(name);
+    }
+    return id;
+  }
+
+  /**
+   * Aggregates the outlinks of a WebGraph into a host and a domain graph and
+   * ranks both, replacing any earlier host and domain graphs.
+   *
+   * @param webGraphDb The WebGraph to rank the hosts and domains of.
+   *
+   * @throws IOException If an error occurs while ranking.
+   */
+  public void rank(Path webGraphDb)
+    throws IOException {
+
+    Configuration conf = getConf();
+    FileSystem fs = FileSystem.get(conf);
+    Path outlinkDb = new Path(webGraphDb, WebGraph.OUTLINK_DIR);
+    for (int i = 0; i < 2; i++) {
+      boolean byDomain = (i == 1);
+      Path graphDb = new Path(webGraphDb, byDomain ? DOMAINS_DIR : HOSTS_DIR);
+      Path graphOutlinkDb = new Path(graphDb, WebGraph.OUTLINK_DIR);
+      Path tempOutlinkDb = new Path(graphDb, WebGraph.OUTLINK_DIR + "-"
+        + Integer.toString(new Random().nextInt(Integer.MAX_VALUE)));
+
+      LOG.info("HostRank: ranking " + graphDb);
+      runAggregator(outlinkDb, tempOutlinkDb, byDomain);
+      FSUtils.replace(fs, graphOutlinkDb, tempOutlinkDb, true);
+      rank(fs, graphDb);
+      LOG.info("HostRank: finished " + graphDb);
+    }
+  }
+
+  public static void main(String[] args)
+    throws Exception {
+    int res = ToolRunner.run(NutchConfiguration.create(), new HostRank(), args);
+    System.exit(res);
+  }
+
+  /**
+   * Runs the HostRank tool.
+   */
+  public int run(String[] args)
+    throws Exception {
+
+    Options options = new Options();
+    Option helpOpts = OptionBuilder.withArgName("help").withDescription(
+      "show this help message").create("help");
+    Option webgraphOpts = OptionBuilder.withArgName("webgraphdb").hasArg().withDescription(
+      "the web graph db to use").create("webgraphdb");
+    options.addOption(helpOpts);
+    options.addOption(webgraphOpts);
+
+    CommandLineParser parser = new GnuParser();
+    try {
+
+      CommandLine line = parser.parse(options, args);
+      if (line.hasOption("help") || !line.hasOption("webgraphdb")) {
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.printHelp("HostRank", options);
+        return -1;
+      }
+
+      String webGraphDb = line.getOptionValue("webgraphdb");
+      rank(new Path(webGraphDb));
+      return 0;
+    }
+    catch (Exception e) {
+      LOG.fatal("HostRank: " + StringUtils.stringifyException(e));
+      return -2;
+    }
+  }
+}
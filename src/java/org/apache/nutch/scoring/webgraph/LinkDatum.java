@@ -17,6 +17,10 @@ public class LinkDatum
   public final static byte INLINK = 1;
   public final static byte OUTLINK = 2;
 
+  // link types of the changes applied by incremental WebGraph updates
+  public final static byte REMOVED_INLINK = 3;
+  public final static byte REMOVED_OUTLINK = 4;
+
   private String url = null;
   private String anchor = "";
   private float score = 0.0f;
@@ -116,8 +120,14 @@ public class LinkDatum
 
   public String toString() {
 
-    String type = (linkType == INLINK ? "inlink" : (linkType == OUTLINK)
-      ? "outlink" : "unknown");
+    String type;
+    switch (linkType) {
+      case INLINK: type = "inlink"; break;
+      case OUTLINK: type = "outlink"; break;
+      case REMOVED_INLINK: type = "removed inlink"; break;
+      case REMOVED_OUTLINK: type = "removed outlink"; break;
+      default: type = "unknown";
+    }
     return "url: " + url + ", anchor: " + anchor + ", score: " + score
       + ", timestamp: " + timestamp + ", link type: " + type;
   }
@@ -0,0 +1,201 @@
+package org.apache.nutch.scoring.webgraph;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.util.HadoopFSUtil;
+
+/**
+ * A compact, read-only copy of the outlink graph of a WebGraph, for analysis
+ * programs that run on a single machine. Every url of the NodeDb gets an int
+ * id, its position in the sorted array of urls, and the outlinks are stored
+ * in compressed sparse row form: the targets of the outlinks of node
+ * <code>i</code> are <code>outlinks[offsets[i]]</code> up to
+ * <code>outlinks[offsets[i + 1]]</code>, in the order of the OutlinkDb.
+ *
+ * Besides the urls, the graph takes two ints per node and one int per link.
+ */
+public class LinkGraph {
+
+  public static final Log LOG = LogFactory.getLog(LinkGraph.class);
+
+  private String[] urls;
+  private int[] offsets;
+  private int[] outlinks;
+
+  private LinkGraph(String[] urls, int[] offsets, int[] outlinks) {
+    this.urls = urls;
+    this.offsets = offsets;
+    this.outlinks = outlinks;
+  }
+
+  /**
+   * Reads the NodeDb and the OutlinkDb of a WebGraph into memory. The OutlinkDb
+   * is read twice, once to count the outlinks of every node and once to fill
+   * them in, so no intermediate list of links is needed. Outlinks to urls that
+   * are not in the NodeDb are skipped.
+   *
+   * @param fs The FileSystem of the WebGraph.
+   * @param webGraphDb The WebGraph to read.
+   * @param conf The configuration.
+   *
+   * @return The graph.
+   *
+   * @throws IOException If an error occurs while reading the WebGraph.
+   */
+  public static LinkGraph read(FileSystem fs, Path webGraphDb,
+    Configuration conf)
+    throws IOException {
+
+    // number all urls in the node database
+    List<String> urlList = new ArrayList<String>();
+    Text key = new Text();
+    Node node = new Node();
+    Path[] nodeParts = getParts(fs, new Path(webGraphDb, WebGraph.NODE_DIR));
+    for (int p = 0; p < nodeParts.length; p++) {
+      MapFile.Reader reader = new MapFile.Reader(fs, nodeParts[p].toString(),
+        conf);
+      try {
+        while (reader.next(key, node)) {
+          urlList.add(key.toString());
+        }
+      }
+      finally {
+        reader.close();
+      }
+    }
+    String[] urls = urlList.toArray(new String[urlList.size()]);
+    urlList = null;
+    Arrays.sort(urls);
+
+    // count the outlinks of every node, then fill them in
+    Path[] outlinkParts = getParts(fs, new Path(webGraphDb,
+      WebGraph.OUTLINK_DIR));
+    int[] offsets = new int[urls.length + 1];
+    int[] outlinks = null;
+    LinkDatum link = new LinkDatum();
+    long skipped = 0;
+    for (int pass = 0; pass < 2; pass++) {
+      int[] next = null;
+      if (pass == 1) {
+        for (int i = 0; i < urls.length; i++) {
+          offsets[i + 1] += offsets[i];
+        }
+        outlinks = new int[offsets[urls.length]];
+        next = new int[urls.length];
+        System.arraycopy(offsets, 0, next, 0, urls.length);
+      }
+      for (int p = 0; p < outlinkParts.length; p++) {
+        MapFile.Reader reader = new MapFile.Reader(fs,
+          outlinkParts[p].toString(), conf);
+        try {
+          String fromUrl = null;
+          int from = -1;
+          while (reader.next(key, link)) {
+
+            // the outlinks of a url are consecutive in the OutlinkDb
+            String url = key.toString();
+            if (!url.equals(fromUrl)) {
+              fromUrl = url;
+              from = Arrays.binarySearch(urls, url);
+            }
+            int to = Arrays.binarySearch(urls, link.getUrl());
+            if (from < 0 || to < 0) {
+              if (pass == 0) {
+                skipped++;
+              }
+              continue;
+            }
+            if (pass == 0) {
+              offsets[from + 1]++;
+            }
+            else {
+              outlinks[next[from]++] = to;
+            }
+          }
+        }
+        finally {
+          reader.close();
+        }
+      }
+    }
+
+    if (skipped > 0) {
+      LOG.warn("Skipped " + skipped + " outlinks of or to urls not in the "
+        + "node database");
+    }
+    LOG.info("Read " + urls.length + " nodes and " + outlinks.length
+      + " links from " + webGraphDb);
+    return new LinkGraph(urls, offsets, outlinks);
+  }
+
+  /**
+   * Returns the part directories of a MapFile output such as the NodeDb.
+   */
+  static Path[] getParts(FileSystem fs, Path dir)
+    throws IOException {
+    Path[] parts = HadoopFSUtil.getPaths(fs.listStatus(dir,
+      HadoopFSUtil.getPassDirectoriesFilter(fs)));
+    Arrays.sort(parts);
+    return parts;
+  }
+
+  /**
+   * Returns the number of nodes in the graph.
+   */
+  public int getNumNodes() {
+    return urls.length;
+  }
+
+  /**
+   * Returns the number of links in the graph.
+   */
+  public int getNumLinks() {
+    return outlinks.length;
+  }
+
+  /**
+   * Returns the id of a url, or a negative number if it is not in the graph.
+   */
+  public int getId(String url) {
+    return Arrays.binarySearch(urls, url);
+  }
+
+  /**
+   * Returns the url of a node.
+   */
+  public String getUrl(int id) {
+    return urls[id];
+  }
+
+  /**
+   * Returns the number of outlinks of a node.
+   */
+  public int getNumOutlinks(int id) {
+    return offsets[id + 1] - offsets[id];
+  }
+
+  /**
+   * Returns the offsets of the outlinks of every node in
+   * {@link #getOutlinks()}, one more than the number of nodes.
+   */
+  public int[] getOffsets() {
+    return offsets;
+  }
+
+  /**
+   * Returns the target ids of all outlinks, grouped by node.
+   */
+  public int[] getOutlinks() {
+    return outlinks;
+  }
+}
@@ -4,6 +4,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -30,6 +31,7 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.Counters;
 import org.apache.hadoop.mapred.FileOutputFormat;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
@@ -38,9 +40,11 @@ import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.RunningJob;
 import org.apache.hadoop.mapred.SequenceFileInputFormat;
 import org.apache.hadoop.mapred.SequenceFileOutputFormat;
 import org.apache.hadoop.mapred.TextOutputFormat;
+import org.apache.hadoop.mapred.lib.IdentityMapper;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
@@ -56,6 +60,11 @@ public class LinkRank
 
   public static final Log LOG = LogFactory.getLog(LinkRank.class);
   private static final String NUM_NODES = "_num_nodes_";
+  private static final String COUNTER_GROUP = "LinkRank";
+  private static final String SCORE_DELTA = "score delta (millionths)";
+  private static final String CHANGED_NODES = "changed nodes";
+  private static final double DELTA_SCALE = 1000000.0;
+  private static final String SENT_SCORE = "_lr_sent_";
 
   /**
    * Runs the counter job. The counter job determines the number of links in the
@@ -152,34 +161,92 @@ public class LinkRank
   }
 
   /**
-   * Runs the inverter job. The inverter job flips outlinks to inlinks to be
-   * passed into the analysis job.
+   * Runs the link filter jobs. The link filter jobs select, once for all
+   * iterations, the links that count towards the score of their target.
    * 
-   * The inverter job takes a link loops database if it exists. It is an
-   * optional componenet of link analysis due to its extreme computational and
-   * space requirements but it can be very useful is weeding out and eliminating
-   * link farms and other spam pages.
+   * The first job removes the links contained in the link loops database if it
+   * exists. It is an optional componenet of link analysis due to its extreme
+   * computational and space requirements but it can be very useful is weeding
+   * out and eliminating link farms and other spam pages. The second job removes
+   * duplicate inlinks from the same page or domain, keeping the first source
+   * url in sort order, and keys the remaining links by their source again.
    * 
-   * @param nodeDb The node database to use.
    * @param outlinkDb The outlink database to use.
    * @param loopDb The loop database to use if it exists.
    * @param output The output directory.
    * 
+   * @throws IOException If an error occurs while running the link filter jobs.
+   */
+  private void runLinkFilters(Path outlinkDb, Path loopDb, Path output)
+    throws IOException {
+
+    // configure the loop filter, add the loop database if it exists
+    Path inverted = new Path(output + "-inverted");
+    JobConf loopFilter = new NutchJob(getConf());
+    loopFilter.setJobName("LinkAnalysis Loop Filter");
+    FileInputFormat.addInputPath(loopFilter, outlinkDb);
+    if (loopDb != null) {
+      FileInputFormat.addInputPath(loopFilter, loopDb);
+    }
+    FileOutputFormat.setOutputPath(loopFilter, inverted);
+    loopFilter.setInputFormat(SequenceFileInputFormat.class);
+    loopFilter.setMapperClass(LoopFilter.class);
+    loopFilter.setReducerClass(LoopFilter.class);
+    loopFilter.setMapOutputKeyClass(Text.class);
+    loopFilter.setMapOutputValueClass(ObjectWritable.class);
+    loopFilter.setOutputKeyClass(Text.class);
+    loopFilter.setOutputValueClass(LinkDatum.class);
+    loopFilter.setOutputFormat(SequenceFileOutputFormat.class);
+
+    // configure the duplicate filter
+    JobConf duplicateFilter = new NutchJob(getConf());
+    duplicateFilter.setJobName("LinkAnalysis Duplicate Filter");
+    FileInputFormat.addInputPath(duplicateFilter, inverted);
+    FileOutputFormat.setOutputPath(duplicateFilter, output);
+    duplicateFilter.setInputFormat(SequenceFileInputFormat.class);
+    duplicateFilter.setMapperClass(IdentityMapper.class);
+    duplicateFilter.setReducerClass(DuplicateFilter.class);
+    duplicateFilter.setMapOutputKeyClass(Text.class);
+    duplicateFilter.setMapOutputValueClass(LinkDatum.class);
+    duplicateFilter.setOutputKeyClass(Text.class);
+    duplicateFilter.setOutputValueClass(LinkDatum.class);
+    duplicateFilter.setOutputFormat(SequenceFileOutputFormat.class);
+
+    // run the link filter jobs
+    LOG.info("Starting link filter jobs");
+    try {
+      JobClient.runJob(loopFilter);
+      JobClient.runJob(duplicateFilter);
+    }
+    catch (IOException e) {
+      LOG.error(StringUtils.stringifyException(e));
+      throw e;
+    }
+    FileSystem.get(getConf()).delete(inverted, true);
+    LOG.info("Finished link filter jobs.");
+  }
+
+  /**
+   * Runs the inverter job. The inverter job flips the selected links to inlinks
+   * to be passed into the analysis job.
+   * 
+   * @param nodeDb The node database to use.
+   * @param links The links selected by the link filter jobs.
+   * @param output The output directory.
+   * @param deltas True if only changes to scores are propagated.
+   * 
    * @throws IOException If an error occurs while running the inverter job.
    */
-  private void runInverter(Path nodeDb, Path outlinkDb, Path loopDb, Path output)
+  private void runInverter(Path nodeDb, Path links, Path output,
+    boolean deltas)
     throws IOException {
 
     // configure the inverter
     JobConf inverter = new NutchJob(getConf());
     inverter.setJobName("LinkAnalysis Inverter");
+    inverter.setBoolean("link.analyze.deltas", deltas);
     FileInputFormat.addInputPath(inverter, nodeDb);
-    FileInputFormat.addInputPath(inverter, outlinkDb);
-
-    // add the loop database if it exists, isn't null
-    if (loopDb != null) {
-      FileInputFormat.addInputPath(inverter, loopDb);
-    }
+    FileInputFormat.addInputPath(inverter, links);
     FileOutputFormat.setOutputPath(inverter, output);
     inverter.setInputFormat(SequenceFileInputFormat.class);
     inverter.setMapperClass(Inverter.class);
@@ -215,15 +282,19 @@ public class LinkRank
    * @param output The link analysis output.
    * @param iteration The current iteration number.
    * @param numIterations The total number of link analysis iterations
+   * @param deltas True if the inverted inlinks are changes to scores.
+   * 
+   * @return The counters of the job, holding the change of the scores.
    * 
    * @throws IOException If an error occurs during link analysis.
    */
-  private void runAnalysis(Path nodeDb, Path inverted, Path output,
-    int iteration, int numIterations, float rankOne)
+  private Counters runAnalysis(Path nodeDb, Path inverted, Path output,
+    int iteration, int numIterations, float rankOne, boolean deltas)
     throws IOException {
 
     JobConf analyzer = new NutchJob(getConf());
     analyzer.set("link.analyze.iteration", String.valueOf(iteration + 1));
+    analyzer.setBoolean("link.analyze.deltas", deltas);
     analyzer.setJobName("LinkAnalysis Analyzer, iteration " + (iteration + 1)
       + " of " + numIterations);
     FileInputFormat.addInputPath(analyzer, nodeDb);
@@ -240,14 +311,71 @@ public class LinkRank
     analyzer.setOutputFormat(MapFileOutputFormat.class);
 
     LOG.info("Starting analysis job");
+    RunningJob job;
     try {
-      JobClient.runJob(analyzer);
+      job = JobClient.runJob(analyzer);
     }
     catch (IOException e) {
       LOG.error(StringUtils.stringifyException(e));
       throw e;
     }
     LOG.info("Finished analysis job.");
+    return job.getCounters();
+  }
+
+  /**
+   * Runs the finalizer job. The finalizer job removes the bookkeeping of delta
+   * propagation from the nodes.
+   * 
+   * @param nodeDb The node database to use.
+   * @param output The job output directory.
+   * 
+   * @throws IOException If an error occurs while running the finalizer job.
+   */
+  private void runFinalizer(Path nodeDb, Path output)
+    throws IOException {
+
+    // configure the finalizer
+    JobConf finalizer = new NutchJob(getConf());
+    finalizer.setJobName("LinkAnalysis Finalizer");
+    FileInputFormat.addInputPath(finalizer, nodeDb);
+    FileOutputFormat.setOutputPath(finalizer, output);
+    finalizer.setInputFormat(SequenceFileInputFormat.class);
+    finalizer.setMapperClass(Finalizer.class);
+    finalizer.setMapOutputKeyClass(Text.class);
+    finalizer.setMapOutputValueClass(Node.class);
+    finalizer.setOutputKeyClass(Text.class);
+    finalizer.setOutputValueClass(Node.class);
+    finalizer.setOutputFormat(MapFileOutputFormat.class);
+
+    // run the finalizer
+    LOG.info("Starting finalizer job");
+    try {
+      JobClient.runJob(finalizer);
+    }
+    catch (IOException e) {
+      LOG.error(StringUtils.stringifyException(e));
+      throw e;
+    }
+    LOG.info("Finished finalizer job.");
+  }
+
+  /**
+   * Returns the score a node last sent to its outlinks, kept while propagating
+   * deltas.
+   */
+  private static float getSentScore(Node node) {
+    String sent = node.getMetadata().get(SENT_SCORE);
+    return (sent != null) ? Float.parseFloat(sent) : 0.0f;
+  }
+
+  /**
+   * Returns true if a node sends the change of its score to its outlinks in an
+   * iteration propagating deltas, which it does if its score moved more than
+   * the threshold since it last sent it.
+   */
+  private static boolean propagates(Node node, float threshold) {
+    return Math.abs(node.getInlinkScore() - getSentScore(node)) > threshold;
   }
 
   /**
@@ -321,7 +449,130 @@ public class LinkRank
   }
 
   /**
-   * Inverts outlinks and attaches current score from the NodeDb of the
+   * Removes the outlinks of a url that are contained in its LoopSet and inverts
+   * the remaining outlinks.
+   */
+  private static class LoopFilter
+    implements Mapper<Text, Writable, Text, ObjectWritable>,
+    Reducer<Text, ObjectWritable, Text, LinkDatum> {
+
+    private JobConf conf;
+
+    public void configure(JobConf conf) {
+      this.conf = conf;
+    }
+
+    /**
+     * Convert values to ObjectWritable
+     */
+    public void map(Text key, Writable value,
+      OutputCollector<Text, ObjectWritable> output, Reporter reporter)
+      throws IOException {
+
+      ObjectWritable objWrite = new ObjectWritable();
+      objWrite.set(value);
+      output.collect(key, objWrite);
+    }
+
+    /**
+     * Inverts the outlinks of a url that are not in its LoopSet.
+     */
+    public void reduce(Text key, Iterator<ObjectWritable> values,
+      OutputCollector<Text, LinkDatum> output, Reporter reporter)
+      throws IOException {
+
+      String fromUrl = key.toString();
+      List<LinkDatum> outlinks = new ArrayList<LinkDatum>();
+      LoopSet loops = null;
+
+      // aggregate outlinks, assign other values
+      while (values.hasNext()) {
+        ObjectWritable write = values.next();
+        Object obj = write.get();
+        if (obj instanceof LinkDatum) {
+          outlinks.add((LinkDatum)WritableUtils.clone((LinkDatum)obj, conf));
+        }
+        else if (obj instanceof LoopSet) {
+          loops = (LoopSet)obj;
+        }
+      }
+
+      Set<String> loopSet = (loops != null) ? loops.getLoopSet() : null;
+      for (int i = 0; i < outlinks.size(); i++) {
+        LinkDatum outlink = outlinks.get(i);
+        String toUrl = outlink.getUrl();
+
+        // remove any url that is contained in the loopset
+        if (loopSet != null && loopSet.contains(toUrl)) {
+          LOG.debug(fromUrl + ": Skipping inverting inlink from loop "
+            + toUrl);
+          continue;
+        }
+        outlink.setUrl(fromUrl);
+        outlink.setAnchor("");
+        output.collect(new Text(toUrl), outlink);
+      }
+    }
+
+    public void close() {
+    }
+  }
+
+  /**
+   * Removes duplicate inlinks by page and domain and keys the remaining inlinks
+   * by the url they come from.
+   */
+  private static class DuplicateFilter
+    implements Reducer<Text, LinkDatum, Text, LinkDatum> {
+
+    private boolean limitPages = true;
+    private boolean limitDomains = true;
+
+    public void configure(JobConf conf) {
+      limitPages = conf.getBoolean("link.ignore.limit.page", true);
+      limitDomains = conf.getBoolean("link.ignore.limit.domain", true);
+    }
+
+    /**
+     * Keeps the first inlink in url order of every page and domain, if limited,
+     * and outputs it as an outlink of the page it comes from.
+     */
+    public void reduce(Text key, Iterator<LinkDatum> values,
+      OutputCollector<Text, LinkDatum> output, Reporter reporter)
+      throws IOException {
+
+      String url = key.toString();
+      List<String> inlinkUrls = new ArrayList<String>();
+      while (values.hasNext()) {
+        inlinkUrls.add(values.next().getUrl());
+      }
+      Collections.sort(inlinkUrls);
+
+      Set<String> domains = new HashSet<String>();
+      Set<String> pages = new HashSet<String>();
+      for (String inlinkUrl : inlinkUrls) {
+        String inLinkDomain = URLUtil.getDomainName(inlinkUrl);
+        String inLinkPage = URLUtil.getPage(inlinkUrl);
+
+        // limit counting duplicate inlinks by pages or domains
+        if ((limitPages && pages.contains(inLinkPage))
+          || (limitDomains && domains.contains(inLinkDomain))) {
+          LOG.debug(url + ": ignoring inlink from " + inlinkUrl
+            + ", duplicate page or domain");
+          continue;
+        }
+        domains.add(inLinkDomain);
+        pages.add(inLinkPage);
+        output.collect(new Text(inlinkUrl), new LinkDatum(url, "", 0L));
+      }
+    }
+
+    public void close() {
+    }
+  }
+
+  /**
+   * Inverts links and attaches current score from the NodeDb of the
    * WebGraph. The link analysis process consists of inverting, analyzing and
    * scoring, in a loop for a given number of iterations.
    */
@@ -330,9 +581,13 @@ public class LinkRank
     Reducer<Text, ObjectWritable, Text, LinkDatum> {
 
     private JobConf conf;
+    private boolean deltas = false;
+    private float deltaThreshold = 0.0f;
 
     public void configure(JobConf conf) {
       this.conf = conf;
+      deltas = conf.getBoolean("link.analyze.deltas", false);
+      deltaThreshold = conf.getFloat("link.analyze.delta.threshold", 0.0f);
     }
 
     /**
@@ -348,9 +603,10 @@ public class LinkRank
     }
 
     /**
-     * Inverts outlinks to inlinks, attaches current score for the outlink from
-     * the NodeDb of the WebGraph and removes any outlink that is contained
-     * within the loopset.
+     * Inverts links to inlinks and attaches the current score for the outlink
+     * from the NodeDb of the WebGraph. When propagating deltas, the change of
+     * the score since it was last sent is attached instead, and only if the
+     * score moved more than the delta threshold.
      */
     public void reduce(Text key, Iterator<ObjectWritable> values,
       OutputCollector<Text, LinkDatum> output, Reporter reporter)
@@ -359,7 +615,6 @@ public class LinkRank
       String fromUrl = key.toString();
       List<LinkDatum> outlinks = new ArrayList<LinkDatum>();
       Node node = null;
-      LoopSet loops = null;
 
       // aggregate outlinks, assign other values
       while (values.hasNext()) {
@@ -371,9 +626,6 @@ public class LinkRank
         else if (obj instanceof LinkDatum) {
           outlinks.add((LinkDatum)WritableUtils.clone((LinkDatum)obj, conf));
         }
-        else if (obj instanceof LoopSet) {
-          loops = (LoopSet)obj;
-        }
       }
 
       // get the number of outlinks and the current inlink and outlink scores
@@ -386,17 +638,17 @@ public class LinkRank
       // can't invert if no outlinks
       if (numOutlinks > 0) {
 
-        Set<String> loopSet = (loops != null) ? loops.getLoopSet() : null;
+        if (deltas) {
+          if (!propagates(node, deltaThreshold)) {
+            reporter.incrCounter(COUNTER_GROUP, "nodes not propagated", 1);
+            return;
+          }
+          outlinkScore = (inlinkScore - getSentScore(node)) / numOutlinks;
+        }
+
         for (int i = 0; i < outlinks.size(); i++) {
           LinkDatum outlink = outlinks.get(i);
           String toUrl = outlink.getUrl();
-
-          // remove any url that is contained in the loopset
-          if (loopSet != null && loopSet.contains(toUrl)) {
-            LOG.debug(fromUrl + ": Skipping inverting inlink from loop "
-              + toUrl);
-            continue;
-          }
           outlink.setUrl(fromUrl);
           outlink.setScore(outlinkScore);
 
@@ -424,8 +676,9 @@ public class LinkRank
     private float dampingFactor = 0.85f;
     private float rankOne = 0.0f;
     private int itNum = 0;
-    private boolean limitPages = true;
-    private boolean limitDomains = true;
+    private boolean deltas = false;
+    private float deltaThreshold = 0.0f;
+    private float epsilon = 0.0f;
 
     /**
      * Configures the job, sets the damping factor, rank one score, and other
@@ -438,8 +691,9 @@ public class LinkRank
         this.dampingFactor = conf.getFloat("link.analyze.damping.factor", 0.85f);
         this.rankOne = conf.getFloat("link.analyze.rank.one", 0.0f);
         this.itNum = conf.getInt("link.analyze.iteration", 0);
-        limitPages = conf.getBoolean("link.ignore.limit.page", true);
-        limitDomains = conf.getBoolean("link.ignore.limit.domain", true);
+        deltas = conf.getBoolean("link.analyze.deltas", false);
+        deltaThreshold = conf.getFloat("link.analyze.delta.threshold", 0.0f);
+        epsilon = conf.getFloat("link.analyze.convergence.epsilon", 0.0f);
       }
       catch (Exception e) {
         LOG.error(StringUtils.stringifyException(e));
@@ -462,19 +716,20 @@ public class LinkRank
     /**
      * Performs a single iteration of link analysis. The resulting scores are
      * stored in a temporary NodeDb which replaces the NodeDb of the WebGraph.
+     * The change of every score is counted, as the total change and as the
+     * number of nodes whose score moved more than the convergence epsilon.
      */
     public void reduce(Text key, Iterator<ObjectWritable> values,
       OutputCollector<Text, Node> output, Reporter reporter)
       throws IOException {
 
       String url = key.toString();
-      Set<String> domains = new HashSet<String>();
-      Set<String> pages = new HashSet<String>();
       Node node = null;
 
-      // a page with zero inlinks has a score of rankOne
+      // a page with zero inlinks has a score of rankOne, when propagating
+      // deltas the inlink scores are changes to the current score
       int numInlinks = 0;
-      float totalInlinkScore = rankOne;
+      float totalInlinkScore = deltas ? 0.0f : rankOne;
 
       while (values.hasNext()) {
 
@@ -485,40 +740,47 @@ public class LinkRank
         }
         else if (value instanceof LinkDatum) {
 
+          // aggregate total inlink score, duplicate pages and domains have
+          // been removed by the link filters
           LinkDatum linkDatum = (LinkDatum)value;
           float scoreFromInlink = linkDatum.getScore();
-          String inlinkUrl = linkDatum.getUrl();
-          String inLinkDomain = URLUtil.getDomainName(inlinkUrl);
-          String inLinkPage = URLUtil.getPage(inlinkUrl);
-
-          // limit counting duplicate inlinks by pages or domains
-          if ((limitPages && pages.contains(inLinkPage))
-            || (limitDomains && domains.contains(inLinkDomain))) {
-            LOG.debug(url + ": ignoring " + scoreFromInlink + " from "
-              + inlinkUrl + ", duplicate page or domain");
-            continue;
-          }
-
-          // aggregate total inlink score
           numInlinks++;
           totalInlinkScore += scoreFromInlink;
-          domains.add(inLinkDomain);
-          pages.add(inLinkPage);
-          LOG.debug(url + ": adding " + scoreFromInlink + " from " + inlinkUrl
-            + ", total: " + totalInlinkScore);
+          LOG.debug(url + ": adding " + scoreFromInlink + " from "
+            + linkDatum.getUrl() + ", total: " + totalInlinkScore);
         }
       }
 
-      // calculate linkRank score formula
-      float linkRankScore = (1 - this.dampingFactor)
-        + (this.dampingFactor * totalInlinkScore);
+      // calculate linkRank score formula, or apply the changes of the inlink
+      // scores to the current score
+      float previousScore = node.getInlinkScore();
+      float linkRankScore;
+      if (deltas) {
+        linkRankScore = previousScore + (this.dampingFactor * totalInlinkScore);
+      }
+      else {
+        linkRankScore = (1 - this.dampingFactor)
+          + (this.dampingFactor * totalInlinkScore);
+      }
 
       LOG.info(url + ": score: " + linkRankScore + " num inlinks: "
         + numInlinks + " iteration: " + itNum + "\n");
 
-      // store the score in a temporary NodeDb
+      // count how far the score moved
+      float delta = Math.abs(linkRankScore - previousScore);
+      reporter.incrCounter(COUNTER_GROUP, SCORE_DELTA,
+        Math.round(delta * DELTA_SCALE));
+      if (delta > epsilon) {
+        reporter.incrCounter(COUNTER_GROUP, CHANGED_NODES, 1);
+      }
+
+      // store the score in a temporary NodeDb, remember the score sent to the
+      // outlinks in this iteration if deltas are propagated later
       Node outNode = (Node)WritableUtils.clone(node, conf);
       outNode.setInlinkScore(linkRankScore);
+      if (deltaThreshold > 0 && (!deltas || propagates(node, deltaThreshold))) {
+        outNode.getMetadata().set(SENT_SCORE, Float.toString(previousScore));
+      }
       output.collect(key, outNode);
     }
 
@@ -527,6 +789,27 @@ public class LinkRank
     }
   }
 
+  /**
+   * Removes the scores kept for delta propagation from the nodes.
+   */
+  private static class Finalizer
+    implements Mapper<Text, Node, Text, Node> {
+
+    public void configure(JobConf conf) {
+    }
+
+    public void map(Text key, Node node, OutputCollector<Text, Node> output,
+      Reporter reporter)
+      throws IOException {
+
+      node.getMetadata().remove(SENT_SCORE);
+      output.collect(key, node);
+    }
+
+    public void close() {
+    }
+  }
+
   /**
    * Default constructor.
    */
@@ -546,9 +829,14 @@ public class LinkRank
 
   /**
    * Runs the complete link analysis job. The complete job determins rank one
-   * score. Then runs through a given number of invert and analyze iterations,
-   * by default 10. And finally replaces the NodeDb in the WebGraph with the
-   * link rank output.
+   * score and selects the links that count. Then runs through a given number
+   * of invert and analyze iterations, by default 10, stopping early once no
+   * score moves more than <code>link.analyze.convergence.epsilon</code>. If
+   * <code>link.analyze.delta.threshold</code> is set, iterations after the
+   * first only propagate the change of scores that moved more than the
+   * threshold. And finally replaces the NodeDb in the WebGraph with the
+   * link rank output. If <code>link.analyze.local</code> is set the analysis
+   * runs in memory on this machine instead, see {@link LocalLinkRank}.
    * 
    * @param webGraphDb The WebGraph to run link analysis on.
    * 
@@ -557,6 +845,11 @@ public class LinkRank
   public void analyze(Path webGraphDb)
     throws IOException {
 
+    if (getConf().getBoolean("link.analyze.local", false)) {
+      new LocalLinkRank(getConf()).analyze(webGraphDb);
+      return;
+    }
+
     // store the link rank under the webgraphdb temporarily, final scores get
     // upddated into the nodedb
     Path linkRank = new Path(webGraphDb, "linkrank");
@@ -578,10 +871,12 @@ public class LinkRank
     }
 
     // get the number of total nodes in the webgraph, used for rank one, then
-    // initialze all urls with a default score
+    // initialze all urls with a default score and select the links
     int numLinks = runCounter(fs, webGraphDb);
     runInitializer(wgNodeDb, nodeDb);
     float rankOneScore = (1f / (float)numLinks);
+    Path links = new Path(linkRank + "-links");
+    runLinkFilters(wgOutlinkDb, loopDb, links);
 
     if (LOG.isInfoEnabled()) {
       LOG.info("Number of links " + numLinks);
@@ -591,6 +886,8 @@ public class LinkRank
     // run invert and analysis for a given number of iterations to allow the
     // link rank scores to converge
     int numIterations = conf.getInt("link.analyze.num.iterations", 10);
+    float epsilon = conf.getFloat("link.analyze.convergence.epsilon", 0.0f);
+    float deltaThreshold = conf.getFloat("link.analyze.delta.threshold", 0.0f);
     for (int i = 0; i < numIterations; i++) {
 
       // the input to inverting is always the previous output from analysis
@@ -601,24 +898,45 @@ public class LinkRank
       Path tempInverted = new Path(tempRank, "inverted");
       Path tempNodeDb = new Path(tempRank, WebGraph.NODE_DIR);
 
-      // run invert and analysis
-      runInverter(nodeDb, wgOutlinkDb, loopDb, tempInverted);
-      runAnalysis(nodeDb, tempInverted, tempNodeDb, i, numIterations,
-        rankOneScore);
+      // run invert and analysis, the first iteration always propagates the
+      // full scores
+      boolean deltas = (deltaThreshold > 0 && i > 0);
+      runInverter(nodeDb, links, tempInverted, deltas);
+      Counters counters = runAnalysis(nodeDb, tempInverted, tempNodeDb, i,
+        numIterations, rankOneScore, deltas);
 
       // replace the temporary NodeDb with the output from analysis
       LOG.info("Installing new link scores");
       FSUtils.replace(fs, linkRank, tempRank, true);
+      long scoreDelta = counters.findCounter(COUNTER_GROUP, SCORE_DELTA)
+        .getCounter();
+      long changed = counters.findCounter(COUNTER_GROUP, CHANGED_NODES)
+        .getCounter();
       LOG.info("Finished analysis iteration " + (i + 1) + " of "
-        + numIterations);
+        + numIterations + ", total score change " + (scoreDelta / DELTA_SCALE)
+        + ", " + changed + " scores changed more than " + epsilon);
+
+      // stop once the largest change is no more than epsilon
+      if (changed == 0) {
+        LOG.info("Scores converged after " + (i + 1) + " iterations");
+        break;
+      }
+    }
+
+    // remove the sent scores kept for delta propagation
+    if (deltaThreshold > 0) {
+      Path finalNodeDb = new Path(linkRank, "final");
+      runFinalizer(nodeDb, finalNodeDb);
+      nodeDb = finalNodeDb;
     }
 
     // replace the NodeDb in the WebGraph with the final output of analysis
     LOG.info("Installing web graph nodes");
     FSUtils.replace(fs, wgNodeDb, nodeDb, true);
 
-    // remove the temporary link rank folder
+    // remove the temporary link rank folders
     fs.delete(linkRank, true);
+    fs.delete(links, true);
     LOG.info("Finished analysis");
   }
 
@@ -639,8 +957,11 @@ public class LinkRank
       "show this help message").create("help");
     Option webgraphOpts = OptionBuilder.withArgName("webgraphdb").hasArg().withDescription(
       "the web graph db to use").create("webgraphdb");
+    Option localOpts = OptionBuilder.withArgName("local").withDescription(
+      "run the analysis in memory on this machine").create("local");
     options.addOption(helpOpts);
     options.addOption(webgraphOpts);
+    options.addOption(localOpts);
 
     CommandLineParser parser = new GnuParser();
     try {
@@ -653,6 +974,9 @@ public class LinkRank
       }
 
       String webGraphDb = line.getOptionValue("webgraphdb");
+      if (line.hasOption("local")) {
+        getConf().setBoolean("link.analyze.local", true);
+      }
 
       analyze(new Path(webGraphDb));
       return 0;
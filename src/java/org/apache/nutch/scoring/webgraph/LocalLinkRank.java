@@ -0,0 +1,396 @@
+package org.apache.nutch.scoring.webgraph;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.scoring.webgraph.Loops.LoopSet;
+import org.apache.nutch.util.FSUtils;
+import org.apache.nutch.util.URLUtil;
+
+/**
+ * Runs LinkRank on a single machine. The WebGraph is read once into a
+ * {@link LinkGraph}, the inlinks that count towards a score are worked out
+ * up front, and every iteration is a pass over int and float arrays shared by
+ * a pool of threads, instead of an inverter and an analysis job that rewrite
+ * the NodeDb. The scores are the same as those of the MapReduce jobs: links
+ * in the LoopSet of a url are ignored, as are duplicate inlinks from the same
+ * page or domain if <code>link.ignore.limit.page</code> or
+ * <code>link.ignore.limit.domain</code> are set, counting the first inlink in
+ * url order of a page or domain. Iterations stop early once no score moves
+ * more than <code>link.analyze.convergence.epsilon</code>. Since every
+ * iteration is a single pass over the arrays, all scores are propagated in
+ * every iteration and <code>link.analyze.delta.threshold</code> is ignored.
+ *
+ * The graph has to fit in memory, which takes roughly the urls plus twenty
+ * bytes per node and eight bytes per link.
+ */
+class LocalLinkRank {
+
+  public static final Log LOG = LogFactory.getLog(LocalLinkRank.class);
+
+  private Configuration conf;
+  private float dampingFactor;
+  private float initialScore;
+  private float epsilon;
+  private boolean limitPages;
+  private boolean limitDomains;
+  private int numThreads;
+
+  LocalLinkRank(Configuration conf) {
+    this.conf = conf;
+    dampingFactor = conf.getFloat("link.analyze.damping.factor", 0.85f);
+    initialScore = conf.getFloat("link.analyze.initial.score", 1.0f);
+    epsilon = conf.getFloat("link.analyze.convergence.epsilon", 0.0f);
+    limitPages = conf.getBoolean("link.ignore.limit.page", true);
+    limitDomains = conf.getBoolean("link.ignore.limit.domain", true);
+    numThreads = conf.getInt("link.analyze.local.threads", 0);
+    if (numThreads <= 0) {
+      numThreads = Runtime.getRuntime().availableProcessors();
+    }
+  }
+
+  /**
+   * The inlinks of every node that count towards its score, in the same
+   * compressed sparse row form as the outlinks of a {@link LinkGraph}.
+   */
+  private static class Inlinks {
+    int[] offsets;
+    int[] sources;
+  }
+
+  /**
+   * Runs the link analysis and replaces the NodeDb of the WebGraph with one
+   * holding the new scores.
+   *
+   * @param webGraphDb The WebGraph to run link analysis on.
+   *
+   * @throws IOException If an error occurs during link analysis.
+   */
+  void analyze(Path webGraphDb)
+    throws IOException {
+
+    FileSystem fs = FileSystem.get(conf);
+    LinkGraph graph = LinkGraph.read(fs, webGraphDb, conf);
+    Inlinks inlinks = invert(fs, webGraphDb, graph);
+    int numNodes = graph.getNumNodes();
+    float rankOne = 1f / (float)numNodes;
+    if (LOG.isInfoEnabled()) {
+      LOG.info("Number of nodes " + numNodes);
+      LOG.info("Rank One " + rankOne);
+      LOG.info("Counting " + inlinks.sources.length + " of "
+        + graph.getNumLinks() + " links, using " + numThreads + " threads");
+    }
+
+    float[] scores = new float[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+      scores[i] = initialScore;
+    }
+    float[] outlinkScores = new float[numNodes];
+    float[] newScores = new float[numNodes];
+
+    int numIterations = conf.getInt("link.analyze.num.iterations", 10);
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    try {
+      for (int it = 0; it < numIterations; it++) {
+        long start = System.currentTimeMillis();
+        iterate(pool, graph.getOffsets(), inlinks, rankOne, scores,
+          outlinkScores, newScores);
+        float[] swap = scores;
+        scores = newScores;
+        newScores = swap;
+
+        // stop once the largest change is no more than epsilon
+        double scoreDelta = 0;
+        int changed = 0;
+        for (int i = 0; i < numNodes; i++) {
+          float delta = Math.abs(scores[i] - newScores[i]);
+          scoreDelta += delta;
+          if (delta > epsilon) {
+            changed++;
+          }
+        }
+        LOG.info("Finished analysis iteration " + (it + 1) + " of "
+          + numIterations + " in " + (System.currentTimeMillis() - start)
+          + "ms, total score change " + scoreDelta + ", " + changed
+          + " scores changed more than " + epsilon);
+        if (changed == 0) {
+          LOG.info("Scores converged after " + (it + 1) + " iterations");
+          break;
+        }
+      }
+    }
+    finally {
+      pool.shutdown();
+    }
+
+    LOG.info("Installing web graph nodes");
+    writeNodes(fs, webGraphDb, graph, scores);
+    LOG.info("Finished analysis");
+  }
+
+  /**
+   * Works out which links count towards the score of their target: the
+   * outlinks of a node that are not in its LoopSet, without duplicates by
+   * source page or domain. Inlinks are added in url order of their sources.
+   */
+  private Inlinks invert(FileSystem fs, Path webGraphDb, LinkGraph graph)
+    throws IOException {
+
+    int numNodes = graph.getNumNodes();
+    int[] offsets = graph.getOffsets();
+    int[] outlinks = graph.getOutlinks();
+
+    // mark the links contained in loop sets
+    BitSet loops = new BitSet(outlinks.length);
+    Path loopDb = new Path(webGraphDb, Loops.LOOPS_DIR);
+    if (fs.exists(loopDb)) {
+      Text key = new Text();
+      LoopSet loopSet = new LoopSet();
+      Path[] parts = LinkGraph.getParts(fs, loopDb);
+      for (int p = 0; p < parts.length; p++) {
+        MapFile.Reader reader = new MapFile.Reader(fs, parts[p].toString(),
+          conf);
+        try {
+          while (reader.next(key, loopSet)) {
+            int from = graph.getId(key.toString());
+            if (from < 0) {
+              continue;
+            }
+            Set<String> loopUrls = loopSet.getLoopSet();
+            for (int j = offsets[from]; j < offsets[from + 1]; j++) {
+              if (loopUrls.contains(graph.getUrl(outlinks[j]))) {
+                loops.set(j);
+              }
+            }
+          }
+        }
+        finally {
+          reader.close();
+        }
+      }
+    }
+
+    // count and fill the inlinks, by source id
+    Inlinks inlinks = new Inlinks();
+    int[] inOffsets = new int[numNodes + 1];
+    for (int j = 0; j < outlinks.length; j++) {
+      if (!loops.get(j)) {
+        inOffsets[outlinks[j] + 1]++;
+      }
+    }
+    for (int i = 0; i < numNodes; i++) {
+      inOffsets[i + 1] += inOffsets[i];
+    }
+    int[] sources = new int[inOffsets[numNodes]];
+    int[] next = new int[numNodes];
+    System.arraycopy(inOffsets, 0, next, 0, numNodes);
+    for (int from = 0; from < numNodes; from++) {
+      for (int j = offsets[from]; j < offsets[from + 1]; j++) {
+        if (!loops.get(j)) {
+          sources[next[outlinks[j]]++] = from;
+        }
+      }
+    }
+    next = null;
+    inlinks.offsets = inOffsets;
+    inlinks.sources = sources;
+    if (!limitPages && !limitDomains) {
+      return inlinks;
+    }
+
+    // drop duplicate pages and domains, remembering per page and domain the
+    // last target it linked to
+    int[] pages = limitPages ? group(graph, false) : null;
+    int[] domains = limitDomains ? group(graph, true) : null;
+    int[] pageSeen = limitPages ? new int[numNodes] : null;
+    int[] domainSeen = limitDomains ? new int[numNodes] : null;
+    int kept = 0;
+    int start = 0;
+    for (int to = 0; to < numNodes; to++) {
+      int end = inOffsets[to + 1];
+      inOffsets[to] = kept;
+      int stamp = to + 1;
+      for (int j = start; j < end; j++) {
+        int from = sources[j];
+        if ((limitPages && pageSeen[pages[from]] == stamp)
+          || (limitDomains && domainSeen[domains[from]] == stamp)) {
+          continue;
+        }
+        if (limitPages) {
+          pageSeen[pages[from]] = stamp;
+        }
+        if (limitDomains) {
+          domainSeen[domains[from]] = stamp;
+        }
+        sources[kept++] = from;
+      }
+      start = end;
+    }
+    inOffsets[numNodes] = kept;
+    if (kept < sources.length) {
+      int[] compact = new int[kept];
+      System.arraycopy(sources, 0, compact, 0, kept);
+      inlinks.sources = compact;
+    }
+    return inlinks;
+  }
+
+  /**
+   * Numbers the distinct pages or domains of the urls of a graph.
+   */
+  private static int[] group(LinkGraph graph, boolean byDomain) {
+    int numNodes = graph.getNumNodes();
+    int[] groups = new int[numNodes];
+    Map<String, Integer> ids = new HashMap<String, Integer>();
+    for (int i = 0; i < numNodes; i++) {
+      String url = graph.getUrl(i);
+      String name;
+      if (byDomain) {
+        try {
+          name = URLUtil.getDomainName(url);
+        }
+        catch (MalformedURLException e) {
+          name = url;
+        }
+      }
+      else {
+        name = URLUtil.getPage(url);
+      }
+      Integer id = ids.get(name);
+      if (id == null) {
+        id = ids.size();
+        ids.put(name, id);
+      }
+      groups[i] = id;
+    }
+    return groups;
+  }
+
+  /**
+   * Runs one iteration: the outlink score of every node, then the new score
+   * of every node from the outlink scores of its inlinks.
+   */
+  private void iterate(ExecutorService pool, final int[] offsets,
+    final Inlinks inlinks, final float rankOne, final float[] scores,
+    final float[] outlinkScores, final float[] newScores)
+    throws IOException {
+
+    final int numNodes = scores.length;
+    runAll(pool, numNodes, new Range() {
+      public void run(int start, int end) {
+        for (int i = start; i < end; i++) {
+          int numOutlinks = offsets[i + 1] - offsets[i];
+          outlinkScores[i] = (numOutlinks > 0) ? scores[i] / numOutlinks
+            : scores[i];
+        }
+      }
+    });
+    final int[] inOffsets = inlinks.offsets;
+    final int[] sources = inlinks.sources;
+    runAll(pool, numNodes, new Range() {
+      public void run(int start, int end) {
+        for (int i = start; i < end; i++) {
+          float totalInlinkScore = rankOne;
+          for (int j = inOffsets[i]; j < inOffsets[i + 1]; j++) {
+            totalInlinkScore += outlinkScores[sources[j]];
+          }
+          newScores[i] = (1 - dampingFactor)
+            + (dampingFactor * totalInlinkScore);
+        }
+      }
+    });
+  }
+
+  /**
+   * Work on a range of node ids.
+   */
+  private interface Range {
+    void run(int start, int end);
+  }
+
+  /**
+   * Splits the node ids into a few ranges per thread and waits until all of
+   * them are done.
+   */
+  private void runAll(ExecutorService pool, int numNodes, final Range range)
+    throws IOException {
+
+    int numRanges = Math.max(1, Math.min(numNodes, numThreads * 4));
+    List<Future<Object>> futures = new ArrayList<Future<Object>>(numRanges);
+    for (int r = 0; r < numRanges; r++) {
+      final int start = (int)((long)numNodes * r / numRanges);
+      final int end = (int)((long)numNodes * (r + 1) / numRanges);
+      futures.add(pool.submit(new Callable<Object>() {
+        public Object call() {
+          range.run(start, end);
+          return null;
+        }
+      }));
+    }
+    try {
+      for (Future<Object> future : futures) {
+        future.get();
+      }
+    }
+    catch (InterruptedException e) {
+      throw new IOException("Interrupted during link analysis");
+    }
+    catch (ExecutionException e) {
+      IOException ioe = new IOException("Link analysis failed");
+      ioe.initCause(e.getCause());
+      throw ioe;
+    }
+  }
+
+  /**
+   * Writes a copy of the NodeDb with the new scores, part by part so the
+   * partitioning stays the same, and installs it in the WebGraph.
+   */
+  private void writeNodes(FileSystem fs, Path webGraphDb, LinkGraph graph,
+    float[] scores)
+    throws IOException {
+
+    Path wgNodeDb = new Path(webGraphDb, WebGraph.NODE_DIR);
+    Path tempNodeDb = new Path(webGraphDb, WebGraph.NODE_DIR + "-"
+      + Integer.toString(new Random().nextInt(Integer.MAX_VALUE)));
+    Text key = new Text();
+    Node node = new Node();
+    Path[] parts = LinkGraph.getParts(fs, wgNodeDb);
+    for (int p = 0; p < parts.length; p++) {
+      MapFile.Reader reader = new MapFile.Reader(fs, parts[p].toString(),
+        conf);
+      MapFile.Writer writer = new MapFile.Writer(conf, fs, new Path(
+        tempNodeDb, parts[p].getName()).toString(), Text.class, Node.class);
+      try {
+        while (reader.next(key, node)) {
+          node.setInlinkScore(scores[graph.getId(key.toString())]);
+          writer.append(key, node);
+        }
+      }
+      finally {
+        reader.close();
+        writer.close();
+      }
+    }
+    FSUtils.replace(fs, wgNodeDb, tempNodeDb, true);
+  }
+}
@@ -0,0 +1,372 @@
+package org.apache.nutch.scoring.webgraph;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.scoring.webgraph.Loops.LoopSet;
+import org.apache.nutch.util.FSUtils;
+
+/**
+ * Finds link loops on a single machine. The WebGraph is read once into a
+ * {@link LinkGraph} and the loops are the same as those of the Loops jobs:
+ * the LoopSet of a url holds every outlink from which the url can be reached
+ * again in at most <code>link.loops.depth</code> links.
+ *
+ * Instead of carrying routes through the graph, the graph is first split
+ * into its strongly connected components. A link can only be part of a loop
+ * if both of its ends are in the same component, so only the nodes of
+ * components with more than one node are searched, and every search stays
+ * inside a single component. The search itself is a breadth first walk
+ * backwards over the inlinks of a url, up to <code>link.loops.depth</code>
+ * links deep, after which the outlinks of the url that were reached are in
+ * its LoopSet. With <code>link.loops.max.visits</code> a walk stops after
+ * visiting that many nodes, which bounds the time spent on densely linked
+ * components at the cost of missing some loops.
+ *
+ * Memory does not depend on the number of paths through the graph: besides
+ * the {@link LinkGraph}, it takes two ints per node and one int and one byte
+ * per link, five more ints per node while the components are found, and two
+ * ints per node for every thread.
+ */
+class LocalLoops {
+
+  public static final Log LOG = LogFactory.getLog(LocalLoops.class);
+
+  private Configuration conf;
+  private int depth;
+  private int maxVisits;
+  private int numThreads;
+
+  LocalLoops(Configuration conf) {
+    this.conf = conf;
+    depth = conf.getInt("link.loops.depth", 2);
+    maxVisits = conf.getInt("link.loops.max.visits", 0);
+    numThreads = conf.getInt("link.analyze.local.threads", 0);
+    if (numThreads <= 0) {
+      numThreads = Runtime.getRuntime().availableProcessors();
+    }
+  }
+
+  /**
+   * Finds the loops of a WebGraph and replaces its loops database.
+   *
+   * @param webGraphDb The WebGraph to find loops in.
+   *
+   * @throws IOException If an error occurs while reading or writing the
+   * WebGraph.
+   */
+  void findLoops(Path webGraphDb)
+    throws IOException {
+
+    FileSystem fs = FileSystem.get(conf);
+    LinkGraph graph = LinkGraph.read(fs, webGraphDb, conf);
+    int numNodes = graph.getNumNodes();
+    int[] offsets = graph.getOffsets();
+    int[] outlinks = graph.getOutlinks();
+
+    int[] inOffsets = new int[numNodes + 1];
+    int[] sources = invert(offsets, outlinks, inOffsets);
+    int[] components = new int[numNodes];
+    int numComponents = findComponents(offsets, outlinks, components);
+    if (LOG.isInfoEnabled()) {
+      LOG.info("Found " + numComponents + " strongly connected components in "
+        + numNodes + " nodes, searching loops up to " + depth
+        + " links deep using " + numThreads + " threads");
+    }
+
+    byte[] loops = new byte[outlinks.length];
+    long truncated = search(offsets, outlinks, inOffsets, sources,
+      components, loops);
+    if (truncated > 0) {
+      LOG.warn("Stopped " + truncated + " searches after "
+        + maxVisits + " nodes, some loops may be missing");
+    }
+
+    LOG.info("Installing loops");
+    writeLoops(fs, webGraphDb, graph, loops);
+    LOG.info("Finished finding loops");
+  }
+
+  /**
+   * Fills the inlinks of every node in compressed sparse row form, returning
+   * the source ids and setting their offsets.
+   */
+  private static int[] invert(int[] offsets, int[] outlinks, int[] inOffsets) {
+
+    int numNodes = inOffsets.length - 1;
+    for (int j = 0; j < outlinks.length; j++) {
+      inOffsets[outlinks[j] + 1]++;
+    }
+    for (int i = 0; i < numNodes; i++) {
+      inOffsets[i + 1] += inOffsets[i];
+    }
+    int[] sources = new int[outlinks.length];
+    int[] next = new int[numNodes];
+    System.arraycopy(inOffsets, 0, next, 0, numNodes);
+    for (int from = 0; from < numNodes; from++) {
+      for (int j = offsets[from]; j < offsets[from + 1]; j++) {
+        sources[next[outlinks[j]]++] = from;
+      }
+    }
+    return sources;
+  }
+
+  /**
+   * Numbers the strongly connected components of the graph with Tarjan's
+   * algorithm. The depth first search keeps its own stack so deep graphs
+   * don't overflow the thread stack.
+   *
+   * @return The number of components.
+   */
+  private static int findComponents(int[] offsets, int[] outlinks, int[] components) {
+
+    int numNodes = components.length;
+    int[] index = new int[numNodes];
+    int[] lowLink = new int[numNodes];
+    int[] edge = new int[numNodes];
+    int[] stack = new int[numNodes];
+    int[] calls = new int[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+
+      // an index of 0 means not yet visited, a visited node without a
+      // component is still on the stack
+      components[i] = -1;
+    }
+
+    int nextIndex = 1;
+    int numComponents = 0;
+    int stackSize = 0;
+    for (int root = 0; root < numNodes; root++) {
+      if (index[root] != 0) {
+        continue;
+      }
+      int numCalls = 0;
+      calls[numCalls++] = root;
+      index[root] = lowLink[root] = nextIndex++;
+      edge[root] = offsets[root];
+      stack[stackSize++] = root;
+
+      while (numCalls > 0) {
+        int node = calls[numCalls - 1];
+        if (edge[node] < offsets[node + 1]) {
+
+          // follow the next outlink, either into an unvisited node or back to
+          // one still on the stack
+          int to = outlinks[edge[node]++];
+          if (index[to] == 0) {
+            index[to] = lowLink[to] = nextIndex++;
+            edge[to] = offsets[to];
+            stack[stackSize++] = to;
+            calls[numCalls++] = to;
+          }
+          else if (components[to] == -1) {
+            lowLink[node] = Math.min(lowLink[node], index[to]);
+          }
+        }
+        else {
+
+          // all outlinks done, pop the component if this is its root
+          numCalls--;
+          if (lowLink[node] == index[node]) {
+            int member;
+            do {
+              member = stack[--stackSize];
+              components[member] = numComponents;
+            }
+            while (member != node);
+            numComponents++;
+          }
+          if (numCalls > 0) {
+            int parent = calls[numCalls - 1];
+            lowLink[parent] = Math.min(lowLink[parent], lowLink[node]);
+          }
+        }
+      }
+    }
+    return numComponents;
+  }
+
+  /**
+   * Marks the links that are part of a loop, searching backwards from every
+   * node that has an outlink inside its own component. The nodes are handed
+   * out to the threads in turn, so the large components are shared.
+   *
+   * @return The number of searches stopped after the maximum visits.
+   */
+  private long search(final int[] offsets, final int[] outlinks,
+    final int[] inOffsets, final int[] sources, final int[] components,
+    final byte[] loops)
+    throws IOException {
+
+    final int numNodes = components.length;
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    List<Future<Long>> futures = new ArrayList<Future<Long>>(numThreads);
+    try {
+      for (int t = 0; t < numThreads; t++) {
+        final int first = t;
+        futures.add(pool.submit(new Callable<Long>() {
+          public Long call() {
+
+            // reached[v] is the search, plus one, that last reached v
+            int[] reached = new int[numNodes];
+            int[] queue = new int[numNodes];
+            long truncated = 0;
+            for (int node = first; node < numNodes; node += numThreads) {
+              int component = components[node];
+              boolean inComponent = false;
+              for (int j = offsets[node]; j < offsets[node + 1]; j++) {
+                if (components[outlinks[j]] == component) {
+                  inComponent = true;
+                  break;
+                }
+              }
+              if (!inComponent) {
+                continue;
+              }
+
+              // walk the inlinks level by level, up to depth links away
+              int stamp = node + 1;
+              int head = 0;
+              int tail = 0;
+              queue[tail++] = node;
+              reached[node] = stamp;
+              boolean stopped = false;
+              for (int level = 0; level < depth && head < tail && !stopped;
+                level++) {
+                int levelEnd = tail;
+                while (head < levelEnd && !stopped) {
+                  int to = queue[head++];
+                  for (int j = inOffsets[to]; j < inOffsets[to + 1]; j++) {
+                    int from = sources[j];
+                    if (reached[from] != stamp
+                      && components[from] == component) {
+                      reached[from] = stamp;
+                      queue[tail++] = from;
+                      if (maxVisits > 0 && tail >= maxVisits) {
+                        stopped = true;
+                        break;
+                      }
+                    }
+                  }
+                }
+              }
+              if (stopped) {
+                truncated++;
+              }
+
+              // an outlink is in a loop if the node can be reached from it
+              for (int j = offsets[node]; j < offsets[node + 1]; j++) {
+                if (reached[outlinks[j]] == stamp) {
+                  loops[j] = 1;
+                }
+              }
+            }
+            return truncated;
+          }
+        }));
+      }
+      long truncated = 0;
+      for (Future<Long> future : futures) {
+        truncated += future.get();
+      }
+      return truncated;
+    }
+    catch (InterruptedException e) {
+      throw new IOException("Interrupted while finding loops");
+    }
+    catch (ExecutionException e) {
+      IOException ioe = new IOException("Finding loops failed");
+      ioe.initCause(e.getCause());
+      throw ioe;
+    }
+    finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * A url with loops, sorted the same way as the keys of a MapFile.
+   */
+  private static class LoopUrl
+    implements Comparable<LoopUrl> {
+
+    Text url;
+    int id;
+
+    LoopUrl(Text url, int id) {
+      this.url = url;
+      this.id = id;
+    }
+
+    public int compareTo(LoopUrl other) {
+      return url.compareTo(other.url);
+    }
+  }
+
+  /**
+   * Writes the LoopSet of every url with loops to a new loops database and
+   * installs it in the WebGraph.
+   */
+  private void writeLoops(FileSystem fs, Path webGraphDb, LinkGraph graph,
+    byte[] loops)
+    throws IOException {
+
+    int numNodes = graph.getNumNodes();
+    int[] offsets = graph.getOffsets();
+    int[] outlinks = graph.getOutlinks();
+
+    // urls are numbered in string order, MapFiles want them in byte order
+    List<LoopUrl> loopUrls = new ArrayList<LoopUrl>();
+    for (int node = 0; node < numNodes; node++) {
+      for (int j = offsets[node]; j < offsets[node + 1]; j++) {
+        if (loops[j] != 0) {
+          loopUrls.add(new LoopUrl(new Text(graph.getUrl(node)), node));
+          break;
+        }
+      }
+    }
+    Collections.sort(loopUrls);
+
+    Path loopDb = new Path(webGraphDb, Loops.LOOPS_DIR);
+    Path tempLoopDb = new Path(webGraphDb, Loops.LOOPS_DIR + "-"
+      + Integer.toString(new Random().nextInt(Integer.MAX_VALUE)));
+    MapFile.Writer writer = new MapFile.Writer(conf, fs, new Path(tempLoopDb,
+      "part-00000").toString(), Text.class, LoopSet.class);
+    try {
+      for (LoopUrl loopUrl : loopUrls) {
+        Set<String> loopSet = new HashSet<String>();
+        int node = loopUrl.id;
+        for (int j = offsets[node]; j < offsets[node + 1]; j++) {
+          if (loops[j] != 0) {
+            loopSet.add(graph.getUrl(outlinks[j]));
+          }
+        }
+        LoopSet value = new LoopSet();
+        value.setLoopSet(loopSet);
+        writer.append(loopUrl.url, value);
+      }
+    }
+    finally {
+      writer.close();
+    }
+    LOG.info("Found loops for " + loopUrls.size() + " urls");
+    FSUtils.replace(fs, loopDb, tempLoopDb, true);
+  }
+}
@@ -57,6 +57,11 @@ import org.apache.nutch.util.NutchJob;
  * its intermediate output can be extremly large even if the end output is
  * rather small. Because of this the Loops job is optional and if it doesn't
  * exist then it won't be factored into the LinkRank program.
+ * 
+ * If <code>link.loops.local</code> is set the loops are found on a
+ * single machine by {@link LocalLoops}, which searches the strongly connected
+ * components of an in memory copy of the graph instead of running the route
+ * jobs, and whose memory does not grow with the number of routes.
  */
 public class Loops
   extends Configured
@@ -445,7 +450,8 @@ public class Loops
   }
 
   /**
-   * Runs the various loop jobs.
+   * Runs the various loop jobs, or finds the loops in memory if
+   * <code>link.loops.local</code> is set.
    */
   public void findLoops(Path webGraphDb)
     throws IOException {
@@ -456,6 +462,17 @@ public class Loops
     }
 
     Configuration conf = getConf();
+    if (conf.getBoolean("link.loops.local", false)) {
+      try {
+        new LocalLoops(conf).findLoops(webGraphDb);
+      }
+      catch (IOException e) {
+        LOG.error(StringUtils.stringifyException(e));
+        throw e;
+      }
+      return;
+    }
+
     FileSystem fs = FileSystem.get(conf);
     Path outlinkDb = new Path(webGraphDb, WebGraph.OUTLINK_DIR);
     Path nodeDb = new Path(webGraphDb, WebGraph.NODE_DIR);
@@ -565,8 +582,11 @@ public class Loops
       "show this help message").create("help");
     Option webGraphDbOpts = OptionBuilder.withArgName("webgraphdb").hasArg().withDescription(
       "the web graph database to use").create("webgraphdb");
+    Option localOpts = OptionBuilder.withArgName("local").withDescription(
+      "find the loops in memory on this machine").create("local");
     options.addOption(helpOpts);
     options.addOption(webGraphDbOpts);
+    options.addOption(localOpts);
 
     CommandLineParser parser = new GnuParser();
     try {
@@ -579,6 +599,9 @@ public class Loops
       }
 
       String webGraphDb = line.getOptionValue("webgraphdb");
+      if (line.hasOption("local")) {
+        getConf().setBoolean("link.loops.local", true);
+      }
       findLoops(new Path(webGraphDb));
       return 0;
     }
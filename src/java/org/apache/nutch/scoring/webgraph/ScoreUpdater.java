@@ -1,6 +1,7 @@
 package org.apache.nutch.scoring.webgraph;
 
 import java.io.IOException;
+import java.net.MalformedURLException;
 import java.util.Iterator;
 import java.util.Random;
 
@@ -17,6 +18,7 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
 import org.apache.hadoop.io.ObjectWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
@@ -37,11 +39,19 @@ import org.apache.nutch.crawl.CrawlDatum;
 import org.apache.nutch.crawl.CrawlDb;
 import org.apache.nutch.util.NutchConfiguration;
 import org.apache.nutch.util.NutchJob;
+import org.apache.nutch.util.URLUtil;
 
 /**
  * Updates the score from the WebGraph node database into the crawl database.
  * Any score that is not in the node database is set to the clear score in the 
  * crawl database.
+ * 
+ * If <code>link.score.updater.host.weight</code> or
+ * <code>link.score.updater.domain.weight</code> are set and the WebGraph has
+ * been ranked by {@link HostRank}, the score of a url is blended with the
+ * scores of its host and domain, each taking its weight and the url score
+ * the rest. Urls that are not in the node database yet then start from the
+ * rank of their host and domain instead of only the clear score.
  */
 public class ScoreUpdater
   extends Configured
@@ -52,10 +62,90 @@ public class ScoreUpdater
 
   private JobConf conf;
   private float clearScore = 0.0f;
+  private float hostWeight = 0.0f;
+  private float domainWeight = 0.0f;
+  private RankReader hostRanks;
+  private RankReader domainRanks;
+  private boolean ranksOpened = false;
+
+  /**
+   * Looks up the scores of hosts or domains in the node database written by
+   * {@link HostRank}, remembering the last one since urls of the same host
+   * come one after another.
+   */
+  private static class RankReader {
+
+    private MapFile.Reader[] readers;
+    private String lastName = null;
+    private float lastScore = 0.0f;
+    private float clearScore;
+    private Node node = new Node();
+
+    RankReader(FileSystem fs, Path graphDb, Configuration conf,
+      float clearScore)
+      throws IOException {
+      Path[] parts = LinkGraph.getParts(fs, new Path(graphDb,
+        WebGraph.NODE_DIR));
+      readers = new MapFile.Reader[parts.length];
+      for (int p = 0; p < parts.length; p++) {
+        readers[p] = new MapFile.Reader(fs, parts[p].toString(), conf);
+      }
+      this.clearScore = clearScore;
+    }
+
+    /**
+     * Returns the score of a host or domain, or the clear score if it has not
+     * been ranked.
+     */
+    float getScore(String name)
+      throws IOException {
+      if (name == null) {
+        return clearScore;
+      }
+      if (!name.equals(lastName)) {
+        lastName = name;
+        lastScore = clearScore;
+        Text key = new Text(name);
+        for (int p = 0; p < readers.length; p++) {
+          if (readers[p].get(key, node) != null) {
+            lastScore = node.getInlinkScore();
+            break;
+          }
+        }
+      }
+      return lastScore;
+    }
+
+    void close()
+      throws IOException {
+      for (int p = 0; p < readers.length; p++) {
+        readers[p].close();
+      }
+    }
+  }
 
   public void configure(JobConf conf) {
     this.conf = conf;
     clearScore = conf.getFloat("link.score.updater.clear.score", 0.0f);
+    hostWeight = conf.getFloat("link.score.updater.host.weight", 0.0f);
+    domainWeight = conf.getFloat("link.score.updater.domain.weight", 0.0f);
+  }
+
+  /**
+   * Opens the host and domain ranks to blend in, if any.
+   */
+  private void openRanks()
+    throws IOException {
+    FileSystem fs = FileSystem.get(conf);
+    String hostDb = conf.get("link.score.updater.host.db");
+    if (hostWeight > 0 && hostDb != null) {
+      hostRanks = new RankReader(fs, new Path(hostDb), conf, clearScore);
+    }
+    String domainDb = conf.get("link.score.updater.domain.db");
+    if (domainWeight > 0 && domainDb != null) {
+      domainRanks = new RankReader(fs, new Path(domainDb), conf, clearScore);
+    }
+    ranksOpened = true;
   }
 
   /**
@@ -99,20 +189,45 @@ public class ScoreUpdater
     // normalized or changed after being pulled from the crawldb
     if (datum != null) {
 
+      float score;
       if (node != null) {
         
         // set the inlink score in the nodedb
-        float inlinkScore = node.getInlinkScore();
-        datum.setScore(inlinkScore);
-        LOG.debug(url + ": setting to score " + inlinkScore);
+        score = node.getInlinkScore();
+        LOG.debug(url + ": setting to score " + score);
       }
       else {
         
         // clear out the score in the crawldb
-        datum.setScore(clearScore);
+        score = clearScore;
         LOG.debug(url + ": setting to clear score of " + clearScore);
       }
 
+      // blend in the ranks of the host and domain
+      if (!ranksOpened) {
+        openRanks();
+      }
+      if (hostRanks != null || domainRanks != null) {
+        float blended = score;
+        if (hostRanks != null) {
+          blended += hostWeight
+            * (hostRanks.getScore(URLUtil.getHost(url)) - score);
+        }
+        if (domainRanks != null) {
+          String domain = null;
+          try {
+            domain = URLUtil.getDomainName(url).toLowerCase();
+          }
+          catch (MalformedURLException e) {
+            // no domain, blends with the clear score
+          }
+          blended += domainWeight * (domainRanks.getScore(domain) - score);
+        }
+        score = blended;
+        LOG.debug(url + ": setting to blended score " + score);
+      }
+      datum.setScore(score);
+
       output.collect(key, datum);
     }
     else {
@@ -120,7 +235,14 @@ public class ScoreUpdater
     }
   }
 
-  public void close() {
+  public void close()
+    throws IOException {
+    if (hostRanks != null) {
+      hostRanks.close();
+    }
+    if (domainRanks != null) {
+      domainRanks.close();
+    }
   }
 
   /**
@@ -160,6 +282,26 @@ public class ScoreUpdater
     updater.setOutputValueClass(CrawlDatum.class);
     updater.setOutputFormat(MapFileOutputFormat.class);
 
+    // blend in the host and domain ranks if they exist
+    Path hostDb = new Path(webGraphDb, HostRank.HOSTS_DIR);
+    Path domainDb = new Path(webGraphDb, HostRank.DOMAINS_DIR);
+    if (conf.getFloat("link.score.updater.host.weight", 0.0f) > 0) {
+      if (fs.exists(new Path(hostDb, WebGraph.NODE_DIR))) {
+        updater.set("link.score.updater.host.db", hostDb.toString());
+      }
+      else {
+        LOG.warn("No host ranks in " + webGraphDb + ", run HostRank first");
+      }
+    }
+    if (conf.getFloat("link.score.updater.domain.weight", 0.0f) > 0) {
+      if (fs.exists(new Path(domainDb, WebGraph.NODE_DIR))) {
+        updater.set("link.score.updater.domain.db", domainDb.toString());
+      }
+      else {
+        LOG.warn("No domain ranks in " + webGraphDb + ", run HostRank first");
+      }
+    }
+
     try {
       JobClient.runJob(updater);
     }
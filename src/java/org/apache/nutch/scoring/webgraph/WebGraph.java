@@ -2,6 +2,8 @@ package org.apache.nutch.scoring.webgraph;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -21,8 +23,12 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.ObjectWritable;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableUtils;
@@ -36,6 +42,8 @@ import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.lib.IdentityMapper;
+import org.apache.hadoop.mapred.lib.IdentityReducer;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
@@ -44,6 +52,7 @@ import org.apache.nutch.net.URLNormalizers;
 import org.apache.nutch.parse.Outlink;
 import org.apache.nutch.parse.ParseData;
 import org.apache.nutch.util.FSUtils;
+import org.apache.nutch.util.HadoopFSUtil;
 import org.apache.nutch.util.LockUtil;
 import org.apache.nutch.util.NutchConfiguration;
 import org.apache.nutch.util.NutchJob;
@@ -63,7 +72,11 @@ import org.apache.nutch.util.URLUtil;
  * 
  * The Inlink database is created from the Outlink database and is regenerated
  * when the WebGraph is updated. The Node database is created from both the
- * Inlink and Outlink databases. Because the Node database is overwritten when
+ * Inlink and Outlink databases. With <code>link.update.incremental</code>
+ * only the outlinks of urls in the new segments are compared to their previous
+ * outlinks. The changed inlinks are kept as deltas of the Inlink database,
+ * which are compacted into it from time to time, and the counts of the Node
+ * database are updated from them. Because the Node database is overwritten when
  * the WebGraph is updated and because the Node database holds current scores
  * for urls it is recommended that a crawl-cyle (one or more full crawls) fully
  * complete before the WebGraph is updated and some type of analysis, such as
@@ -78,6 +91,12 @@ public class WebGraph
   public static final String INLINK_DIR = "inlinks";
   public static final String OUTLINK_DIR = "outlinks";
   public static final String NODE_DIR = "nodes";
+  public static final String INLINK_DELTA_DIR = "inlinks-deltas";
+
+  // the inlinks changed by an incremental update until the NodeDb has them,
+  // and the side files of the OutlinkDb job they are collected from
+  private static final String INLINK_DIFF_PREFIX = "inlinks-diff-";
+  private static final String DIFF_FILE_PREFIX = "_diff-";
 
   /**
    * The OutlinkDb creates a database of all outlinks. Outlinks to internal urls
@@ -101,6 +120,11 @@ public class WebGraph
     private URLNormalizers urlNormalizers;
     private JobConf conf;
 
+    // changes to the inlinks for incremental updates
+    private boolean writeDiffs = false;
+    private SequenceFile.Writer diffWriter;
+    private long updateTime;
+
     /**
      * Normalizes and trims extra whitespace from the given url.
      * 
@@ -174,6 +198,30 @@ public class WebGraph
       limitPages = conf.getBoolean("link.ignore.limit.page", true);
       limitDomains = conf.getBoolean("link.ignore.limit.domain", true);
       urlNormalizers = new URLNormalizers(conf, URLNormalizers.SCOPE_DEFAULT);
+      writeDiffs = conf.getBoolean("link.update.diff", false);
+      if (writeDiffs) {
+        updateTime = conf.getLong("link.update.time",
+          System.currentTimeMillis());
+      }
+    }
+
+    /**
+     * Writes a change to the inlinks of a url. The changes go to a side file in
+     * the work output of the task, so they are committed with its output.
+     */
+    private void writeDiff(String toUrl, String fromUrl, String anchor,
+      byte linkType)
+      throws IOException {
+
+      if (diffWriter == null) {
+        Path diffFile = new Path(FileOutputFormat.getWorkOutputPath(conf),
+          DIFF_FILE_PREFIX + "part-" + conf.getInt("mapred.task.partition", 0));
+        diffWriter = SequenceFile.createWriter(diffFile.getFileSystem(conf),
+          conf, diffFile, Text.class, LinkDatum.class);
+      }
+      LinkDatum inlink = new LinkDatum(fromUrl, anchor, updateTime);
+      inlink.setLinkType(linkType);
+      diffWriter.append(new Text(toUrl), inlink);
     }
 
     /**
@@ -238,6 +286,7 @@ public class WebGraph
       // which should be the timestamp for all of the most recent outlinks
       long mostRecent = 0L;
       List<LinkDatum> outlinkList = new ArrayList<LinkDatum>();
+      boolean updated = false;
       while (values.hasNext()) {
 
         // loop through, change out most recent timestamp if needed
@@ -247,6 +296,9 @@ public class WebGraph
           mostRecent = timestamp;
         }
         outlinkList.add((LinkDatum)WritableUtils.clone(next, conf));
+
+        // outlinks from the OutlinkDb have a link type, new ones don't
+        updated |= (next.getLinkType() != LinkDatum.OUTLINK);
       }
 
       // get the url, domain, and host for the url
@@ -258,6 +310,19 @@ public class WebGraph
       Set<String> domains = new HashSet<String>();
       Set<String> pages = new HashSet<String>();
 
+      // the previous outlinks of urls in new segments, by url
+      Map<String, String> previous = null;
+      Map<String, String> current = null;
+      if (writeDiffs && updated) {
+        previous = new HashMap<String, String>();
+        current = new HashMap<String, String>();
+        for (LinkDatum datum : outlinkList) {
+          if (datum.getLinkType() == LinkDatum.OUTLINK) {
+            previous.put(datum.getUrl(), datum.getAnchor());
+          }
+        }
+      }
+
       // loop through the link datums
       for (LinkDatum datum : outlinkList) {
 
@@ -278,18 +343,41 @@ public class WebGraph
           output.collect(key, datum);
           pages.add(toPage);
           domains.add(toDomain);
+          if (current != null) {
+            current.put(toUrl, datum.getAnchor());
+          }
+        }
+      }
+
+      // write the inlinks removed and added by the new outlinks, a changed
+      // anchor is a removed and an added inlink
+      if (current != null) {
+        for (Map.Entry<String, String> entry : previous.entrySet()) {
+          if (!entry.getValue().equals(current.get(entry.getKey()))) {
+            writeDiff(entry.getKey(), url, entry.getValue(),
+              LinkDatum.REMOVED_INLINK);
+          }
+        }
+        for (Map.Entry<String, String> entry : current.entrySet()) {
+          if (!entry.getValue().equals(previous.get(entry.getKey()))) {
+            writeDiff(entry.getKey(), url, entry.getValue(), LinkDatum.INLINK);
+          }
         }
       }
     }
 
-    public void close() {
+    public void close()
+      throws IOException {
+      if (diffWriter != null) {
+        diffWriter.close();
+      }
     }
   }
 
   /**
    * The InlinkDb creates a database of Inlinks. Inlinks are inverted from the
    * OutlinkDb LinkDatum objects and are regenerated each time the WebGraph is
-   * updated.
+   * updated, unless the update is incremental.
    */
   private static class InlinkDb
     extends Configured
@@ -407,11 +495,307 @@ public class WebGraph
     }
   }
 
+  /**
+   * Updates the Node database with a delta of the InlinkDb in incremental
+   * updates. Every added or removed inlink changes the number of inlinks of
+   * the url it points to and the number of outlinks of the url it comes from.
+   */
+  private static class NodeDbUpdater
+    implements Mapper<Text, Writable, Text, ObjectWritable>,
+    Reducer<Text, ObjectWritable, Text, Node> {
+
+    private JobConf conf;
+
+    public void configure(JobConf conf) {
+      this.conf = conf;
+    }
+
+    public void close() {
+    }
+
+    /**
+     * Passes through nodes, and maps every changed inlink to its url and to the
+     * url it comes from.
+     */
+    public void map(Text key, Writable value,
+      OutputCollector<Text, ObjectWritable> output, Reporter reporter)
+      throws IOException {
+
+      ObjectWritable objWrite = new ObjectWritable();
+      objWrite.set(value);
+      output.collect(key, objWrite);
+
+      if (value instanceof LinkDatum) {
+        LinkDatum inlink = (LinkDatum)value;
+        LinkDatum outlink = new LinkDatum(key.toString(), inlink.getAnchor(),
+          inlink.getTimestamp());
+        outlink.setLinkType(inlink.getLinkType() == LinkDatum.INLINK
+          ? LinkDatum.OUTLINK : LinkDatum.REMOVED_OUTLINK);
+        objWrite = new ObjectWritable();
+        objWrite.set(outlink);
+        output.collect(new Text(inlink.getUrl()), objWrite);
+      }
+    }
+
+    /**
+     * Applies the changed in and outlinks to the counts of a node. New nodes
+     * get a default score of 0.0, nodes left without links are removed.
+     */
+    public void reduce(Text key, Iterator<ObjectWritable> values,
+      OutputCollector<Text, Node> output, Reporter reporter)
+      throws IOException {
+
+      Node node = null;
+      int numInlinks = 0;
+      int numOutlinks = 0;
+      while (values.hasNext()) {
+        Object value = values.next().get();
+        if (value instanceof Node) {
+          node = (Node)WritableUtils.clone((Node)value, conf);
+        }
+        else if (value instanceof LinkDatum) {
+          switch (((LinkDatum)value).getLinkType()) {
+            case LinkDatum.INLINK: numInlinks++; break;
+            case LinkDatum.REMOVED_INLINK: numInlinks--; break;
+            case LinkDatum.OUTLINK: numOutlinks++; break;
+            case LinkDatum.REMOVED_OUTLINK: numOutlinks--; break;
+          }
+        }
+      }
+
+      if (node == null) {
+        node = new Node();
+        node.setInlinkScore(0.0f);
+      }
+      node.setNumInlinks(node.getNumInlinks() + numInlinks);
+      node.setNumOutlinks(node.getNumOutlinks() + numOutlinks);
+      if (node.getNumInlinks() > 0 || node.getNumOutlinks() > 0) {
+        output.collect(key, node);
+      }
+    }
+  }
+
+  /**
+   * Compacts the InlinkDb and its deltas into a new InlinkDb. Of all inlinks
+   * from a url, the most recent one decides if the link exists, an added
+   * inlink winning over a removed inlink of the same update.
+   */
+  private static class InlinkDbCompactor
+    implements Reducer<Text, LinkDatum, Text, LinkDatum> {
+
+    private JobConf conf;
+
+    public void configure(JobConf conf) {
+      this.conf = conf;
+    }
+
+    public void close() {
+    }
+
+    public void reduce(Text key, Iterator<LinkDatum> values,
+      OutputCollector<Text, LinkDatum> output, Reporter reporter)
+      throws IOException {
+
+      Map<String, LinkDatum> inlinks = new HashMap<String, LinkDatum>();
+      while (values.hasNext()) {
+        LinkDatum next = values.next();
+        LinkDatum latest = inlinks.get(next.getUrl());
+        if (latest == null || latest.getTimestamp() < next.getTimestamp()
+          || (latest.getTimestamp() == next.getTimestamp()
+            && next.getLinkType() == LinkDatum.INLINK)) {
+          inlinks.put(next.getUrl(), (LinkDatum)WritableUtils.clone(next, conf));
+        }
+      }
+      for (LinkDatum inlink : inlinks.values()) {
+        if (inlink.getLinkType() == LinkDatum.INLINK) {
+          output.collect(key, inlink);
+        }
+      }
+    }
+  }
+
+  /**
+   * Updates the InlinkDb and NodeDb from the inlinks changed by an update of
+   * the OutlinkDb. The changed inlinks are sorted into a new delta of the
+   * InlinkDb and the counts of the affected nodes are updated from the delta.
+   * The changed inlinks are kept until the new NodeDb is installed, so an
+   * update that failed is finished by the next one. Once there are
+   * <code>link.update.compaction.deltas</code> deltas, they are compacted into
+   * the InlinkDb.
+   * 
+   * @param webGraphDb The WebGraph to update.
+   * @param diffDir The inlinks changed by the OutlinkDb job.
+   * @param updateTime The time of the update, names the delta.
+   * 
+   * @throws IOException If an error occurs while updating the WebGraph.
+   */
+  private void updateIncrementally(Path webGraphDb, Path diffDir,
+    long updateTime)
+    throws IOException {
+
+    Configuration conf = getConf();
+    FileSystem fs = FileSystem.get(conf);
+    if (!fs.exists(diffDir)) {
+      LOG.info("InlinkDb: no inlinks changed");
+      return;
+    }
+
+    // sort the changed inlinks into a new delta, unless a failed update
+    // already did
+    Path deltaDir = new Path(webGraphDb, INLINK_DELTA_DIR);
+    Path delta = new Path(deltaDir, Long.toString(updateTime));
+    if (!fs.exists(delta)) {
+      Path tempDelta = new Path(webGraphDb, INLINK_DELTA_DIR + "-"
+        + Integer.toString(new Random().nextInt(Integer.MAX_VALUE)));
+      JobConf deltaJob = new NutchJob(conf);
+      deltaJob.setJobName("InlinkDb delta " + delta);
+      FileInputFormat.addInputPath(deltaJob, diffDir);
+      deltaJob.setInputFormat(SequenceFileInputFormat.class);
+      deltaJob.setMapperClass(IdentityMapper.class);
+      deltaJob.setReducerClass(IdentityReducer.class);
+      deltaJob.setOutputKeyClass(Text.class);
+      deltaJob.setOutputValueClass(LinkDatum.class);
+      FileOutputFormat.setOutputPath(deltaJob, tempDelta);
+      deltaJob.setOutputFormat(MapFileOutputFormat.class);
+
+      try {
+        LOG.info("InlinkDb: writing delta " + delta);
+        JobClient.runJob(deltaJob);
+        fs.mkdirs(deltaDir);
+        FSUtils.replace(fs, delta, tempDelta, true);
+      }
+      catch (IOException e) {
+        if (fs.exists(tempDelta)) {
+          fs.delete(tempDelta, true);
+        }
+        throw e;
+      }
+    }
+
+    // apply the delta to the node counts
+    Path nodeDb = new Path(webGraphDb, NODE_DIR);
+    Path tempNodeDb = new Path(nodeDb + "-"
+      + Integer.toString(new Random().nextInt(Integer.MAX_VALUE)));
+    JobConf nodeJob = new NutchJob(conf);
+    nodeJob.setJobName("NodeDb update " + nodeDb);
+    FileInputFormat.addInputPath(nodeJob, nodeDb);
+    FileInputFormat.addInputPath(nodeJob, delta);
+    nodeJob.setInputFormat(SequenceFileInputFormat.class);
+    nodeJob.setMapperClass(NodeDbUpdater.class);
+    nodeJob.setReducerClass(NodeDbUpdater.class);
+    nodeJob.setMapOutputKeyClass(Text.class);
+    nodeJob.setMapOutputValueClass(ObjectWritable.class);
+    nodeJob.setOutputKeyClass(Text.class);
+    nodeJob.setOutputValueClass(Node.class);
+    FileOutputFormat.setOutputPath(nodeJob, tempNodeDb);
+    nodeJob.setOutputFormat(MapFileOutputFormat.class);
+
+    try {
+      LOG.info("NodeDb: updating");
+      JobClient.runJob(nodeJob);
+      LOG.info("NodeDb: installing " + nodeDb);
+      FSUtils.replace(fs, nodeDb, tempNodeDb, true);
+    }
+    catch (IOException e) {
+      if (fs.exists(tempNodeDb)) {
+        fs.delete(tempNodeDb, true);
+      }
+      throw e;
+    }
+
+    // the node counts are up to date, the changes are no longer needed
+    fs.delete(diffDir, true);
+
+    // compact the deltas into the InlinkDb once there are enough of them
+    Path[] deltas = HadoopFSUtil.getPaths(fs.listStatus(deltaDir));
+    int maxDeltas = conf.getInt("link.update.compaction.deltas", 10);
+    if (deltas.length < maxDeltas) {
+      LOG.info("InlinkDb: " + deltas.length + " deltas");
+      return;
+    }
+
+    Path inlinkDb = new Path(webGraphDb, INLINK_DIR);
+    Path tempInlinkDb = new Path(inlinkDb + "-"
+      + Integer.toString(new Random().nextInt(Integer.MAX_VALUE)));
+    JobConf compactJob = new NutchJob(conf);
+    compactJob.setJobName("InlinkDb compaction " + inlinkDb);
+    FileInputFormat.addInputPath(compactJob, inlinkDb);
+    for (int i = 0; i < deltas.length; i++) {
+      FileInputFormat.addInputPath(compactJob, deltas[i]);
+    }
+    compactJob.setInputFormat(SequenceFileInputFormat.class);
+    compactJob.setMapperClass(IdentityMapper.class);
+    compactJob.setReducerClass(InlinkDbCompactor.class);
+    compactJob.setOutputKeyClass(Text.class);
+    compactJob.setOutputValueClass(LinkDatum.class);
+    FileOutputFormat.setOutputPath(compactJob, tempInlinkDb);
+    compactJob.setOutputFormat(MapFileOutputFormat.class);
+
+    try {
+      LOG.info("InlinkDb: compacting " + deltas.length + " deltas");
+      JobClient.runJob(compactJob);
+      LOG.info("InlinkDb: installing " + inlinkDb);
+      FSUtils.replace(fs, inlinkDb, tempInlinkDb, true);
+      fs.delete(deltaDir, true);
+    }
+    catch (IOException e) {
+      if (fs.exists(tempInlinkDb)) {
+        fs.delete(tempInlinkDb, true);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the changed inlinks of incremental updates whose NodeDb update has
+   * not finished, oldest first.
+   */
+  private static Path[] getInlinkDiffs(FileSystem fs, Path webGraphDb)
+    throws IOException {
+    Path[] diffs = HadoopFSUtil.getPaths(fs.listStatus(webGraphDb,
+      new PathFilter() {
+        public boolean accept(Path path) {
+          return path.getName().startsWith(INLINK_DIFF_PREFIX);
+        }
+      }));
+    Arrays.sort(diffs);
+    return diffs;
+  }
+
+  /**
+   * Moves the changed inlinks committed with the output of the OutlinkDb job
+   * out of it, so the OutlinkDb holds only its parts.
+   */
+  private static void moveInlinkDiffs(FileSystem fs, Path outlinkDb,
+    Path diffDir)
+    throws IOException {
+    FileStatus[] diffs = fs.listStatus(outlinkDb, new PathFilter() {
+      public boolean accept(Path path) {
+        return path.getName().startsWith(DIFF_FILE_PREFIX);
+      }
+    });
+    if (diffs == null || diffs.length == 0) {
+      return;
+    }
+    fs.mkdirs(diffDir);
+    for (int i = 0; i < diffs.length; i++) {
+      Path diff = diffs[i].getPath();
+      fs.rename(diff, new Path(diffDir,
+        diff.getName().substring(DIFF_FILE_PREFIX.length())));
+    }
+  }
+
   /**
    * Creates the three different WebGraph databases, Outlinks, Inlinks, and
    * Node. If a current WebGraph exists then it is updated, if it doesn't exist
    * then a new WebGraph database is created.
    * 
+   * If <code>link.update.incremental</code> is set and the WebGraph exists,
+   * the InlinkDb and NodeDb are not regenerated. Instead, the outlinks of the
+   * urls in the segments are compared to their previous outlinks, and only the
+   * resulting changes to the inlinks are applied, see
+   * {@link #updateIncrementally(Path, Path, long)}.
+   * 
    * @param webGraphDb The WebGraph to create or update.
    * @param segments The array of segments used to update the WebGraph. Newer
    * segments and fetch times will overwrite older segments.
@@ -448,6 +832,33 @@ public class WebGraph
     JobConf outlinkJob = new NutchJob(conf);
     outlinkJob.setJobName("Outlinkdb: " + outlinkDb);
 
+    // the outlinkdb job writes the changed inlinks for incremental updates
+    boolean incremental = webGraphDbExists
+      && conf.getBoolean("link.update.incremental", false)
+      && fs.exists(new Path(webGraphDb, INLINK_DIR))
+      && fs.exists(new Path(webGraphDb, NODE_DIR));
+    long updateTime = System.currentTimeMillis();
+    Path diffDir = new Path(webGraphDb, INLINK_DIFF_PREFIX + updateTime);
+    if (incremental) {
+
+      // first finish earlier updates that failed before the NodeDb was updated
+      try {
+        Path[] pending = getInlinkDiffs(fs, webGraphDb);
+        for (int i = 0; i < pending.length; i++) {
+          LOG.info("WebGraphDb: finishing update " + pending[i]);
+          updateIncrementally(webGraphDb, pending[i], Long.parseLong(
+            pending[i].getName().substring(INLINK_DIFF_PREFIX.length())));
+        }
+      }
+      catch (IOException e) {
+        LockUtil.removeLockFile(fs, lock);
+        LOG.error(StringUtils.stringifyException(e));
+        throw e;
+      }
+      outlinkJob.setBoolean("link.update.diff", true);
+      outlinkJob.setLong("link.update.time", updateTime);
+    }
+
     // get the parse data for all segments
     if (segments != null) {
       for (int i = 0; i < segments.length; i++) {
@@ -479,6 +890,9 @@ public class WebGraph
     try {
       LOG.info("OutlinkDb: running");
       JobClient.runJob(outlinkJob);
+      if (incremental) {
+        moveInlinkDiffs(fs, tempOutlinkDb, diffDir);
+      }
       LOG.info("OutlinkDb: installing " + outlinkDb);
       FSUtils.replace(fs, outlinkDb, tempOutlinkDb, true);
       LOG.info("OutlinkDb: finished");
@@ -490,10 +904,27 @@ public class WebGraph
       if (fs.exists(tempOutlinkDb)) {
         fs.delete(tempOutlinkDb, true);
       }
+      if (fs.exists(diffDir)) {
+        fs.delete(diffDir, true);
+      }
       LOG.error(StringUtils.stringifyException(e));
       throw e;
     }
 
+    // update the inlinkdb and nodedb from the changed inlinks only
+    if (incremental) {
+      try {
+        updateIncrementally(webGraphDb, diffDir, updateTime);
+      }
+      catch (IOException e) {
+        LockUtil.removeLockFile(fs, lock);
+        LOG.error(StringUtils.stringifyException(e));
+        throw e;
+      }
+      LockUtil.removeLockFile(fs, lock);
+      return;
+    }
+
     // inlink and temp link database paths
     Path inlinkDb = new Path(webGraphDb, INLINK_DIR);
     Path tempInlinkDb = new Path(inlinkDb + "-"
@@ -519,6 +950,11 @@ public class WebGraph
       JobClient.runJob(inlinkJob);
       LOG.info("InlinkDb: installing " + inlinkDb);
       FSUtils.replace(fs, inlinkDb, tempInlinkDb, true);
+      fs.delete(new Path(webGraphDb, INLINK_DELTA_DIR), true);
+      Path[] pending = getInlinkDiffs(fs, webGraphDb);
+      for (int i = 0; i < pending.length; i++) {
+        fs.delete(pending[i], true);
+      }
       LOG.info("InlinkDb: finished");
     }
     catch (IOException e) {
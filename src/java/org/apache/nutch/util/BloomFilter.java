@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * A Bloom filter: a compact set that may report keys it does not contain,
+ * with a configurable probability, but never misses a key it does contain.
+ * Keys are byte arrays, or the 64 bit hash of one returned by
+ * {@link #hash(byte[], int, int)}, from which the positions of a key's bits
+ * are derived by double hashing.
+ */
+public class BloomFilter implements Writable {
+
+  private int numHashes;
+
+  private long numBits;
+
+  private long[] bits;
+
+  public BloomFilter() {}
+
+  /**
+   * Create a filter for <code>numKeys</code> keys, reporting keys it does
+   * not contain with probability <code>errorRate</code> once it is full.
+   */
+  public BloomFilter(int numKeys, double errorRate) {
+    numKeys = Math.max(numKeys, 1);
+    double ln2 = Math.log(2);
+    numBits = Math.max(64,
+        (long) Math.ceil(-numKeys * Math.log(errorRate) / (ln2 * ln2)));
+    numHashes = Math.max(1, (int) Math.round((double) numBits / numKeys * ln2));
+    bits = new long[(int) ((numBits + 63) / 64)];
+  }
+
+  /** Return the 64 bit hash of a key. */
+  public static long hash(byte[] key, int offset, int length) {
+    long h = 0xcbf29ce484222325L;                 // FNV-1a
+    for (int i = offset; i < offset + length; i++) {
+      h ^= key[i] & 0xff;
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;                                // spread all bits
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  public void add(byte[] key, int offset, int length) {
+    add(hash(key, offset, length));
+  }
+
+  /** Add the key with the given {@link #hash(byte[], int, int) hash}. */
+  public void add(long hash) {
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 0; i < numHashes; i++) {
+      long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+      bits[(int) (bit >>> 6)] |= 1L << bit;
+    }
+  }
+
+  /** Return false if the key was certainly never added. */
+  public boolean mightContain(byte[] key, int offset, int length) {
+    return mightContain(hash(key, offset, length));
+  }
+
+  /** Return false if the key with the given hash was certainly never added. */
+  public boolean mightContain(long hash) {
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 0; i < numHashes; i++) {
+      long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+      if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Return the size of the filter in bytes. */
+  public int getSize() {
+    return bits.length * 8;
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(numHashes);
+    out.writeLong(numBits);
+    for (int i = 0; i < bits.length; i++) {
+      out.writeLong(bits[i]);
+    }
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    numHashes = in.readInt();
+    numBits = in.readLong();
+    bits = new long[(int) ((numBits + 63) / 64)];
+    for (int i = 0; i < bits.length; i++) {
+      bits[i] = in.readLong();
+    }
+  }
+
+}
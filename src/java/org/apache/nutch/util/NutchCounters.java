@@ -0,0 +1,82 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * JVM-wide job counters for code that has no access to a {@link Reporter},
+ * such as protocol or parser plugins. Counts are accumulated here and
+ * periodically moved to the task's reporter by {@link #report(Reporter)}.
+ */
+public class NutchCounters {
+
+  private static final Map<String, Map<String, AtomicLong>> COUNTERS =
+    new ConcurrentHashMap<String, Map<String, AtomicLong>>();
+
+  private NutchCounters() {}
+
+  /** Add <code>amount</code> to the counter <code>name</code> in <code>group</code>. */
+  public static void incr(String group, String name, long amount) {
+    Map<String, AtomicLong> counters = COUNTERS.get(group);
+    if (counters == null) {
+      synchronized (COUNTERS) {
+        counters = COUNTERS.get(group);
+        if (counters == null) {
+          counters = new ConcurrentHashMap<String, AtomicLong>();
+          COUNTERS.put(group, counters);
+        }
+      }
+    }
+    AtomicLong counter = counters.get(name);
+    if (counter == null) {
+      synchronized (counters) {
+        counter = counters.get(name);
+        if (counter == null) {
+          counter = new AtomicLong();
+          counters.put(name, counter);
+        }
+      }
+    }
+    counter.addAndGet(amount);
+  }
+
+  /** Return the count not yet reported, mainly for logging and tests. */
+  public static long get(String group, String name) {
+    Map<String, AtomicLong> counters = COUNTERS.get(group);
+    if (counters == null) return 0;
+    AtomicLong counter = counters.get(name);
+    return counter == null ? 0 : counter.get();
+  }
+
+  /** Move all counts accumulated so far to the reporter. */
+  public static void report(Reporter reporter) {
+    for (Map.Entry<String, Map<String, AtomicLong>> group : COUNTERS.entrySet()) {
+      for (Map.Entry<String, AtomicLong> counter : group.getValue().entrySet()) {
+        long delta = counter.getValue().getAndSet(0);
+        if (delta != 0) {
+          reporter.incrCounter(group.getKey(), counter.getKey(), delta);
+        }
+      }
+    }
+  }
+
+}
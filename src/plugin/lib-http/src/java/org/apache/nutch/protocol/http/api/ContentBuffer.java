@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.protocol.http.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A growable byte buffer that response bodies are read into directly from
+ * the (possibly decompressing) input stream. Each thread reuses its own
+ * buffer, obtained with {@link #get()}, so a fetcher thread allocates only
+ * the final, exactly sized copy of each page. Buffers that grew beyond
+ * {@link #MAX_RETAINED} bytes are dropped after use, so that one huge page
+ * does not pin its memory for the rest of the fetch.
+ */
+public class ContentBuffer {
+
+  /** The largest buffer kept for reuse by a thread. */
+  public static final int MAX_RETAINED = 1024 * 1024;
+
+  private static final ThreadLocal<ContentBuffer> BUFFERS =
+    new ThreadLocal<ContentBuffer>() {
+      protected ContentBuffer initialValue() {
+        return new ContentBuffer();
+      }
+    };
+
+  private byte[] buf = new byte[HttpBase.BUFFER_SIZE];
+  private int count;
+
+  /** Return the empty buffer of the current thread. */
+  public static ContentBuffer get() {
+    ContentBuffer buffer = BUFFERS.get();
+    buffer.count = 0;
+    return buffer;
+  }
+
+  /**
+   * Read from <code>in</code> until the end of the stream, or until the
+   * buffer holds <code>limit</code> bytes. A negative limit means no limit.
+   * @return true if the end of the stream was reached, false if the content
+   * was truncated at the limit.
+   */
+  public boolean readFrom(InputStream in, int limit) throws IOException {
+    if (limit < 0) limit = Integer.MAX_VALUE;
+    while (count < limit) {
+      if (count == buf.length) {
+        grow(limit);
+      }
+      int n = in.read(buf, count, Math.min(buf.length, limit) - count);
+      if (n == -1) {
+        return true;
+      }
+      count += n;
+    }
+    // at the limit, the content is complete only if nothing follows
+    return in.read() == -1;
+  }
+
+  /** Make room for at least <code>size</code> bytes. */
+  public void ensureCapacity(int size) {
+    if (size > buf.length) {
+      byte[] bigger = new byte[size];
+      System.arraycopy(buf, 0, bigger, 0, count);
+      buf = bigger;
+    }
+  }
+
+  private void grow(int limit) {
+    int size = buf.length <= limit / 2 ? buf.length * 2 : limit;
+    ensureCapacity(size);
+  }
+
+  /** The number of bytes read so far. */
+  public int size() {
+    return count;
+  }
+
+  /** Return a copy of the content and release an oversized buffer. */
+  public byte[] toByteArray() {
+    byte[] content = new byte[count];
+    System.arraycopy(buf, 0, content, 0, count);
+    if (buf.length > MAX_RETAINED) {
+      buf = new byte[HttpBase.BUFFER_SIZE];
+    }
+    count = 0;
+    return content;
+  }
+
+}
@@ -17,12 +17,19 @@
 package org.apache.nutch.protocol.http.api;
 
 // JDK imports
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.net.InetAddress;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 // Commons Logging imports
 import org.apache.commons.logging.Log;
@@ -30,6 +37,7 @@ import org.apache.commons.logging.LogFactory;
 
 // Nutch imports
 import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.net.DnsResolver;
 import org.apache.nutch.net.protocols.Response;
 import org.apache.nutch.protocol.Content;
 import org.apache.nutch.protocol.Protocol;
@@ -37,8 +45,6 @@ import org.apache.nutch.protocol.ProtocolException;
 import org.apache.nutch.protocol.ProtocolOutput;
 import org.apache.nutch.protocol.ProtocolStatus;
 import org.apache.nutch.protocol.RobotRules;
-import org.apache.nutch.util.GZIPUtils;
-import org.apache.nutch.util.DeflateUtils;
 import org.apache.nutch.util.LogUtil;
 
 // Hadoop imports
@@ -56,6 +62,8 @@ public abstract class HttpBase implements Protocol {
   private static final byte[] EMPTY_CONTENT = new byte[0];
 
   private RobotRulesParser robots = null;
+
+  private DnsResolver resolver = null;
  
   /** The proxy hostname. */ 
   protected String proxyHost = null;
@@ -137,6 +145,9 @@ public abstract class HttpBase implements Protocol {
   /** Plugin should handle robot rules checking internally. */
   protected boolean checkRobots = true;
 
+  /** Report 429 and 503 as RETRY, for adaptive politeness in the fetcher. */
+  protected boolean retryThrottled = false;
+
   /** Creates a new instance of HttpBase */
   public HttpBase() {
     this(null);
@@ -168,8 +179,10 @@ public abstract class HttpBase implements Protocol {
         this.byIP = conf.getBoolean("fetcher.threads.per.host.by.ip", true);
         this.useHttp11 = conf.getBoolean("http.useHttp11", false);
         this.robots.setConf(conf);
+        this.resolver = DnsResolver.get(conf);
         this.checkBlocking = conf.getBoolean(Protocol.CHECK_BLOCKING, true);
         this.checkRobots = conf.getBoolean(Protocol.CHECK_ROBOTS, true);
+        this.retryThrottled = conf.getBoolean("fetcher.adaptive.politeness", false);
         logConf();
     }
 
@@ -221,7 +234,22 @@ public abstract class HttpBase implements Protocol {
       } finally {
         if (checkBlocking) unblockAddr(host, delay);
       }
-      
+      return getProtocolOutput(url, response);
+    } catch (Throwable e) {
+      e.printStackTrace(LogUtil.getErrorStream(logger));
+      return new ProtocolOutput(null, new ProtocolStatus(e));
+    }
+  }
+
+  /**
+   * Turns the response to a request for a url into a {@link ProtocolOutput},
+   * mapping the HTTP status code to a {@link ProtocolStatus}.
+   */
+  protected ProtocolOutput getProtocolOutput(Text url, Response response) {
+
+    String urlString = url.toString();
+    try {
+      URL u = new URL(urlString);
       int code = response.getCode();
       byte[] content = response.getContent();
       Content c = new Content(u.toString(), u.toString(),
@@ -274,6 +302,9 @@ public abstract class HttpBase implements Protocol {
         return new ProtocolOutput(c, new ProtocolStatus(ProtocolStatus.NOTFOUND, u));
       } else if (code == 410) { // permanently GONE
         return new ProtocolOutput(c, new ProtocolStatus(ProtocolStatus.GONE, u));
+      } else if (retryThrottled && (code == 429 || code == 503)) { // server asks us to slow down
+        return new ProtocolOutput(c, new ProtocolStatus(ProtocolStatus.RETRY, "Http code=" + code + ", url="
+                + u));
       } else {
         return new ProtocolOutput(c, new ProtocolStatus(ProtocolStatus.EXCEPTION, "Http code=" + code + ", url="
                 + u));
@@ -328,13 +359,18 @@ public abstract class HttpBase implements Protocol {
   public boolean getUseHttp11() {
     return useHttp11;
   }
+
+  /** Resolve a host through the crawl-wide DNS cache. */
+  public InetAddress resolve(String host) throws UnknownHostException {
+    return resolver.resolve(host);
+  }
   
   private String blockAddr(URL url, long crawlDelay) throws ProtocolException {
     
     String host;
     if (byIP) {
       try {
-        InetAddress addr = InetAddress.getByName(url.getHost());
+        InetAddress addr = resolve(url.getHost());
         host = addr.getHostAddress();
       } catch (UnknownHostException e) {
         // unable to resolve it, so don't fall back to host name
@@ -471,6 +507,7 @@ public abstract class HttpBase implements Protocol {
       logger.info("http.agent = " + userAgent);
       logger.info(Protocol.CHECK_BLOCKING + " = " + checkBlocking);
       logger.info(Protocol.CHECK_ROBOTS + " = " + checkRobots);
+      logger.info("fetcher.adaptive.politeness = " + retryThrottled);
       if (checkBlocking) {
         logger.info("fetcher.server.delay = " + serverDelay);
         logger.info("http.max.delays = " + maxDelays);
@@ -482,39 +519,87 @@ public abstract class HttpBase implements Protocol {
 
     if (LOGGER.isTraceEnabled()) { LOGGER.trace("uncompressing...."); }
 
-    byte[] content;
-    if (getMaxContent() >= 0) {
-        content = GZIPUtils.unzipBestEffort(compressed, getMaxContent());
-    } else {
-        content = GZIPUtils.unzipBestEffort(compressed);
-    } 
-
-    if (content == null)
-      throw new IOException("unzipBestEffort returned null");
-
-    if (LOGGER.isTraceEnabled()) {
-      LOGGER.trace("fetched " + compressed.length
-                 + " bytes of compressed content (expanded to "
-                 + content.length + " bytes) from " + url);
-    }
-    return content;
+    ContentBuffer buffer = ContentBuffer.get();
+    readContent(new ByteArrayInputStream(compressed), "gzip", buffer, url);
+    return buffer.toByteArray();
   }
 
   public byte[] processDeflateEncoded(byte[] compressed, URL url) throws IOException {
 
     if (LOGGER.isTraceEnabled()) { LOGGER.trace("inflating...."); }
 
-    byte[] content = DeflateUtils.inflateBestEffort(compressed, getMaxContent());
+    ContentBuffer buffer = ContentBuffer.get();
+    readContent(new ByteArrayInputStream(compressed), "deflate", buffer, url);
+    return buffer.toByteArray();
+  }
+
+  /**
+   * Read a response body into <code>buffer</code>, decompressing it on the
+   * fly according to <code>contentEncoding</code>, and stop once
+   * <code>http.content.limit</code> bytes of (decompressed) content were
+   * read. A deflate body may be zlib wrapped or raw deflate, which some
+   * servers send instead; the zlib header is checked to tell them apart.
+   * @return true if the whole body was read, false if it was truncated.
+   * @throws IOException if reading fails or a compressed body is corrupt
+   * or ends early, so no partial content is taken for the whole page.
+   */
+  public boolean readContent(InputStream in, String contentEncoding,
+                             ContentBuffer buffer, URL url)
+    throws IOException {
+
+    boolean gzip = "gzip".equals(contentEncoding)
+      || "x-gzip".equals(contentEncoding);
+    if (!gzip && !"deflate".equals(contentEncoding)) {
+      boolean complete = buffer.readFrom(in, getMaxContent());
+      if (LOGGER.isTraceEnabled()) {
+        LOGGER.trace("fetched " + buffer.size() + " bytes from " + url);
+      }
+      return complete;
+    }
+
+    // closing the decompressing stream frees its inflater, but must leave
+    // the connection open
+    PushbackInputStream unclosable = new PushbackInputStream(
+      new FilterInputStream(in) {
+        public void close() {}
+      }, 2);
+    int first = unclosable.read();
+    if (first == -1) {
+      return true;                            // empty body, nothing to expand
+    }
+    int second = unclosable.read();
+    if (second != -1) {
+      unclosable.unread(second);
+    }
+    unclosable.unread(first);
 
-    if (content == null)
-      throw new IOException("inflateBestEffort returned null");
+    InputStream decompressed;
+    Inflater inflater = null;
+    if (gzip) {
+      decompressed = new GZIPInputStream(unclosable, BUFFER_SIZE);
+    } else {
+      boolean zlib = second != -1 && (first & 0x0f) == 8
+        && ((first << 8) | second) % 31 == 0;
+      inflater = new Inflater(!zlib);
+      decompressed = new InflaterInputStream(unclosable, inflater,
+                                             BUFFER_SIZE);
+    }
+    boolean complete;
+    try {
+      complete = buffer.readFrom(decompressed, getMaxContent());
+    } finally {
+      decompressed.close();
+      if (inflater != null) {
+        inflater.end();                       // not ended by close()
+      }
+    }
 
     if (LOGGER.isTraceEnabled()) {
-      LOGGER.trace("fetched " + compressed.length
-                 + " bytes of compressed content (expanded to "
-                 + content.length + " bytes) from " + url);
+      LOGGER.trace("fetched " + contentEncoding
+                 + " compressed content (expanded to "
+                 + buffer.size() + " bytes) from " + url);
     }
-    return content;
+    return complete;
   }
 
   protected static void main(HttpBase http, String[] args) throws Exception {
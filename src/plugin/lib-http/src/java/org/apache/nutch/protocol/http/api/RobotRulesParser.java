@@ -25,7 +25,6 @@ import java.net.URL;
 import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Hashtable;
 import java.util.StringTokenizer;
 
 // Commons Logging imports
@@ -39,6 +38,7 @@ import org.apache.nutch.crawl.CrawlDatum;
 import org.apache.nutch.net.protocols.Response;
 import org.apache.nutch.protocol.ProtocolException;
 import org.apache.nutch.protocol.RobotRules;
+import org.apache.nutch.protocol.RobotRulesCache;
 
 
 /**
@@ -56,8 +56,6 @@ public class RobotRulesParser implements Configurable {
 
   private boolean allowForbidden = false;
 
-  private static final Hashtable CACHE = new Hashtable();
-  
   private static final String CHARACTER_ENCODING= "UTF-8";
   private static final int NO_PRECEDENCE= Integer.MAX_VALUE;
     
@@ -67,6 +65,7 @@ public class RobotRulesParser implements Configurable {
 
   private Configuration conf;
   private HashMap robotNames;
+  private RobotRulesCache cache;
 
   /**
    * This class holds the rules which were parsed from a robots.txt
@@ -219,6 +218,7 @@ public class RobotRulesParser implements Configurable {
   public void setConf(Configuration conf) {
     this.conf = conf;
     allowForbidden = conf.getBoolean("http.robots.403.allow", false);
+    cache = RobotRulesCache.get(conf);
     //
     // Grab the agent names we advertise to robots files.
     //
@@ -449,38 +449,45 @@ public class RobotRulesParser implements Configurable {
 
     String host = url.getHost().toLowerCase(); // normalize to lower case
 
-    RobotRuleSet robotRules = (RobotRuleSet)CACHE.get(host);
+    RobotRulesCache.Entry entry = cache.get(host);
 
-    boolean cacheRule = true;
-    
-    if (robotRules == null) {                     // cache miss
+    if (entry == null) {                          // cache miss
       if (LOG.isTraceEnabled()) { LOG.trace("cache miss " + url); }
+      int status;
+      byte[] content = null;
       try {
         Response response = http.getResponse(new URL(url, "/robots.txt"),
                                              new CrawlDatum(), true);
-
-        if (response.getCode() == 200)               // found rules: parse them
-          robotRules = parseRules(response.getContent());
-        else if ( (response.getCode() == 403) && (!allowForbidden) )
-          robotRules = FORBID_ALL_RULES;            // use forbid all
-        else if (response.getCode() >= 500) {
-          cacheRule = false;
-          robotRules = EMPTY_RULES;
-        }else                                        
-          robotRules = EMPTY_RULES;                 // use default rules
+        status = response.getCode();
+        if (status == 200)
+          content = response.getContent();
       } catch (Throwable t) {
         if (LOG.isInfoEnabled()) {
           LOG.info("Couldn't get robots.txt for " + url + ": " + t.toString());
         }
-        cacheRule = false;
-        robotRules = EMPTY_RULES;
+        status = RobotRulesCache.STATUS_FAILED;
       }
+      entry = new RobotRulesCache.Entry(status, content,
+                                        getRules(status, content));
+      cache.put(host, entry);                     // cache rules for host
+    }
 
-      if (cacheRule){
-        CACHE.put(host, robotRules);  // cache rules for host
-      }
+    RobotRules rules = entry.getRules();
+    if (!(rules instanceof RobotRuleSet)) {       // loaded from disk
+      rules = getRules(entry.getStatus(), entry.getContent());
+      entry.setRules(rules);
     }
-    return robotRules;
+    return (RobotRuleSet) rules;
+  }
+
+  /** Returns the rules that apply after a robots.txt fetch. */
+  private RobotRuleSet getRules(int status, byte[] content) {
+    if (status == 200)                            // found rules: parse them
+      return parseRules(content);
+    else if ( (status == 403) && (!allowForbidden) )
+      return FORBID_ALL_RULES;                    // use forbid all
+    else
+      return EMPTY_RULES;                         // use default rules
   }
 
   public boolean isAllowed(HttpBase http, URL url)
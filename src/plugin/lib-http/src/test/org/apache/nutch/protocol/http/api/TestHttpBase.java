@@ -0,0 +1,116 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutch.protocol.http.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.net.protocols.Response;
+
+import junit.framework.TestCase;
+
+/** Test decompressing response bodies in {@link HttpBase}. */
+public class TestHttpBase extends TestCase {
+
+  private static final String TEXT =
+    "<html><body>Some compressible content, content, content.</body></html>";
+
+  private HttpBase http = new HttpBase() {
+    protected Response getResponse(URL url, CrawlDatum datum,
+                                   boolean followRedirects) {
+      return null;
+    }
+  };
+
+  private URL url;
+
+  protected void setUp() throws Exception {
+    url = new URL("http://localhost/");
+  }
+
+  private static byte[] deflate(boolean nowrap) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+    DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater);
+    out.write(TEXT.getBytes("UTF-8"));
+    out.close();
+    deflater.end();
+    return bytes.toByteArray();
+  }
+
+  private static byte[] truncate(byte[] bytes, int length) {
+    byte[] truncated = new byte[length];
+    System.arraycopy(bytes, 0, truncated, 0, length);
+    return truncated;
+  }
+
+  public void testZlibDeflate() throws Exception {
+    assertEquals(TEXT, new String(http.processDeflateEncoded(deflate(false),
+                                                             url), "UTF-8"));
+  }
+
+  public void testRawDeflate() throws Exception {
+    assertEquals(TEXT, new String(http.processDeflateEncoded(deflate(true),
+                                                             url), "UTF-8"));
+  }
+
+  public void testGzip() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    GZIPOutputStream out = new GZIPOutputStream(bytes);
+    out.write(TEXT.getBytes("UTF-8"));
+    out.close();
+    assertEquals(TEXT, new String(http.processGzipEncoded(bytes.toByteArray(),
+                                                          url), "UTF-8"));
+  }
+
+  public void testEmpty() throws Exception {
+    assertEquals(0, http.processDeflateEncoded(new byte[0], url).length);
+  }
+
+  public void testTruncated() throws Exception {
+    byte[][] bodies = { deflate(false), deflate(true) };
+    for (int i = 0; i < bodies.length; i++) {
+      try {
+        http.processDeflateEncoded(truncate(bodies[i], bodies[i].length / 2),
+                                   url);
+        fail("truncated deflate body accepted");
+      } catch (IOException e) {
+        // expected
+      }
+    }
+  }
+
+  public void testCorrupt() throws Exception {
+    byte[] body = deflate(false);
+    for (int i = 2; i < body.length; i++) {
+      body[i] = (byte) 0xff;
+    }
+    try {
+      http.processDeflateEncoded(body, url);
+      fail("corrupt deflate body accepted");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+}
@@ -0,0 +1,179 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.urlfilter.api;
+
+// JDK imports
+import java.util.ArrayList;
+import java.util.List;
+
+// Commons Logging imports
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+// Automaton imports
+import dk.brics.automaton.Automaton;
+import dk.brics.automaton.RunAutomaton;
+
+
+/**
+ * An ordered list of {@link RegexRule rules} compiled into as few
+ * deterministic automata as possible.
+ *
+ * <p>Consecutive rules that can be expressed as automata (see
+ * {@link RegexRule#toAutomaton()}) are combined into one segment made of two
+ * automata: one accepting the urls matched by any rule of the segment, and
+ * one accepting the urls whose first matching rule is a <code>+</code> rule.
+ * A url is then checked against each segment in a single pass, instead of
+ * once per rule. Rules that can't be combined are kept as they are, and
+ * are checked in their place in the list, so the result is always the same
+ * as checking the rules one by one.</p>
+ *
+ * <p>Instances are immutable, and can be used by many threads at once.</p>
+ */
+public class CompiledRules {
+
+  private final static Log LOG = LogFactory.getLog(CompiledRules.class);
+
+  /** Segments whose automata grow larger than this are split. */
+  public final static int MAX_STATES = 10000;
+
+  private final Stage[] stages;
+
+  /** Compile the specified rules, in this order. */
+  public CompiledRules(RegexRule[] rules) {
+    List stages = new ArrayList();
+    Segment segment = null;
+    for (int i = 0; i < rules.length; i++) {
+      Automaton automaton = rules[i].toAutomaton();
+      if (automaton == null) {
+        if (segment != null) {
+          stages.add(segment.compile());
+          segment = null;
+        }
+        stages.add(new SingleRule(rules[i]));
+        continue;
+      }
+      if (segment != null && !segment.add(rules[i].accept(), automaton)) {
+        stages.add(segment.compile());
+        segment = null;
+      }
+      if (segment == null) {
+        segment = new Segment();
+        segment.add(rules[i].accept(), automaton);
+      }
+    }
+    if (segment != null) {
+      stages.add(segment.compile());
+    }
+    this.stages = (Stage[]) stages.toArray(new Stage[stages.size()]);
+    if (LOG.isInfoEnabled()) {
+      LOG.info("Compiled " + rules.length + " rules into "
+               + this.stages.length + " stage(s)");
+    }
+  }
+
+  /**
+   * Checks a url against the rules.
+   * @return <code>true</code> if the first rule matching the url is a
+   *         <code>+</code> rule, <code>false</code> if it is a
+   *         <code>-</code> rule or no rule matches.
+   */
+  public boolean accept(String url) {
+    for (int i = 0; i < stages.length; i++) {
+      int result = stages[i].check(url);
+      if (result != Stage.NO_MATCH) {
+        return result == Stage.ACCEPT;
+      }
+    }
+    return false;
+  }
+
+  /** Return the number of stages a url may go through. */
+  public int getStages() {
+    return stages.length;
+  }
+
+
+  private static abstract class Stage {
+    static final int NO_MATCH = 0;
+    static final int ACCEPT = 1;
+    static final int REJECT = 2;
+
+    abstract int check(String url);
+  }
+
+  private static class SingleRule extends Stage {
+    private final RegexRule rule;
+
+    SingleRule(RegexRule rule) {
+      this.rule = rule;
+    }
+
+    int check(String url) {
+      if (!rule.match(url)) return NO_MATCH;
+      return rule.accept() ? ACCEPT : REJECT;
+    }
+  }
+
+  private static class CombinedRules extends Stage {
+    private final RunAutomaton any;
+    private final RunAutomaton accepted;
+
+    CombinedRules(Automaton any, Automaton accepted) {
+      this.any = new RunAutomaton(any);
+      this.accepted = new RunAutomaton(accepted);
+    }
+
+    int check(String url) {
+      if (!any.run(url)) return NO_MATCH;
+      return accepted.run(url) ? ACCEPT : REJECT;
+    }
+  }
+
+  /** Rules being combined. */
+  private static class Segment {
+    /** Urls matched by any rule so far. */
+    private Automaton any = Automaton.makeEmpty();
+    /** Urls whose first matching rule so far is a + rule. */
+    private Automaton accepted = Automaton.makeEmpty();
+    private int size = 0;
+
+    /** Add a rule, unless the automata would grow too large. */
+    boolean add(boolean sign, Automaton automaton) {
+      Automaton newAny = any.union(automaton);
+      newAny.minimize();
+      Automaton newAccepted = accepted;
+      if (sign) {
+        newAccepted = accepted.union(automaton.intersection(any.complement()));
+        newAccepted.minimize();
+      }
+      if (size > 0 && (newAny.getNumberOfStates() > MAX_STATES
+                       || newAccepted.getNumberOfStates() > MAX_STATES)) {
+        return false;
+      }
+      any = newAny;
+      accepted = newAccepted;
+      size++;
+      return true;
+    }
+
+    Stage compile() {
+      return new CombinedRules(any, accepted);
+    }
+  }
+
+}
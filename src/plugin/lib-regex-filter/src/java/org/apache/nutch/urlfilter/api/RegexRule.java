@@ -18,6 +18,8 @@ package org.apache.nutch.urlfilter.api;
 
 import org.apache.nutch.net.*;
 
+import dk.brics.automaton.Automaton;
+
 
 /**
  * A generic regular expression rule.
@@ -60,5 +62,14 @@ public abstract class RegexRule {
    */
   protected abstract boolean match(String url);
 
+  /**
+   * Returns an automaton that accepts exactly the urls {@link #match(String)}
+   * matches, so that the rule can be combined with its neighbours into a
+   * single automaton (see {@link CompiledRules}).
+   * @return the automaton, or <code>null</code> if this rule can't be
+   *         expressed as one.
+   */
+  protected Automaton toAutomaton() { return null; }
+
 }
 
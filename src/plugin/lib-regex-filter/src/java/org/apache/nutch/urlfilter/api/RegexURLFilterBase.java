@@ -51,6 +51,11 @@ import org.apache.nutch.net.*;
  * where plus (<code>+</code>)means go ahead and index it and minus 
  * (<code>-</code>)means no.</p>
  *
+ * <p>Unless <code>urlfilter.regex.compile</code> is false, the rules are
+ * combined into {@link CompiledRules automata} where the implementation
+ * supports it, so that a url is checked against many rules in one pass.
+ * Filtering takes no lock, rules must be safe for use by many threads.</p>
+ *
  * @author J&eacute;r&ocirc;me Charron
  */
 public abstract class RegexURLFilterBase implements URLFilter {
@@ -61,6 +66,9 @@ public abstract class RegexURLFilterBase implements URLFilter {
   /** An array of applicable rules */
   private RegexRule[] rules;
 
+  /** The rules compiled into automata, or null */
+  private CompiledRules compiled;
+
   /** The current configuration */
   private Configuration conf;
 
@@ -84,8 +92,19 @@ public abstract class RegexURLFilterBase implements URLFilter {
    * @param reader is a reader of rules.
    */
   protected RegexURLFilterBase(Reader reader)
+    throws IOException, IllegalArgumentException {
+    this(reader, true);
+  }
+
+  /**
+   * Constructs a new RegexURLFilter and init it with a Reader of rules.
+   * @param reader is a reader of rules.
+   * @param compile whether to compile the rules into automata.
+   */
+  protected RegexURLFilterBase(Reader reader, boolean compile)
     throws IOException, IllegalArgumentException {
     rules = readRulesFile(reader);
+    compiled = compile ? new CompiledRules(rules) : null;
   }
   
   /**
@@ -112,7 +131,10 @@ public abstract class RegexURLFilterBase implements URLFilter {
    * -------------------------- */
   
   // Inherited Javadoc
-  public synchronized String filter(String url) {
+  public String filter(String url) {
+    if (compiled != null) {
+      return compiled.accept(url) ? url : null;
+    }
     for (int i=0; i<rules.length; i++) {
       if (rules[i].match(url)) {
         return rules[i].accept() ? url : null;
@@ -139,6 +161,8 @@ public abstract class RegexURLFilterBase implements URLFilter {
     } else {
       try {
         rules = readRulesFile(reader);
+        compiled = conf.getBoolean("urlfilter.regex.compile", true)
+          ? new CompiledRules(rules) : null;
       } catch (IOException e) {
         if (LOG.isFatalEnabled()) { LOG.fatal(e.getMessage()); }
         //TODO mb@media-style.com: throw Exception? Because broken api.
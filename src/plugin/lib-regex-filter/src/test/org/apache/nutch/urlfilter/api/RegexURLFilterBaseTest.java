@@ -52,37 +52,60 @@ public abstract class RegexURLFilterBaseTest extends TestCase {
     super(testName);
   }
   
-  protected abstract URLFilter getURLFilter(Reader rules);
+  /**
+   * Returns the filter to test.
+   * @param compile whether the rules are compiled into automata or
+   *        checked one by one.
+   */
+  protected abstract URLFilter getURLFilter(Reader rules, boolean compile);
 
+  protected URLFilter getURLFilter(Reader rules) {
+    return getURLFilter(rules, true);
+  }
+
+  /** Bench the compiled rules against the rules checked one by one. */
   protected void bench(int loops, String file) {
     try {
-      bench(loops,
-            new FileReader(SAMPLES + SEPARATOR + file + ".rules"),
-            new FileReader(SAMPLES + SEPARATOR + file + ".urls"));
+      for (int i=0; i<2; i++) {
+        boolean compile = i == 0;
+        bench(loops,
+              new FileReader(SAMPLES + SEPARATOR + file + ".rules"),
+              new FileReader(SAMPLES + SEPARATOR + file + ".urls"),
+              compile);
+      }
     } catch (Exception e) {
       fail(e.toString());
     }
   }
   
   protected void bench(int loops, Reader rules, Reader urls) {
+    bench(loops, rules, urls, true);
+  }
+
+  protected void bench(int loops, Reader rules, Reader urls, boolean compile) {
     long start = System.currentTimeMillis();
+    long setup = 0;
     try {
-      URLFilter filter = getURLFilter(rules);
+      URLFilter filter = getURLFilter(rules, compile);
       FilteredURL[] expected = readURLFile(urls);
+      setup = System.currentTimeMillis() - start;
       for (int i=0; i<loops; i++) {
         test(filter, expected);
       }
     } catch (Exception e) {
       fail(e.toString());
     }
-    LOG.info("bench time (" + loops + ") " +
-             (System.currentTimeMillis()-start) + "ms");
+    LOG.info("bench time (" + loops + (compile ? ", compiled) " : ") ") +
+             (System.currentTimeMillis()-start-setup) + "ms, setup " +
+             setup + "ms");
   }
   
   protected void test(String file) {
     try {
       test(new FileReader(SAMPLES + SEPARATOR + file + ".rules"),
            new FileReader(SAMPLES + SEPARATOR + file + ".urls"));
+      test(getURLFilter(new FileReader(SAMPLES + SEPARATOR + file + ".rules"), false),
+           readURLFile(new FileReader(SAMPLES + SEPARATOR + file + ".urls")));
     } catch (Exception e) {
       fail(e.toString());
     }
@@ -0,0 +1,141 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.protocol.http;
+
+// JDK imports
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+
+/**
+ * A pool of idle persistent HTTP connections, keyed by <code>host:port</code>.
+ *
+ * <p>At most <code>maxPerHost</code> idle connections are kept for any key,
+ * and connections idle for longer than <code>idleTimeout</code> milliseconds
+ * are closed instead of being handed out again.
+ */
+class ConnectionPool {
+
+  /** An open connection, with the streams used to talk over it. */
+  static class Connection {
+    String key;
+    Socket socket;
+    PushbackInputStream in;
+    OutputStream out;
+    long idleSince;
+
+    Connection(String key, InetAddress address, int port, int timeout)
+      throws IOException {
+      this.key = key;
+      socket = new Socket();                    // create the socket
+      try {
+        socket.setSoTimeout(timeout);
+        socket.connect(new InetSocketAddress(address, port), timeout);
+        out = socket.getOutputStream();
+        in = new PushbackInputStream(
+          new BufferedInputStream(socket.getInputStream(), Http.BUFFER_SIZE),
+          Http.BUFFER_SIZE);
+      } catch (IOException e) {
+        close();
+        throw e;
+      }
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  /** How often all keys are checked for expired connections. */
+  private static final long PURGE_INTERVAL = 10000;
+
+  private Map<String, LinkedList<Connection>> idle =
+    new HashMap<String, LinkedList<Connection>>();
+  private int maxPerHost;
+  private long idleTimeout;
+  private long lastPurge = System.currentTimeMillis();
+
+  ConnectionPool(int maxPerHost, long idleTimeout) {
+    this.maxPerHost = maxPerHost;
+    this.idleTimeout = idleTimeout;
+  }
+
+  /** Take the most recently used idle connection for a key, if any. */
+  synchronized Connection get(String key) {
+    LinkedList<Connection> connections = idle.get(key);
+    if (connections == null) return null;
+    long now = System.currentTimeMillis();
+    Connection found = null;
+    while (found == null && !connections.isEmpty()) {
+      Connection c = connections.removeLast();
+      if (now - c.idleSince < idleTimeout && !c.socket.isClosed()) {
+        found = c;
+      } else {
+        c.close();
+      }
+    }
+    if (connections.isEmpty()) idle.remove(key);
+    return found;
+  }
+
+  /** Return a connection whose last response was read completely. */
+  synchronized void release(Connection c) {
+    long now = System.currentTimeMillis();
+    if (now - lastPurge > PURGE_INTERVAL) {
+      purge(now);
+    }
+    LinkedList<Connection> connections = idle.get(c.key);
+    if (connections == null) {
+      connections = new LinkedList<Connection>();
+      idle.put(c.key, connections);
+    }
+    if (connections.size() >= maxPerHost) {
+      c.close();
+      return;
+    }
+    c.idleSince = now;
+    connections.addLast(c);
+  }
+
+  private void purge(long now) {
+    Iterator<LinkedList<Connection>> it = idle.values().iterator();
+    while (it.hasNext()) {
+      LinkedList<Connection> connections = it.next();
+      // oldest connections come first
+      while (!connections.isEmpty()
+             && now - connections.getFirst().idleSince >= idleTimeout) {
+        connections.removeFirst().close();
+      }
+      if (connections.isEmpty()) it.remove();
+    }
+    lastPurge = now;
+  }
+
+}
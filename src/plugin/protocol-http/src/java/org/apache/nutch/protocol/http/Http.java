@@ -39,6 +39,9 @@ public class Http extends HttpBase {
 
   public static final Log LOG = LogFactory.getLog(Http.class);
 
+  /** Idle persistent connections, shared by all instances in this JVM. */
+  private static ConnectionPool pool;
+
 
   public Http() {
     super(LOG);
@@ -46,6 +49,10 @@ public class Http extends HttpBase {
 
   public void setConf(Configuration conf) {
     super.setConf(conf);
+    if (useHttp11) {
+      initPool(getMaxThreadsPerHost(),
+               conf.getInt("http.keepalive.timeout", 5000));
+    }
 //    Level logLevel = Level.WARNING;
 //    if (conf.getBoolean("http.verbose", false)) {
 //      logLevel = Level.FINE;
@@ -53,6 +60,17 @@ public class Http extends HttpBase {
 //    LOG.setLevel(logLevel);
   }
 
+  private static synchronized void initPool(int maxPerHost, long idleTimeout) {
+    if (pool == null) {
+      pool = new ConnectionPool(maxPerHost, idleTimeout);
+    }
+  }
+
+  /** Returns the connection pool, or null if persistent connections are off. */
+  ConnectionPool getConnectionPool() {
+    return useHttp11 ? pool : null;
+  }
+
   public static void main(String[] args) throws Exception {
     Http http = new Http();
     http.setConf(NutchConfiguration.create());
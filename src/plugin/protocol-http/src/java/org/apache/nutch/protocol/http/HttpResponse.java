@@ -17,15 +17,11 @@
 package org.apache.nutch.protocol.http;
 
 // JDK imports
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.PushbackInputStream;
-import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 
 // Nutch imports
@@ -35,9 +31,11 @@ import org.apache.nutch.metadata.SpellCheckedMetadata;
 import org.apache.nutch.net.protocols.HttpDateFormat;
 import org.apache.nutch.net.protocols.Response;
 import org.apache.nutch.protocol.ProtocolException;
+import org.apache.nutch.protocol.http.api.ContentBuffer;
 import org.apache.nutch.protocol.http.api.HttpBase;
 import org.apache.nutch.protocol.http.api.HttpException;
 import org.apache.nutch.util.LogUtil;
+import org.apache.nutch.util.NutchCounters;
 
 
 /** An HTTP response. */
@@ -50,6 +48,11 @@ public class HttpResponse implements Response {
   private byte[] content;
   private int code;
   private Metadata headers = new SpellCheckedMetadata();
+  private boolean http11;
+  private boolean keepAlive;
+
+  /** Counter group for connection statistics. */
+  private static final String COUNTER_GROUP = "HttpConnections";
 
 
   public HttpResponse(HttpBase http, URL url, CrawlDatum datum)
@@ -83,94 +86,107 @@ public class HttpResponse implements Response {
       port= url.getPort();
       portString= ":" + port;
     }
-    Socket socket = null;
-
-    try {
-      socket = new Socket();                    // create the socket
-      socket.setSoTimeout(http.getTimeout());
+    String sockHost = http.useProxy() ? http.getProxyHost() : host;
+    int sockPort = http.useProxy() ? http.getProxyPort() : port;
+    String key = sockHost + ":" + sockPort;
+    ConnectionPool pool = (http instanceof Http) ?
+      ((Http) http).getConnectionPool() : null;
+
+    // make request
+    StringBuffer reqStr = new StringBuffer("GET ");
+    if (http.useProxy()) {
+    	reqStr.append(url.getProtocol()+"://"+host+portString+path);
+    } else {
+    	reqStr.append(path);
+    }
 
+    reqStr.append(pool != null ? " HTTP/1.1\r\n" : " HTTP/1.0\r\n");
 
-      // connect
-      String sockHost = http.useProxy() ? http.getProxyHost() : host;
-      int sockPort = http.useProxy() ? http.getProxyPort() : port;
-      InetSocketAddress sockAddr= new InetSocketAddress(sockHost, sockPort);
-      socket.connect(sockAddr, http.getTimeout());
+    reqStr.append("Host: ");
+    reqStr.append(host);
+    reqStr.append(portString);
+    reqStr.append("\r\n");
 
-      // make request
-      OutputStream req = socket.getOutputStream();
+    reqStr.append("Accept-Encoding: x-gzip, gzip, deflate\r\n");
 
-      StringBuffer reqStr = new StringBuffer("GET ");
-      if (http.useProxy()) {
-      	reqStr.append(url.getProtocol()+"://"+host+portString+path);
-      } else {
-      	reqStr.append(path);
-      }
-
-      reqStr.append(" HTTP/1.0\r\n");
+    String userAgent = http.getUserAgent();
+    if ((userAgent == null) || (userAgent.length() == 0)) {
+      if (Http.LOG.isFatalEnabled()) { Http.LOG.fatal("User-agent is not set!"); }
+    } else {
+      reqStr.append("User-Agent: ");
+      reqStr.append(userAgent);
+      reqStr.append("\r\n");
+    }
 
-      reqStr.append("Host: ");
-      reqStr.append(host);
-      reqStr.append(portString);
+    if (datum.getModifiedTime() > 0) {
+      reqStr.append("If-Modified-Since: " + HttpDateFormat.toString(datum.getModifiedTime()));
       reqStr.append("\r\n");
+    }
+    reqStr.append("\r\n");
 
-      reqStr.append("Accept-Encoding: x-gzip, gzip, deflate\r\n");
+    byte[] reqBytes= reqStr.toString().getBytes();
 
-      String userAgent = http.getUserAgent();
-      if ((userAgent == null) || (userAgent.length() == 0)) {
-        if (Http.LOG.isFatalEnabled()) { Http.LOG.fatal("User-agent is not set!"); }
-      } else {
-        reqStr.append("User-Agent: ");
-        reqStr.append(userAgent);
-        reqStr.append("\r\n");
+    ConnectionPool.Connection conn = null;
+    try {
+      if (pool != null) {
+        conn = pool.get(key);
       }
-
-      reqStr.append("\r\n");
-      if (datum.getModifiedTime() > 0) {
-        reqStr.append("If-Modified-Since: " + HttpDateFormat.toString(datum.getModifiedTime()));
-        reqStr.append("\r\n");
+      if (conn != null) {
+        try {
+          request(conn, reqBytes);
+          NutchCounters.incr(COUNTER_GROUP, "reused", 1);
+        } catch (SocketTimeoutException e) {
+          conn.close();
+          conn = null;
+          throw e;
+        } catch (IOException e) {
+          // the server closed the idle connection, try a fresh one
+          NutchCounters.incr(COUNTER_GROUP, "stale", 1);
+          conn.close();
+          conn = null;
+        }
       }
-      
-      byte[] reqBytes= reqStr.toString().getBytes();
-
-      req.write(reqBytes);
-      req.flush();
-        
-      PushbackInputStream in =                  // process response
-        new PushbackInputStream(
-          new BufferedInputStream(socket.getInputStream(), Http.BUFFER_SIZE), 
-          Http.BUFFER_SIZE) ;
-
-      StringBuffer line = new StringBuffer();
-
-      boolean haveSeenNonContinueStatus= false;
-      while (!haveSeenNonContinueStatus) {
-        // parse status code line
-        this.code = parseStatusLine(in, line); 
-        // parse headers
-        parseHeaders(in, line);
-        haveSeenNonContinueStatus= code != 100; // 100 is "Continue"
+      if (conn == null) {
+        conn = new ConnectionPool.Connection(key, http.resolve(sockHost),
+                                             sockPort, http.getTimeout());
+        NutchCounters.incr(COUNTER_GROUP, "opened", 1);
+        request(conn, reqBytes);
       }
 
-      readPlainContent(in);
+      readPlainOrChunkedContent(conn.in);
 
-      String contentEncoding = getHeader(Response.CONTENT_ENCODING);
-      if ("gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding)) {
-        content = http.processGzipEncoded(content, url);
-      } else if ("deflate".equals(contentEncoding)) {
-       content = http.processDeflateEncoded(content, url);
-      } else {
-        if (Http.LOG.isTraceEnabled()) {
-          Http.LOG.trace("fetched " + content.length + " bytes from " + url);
-        }
+      if (pool != null && keepAlive) {
+        pool.release(conn);
+        conn = null;
       }
 
     } finally {
-      if (socket != null)
-        socket.close();
+      if (conn != null)
+        conn.close();
     }
 
   }
 
+  /** Send the request and read the status line and headers. */
+  private void request(ConnectionPool.Connection conn, byte[] reqBytes)
+    throws IOException, HttpException {
+
+    conn.out.write(reqBytes);
+    conn.out.flush();
+
+    headers = new SpellCheckedMetadata();
+    StringBuffer line = new StringBuffer();
+
+    boolean haveSeenNonContinueStatus= false;
+    while (!haveSeenNonContinueStatus) {
+      // parse status code line
+      this.code = parseStatusLine(conn.in, line);
+      // parse headers
+      parseHeaders(conn.in, line);
+      haveSeenNonContinueStatus= code != 100; // 100 is "Continue"
+    }
+  }
+
   
   /* ------------------------- *
    * <implementation:Response> *
@@ -201,112 +217,168 @@ public class HttpResponse implements Response {
    * ------------------------- */
   
 
-  private void readPlainContent(InputStream in) 
+  /**
+   * Read the response body, decompressing it while it is read. The
+   * connection may only carry another request if the server speaks
+   * HTTP/1.1, did not ask to close it, and the end of the body was found
+   * without reading until the socket closed.
+   */
+  private void readPlainOrChunkedContent(PushbackInputStream in)
     throws HttpException, IOException {
 
-    int contentLength = Integer.MAX_VALUE;    // get content length
-    String contentLengthString = headers.get(Response.CONTENT_LENGTH);
-    if (contentLengthString != null) {
-      contentLengthString = contentLengthString.trim();
-      try {
-        contentLength = Integer.parseInt(contentLengthString);
-      } catch (NumberFormatException e) {
-        throw new HttpException("bad content length: "+contentLengthString);
+    String connection = headers.get("Connection");
+    keepAlive = http11 &&
+      (connection == null || !"close".equalsIgnoreCase(connection.trim()));
+
+    if (code == 204 || code == 304) {           // never have a body
+      content = new byte[0];
+      return;
+    }
+
+    ContentBuffer buffer = ContentBuffer.get();
+    BodyInputStream body;
+    String transferEncoding = headers.get(Response.TRANSFER_ENCODING);
+    if (transferEncoding != null
+        && "chunked".equalsIgnoreCase(transferEncoding.trim())) {
+      body = new ChunkedInputStream(in);
+    } else {
+      long contentLength = Long.MAX_VALUE;
+      String contentLengthString = headers.get(Response.CONTENT_LENGTH);
+      if (contentLengthString != null) {
+        contentLengthString = contentLengthString.trim();
+        try {
+          contentLength = Long.parseLong(contentLengthString);
+        } catch (NumberFormatException e) {
+          throw new HttpException("bad content length: "+contentLengthString);
+        }
+        if (contentLength <= http.getMaxContent()) {
+          buffer.ensureCapacity((int) contentLength);
+        }
+      } else {
+        keepAlive = false;                      // body ends at close
       }
+      body = new LengthInputStream(in, contentLength);
     }
-    if (http.getMaxContent() >= 0
-      && contentLength > http.getMaxContent())   // limit download size
-      contentLength  = http.getMaxContent();
-
-    ByteArrayOutputStream out = new ByteArrayOutputStream(Http.BUFFER_SIZE);
-    byte[] bytes = new byte[Http.BUFFER_SIZE];
-    int length = 0;                           // read content
-    for (int i = in.read(bytes); i != -1; i = in.read(bytes)) {
-
-      out.write(bytes, 0, i);
-      length += i;
-      if (length >= contentLength)
-        break;
+
+    String contentEncoding = getHeader(Response.CONTENT_ENCODING);
+    boolean complete = http.readContent(body, contentEncoding, buffer, url);
+    content = buffer.toByteArray();
+    if (complete && !body.atEnd()) {
+      // the compressed stream may end before its framing does
+      complete = body.skipToEnd();
+    }
+    if (!complete || !body.atEnd()) {
+      // rest of the body is left unread, so the connection can't be reused
+      keepAlive = false;
     }
-    content = out.toByteArray();
   }
 
-  private void readChunkedContent(PushbackInputStream in,  
-                                  StringBuffer line) 
-    throws HttpException, IOException {
-    boolean doneChunks= false;
-    int contentBytesRead= 0;
-    byte[] bytes = new byte[Http.BUFFER_SIZE];
-    ByteArrayOutputStream out = new ByteArrayOutputStream(Http.BUFFER_SIZE);
-
-    while (!doneChunks) {
-      if (Http.LOG.isTraceEnabled()) {
-        Http.LOG.trace("Http: starting chunk");
-      }
+  /** A response body, framed by the content length or in chunks. */
+  private static abstract class BodyInputStream extends InputStream {
 
-      readLine(in, line, false);
-
-      String chunkLenStr;
-      // if (LOG.isTraceEnabled()) { LOG.trace("chunk-header: '" + line + "'"); }
+    /** Whether the whole body was read. */
+    abstract boolean atEnd();
 
-      int pos= line.indexOf(";");
-      if (pos < 0) {
-        chunkLenStr= line.toString();
-      } else {
-        chunkLenStr= line.substring(0, pos);
-        // if (LOG.isTraceEnabled()) { LOG.trace("got chunk-ext: " + line.substring(pos+1)); }
-      }
-      chunkLenStr= chunkLenStr.trim();
-      int chunkLen;
-      try {
-        chunkLen= Integer.parseInt(chunkLenStr, 16);
-      } catch (NumberFormatException e){ 
-        throw new HttpException("bad chunk length: "+line.toString());
-      }
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
 
-      if (chunkLen == 0) {
-        doneChunks= true;
-        break;
+    /** Skip the rest of a small body, return true if its end was found. */
+    boolean skipToEnd() throws IOException {
+      byte[] b = new byte[512];
+      for (int i = 0; i < 8; i++) {
+        if (read(b, 0, b.length) == -1) {
+          return atEnd();
+        }
       }
+      return false;
+    }
+  }
 
-      if ( (contentBytesRead + chunkLen) > http.getMaxContent() )
-        chunkLen= http.getMaxContent() - contentBytesRead;
-
-      // read one chunk
-      int chunkBytesRead= 0;
-      while (chunkBytesRead < chunkLen) {
-
-        int toRead= (chunkLen - chunkBytesRead) < Http.BUFFER_SIZE ?
-                    (chunkLen - chunkBytesRead) : Http.BUFFER_SIZE;
-        int len= in.read(bytes, 0, toRead);
+  /** A body of known length, or one that ends when the socket closes. */
+  private static class LengthInputStream extends BodyInputStream {
+    private InputStream in;
+    private long remaining;
 
-        if (len == -1) 
-          throw new HttpException("chunk eof after " + contentBytesRead
-                                      + " bytes in successful chunks"
-                                      + " and " + chunkBytesRead 
-                                      + " in current chunk");
+    LengthInputStream(InputStream in, long length) {
+      this.in = in;
+      this.remaining = length;
+    }
 
-        // DANGER!!! Will printed GZIPed stuff right to your
-        // terminal!
-        // if (LOG.isTraceEnabled()) { LOG.trace("read: " +  new String(bytes, 0, len)); }
+    boolean atEnd() {
+      return remaining == 0;
+    }
 
-        out.write(bytes, 0, len);
-        chunkBytesRead+= len;  
-      }
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining == 0) return -1;
+      int n = in.read(b, off, (int) Math.min(len, remaining));
+      if (n == -1) return -1;
+      remaining -= n;
+      return n;
+    }
+  }
 
-      readLine(in, line, false);
+  /** A body in chunked transfer encoding, followed by optional trailers. */
+  private class ChunkedInputStream extends BodyInputStream {
+    private PushbackInputStream in;
+    private StringBuffer line = new StringBuffer();
+    private int chunkRemaining;
+    private int bytesRead;
+    private boolean done;
 
+    ChunkedInputStream(PushbackInputStream in) {
+      this.in = in;
     }
 
-    if (!doneChunks) {
-      if (contentBytesRead != http.getMaxContent()) 
-        throw new HttpException("chunk eof: !doneChunk && didn't max out");
-      return;
+    boolean atEnd() {
+      return done;
     }
 
-    content = out.toByteArray();
-    parseHeaders(in, line);
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (done) return -1;
+      if (chunkRemaining == 0) {
+        if (bytesRead > 0) {
+          readLine(in, line, false);            // end of previous chunk
+        }
+        if (!nextChunk()) return -1;
+      }
+      int n = in.read(b, off, Math.min(len, chunkRemaining));
+      if (n == -1) {
+        throw new EOFException("chunk eof after " + bytesRead
+                               + " bytes in chunks");
+      }
+      chunkRemaining -= n;
+      bytesRead += n;
+      return n;
+    }
 
+    private boolean nextChunk() throws IOException {
+      if (Http.LOG.isTraceEnabled()) {
+        Http.LOG.trace("Http: starting chunk");
+      }
+      readLine(in, line, false);
+      int pos = line.indexOf(";");              // skip chunk extensions
+      String chunkLenStr = (pos < 0 ? line.toString()
+                            : line.substring(0, pos)).trim();
+      int chunkLen;
+      try {
+        chunkLen = Integer.parseInt(chunkLenStr, 16);
+      } catch (NumberFormatException e) {
+        throw new IOException("bad chunk length: " + line.toString());
+      }
+      if (chunkLen == 0) {
+        try {
+          parseHeaders(in, line);               // trailers
+        } catch (HttpException e) {
+          throw new IOException(e.getMessage());
+        }
+        done = true;
+        return false;
+      }
+      chunkRemaining = chunkLen;
+      return true;
+    }
   }
 
   private int parseStatusLine(PushbackInputStream in, StringBuffer line)
@@ -321,6 +393,8 @@ public class HttpResponse implements Response {
     if (codeEnd == -1) 
       codeEnd= line.length();
 
+    http11 = line.toString().startsWith("HTTP/1.1");
+
     int code;
     try {
       code= Integer.parseInt(line.substring(codeStart+1, codeEnd));
@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutch.protocol.http;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.net.protocols.Response;
+
+/**
+ * Test cases for persistent connections and compressed content in
+ * protocol-http, against a minimal embedded HTTP/1.1 server that counts the
+ * connections it accepts.
+ */
+public class TestProtocolHttp extends TestCase {
+
+  private static final String PAGE = "Nutch keep-alive test page";
+
+  private ServerSocket server;
+  private AtomicInteger connections = new AtomicInteger();
+  private Configuration conf;
+
+  protected void setUp() throws Exception {
+    server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    Thread acceptor = new Thread() {
+      public void run() {
+        while (true) {
+          try {
+            final Socket socket = server.accept();
+            connections.incrementAndGet();
+            Thread handler = new Thread() {
+              public void run() {
+                serve(socket);
+              }
+            };
+            handler.setDaemon(true);
+            handler.start();
+          } catch (IOException e) {
+            return;                               // server closed
+          }
+        }
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+
+    conf = new Configuration();
+    conf.addResource("nutch-default.xml");
+    conf.set("http.agent.name", "test-nutch");
+    conf.setBoolean("http.useHttp11", true);
+  }
+
+  protected void tearDown() throws Exception {
+    server.close();
+  }
+
+  public void testKeepAlive() throws Exception {
+    Http http = createHttp();
+    for (int i = 0; i < 3; i++) {
+      assertEquals(PAGE, new String(fetch(http, "/plain").getContent()));
+    }
+    assertEquals(1, connections.get());
+  }
+
+  public void testChunked() throws Exception {
+    Http http = createHttp();
+    assertEquals(PAGE, new String(fetch(http, "/chunked").getContent()));
+    assertEquals(PAGE, new String(fetch(http, "/chunked").getContent()));
+    assertEquals(1, connections.get());
+  }
+
+  public void testConnectionClose() throws Exception {
+    Http http = createHttp();
+    assertEquals(PAGE, new String(fetch(http, "/close").getContent()));
+    assertEquals(PAGE, new String(fetch(http, "/plain").getContent()));
+    assertEquals(2, connections.get());
+  }
+
+  public void testContentLimit() throws Exception {
+    conf.setInt("http.content.limit", 10);
+    Http http = createHttp();
+    assertEquals(PAGE.substring(0, 10), new String(fetch(http, "/chunked").getContent()));
+    // truncated body was left unread, so this needs a new connection
+    assertEquals(PAGE.substring(0, 10), new String(fetch(http, "/plain").getContent()));
+    assertEquals(2, connections.get());
+  }
+
+  public void testHttp10() throws Exception {
+    conf.setBoolean("http.useHttp11", false);
+    Http http = createHttp();
+    assertEquals(PAGE, new String(fetch(http, "/plain").getContent()));
+    assertEquals(PAGE, new String(fetch(http, "/plain").getContent()));
+    assertEquals(2, connections.get());
+  }
+
+  public void testGzip() throws Exception {
+    Http http = createHttp();
+    assertEquals(PAGE, new String(fetch(http, "/gzip").getContent()));
+    assertEquals(PAGE, new String(fetch(http, "/gzip-chunked").getContent()));
+    assertEquals(PAGE, new String(fetch(http, "/plain").getContent()));
+    assertEquals(1, connections.get());
+  }
+
+  public void testGzipContentLimit() throws Exception {
+    // the limit applies to the decompressed content
+    conf.setInt("http.content.limit", 10);
+    Http http = createHttp();
+    assertEquals(PAGE.substring(0, 10), new String(fetch(http, "/gzip").getContent()));
+    assertEquals(PAGE.substring(0, 10), new String(fetch(http, "/plain").getContent()));
+    assertEquals(2, connections.get());
+  }
+
+  private Http createHttp() {
+    Http http = new Http();
+    http.setConf(conf);
+    return http;
+  }
+
+  private Response fetch(Http http, String path) throws Exception {
+    URL url = new URL("http://127.0.0.1:" + server.getLocalPort() + path);
+    Response response = http.getResponse(url, new CrawlDatum(), true);
+    assertEquals(200, response.getCode());
+    return response;
+  }
+
+  /** Serve requests until the client closes the connection. */
+  private void serve(Socket socket) {
+    try {
+      BufferedReader in = new BufferedReader(
+          new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+      OutputStream out = socket.getOutputStream();
+      String request;
+      while ((request = in.readLine()) != null) {
+        String line;
+        while ((line = in.readLine()) != null && line.length() > 0) {
+          // skip request headers
+        }
+        String path = request.split(" ")[1];
+        boolean http11 = request.endsWith("HTTP/1.1");
+        if (path.startsWith("/gzip")) {
+          ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+          GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+          gzip.write(PAGE.getBytes("ISO-8859-1"));
+          gzip.close();
+          byte[] body = bytes.toByteArray();
+          if (path.startsWith("/gzip-chunked")) {
+            out.write(("HTTP/1.1 200 OK\r\n"
+                       + "Content-Encoding: gzip\r\n"
+                       + "Transfer-Encoding: chunked\r\n\r\n"
+                       + Integer.toHexString(body.length) + "\r\n")
+                      .getBytes("ISO-8859-1"));
+            out.write(body);
+            out.write("\r\n0\r\n\r\n".getBytes("ISO-8859-1"));
+          } else {
+            out.write(("HTTP/1.1 200 OK\r\n"
+                       + "Content-Encoding: gzip\r\n"
+                       + "Content-Length: " + body.length + "\r\n\r\n")
+                      .getBytes("ISO-8859-1"));
+            out.write(body);
+          }
+        } else if (path.startsWith("/chunked")) {
+          int half = PAGE.length() / 2;
+          out.write(("HTTP/1.1 200 OK\r\n"
+                     + "Transfer-Encoding: chunked\r\n\r\n"
+                     + Integer.toHexString(half) + "\r\n"
+                     + PAGE.substring(0, half) + "\r\n"
+                     + Integer.toHexString(PAGE.length() - half) + "\r\n"
+                     + PAGE.substring(half) + "\r\n"
+                     + "0\r\n\r\n").getBytes("ISO-8859-1"));
+        } else {
+          boolean close = !http11 || path.startsWith("/close");
+          out.write(("HTTP/1.1 200 OK\r\n"
+                     + (close ? "Connection: close\r\n" : "")
+                     + "Content-Length: " + PAGE.length() + "\r\n\r\n"
+                     + PAGE).getBytes("ISO-8859-1"));
+          if (close) {
+            out.flush();
+            return;
+          }
+        }
+        out.flush();
+      }
+    } catch (Exception e) {
+      // client went away
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {}
+    }
+  }
+
+}
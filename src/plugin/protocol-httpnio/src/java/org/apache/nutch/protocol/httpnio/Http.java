@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.protocol.httpnio;
+
+// JDK imports
+import java.io.IOException;
+import java.net.URL;
+
+// Commons Logging imports
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+// Hadoop imports
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+
+// Nutch imports
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.net.protocols.Response;
+import org.apache.nutch.protocol.AsyncProtocol;
+import org.apache.nutch.protocol.ProtocolException;
+import org.apache.nutch.protocol.ProtocolOutput;
+import org.apache.nutch.protocol.ProtocolStatus;
+import org.apache.nutch.protocol.http.api.HttpBase;
+import org.apache.nutch.util.NutchConfiguration;
+
+
+/**
+ * An HTTP protocol implementation that performs all network I/O on a small,
+ * JVM-wide set of {@link HttpSelector} threads using non-blocking channels.
+ * Threads calling {@link #getProtocolOutput(Text, CrawlDatum)} only wait for
+ * their response to complete, they never own a socket. As an
+ * {@link AsyncProtocol} it can also hand the output to a callback, so that
+ * one thread can keep many requests in flight.
+ */
+public class Http extends HttpBase implements AsyncProtocol {
+
+  public static final Log LOG = LogFactory.getLog(Http.class);
+
+  /** Selector threads shared by all instances in this JVM. */
+  private static HttpSelector[] selectors;
+
+  private static int nextSelector = 0;
+
+
+  public Http() {
+    super(LOG);
+  }
+
+  public void setConf(Configuration conf) {
+    super.setConf(conf);
+    initSelectors(conf.getInt("http.nio.selector.threads", 2));
+  }
+
+  private static synchronized void initSelectors(int count) {
+    if (selectors != null) return;
+    if (count < 1) count = 1;
+    HttpSelector[] threads = new HttpSelector[count];
+    for (int i = 0; i < count; i++) {
+      try {
+        threads[i] = new HttpSelector(i);
+      } catch (IOException e) {
+        throw new RuntimeException("Cannot open selector: " + e);
+      }
+      threads[i].start();
+    }
+    selectors = threads;
+    if (LOG.isInfoEnabled()) {
+      LOG.info("http.nio.selector.threads = " + count);
+    }
+  }
+
+  /** Hand out selector threads in round-robin order. */
+  static synchronized HttpSelector getSelector() {
+    HttpSelector selector = selectors[nextSelector];
+    nextSelector = (nextSelector + 1) % selectors.length;
+    return selector;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Http http = new Http();
+    http.setConf(NutchConfiguration.create());
+    main(http, args);
+  }
+
+  protected Response getResponse(URL url, CrawlDatum datum, boolean redirect)
+    throws ProtocolException, IOException {
+    HttpResponse response = new HttpResponse(this, url, datum);
+    response.submit();
+    response.await();
+    return response;
+  }
+
+  /**
+   * Fetch without waiting. The callback is called by a selector thread,
+   * which also decodes compressed content. If this instance checks robot
+   * rules or blocks hosts itself, the fetch is done in the calling thread.
+   */
+  public void getProtocolOutput(final Text url, CrawlDatum datum,
+                                final Callback callback) {
+    if (checkRobots || checkBlocking) {
+      callback.done(getProtocolOutput(url, datum));
+      return;
+    }
+    final HttpResponse response;
+    try {
+      response = new HttpResponse(this, new URL(url.toString()), datum);
+    } catch (Exception e) {
+      callback.done(new ProtocolOutput(null, new ProtocolStatus(e)));
+      return;
+    }
+    response.submit(new Runnable() {
+      public void run() {
+        ProtocolOutput output;
+        try {
+          response.await();
+          output = getProtocolOutput(url, response);
+        } catch (Exception e) {
+          output = new ProtocolOutput(null, new ProtocolStatus(e));
+        }
+        callback.done(output);
+      }
+    });
+  }
+
+}
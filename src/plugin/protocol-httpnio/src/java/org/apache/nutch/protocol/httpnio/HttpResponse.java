@@ -0,0 +1,494 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.protocol.httpnio;
+
+// JDK imports
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+
+// Nutch imports
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.metadata.Metadata;
+import org.apache.nutch.metadata.SpellCheckedMetadata;
+import org.apache.nutch.net.protocols.HttpDateFormat;
+import org.apache.nutch.net.protocols.Response;
+import org.apache.nutch.protocol.ProtocolException;
+import org.apache.nutch.protocol.http.api.HttpBase;
+import org.apache.nutch.protocol.http.api.HttpException;
+
+
+/**
+ * An HTTP response, read incrementally by an {@link HttpSelector}.
+ *
+ * <p>The response is created without doing any I/O. {@link #submit()} hands
+ * it to a selector thread, which connects, writes the request and feeds the
+ * incoming bytes to a small state machine as they arrive. {@link #await()}
+ * blocks the calling thread until the response is complete or failed, or a
+ * listener passed to {@link #submit(Runnable)} is told when it is.
+ */
+public class HttpResponse implements Response {
+
+  /** Maximum size of the status line and headers. */
+  private static final int MAX_HEADER_SIZE = 64 * 1024;
+
+  // parser states
+  private static final int STATUS_LINE = 0;
+  private static final int HEADERS = 1;
+  private static final int BODY = 2;
+  private static final int CHUNK_SIZE = 3;
+  private static final int CHUNK_DATA = 4;
+  private static final int CHUNK_END = 5;
+  private static final int TRAILERS = 6;
+  private static final int DONE = 7;
+
+  private HttpBase http;
+  private URL url;
+  private InetSocketAddress address;
+  private ByteBuffer request;
+  private int code;
+  private Metadata headers = new SpellCheckedMetadata();
+  private byte[] content;
+
+  // parser state, only touched by the selector thread
+  private int state = STATUS_LINE;
+  private byte[] buf = new byte[Http.BUFFER_SIZE];
+  private int pos = 0;
+  private int limit = 0;
+  private int headerBytes = 0;               // status line and headers only
+  private String lastHeader = null;
+  private ByteArrayOutputStream body;
+  private int remaining;
+  private int maxContent;
+
+  // connection state, only touched by the selector thread
+  SocketChannel channel;
+  long deadline;
+
+  private CountDownLatch done = new CountDownLatch(1);
+  private volatile Exception failure;
+  private Runnable listener;
+
+
+  public HttpResponse(HttpBase http, URL url, CrawlDatum datum)
+    throws ProtocolException, IOException {
+
+    this.http = http;
+    this.url = url;
+    this.maxContent = http.getMaxContent();
+
+    if (!"http".equals(url.getProtocol()))
+      throw new HttpException("Not an HTTP url:" + url);
+
+    String path = "".equals(url.getFile()) ? "/" : url.getFile();
+
+    // some servers will redirect a request with a host line like
+    // "Host: <hostname>:80" to "http://<hpstname>/<orig_path>"- they
+    // don't want the :80...
+
+    String host = url.getHost();
+    int port;
+    String portString;
+    if (url.getPort() == -1) {
+      port= 80;
+      portString= "";
+    } else {
+      port= url.getPort();
+      portString= ":" + port;
+    }
+
+    String sockHost = http.useProxy() ? http.getProxyHost() : host;
+    int sockPort = http.useProxy() ? http.getProxyPort() : port;
+    try {
+      address = new InetSocketAddress(http.resolve(sockHost), sockPort);
+    } catch (UnknownHostException e) {
+      throw new HttpException("Unknown host: " + sockHost);
+    }
+
+    StringBuffer reqStr = new StringBuffer("GET ");
+    if (http.useProxy()) {
+      reqStr.append(url.getProtocol()+"://"+host+portString+path);
+    } else {
+      reqStr.append(path);
+    }
+
+    reqStr.append(" HTTP/1.0\r\n");
+
+    reqStr.append("Host: ");
+    reqStr.append(host);
+    reqStr.append(portString);
+    reqStr.append("\r\n");
+
+    reqStr.append("Accept-Encoding: x-gzip, gzip, deflate\r\n");
+
+    String userAgent = http.getUserAgent();
+    if ((userAgent == null) || (userAgent.length() == 0)) {
+      if (Http.LOG.isFatalEnabled()) { Http.LOG.fatal("User-agent is not set!"); }
+    } else {
+      reqStr.append("User-Agent: ");
+      reqStr.append(userAgent);
+      reqStr.append("\r\n");
+    }
+
+    if (datum.getModifiedTime() > 0) {
+      reqStr.append("If-Modified-Since: " + HttpDateFormat.toString(datum.getModifiedTime()));
+      reqStr.append("\r\n");
+    }
+    reqStr.append("\r\n");
+
+    request = ByteBuffer.wrap(reqStr.toString().getBytes());
+  }
+
+
+  /** Queue this request on one of the selector threads. */
+  public void submit() {
+    if (Http.LOG.isTraceEnabled()) {
+      Http.LOG.trace("fetching " + url);
+    }
+    Http.getSelector().submit(this);
+  }
+
+  /**
+   * Queue this request on one of the selector threads, which runs the
+   * listener once the response is complete or failed. From then on
+   * {@link #await()} returns without blocking.
+   */
+  public void submit(Runnable listener) {
+    this.listener = listener;
+    submit();
+  }
+
+  /**
+   * Wait until the response has been read, and decode its content.
+   * @throws IOException if the request failed or timed out
+   * @throws ProtocolException if the response could not be parsed
+   */
+  public void await() throws ProtocolException, IOException {
+    try {
+      done.await();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while fetching " + url);
+    }
+    if (failure instanceof ProtocolException) {
+      throw (ProtocolException) failure;
+    } else if (failure instanceof IOException) {
+      throw (IOException) failure;
+    } else if (failure != null) {
+      IOException e = new IOException(failure.toString());
+      e.initCause(failure);
+      throw e;
+    }
+
+    content = (body == null) ? new byte[0] : body.toByteArray();
+    body = null;
+
+    String contentEncoding = getHeader(Response.CONTENT_ENCODING);
+    if ("gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding)) {
+      content = http.processGzipEncoded(content, url);
+    } else if ("deflate".equals(contentEncoding)) {
+      content = http.processDeflateEncoded(content, url);
+    } else {
+      if (Http.LOG.isTraceEnabled()) {
+        Http.LOG.trace("fetched " + content.length + " bytes from " + url);
+      }
+    }
+  }
+
+
+  /* ------------------------- *
+   * <implementation:Response> *
+   * ------------------------- */
+
+  public URL getUrl() {
+    return url;
+  }
+
+  public int getCode() {
+    return code;
+  }
+
+  public String getHeader(String name) {
+    return headers.get(name);
+  }
+
+  public Metadata getHeaders() {
+    return headers;
+  }
+
+  public byte[] getContent() {
+    return content;
+  }
+
+  /* ------------------------- *
+   * <implementation:Response> *
+   * ------------------------- */
+
+
+  /* ----------------------------- *
+   * <called by the selector thread> *
+   * ----------------------------- */
+
+  InetSocketAddress getAddress() {
+    return address;
+  }
+
+  ByteBuffer getRequest() {
+    return request;
+  }
+
+  /** Push the deadline back by one network timeout. */
+  void touch(long now) {
+    deadline = now + http.getTimeout();
+  }
+
+  boolean isDone() {
+    return state == DONE;
+  }
+
+  void complete() {
+    done.countDown();
+    notifyListener();
+  }
+
+  void fail(Exception e) {
+    failure = e;
+    done.countDown();
+    notifyListener();
+  }
+
+  private void notifyListener() {
+    if (listener == null) return;
+    try {
+      listener.run();
+    } catch (RuntimeException e) {
+      Http.LOG.warn("Listener failed for " + url + ": " + e);
+    }
+  }
+
+  /** Consume bytes read from the channel. */
+  void feed(ByteBuffer in) throws HttpException {
+    int len = in.remaining();
+    if (limit + len > buf.length) {
+      // compact, then grow if still needed
+      System.arraycopy(buf, pos, buf, 0, limit - pos);
+      limit -= pos;
+      pos = 0;
+      if (limit + len > buf.length) {
+        byte[] bigger = new byte[Math.max(buf.length * 2, limit + len)];
+        System.arraycopy(buf, 0, bigger, 0, limit);
+        buf = bigger;
+      }
+    }
+    in.get(buf, limit, len);
+    limit += len;
+    parse();
+  }
+
+  /** The server closed the connection. */
+  void eof() throws IOException, HttpException {
+    if (state == BODY) {
+      // body ends with the connection, or was cut short
+      state = DONE;
+    } else if (state == CHUNK_SIZE || state == CHUNK_DATA
+               || state == CHUNK_END || state == TRAILERS) {
+      throw new HttpException("chunk eof after " + body.size() + " bytes");
+    } else if (state != DONE) {
+      throw new EOFException("Connection closed before headers from " + url);
+    }
+  }
+
+  private void parse() throws HttpException {
+    while (state != DONE) {
+      if (state == BODY || state == CHUNK_DATA) {
+        int avail = limit - pos;
+        if (avail == 0) return;
+        int len = Math.min(avail, remaining);
+        len = Math.min(len, contentRoom());
+        body.write(buf, pos, len);
+        pos += len;
+        remaining -= len;
+        if (contentRoom() == 0) {
+          state = DONE;                           // limit download size
+        } else if (remaining == 0) {
+          state = (state == BODY) ? DONE : CHUNK_END;
+        }
+        continue;
+      }
+
+      String line = readLine();
+      if (line == null) return;                   // need more bytes
+
+      switch (state) {
+      case STATUS_LINE:
+        if (line.length() == 0) break;            // tolerate leading CRLF
+        code = parseStatusLine(line);
+        state = HEADERS;
+        break;
+      case HEADERS:
+        if (line.length() == 0) {
+          startBody();
+        } else {
+          processHeaderLine(line);
+        }
+        break;
+      case CHUNK_SIZE:
+        int chunkLen = parseChunkLength(line);
+        if (chunkLen == 0) {
+          state = TRAILERS;
+        } else {
+          remaining = chunkLen;
+          state = CHUNK_DATA;
+        }
+        break;
+      case CHUNK_END:
+        state = CHUNK_SIZE;
+        break;
+      case TRAILERS:
+        if (line.length() == 0) {
+          state = DONE;
+        } else {
+          processHeaderLine(line);
+        }
+        break;
+      }
+    }
+  }
+
+  private void startBody() throws HttpException {
+    if (code == 100) {                            // 100 is "Continue"
+      headers = new SpellCheckedMetadata();
+      lastHeader = null;
+      state = STATUS_LINE;
+      return;
+    }
+    body = new ByteArrayOutputStream(Http.BUFFER_SIZE);
+    if (code == 204 || code == 304) {
+      state = DONE;
+      return;
+    }
+    String transferEncoding = headers.get(Response.TRANSFER_ENCODING);
+    if (transferEncoding != null
+        && "chunked".equalsIgnoreCase(transferEncoding.trim())) {
+      state = CHUNK_SIZE;
+      return;
+    }
+    remaining = Integer.MAX_VALUE;                // read until closed
+    String contentLengthString = headers.get(Response.CONTENT_LENGTH);
+    if (contentLengthString != null) {
+      contentLengthString = contentLengthString.trim();
+      try {
+        remaining = Integer.parseInt(contentLengthString);
+      } catch (NumberFormatException e) {
+        throw new HttpException("bad content length: "+contentLengthString);
+      }
+    }
+    state = (remaining == 0) ? DONE : BODY;
+  }
+
+  private int contentRoom() {
+    if (maxContent < 0) return Integer.MAX_VALUE;
+    return maxContent - body.size();
+  }
+
+  /**
+   * Return the next line without its terminator, or null if the line is
+   * not complete yet.
+   */
+  private String readLine() throws HttpException {
+    for (int i = pos; i < limit; i++) {
+      if (buf[i] == '\n') {
+        int end = i;
+        if (end > pos && buf[end - 1] == '\r') end--;
+        StringBuffer line = new StringBuffer(end - pos);
+        for (int j = pos; j < end; j++) {
+          line.append((char) (buf[j] & 0xff));
+        }
+        if (state == STATUS_LINE || state == HEADERS) {
+          headerBytes += i + 1 - pos;
+        }
+        pos = i + 1;
+        return line.toString();
+      }
+    }
+    if (headerBytes + limit - pos > MAX_HEADER_SIZE) {
+      throw new HttpException("Header line too long from " + url);
+    }
+    return null;
+  }
+
+  private int parseStatusLine(String line) throws HttpException {
+    int codeStart = line.indexOf(" ");
+    int codeEnd = line.indexOf(" ", codeStart+1);
+
+    // handle lines with no plaintext result code, ie:
+    // "HTTP/1.1 200" vs "HTTP/1.1 200 OK"
+    if (codeEnd == -1)
+      codeEnd= line.length();
+
+    try {
+      return Integer.parseInt(line.substring(codeStart+1, codeEnd).trim());
+    } catch (NumberFormatException e) {
+      throw new HttpException("bad status line '" + line
+                              + "': " + e.getMessage(), e);
+    }
+  }
+
+  private int parseChunkLength(String line) throws HttpException {
+    int pos = line.indexOf(";");
+    String chunkLenStr = (pos < 0) ? line : line.substring(0, pos);
+    try {
+      return Integer.parseInt(chunkLenStr.trim(), 16);
+    } catch (NumberFormatException e){
+      throw new HttpException("bad chunk length: " + line);
+    }
+  }
+
+  private void processHeaderLine(String line) throws HttpException {
+    char first = line.charAt(0);
+    if ((first == ' ' || first == '\t') && lastHeader != null) {
+      // line is continued
+      headers.set(lastHeader, headers.get(lastHeader) + " " + line.trim());
+      return;
+    }
+    int colonIndex = line.indexOf(":");       // key is up to colon
+    if (colonIndex == -1) {
+      if (line.trim().length() == 0)
+        return;
+      throw new HttpException("No colon in header:" + line);
+    }
+    String key = line.substring(0, colonIndex);
+
+    int valueStart = colonIndex+1;            // skip whitespace
+    while (valueStart < line.length()) {
+      int c = line.charAt(valueStart);
+      if (c != ' ' && c != '\t')
+        break;
+      valueStart++;
+    }
+    String value = line.substring(valueStart);
+    headers.set(key, value);
+    lastHeader = key;
+  }
+
+}
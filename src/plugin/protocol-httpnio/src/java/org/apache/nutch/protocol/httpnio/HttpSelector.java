@@ -0,0 +1,169 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.protocol.httpnio;
+
+// JDK imports
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * A thread multiplexing many HTTP connections over one {@link Selector}.
+ *
+ * <p>Requests are queued by {@link #submit(HttpResponse)} from any thread,
+ * and picked up on the next pass of the select loop. All socket operations
+ * are non-blocking; a single direct read buffer is shared by all connections
+ * of this thread. Connections that see no progress for <code>http.timeout</code>
+ * milliseconds are failed with a {@link SocketTimeoutException}.
+ */
+class HttpSelector extends Thread {
+
+  /** How often idle connections are checked for timeouts. */
+  private static final long TIMEOUT_CHECK_INTERVAL = 100;
+
+  private Selector selector;
+  private ConcurrentLinkedQueue<HttpResponse> pending =
+    new ConcurrentLinkedQueue<HttpResponse>();
+  private ByteBuffer readBuffer = ByteBuffer.allocateDirect(Http.BUFFER_SIZE);
+  private long lastTimeoutCheck = 0;
+
+  HttpSelector(int id) throws IOException {
+    this.selector = Selector.open();
+    this.setDaemon(true);
+    this.setName("HttpSelector-" + id);
+  }
+
+  /** Queue a request; the selector thread will connect and send it. */
+  void submit(HttpResponse response) {
+    pending.add(response);
+    selector.wakeup();
+  }
+
+  public void run() {
+    while (true) {
+      try {
+        register();
+        selector.select(TIMEOUT_CHECK_INTERVAL);
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+          process(key);
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastTimeoutCheck >= TIMEOUT_CHECK_INTERVAL) {
+          expire(now);
+          lastTimeoutCheck = now;
+        }
+      } catch (Throwable t) {
+        // never let one bad connection kill the thread
+        Http.LOG.warn(getName() + " caught: " + t);
+      }
+    }
+  }
+
+  private void register() {
+    HttpResponse response;
+    long now = System.currentTimeMillis();
+    while ((response = pending.poll()) != null) {
+      SocketChannel channel = null;
+      try {
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        response.channel = channel;
+        response.touch(now);
+        if (channel.connect(response.getAddress())) {
+          channel.register(selector, SelectionKey.OP_WRITE, response);
+        } else {
+          channel.register(selector, SelectionKey.OP_CONNECT, response);
+        }
+      } catch (IOException e) {
+        close(channel);
+        response.fail(e);
+      }
+    }
+  }
+
+  private void process(SelectionKey key) {
+    HttpResponse response = (HttpResponse) key.attachment();
+    SocketChannel channel = response.channel;
+    try {
+      if (!key.isValid()) {
+        return;
+      }
+      if (key.isConnectable()) {
+        if (channel.finishConnect()) {
+          key.interestOps(SelectionKey.OP_WRITE);
+        }
+      } else if (key.isWritable()) {
+        channel.write(response.getRequest());
+        if (!response.getRequest().hasRemaining()) {
+          key.interestOps(SelectionKey.OP_READ);
+        }
+      } else if (key.isReadable()) {
+        readBuffer.clear();
+        int n = channel.read(readBuffer);
+        if (n == -1) {
+          response.eof();
+        } else {
+          readBuffer.flip();
+          response.feed(readBuffer);
+        }
+        if (n == -1 || response.isDone()) {
+          key.cancel();
+          close(channel);
+          response.complete();
+          return;
+        }
+      }
+      response.touch(System.currentTimeMillis());
+    } catch (Exception e) {
+      key.cancel();
+      close(channel);
+      response.fail(e);
+    }
+  }
+
+  private void expire(long now) {
+    for (SelectionKey key : selector.keys()) {
+      if (!key.isValid()) continue;             // already finished
+      HttpResponse response = (HttpResponse) key.attachment();
+      if (response.deadline <= now) {
+        key.cancel();
+        close(response.channel);
+        response.fail(new SocketTimeoutException("Timed out fetching "
+                                                 + response.getUrl()));
+      }
+    }
+  }
+
+  private static void close(SocketChannel channel) {
+    if (channel == null) return;
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutch.protocol.httpnio;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.crawl.CrawlDatum;
+
+/**
+ * Test cases for protocol-httpnio, against a minimal embedded HTTP server
+ * that serves each connection on its own thread.
+ */
+public class TestProtocolHttpNio extends TestCase {
+
+  private static final String PAGE = "Nutch non-blocking fetcher test page";
+  private static final int SLOW_DELAY = 1000;
+
+  private ServerSocket server;
+  private Configuration conf;
+  private Http http;
+
+  protected void setUp() throws Exception {
+    server = new ServerSocket(0, 1000, InetAddress.getByName("127.0.0.1"));
+    Thread acceptor = new Thread() {
+      public void run() {
+        while (true) {
+          try {
+            final Socket socket = server.accept();
+            Thread handler = new Thread() {
+              public void run() {
+                serve(socket);
+              }
+            };
+            handler.setDaemon(true);
+            handler.start();
+          } catch (IOException e) {
+            return;                               // server closed
+          }
+        }
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+
+    conf = new Configuration();
+    conf.addResource("nutch-default.xml");
+    conf.set("http.agent.name", "test-nutch");
+    conf.setInt("http.timeout", 5000);
+    http = new Http();
+    http.setConf(conf);
+  }
+
+  protected void tearDown() throws Exception {
+    server.close();
+  }
+
+  public void testFetch() throws Exception {
+    HttpResponse response = fetch("/plain");
+    assertEquals(200, response.getCode());
+    assertEquals("text/plain", response.getHeader("Content-Type"));
+    assertEquals(PAGE, new String(response.getContent()));
+  }
+
+  public void testChunked() throws Exception {
+    HttpResponse response = fetch("/chunked");
+    assertEquals(200, response.getCode());
+    assertEquals(PAGE, new String(response.getContent()));
+  }
+
+  public void testContentLimit() throws Exception {
+    conf.setInt("http.content.limit", 10);
+    http.setConf(conf);
+    assertEquals(PAGE.substring(0, 10), new String(fetch("/plain").getContent()));
+    assertEquals(PAGE.substring(0, 10), new String(fetch("/chunked").getContent()));
+  }
+
+  public void testTimeout() throws Exception {
+    conf.setInt("http.timeout", 500);
+    http.setConf(conf);
+    try {
+      fetch("/hang");
+      fail("Expected a timeout");
+    } catch (SocketTimeoutException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Keep many slow requests in flight from a single calling thread. With
+   * blocking sockets this would need one thread per request.
+   */
+  public void testConcurrentFetches() throws Exception {
+    int count = 200;
+    HttpResponse[] responses = new HttpResponse[count];
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < count; i++) {
+      responses[i] = new HttpResponse(http, url("/slow?" + i), new CrawlDatum());
+      responses[i].submit();
+    }
+    for (int i = 0; i < count; i++) {
+      responses[i].await();
+      assertEquals(200, responses[i].getCode());
+      assertEquals(PAGE, new String(responses[i].getContent()));
+    }
+    long elapsed = System.currentTimeMillis() - start;
+    // sequentially this takes count * SLOW_DELAY, ten blocking threads
+    // would need count / 10 * SLOW_DELAY.
+    assertTrue("took " + elapsed + " ms", elapsed < count / 10 * SLOW_DELAY);
+  }
+
+  private HttpResponse fetch(String path) throws Exception {
+    return (HttpResponse) http.getResponse(url(path), new CrawlDatum(), true);
+  }
+
+  private URL url(String path) throws Exception {
+    return new URL("http://127.0.0.1:" + server.getLocalPort() + path);
+  }
+
+  private void serve(Socket socket) {
+    try {
+      BufferedReader in = new BufferedReader(
+          new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+      String request = in.readLine();
+      String line;
+      while ((line = in.readLine()) != null && line.length() > 0) {
+        // skip request headers
+      }
+      String path = request.split(" ")[1];
+      OutputStream out = socket.getOutputStream();
+      if (path.startsWith("/hang")) {
+        Thread.sleep(10 * SLOW_DELAY);
+        return;
+      }
+      if (path.startsWith("/slow")) {
+        Thread.sleep(SLOW_DELAY);
+      }
+      if (path.startsWith("/chunked")) {
+        StringBuffer resp = new StringBuffer();
+        resp.append("HTTP/1.1 200 OK\r\n");
+        resp.append("Content-Type: text/plain\r\n");
+        resp.append("Transfer-Encoding: chunked\r\n\r\n");
+        int half = PAGE.length() / 2;
+        resp.append(Integer.toHexString(half) + "\r\n" + PAGE.substring(0, half) + "\r\n");
+        resp.append(Integer.toHexString(PAGE.length() - half) + ";ext=1\r\n"
+                    + PAGE.substring(half) + "\r\n");
+        resp.append("0\r\n\r\n");
+        out.write(resp.toString().getBytes("ISO-8859-1"));
+      } else {
+        out.write(("HTTP/1.0 200 OK\r\n"
+                   + "Content-Type: text/plain\r\n"
+                   + "Content-Length: " + PAGE.length() + "\r\n\r\n"
+                   + PAGE).getBytes("ISO-8859-1"));
+      }
+      out.flush();
+    } catch (Exception e) {
+      // client went away
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {}
+    }
+  }
+
+}
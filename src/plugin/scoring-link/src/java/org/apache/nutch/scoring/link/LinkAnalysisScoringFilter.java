@@ -82,4 +82,11 @@ public class LinkAnalysisScoringFilter
     // nothing to do
   }
 
+  public boolean mergeInlinked(Text url, CrawlDatum merged,
+    CrawlDatum inlinked)
+    throws ScoringFilterException {
+    // inlinked datums are not used
+    return true;
+  }
+
 }
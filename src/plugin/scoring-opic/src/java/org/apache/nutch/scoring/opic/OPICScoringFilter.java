@@ -103,6 +103,12 @@ public class OPICScoringFilter implements ScoringFilter {
     datum.setScore(old.getScore() + adjust);
   }
 
+  /** Add the score of <code>inlinked</code>, as updateDbScore sums them. */
+  public boolean mergeInlinked(Text url, CrawlDatum merged, CrawlDatum inlinked) {
+    merged.setScore(merged.getScore() + inlinked.getScore());
+    return true;
+  }
+
   /** Store a float value of CrawlDatum.getScore() under Fetcher.SCORE_KEY. */
   public void passScoreBeforeParsing(Text url, CrawlDatum datum, Content content) {
     content.getMetadata().set(Nutch.SCORE_KEY, "" + datum.getScore());
@@ -97,6 +97,11 @@ public class TLDScoringFilter implements ScoringFilter {
       List inlinked) throws ScoringFilterException {
   }
 
+  public boolean mergeInlinked(Text url, CrawlDatum merged,
+      CrawlDatum inlinked) throws ScoringFilterException {
+    return true;
+  }
+
   public Configuration getConf() {
     return conf;
   }
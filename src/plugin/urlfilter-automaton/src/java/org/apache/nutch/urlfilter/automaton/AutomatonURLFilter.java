@@ -25,6 +25,7 @@ import java.util.regex.PatternSyntaxException;
 import org.apache.hadoop.conf.Configuration;
 
 // Automaton imports
+import dk.brics.automaton.Automaton;
 import dk.brics.automaton.RegExp;
 import dk.brics.automaton.RunAutomaton;
 import org.apache.nutch.net.*;
@@ -56,6 +57,11 @@ public class AutomatonURLFilter extends RegexURLFilterBase {
     super(reader);
   }
 
+  AutomatonURLFilter(Reader reader, boolean compile)
+    throws IOException, IllegalArgumentException {
+    super(reader, compile);
+  }
+
   
   /* ----------------------------------- *
    * <implementation:RegexURLFilterBase> *
@@ -83,16 +89,22 @@ public class AutomatonURLFilter extends RegexURLFilterBase {
 
   private class Rule extends RegexRule {
     
+    private RegExp regexp;
     private RunAutomaton automaton;
     
     Rule(boolean sign, String regex) {
       super(sign, regex);
-      automaton = new RunAutomaton(new RegExp(regex, RegExp.ALL).toAutomaton());
+      regexp = new RegExp(regex, RegExp.ALL);
+      automaton = new RunAutomaton(regexp.toAutomaton());
     }
 
     protected boolean match(String url) {
       return automaton.run(url);
     }
+
+    protected Automaton toAutomaton() {
+      return regexp.toAutomaton();
+    }
   }
   
 }
@@ -49,9 +49,9 @@ public class TestAutomatonURLFilter extends RegexURLFilterBaseTest {
     TestRunner.run(suite());
   }
 
-  protected URLFilter getURLFilter(Reader rules) {
+  protected URLFilter getURLFilter(Reader rules, boolean compile) {
     try {
-      return new AutomatonURLFilter(rules);
+      return new AutomatonURLFilter(rules, compile);
     } catch (IOException e) {
       fail(e.toString());
       return null;
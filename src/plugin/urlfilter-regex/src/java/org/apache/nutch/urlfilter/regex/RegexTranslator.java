@@ -0,0 +1,259 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.urlfilter.regex;
+
+// Automaton imports
+import dk.brics.automaton.Automaton;
+import dk.brics.automaton.RegExp;
+
+
+/**
+ * Translates a {@link java.util.regex.Pattern Java regular expression} into
+ * an automaton that accepts exactly the strings in which
+ * {@link java.util.regex.Matcher#find()} finds a match.
+ *
+ * <p>Only the regular subset of the Java syntax is supported: literals and
+ * escaped punctuation, <code>.</code>, character classes without nesting or
+ * intersection, the predefined classes <code>\d \w \s</code> and their
+ * negations, groups, alternation, greedy and reluctant quantifiers, and
+ * <code>^</code> and <code>$</code> at the start and end of the expression.
+ * Anything else, such as back references, flags, look-around or possessive
+ * quantifiers, makes the translation fail.</p>
+ */
+class RegexTranslator {
+
+  /** The characters Java's <code>.</code> and <code>$</code> treat as line ends. */
+  private static final String LINE_TERMINATORS = "\n\r\u0085\u2028\u2029";
+
+  private static final String DIGIT = "0-9";
+  private static final String WORD = "a-zA-Z\\_0-9";
+  private static final String SPACE =
+    literal(' ') + literal('\t') + literal('\n') + literal('\u000B')
+    + literal('\f') + literal('\r');
+
+  private RegexTranslator() {}
+
+  /**
+   * Translate a Java regular expression.
+   * @return an automaton accepting the strings that contain a match, or
+   *         <code>null</code> if the expression is not supported.
+   */
+  static Automaton toAutomaton(String regex) {
+    int i = 0;
+    int n = regex.length();
+    boolean start = false;
+    boolean end = false;
+    if (n > 0 && regex.charAt(0) == '^') {
+      start = true;
+      i++;
+    }
+    if (n > i && regex.charAt(n - 1) == '$' && !isEscaped(regex, n - 1)) {
+      end = true;
+      n--;
+    }
+
+    StringBuffer out = new StringBuffer();
+    int depth = 0;
+    boolean alternation = false;
+    boolean quantifiable = false;
+    while (i < n) {
+      char c = regex.charAt(i);
+      switch (c) {
+      case '\\':
+        if (i + 1 >= n) return null;
+        String escape = escape(regex.charAt(i + 1), false);
+        if (escape == null) return null;
+        out.append(escape);
+        i += 2;
+        quantifiable = true;
+        break;
+      case '[':
+        i = charClass(regex, i, n, out);
+        if (i < 0) return null;
+        quantifiable = true;
+        break;
+      case '(':
+        if (i + 1 < n && regex.charAt(i + 1) == '?') {
+          if (i + 2 < n && regex.charAt(i + 2) == ':') {
+            i += 3;                               // non-capturing group
+          } else {
+            return null;                          // flags or look-around
+          }
+        } else {
+          i++;
+        }
+        out.append('(');
+        depth++;
+        quantifiable = false;
+        break;
+      case ')':
+        if (depth == 0) return null;
+        out.append(')');
+        depth--;
+        i++;
+        quantifiable = true;
+        break;
+      case '|':
+        if (depth == 0) alternation = true;
+        out.append('|');
+        i++;
+        quantifiable = false;
+        break;
+      case '*': case '+': case '?':
+        if (!quantifiable) return null;
+        out.append(c);
+        i = quantifierMode(regex, i + 1, n);
+        if (i < 0) return null;
+        quantifiable = false;
+        break;
+      case '{':
+        int close = regex.indexOf('}', i);
+        if (!quantifiable || close < 0 || close >= n) return null;
+        String bounds = regex.substring(i + 1, close);
+        if (!bounds.matches("[0-9]+(,[0-9]*)?")) return null;
+        out.append('{').append(bounds).append('}');
+        i = quantifierMode(regex, close + 1, n);
+        if (i < 0) return null;
+        quantifiable = false;
+        break;
+      case '.':
+        out.append("[^");
+        for (int j = 0; j < LINE_TERMINATORS.length(); j++) {
+          out.append(literal(LINE_TERMINATORS.charAt(j)));
+        }
+        out.append(']');
+        i++;
+        quantifiable = true;
+        break;
+      case '^': case '$':
+        return null;                              // anchors inside
+      default:
+        out.append(literal(c));
+        i++;
+        quantifiable = true;
+      }
+    }
+    if (depth != 0 || ((start || end) && alternation)) {
+      return null;
+    }
+
+    Automaton automaton;
+    try {
+      automaton = out.length() == 0 ? Automaton.makeEmptyString()
+        : new RegExp(out.toString(), RegExp.NONE).toAutomaton();
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    if (!start) {
+      automaton = Automaton.makeAnyString().concatenate(automaton);
+    }
+    if (end) {
+      // $ also matches before a line terminator at the end of input
+      Automaton terminator = Automaton.makeString("\r\n")
+        .union(Automaton.makeCharSet(LINE_TERMINATORS));
+      automaton = automaton.concatenate(terminator.optional());
+    } else {
+      automaton = automaton.concatenate(Automaton.makeAnyString());
+    }
+    return automaton;
+  }
+
+  /** Skip a reluctant mark, refuse possessive quantifiers. */
+  private static int quantifierMode(String regex, int i, int n) {
+    if (i < n && regex.charAt(i) == '?') return i + 1;
+    if (i < n && regex.charAt(i) == '+') return -1;
+    return i;
+  }
+
+  /** Translate a character class, return the index after it or -1. */
+  private static int charClass(String regex, int i, int n, StringBuffer out) {
+    StringBuffer cls = new StringBuffer("[");
+    i++;
+    if (i < n && regex.charAt(i) == '^') {
+      cls.append('^');
+      i++;
+    }
+    int first = i;
+    boolean single = false;                       // last item is one char
+    while (i < n) {
+      char c = regex.charAt(i);
+      if (c == ']' && i > first) {
+        out.append(cls).append(']');
+        return i + 1;
+      }
+      if (c == '[' || c == ']'
+          || (c == '&' && i + 1 < n && regex.charAt(i + 1) == '&')) {
+        return -1;                                // nesting, intersection
+      }
+      if (c == '\\') {
+        if (i + 1 >= n) return -1;
+        String escape = escape(regex.charAt(i + 1), true);
+        if (escape == null) return -1;
+        cls.append(escape);
+        single = escape.length() <= 2;
+        i += 2;
+      } else if (c == '-' && single && i + 1 < n && regex.charAt(i + 1) != ']') {
+        char next = regex.charAt(i + 1);
+        if (next == '\\' || next == '[') return -1;
+        cls.append('-').append(literal(next));    // a range
+        single = false;
+        i += 2;
+      } else {
+        cls.append(literal(c));
+        single = true;
+        i++;
+      }
+    }
+    return -1;
+  }
+
+  /** Translate the escape sequence <code>\c</code>, or return null. */
+  private static String escape(char c, boolean inClass) {
+    switch (c) {
+    case 't': return literal('\t');
+    case 'n': return literal('\n');
+    case 'r': return literal('\r');
+    case 'f': return literal('\f');
+    case 'a': return literal('\u0007');
+    case 'e': return literal('\u001B');
+    case 'd': return inClass ? DIGIT : "[" + DIGIT + "]";
+    case 'w': return inClass ? WORD : "[" + WORD + "]";
+    case 's': return inClass ? SPACE : "[" + SPACE + "]";
+    case 'D': return inClass ? null : "[^" + DIGIT + "]";
+    case 'W': return inClass ? null : "[^" + WORD + "]";
+    case 'S': return inClass ? null : "[^" + SPACE + "]";
+    }
+    if (Character.isLetterOrDigit(c)) {
+      return null;                    // back references, \b, \p{...}, ...
+    }
+    return literal(c);
+  }
+
+  /** A literal character in the automaton syntax. */
+  private static String literal(char c) {
+    return Character.isLetterOrDigit(c) ? String.valueOf(c) : "\\" + c;
+  }
+
+  private static boolean isEscaped(String regex, int i) {
+    int backslashes = 0;
+    while (i > 0 && regex.charAt(--i) == '\\') {
+      backslashes++;
+    }
+    return backslashes % 2 == 1;
+  }
+
+}
@@ -29,10 +29,17 @@ import org.apache.nutch.urlfilter.api.RegexRule;
 import org.apache.nutch.urlfilter.api.RegexURLFilterBase;
 import org.apache.nutch.util.NutchConfiguration;
 
+// Automaton imports
+import dk.brics.automaton.Automaton;
+
 
 /**
  * Filters URLs based on a file of regular expressions using the
  * {@link java.util.regex Java Regex implementation}.
+ *
+ * <p>Rules in the regular subset of the Java syntax are translated into
+ * automata by {@link RegexTranslator} and combined, the others are matched
+ * with {@link Pattern}.</p>
  */
 public class RegexURLFilter extends RegexURLFilterBase {
 
@@ -50,6 +57,11 @@ public class RegexURLFilter extends RegexURLFilterBase {
     super(reader);
   }
 
+  RegexURLFilter(Reader reader, boolean compile)
+    throws IOException, IllegalArgumentException {
+    super(reader, compile);
+  }
+
   
   /* ----------------------------------- *
    * <implementation:RegexURLFilterBase> *
@@ -89,6 +101,10 @@ public class RegexURLFilter extends RegexURLFilterBase {
     protected boolean match(String url) {
       return pattern.matcher(url).find();
     }
+
+    protected Automaton toAutomaton() {
+      return RegexTranslator.toAutomaton(pattern.pattern());
+    }
   }
   
 }
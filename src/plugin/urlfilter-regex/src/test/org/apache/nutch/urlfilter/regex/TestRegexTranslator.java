@@ -0,0 +1,92 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.urlfilter.regex;
+
+// JDK imports
+import java.util.regex.Pattern;
+
+// JUnit imports
+import junit.framework.TestCase;
+
+// Automaton imports
+import dk.brics.automaton.Automaton;
+import dk.brics.automaton.RunAutomaton;
+
+
+/**
+ * JUnit based test of class <code>RegexTranslator</code>: translated rules
+ * must match exactly what {@link java.util.regex.Matcher#find()} matches.
+ */
+public class TestRegexTranslator extends TestCase {
+
+  private static final String[] INPUTS = {
+    "", "http://www.example.com/", "https://example.com/a/b/c.html",
+    "file:///etc/passwd", "ftp://ftp.example.org/pub", "mailto:a@b.c",
+    "http://example.com/logo.gif", "http://example.com/logo.GIF?x=1",
+    "http://example.com/page.html?q=1&r=2", "http://example.com/a*b",
+    "http://example.com/x.gif\n", "http://example.com/index.php3",
+    "http://a.b/c-d_e/f%20g", "HTTP://EXAMPLE.COM/", "http://x/\u2028"
+  };
+
+  private static final String[] SUPPORTED = {
+    "^(file|ftp|mailto):",
+    "\\.(gif|GIF|jpg|JPG|png|PNG|ico|ICO|css|sit|eps|wmf|zip)$",
+    "[?*!@=]",
+    ".",
+    "^http://([a-z0-9]*\\.)*example\\.com/",
+    "[^a-z:/.]",
+    "\\d+",
+    "\\w\\W\\s*",
+    "c-d_e/f",
+    "(?:a|b){2,}",
+    "/.*?/",
+    "[a-c-]",
+    "^$",
+    "html$"
+  };
+
+  private static final String[] UNSUPPORTED = {
+    ".*(/[^/]+)/[^/]+\\1/[^/]+\\1/",      // back reference
+    "(?i)http",                            // flags
+    "a(?=b)",                              // look-ahead
+    "a++",                                 // possessive
+    "\\bword\\b",                          // word boundaries
+    "^a|b",                                // anchor in an alternation
+    "[a[b]]",                              // nested class
+    "a^b"
+  };
+
+  public void testSupported() {
+    for (int i = 0; i < SUPPORTED.length; i++) {
+      Automaton automaton = RegexTranslator.toAutomaton(SUPPORTED[i]);
+      assertNotNull(SUPPORTED[i], automaton);
+      RunAutomaton run = new RunAutomaton(automaton);
+      Pattern pattern = Pattern.compile(SUPPORTED[i]);
+      for (int j = 0; j < INPUTS.length; j++) {
+        assertEquals(SUPPORTED[i] + " on " + INPUTS[j],
+                     pattern.matcher(INPUTS[j]).find(), run.run(INPUTS[j]));
+      }
+    }
+  }
+
+  public void testUnsupported() {
+    for (int i = 0; i < UNSUPPORTED.length; i++) {
+      assertNull(UNSUPPORTED[i], RegexTranslator.toAutomaton(UNSUPPORTED[i]));
+    }
+  }
+
+}
@@ -49,9 +49,9 @@ public class TestRegexURLFilter extends RegexURLFilterBaseTest {
     TestRunner.run(suite());
   }
 
-  protected URLFilter getURLFilter(Reader rules) {
+  protected URLFilter getURLFilter(Reader rules, boolean compile) {
     try {
-      return new RegexURLFilter(rules);
+      return new RegexURLFilter(rules, compile);
     } catch (IOException e) {
       fail(e.toString());
       return null;
@@ -37,7 +37,7 @@ public class BasicURLNormalizer implements URLNormalizer {
 
     private Perl5Compiler compiler = new Perl5Compiler();
     private ThreadLocal matchers = new ThreadLocal() {
-        protected synchronized Object initialValue() {
+        protected Object initialValue() {
           return new Perl5Matcher();
         }
       };
@@ -138,6 +138,10 @@ public class BasicURLNormalizer implements URLNormalizer {
     }
 
     private String substituteUnnecessaryRelativePaths(String file) {
+        // all three rules need one of these, most paths have neither
+        if (file.indexOf("/../") == -1 && file.indexOf("//") == -1)
+            return file;
+
         String fileWorkCopy = file;
         int oldLen = file.length();
         int newLen = oldLen - 1;
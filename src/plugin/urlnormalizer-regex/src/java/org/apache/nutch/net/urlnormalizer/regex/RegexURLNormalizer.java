@@ -24,10 +24,11 @@ import java.io.IOException;
 import java.io.InputStream;
 
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -52,6 +53,8 @@ import org.apache.oro.text.regex.*;
  * </p>
  * <p>This class also supports different rules depending on the scope. Please see
  * the javadoc in {@link org.apache.nutch.net.URLNormalizers} for more details.</p>
+ * <p>Patterns are compiled once and shared, while matchers and substitutions
+ * are kept per thread, so normalization does not lock.</p>
  * 
  * @author Luke Baker
  * @author Andrzej Bialecki
@@ -68,13 +71,28 @@ public class RegexURLNormalizer extends Configured implements URLNormalizer {
     public Perl5Pattern pattern;
 
     public String substitution;
+
+    /** Substitutions keep state while substituting, so one per thread. */
+    private ThreadLocal substitutions = new ThreadLocal() {
+      protected Object initialValue() {
+        return new Perl5Substitution(substitution);
+      }
+    };
+
+    public Perl5Substitution getSubstitution() {
+      return (Perl5Substitution) substitutions.get();
+    }
   }
 
-  private HashMap scopedRules;
+  private Map scopedRules;
   
   private static final List EMPTY_RULES = Collections.EMPTY_LIST;
 
-  private PatternMatcher matcher = new Perl5Matcher();
+  private ThreadLocal matchers = new ThreadLocal() {
+    protected Object initialValue() {
+      return new Perl5Matcher();
+    }
+  };
 
   /**
    * The default constructor which is called from UrlNormalizerFactory
@@ -106,7 +124,7 @@ public class RegexURLNormalizer extends Configured implements URLNormalizer {
     // the default constructor was called
     if (this.scopedRules == null) {
       String filename = getConf().get("urlnormalizer.regex.file");
-      scopedRules = new HashMap();
+      scopedRules = new ConcurrentHashMap();
       URL url = getConf().getResource(filename);
       List rules = null;
       if (url == null) {
@@ -135,7 +153,26 @@ public class RegexURLNormalizer extends Configured implements URLNormalizer {
    * This function does the replacements by iterating through all the regex
    * patterns. It accepts a string url as input and returns the altered string.
    */
-  public synchronized String regexNormalize(String urlString, String scope) {
+  public String regexNormalize(String urlString, String scope) {
+    List curRules = (List)scopedRules.get(scope);
+    if (curRules == null) {
+      curRules = loadRules(scope);
+    }
+    if (curRules == EMPTY_RULES || curRules == null) {
+      // use global rules
+      curRules = (List)scopedRules.get(URLNormalizers.SCOPE_DEFAULT);
+    }
+    PatternMatcher matcher = (PatternMatcher) matchers.get();
+    for (int i = 0; i < curRules.size(); i++) {
+      Rule r = (Rule) curRules.get(i);
+      urlString = Util.substitute(matcher, r.pattern, r.getSubstitution(),
+              urlString, Util.SUBSTITUTE_ALL); // actual substitution
+    }
+    return urlString;
+  }
+
+  /** Load the rules of a scope the first time it is used. */
+  private synchronized List loadRules(String scope) {
     List curRules = (List)scopedRules.get(scope);
     if (curRules == null) {
       // try to populate
@@ -160,21 +197,10 @@ public class RegexURLNormalizer extends Configured implements URLNormalizer {
         scopedRules.put(scope, EMPTY_RULES);
       }
     }
-    if (curRules == EMPTY_RULES || curRules == null) {
-      // use global rules
-      curRules = (List)scopedRules.get(URLNormalizers.SCOPE_DEFAULT);
-    }
-    Iterator i = curRules.iterator();
-    while (i.hasNext()) {
-      Rule r = (Rule) i.next();
-      urlString = Util.substitute(matcher, r.pattern, new Perl5Substitution(
-              r.substitution), urlString, Util.SUBSTITUTE_ALL); // actual
-                                                                // substitution
-    }
-    return urlString;
+    return curRules;
   }
 
-  public synchronized String normalize(String urlString, String scope)
+  public String normalize(String urlString, String scope)
           throws MalformedURLException {
     return regexNormalize(urlString, scope);
   }
@@ -233,7 +259,8 @@ public class RegexURLNormalizer extends Configured implements URLNormalizer {
         }
         if (patternValue != null && subValue != null) {
           Rule rule = new Rule();
-          rule.pattern = (Perl5Pattern) compiler.compile(patternValue);
+          rule.pattern = (Perl5Pattern) compiler.compile(patternValue,
+                  Perl5Compiler.READ_ONLY_MASK);
           rule.substitution = subValue;
           rules.add(rule);
         }
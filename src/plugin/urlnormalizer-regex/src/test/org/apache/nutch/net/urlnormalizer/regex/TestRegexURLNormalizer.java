@@ -25,6 +25,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -89,6 +90,31 @@ public class TestRegexURLNormalizer extends TestCase {
     }
   }
 
+  public void testConcurrent() throws Exception {
+    final NormalizedURL[] urls =
+      (NormalizedURL[])testData.get(URLNormalizers.SCOPE_DEFAULT);
+    final List errors = Collections.synchronizedList(new ArrayList());
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          try {
+            for (int k = 0; k < 20; k++) {
+              normalizeTest(urls, URLNormalizers.SCOPE_DEFAULT);
+            }
+          } catch (Throwable t) {
+            errors.add(t);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (int i = 0; i < threads.length; i++) {
+      threads[i].join();
+    }
+    assertEquals(errors.toString(), 0, errors.size());
+  }
+
   private void normalizeTest(NormalizedURL[] urls, String scope) throws Exception {
     for (int i = 0; i < urls.length; i++) {
       String url = urls[i].url;
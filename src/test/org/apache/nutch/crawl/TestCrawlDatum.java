@@ -0,0 +1,192 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.crawl;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.nutch.metadata.Nutch;
+
+import junit.framework.TestCase;
+
+/** Test the serialization of {@link CrawlDatum}. */
+public class TestCrawlDatum extends TestCase {
+
+  private static final Log LOG = LogFactory.getLog(TestCrawlDatum.class);
+
+  private static final long NOW = 1230000000000L;
+
+  private CrawlDatum createDatum(int i) {
+    CrawlDatum datum = new CrawlDatum(CrawlDatum.STATUS_DB_FETCHED,
+        2592000, i / 10.0f);
+    datum.setFetchTime(NOW + i * 1000L);
+    datum.setRetriesSinceFetch(i % 3);
+    if (i % 2 == 0) {
+      datum.setModifiedTime(NOW - 86400000L);
+      datum.setSignature(new byte[] { 1, 2, 3, (byte)i });
+      datum.getMetaData().put(new Text("_pst_"), new Text("success(1)"));
+      datum.getMetaData().put(Nutch.WRITABLE_GENERATE_TIME_KEY,
+                              new LongWritable(NOW));
+      datum.getMetaData().put(new Text("_score_"), new FloatWritable(i));
+    }
+    return datum;
+  }
+
+  private static CrawlDatum read(byte[] data, int length) throws IOException {
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(data, length);
+    return CrawlDatum.read(in);
+  }
+
+  public void testWriteRead() throws Exception {
+    for (int i = 0; i < 4; i++) {
+      CrawlDatum datum = createDatum(i);
+      DataOutputBuffer out = new DataOutputBuffer();
+      datum.write(out);
+      CrawlDatum copy = read(out.getData(), out.getLength());
+      assertEquals(datum, copy);
+      assertEquals(datum.getModifiedTime(), copy.getModifiedTime());
+      assertEquals(datum.getMetaData(), copy.getMetaData());
+    }
+  }
+
+  /** Metadata not asked for is written back as it was read. */
+  public void testLazyMetaData() throws Exception {
+    CrawlDatum datum = createDatum(2);
+    DataOutputBuffer out = new DataOutputBuffer();
+    datum.write(out);
+    byte[] written = Arrays.copyOf(out.getData(), out.getLength());
+
+    CrawlDatum copy = read(written, written.length);
+    CrawlDatum other = new CrawlDatum();
+    other.set(copy);
+    out.reset();
+    other.write(out);
+    assertTrue(Arrays.equals(written,
+                             Arrays.copyOf(out.getData(), out.getLength())));
+
+    // modified metadata is written
+    copy.getMetaData().remove(new Text("_score_"));
+    out.reset();
+    copy.write(out);
+    CrawlDatum modified = read(out.getData(), out.getLength());
+    assertEquals(2, modified.getMetaData().size());
+    assertEquals(3, other.getMetaData().size());
+  }
+
+  public void testReadVersion6() throws Exception {
+    for (int i = 0; i < 4; i++) {
+      CrawlDatum datum = createDatum(i);
+      DataOutputBuffer out = new DataOutputBuffer();
+      writeVersion6(datum, out);
+      assertEquals(datum, read(out.getData(), out.getLength()));
+    }
+  }
+
+  public void testCompare() throws Exception {
+    WritableComparator comparator = WritableComparator.get(CrawlDatum.class);
+    CrawlDatum[] datums = { createDatum(1), createDatum(2), createDatum(2) };
+    byte[][] v6 = new byte[datums.length][];
+    byte[][] v7 = new byte[datums.length][];
+    for (int i = 0; i < datums.length; i++) {
+      DataOutputBuffer out = new DataOutputBuffer();
+      writeVersion6(datums[i], out);
+      v6[i] = Arrays.copyOf(out.getData(), out.getLength());
+      out.reset();
+      datums[i].write(out);
+      v7[i] = Arrays.copyOf(out.getData(), out.getLength());
+    }
+    for (int i = 0; i < datums.length; i++) {
+      for (int j = 0; j < datums.length; j++) {
+        int expected = Integer.signum(datums[i].compareTo(datums[j]));
+        assertEquals(expected, Integer.signum(comparator.compare(
+            v6[i], 0, v6[i].length, v6[j], 0, v6[j].length)));
+        assertEquals(expected, Integer.signum(comparator.compare(
+            v7[i], 0, v7[i].length, v7[j], 0, v7[j].length)));
+      }
+    }
+  }
+
+  /** Compare size and scan time of versions 6 and 7. */
+  public void testBench() throws Exception {
+    final int count = 200000;
+    DataOutputBuffer v6 = new DataOutputBuffer();
+    DataOutputBuffer v7 = new DataOutputBuffer();
+    for (int i = 0; i < count; i++) {
+      CrawlDatum datum = createDatum(i);
+      writeVersion6(datum, v6);
+      datum.write(v7);
+    }
+    assertTrue(v7.getLength() < v6.getLength());
+    LOG.info("bench size (" + count + " datums) version 6: " + v6.getLength()
+             + " bytes, version 7: " + v7.getLength() + " bytes");
+
+    DataOutputBuffer[] buffers = { v6, v7 };
+    for (int k = 0; k < 2; k++) {                 // once to warm up
+      for (int b = 0; b < buffers.length; b++) {
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(buffers[b].getData(), buffers[b].getLength());
+        CrawlDatum datum = new CrawlDatum();
+        float total = 0;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+          datum.readFields(in);
+          total += datum.getScore();
+        }
+        if (k == 1) {
+          LOG.info("bench scan time version " + (b + 6) + ": "
+                   + (System.currentTimeMillis() - start) + "ms (" + total + ")");
+        }
+      }
+    }
+  }
+
+  /** Write a datum as version 6 did. */
+  private static void writeVersion6(CrawlDatum datum, DataOutput out)
+    throws IOException {
+    out.writeByte(6);
+    out.writeByte(datum.getStatus());
+    out.writeLong(datum.getFetchTime());
+    out.writeByte(datum.getRetriesSinceFetch());
+    out.writeInt(datum.getFetchInterval());
+    out.writeFloat(datum.getScore());
+    out.writeLong(datum.getModifiedTime());
+    byte[] signature = datum.getSignature();
+    if (signature == null) {
+      out.writeByte(0);
+    } else {
+      out.writeByte(signature.length);
+      out.write(signature);
+    }
+    if (datum.getMetaData().size() > 0) {
+      out.writeBoolean(true);
+      datum.getMetaData().write(out);
+    } else {
+      out.writeBoolean(false);
+    }
+  }
+
+}
@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.crawl;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+
+import junit.framework.TestCase;
+
+/** Test the statistics and top-N jobs of {@link CrawlDbReader}. */
+public class TestCrawlDbReader extends TestCase {
+
+  private static final int NUM_URLS = 1000;
+
+  final static Path testdir = new Path("build/test/crawldb-reader-test");
+
+  Configuration conf;
+
+  FileSystem fs;
+
+  Path crawlDb;
+
+  protected void setUp() throws Exception {
+    conf = CrawlDBTestUtil.createConfiguration();
+    fs = FileSystem.get(conf);
+    fs.delete(testdir, true);
+    crawlDb = new Path(testdir, "crawldb");
+    TreeMap<String, CrawlDatum> entries = new TreeMap<String, CrawlDatum>();
+    for (int i = 0; i < NUM_URLS; i++) {
+      byte status = (i % 4 == 0) ? CrawlDatum.STATUS_DB_FETCHED
+        : CrawlDatum.STATUS_DB_UNFETCHED;
+      entries.put("http://www.example.com/" + i + ".html",
+                  new CrawlDatum(status, (i + 1) * 60, i / 100.0f));
+    }
+    List<CrawlDBTestUtil.URLCrawlDatum> init =
+      new ArrayList<CrawlDBTestUtil.URLCrawlDatum>();
+    for (String url : entries.keySet()) {
+      init.add(new CrawlDBTestUtil.URLCrawlDatum(new Text(url),
+                                                 entries.get(url)));
+    }
+    CrawlDBTestUtil.createCrawlDb(conf, fs, crawlDb, init);
+  }
+
+  protected void tearDown() throws Exception {
+    fs.delete(testdir, true);
+  }
+
+  public void testStatistics() throws Exception {
+    TreeMap<String, LongWritable> stats =
+      new CrawlDbReader().getStatistics(crawlDb.toString(), conf, false);
+    assertEquals(NUM_URLS, stats.get("T").get());
+    assertEquals(NUM_URLS / 4,
+                 stats.get("status " + CrawlDatum.STATUS_DB_FETCHED).get());
+    assertEquals(NUM_URLS - NUM_URLS / 4,
+                 stats.get("status " + CrawlDatum.STATUS_DB_UNFETCHED).get());
+    assertEquals(0, stats.get("scn").get());
+    assertEquals(9990, stats.get("scx").get(), 1);   // truncated to 1/1000
+
+    // quantiles within the accuracy of the buckets
+    double accuracy = CrawlDbReader.Buckets.ACCURACY;
+    assertEquals(4.99, CrawlDbReader.quantile(stats,
+        CrawlDbReader.SCORE_BUCKET, 0.5), 4.99 * accuracy);
+    assertEquals(8.99, CrawlDbReader.quantile(stats,
+        CrawlDbReader.SCORE_BUCKET, 0.9), 8.99 * accuracy);
+    assertEquals(0.0, CrawlDbReader.quantile(stats,
+        CrawlDbReader.SCORE_BUCKET, 0.0), 0.0);
+    assertEquals(500 * 60, CrawlDbReader.quantile(stats,
+        CrawlDbReader.INTERVAL_BUCKET, 0.5), 500 * 60 * accuracy);
+  }
+
+  public void testBuckets() {
+    double[] values = { -1000.5, -1, -0.001, 0, 1e-12, 0.001, 0.5, 1, 3,
+                        2592000, 1e12 };
+    int previous = Integer.MIN_VALUE;
+    for (int i = 0; i < values.length; i++) {
+      int bucket = CrawlDbReader.Buckets.bucket(values[i]);
+      assertTrue(bucket >= previous);
+      previous = bucket;
+      assertEquals(values[i], CrawlDbReader.Buckets.value(bucket),
+          Math.abs(values[i]) * CrawlDbReader.Buckets.ACCURACY + 1e-9);
+    }
+  }
+
+  public void testTopN() throws Exception {
+    Path output = new Path(testdir, "topN");
+    new CrawlDbReader().processTopNJob(crawlDb.toString(), 10, 0.0f,
+                                       output.toString(), conf);
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+        fs.open(new Path(output, "part-00000"))));
+    List<String> lines = new ArrayList<String>();
+    String line;
+    while ((line = reader.readLine()) != null) {
+      lines.add(line);
+    }
+    reader.close();
+    assertEquals(10, lines.size());
+    for (int i = 0; i < lines.size(); i++) {
+      int url = NUM_URLS - 1 - i;
+      assertEquals((url / 100.0f) + "\thttp://www.example.com/" + url + ".html",
+                   lines.get(i));
+    }
+  }
+
+}
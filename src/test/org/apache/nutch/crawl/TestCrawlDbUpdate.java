@@ -0,0 +1,286 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.crawl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.lib.HashPartitioner;
+import org.apache.nutch.util.BloomFilter;
+
+import junit.framework.TestCase;
+
+/**
+ * Test that an incremental CrawlDb update rewrites only the parts of the
+ * db that segment data falls into, and reuses the others as they are.
+ */
+public class TestCrawlDbUpdate extends TestCase {
+
+  private static final int NUM_PARTS = 4;
+
+  private static final int NUM_URLS = 40;
+
+  final static Path testdir = new Path("build/test/crawldb-update-test");
+
+  Configuration conf;
+
+  FileSystem fs;
+
+  Path dbDir;
+
+  protected void setUp() throws Exception {
+    conf = CrawlDBTestUtil.createConfiguration();
+    conf.setBoolean(CrawlDb.CRAWLDB_INCREMENTAL, true);
+    fs = FileSystem.get(conf);
+    fs.delete(testdir, true);
+    dbDir = new Path(testdir, "crawldb");
+  }
+
+  protected void tearDown() throws IOException {
+    fs.delete(testdir, true);
+  }
+
+  public void testIncrementalUpdate() throws Exception {
+    HashPartitioner<Text, CrawlDatum> partitioner =
+      new HashPartitioner<Text, CrawlDatum>();
+    Path current = new Path(dbDir, CrawlDb.CURRENT_NAME);
+    createCrawlDb(current);
+
+    // fetch one url, and link a new url of another part
+    Text fetched = new Text(url(0));
+    int fetchedPart = partitioner.getPartition(fetched, null, NUM_PARTS);
+    Text linked = null;
+    for (int i = NUM_URLS; linked == null; i++) {
+      Text url = new Text(url(i));
+      if (partitioner.getPartition(url, null, NUM_PARTS) != fetchedPart) {
+        linked = url;
+      }
+    }
+    int linkedPart = partitioner.getPartition(linked, null, NUM_PARTS);
+    Path segment = new Path(testdir, "segments/20090101000000");
+    createSegment(segment, fetched, linked);
+
+    long[] modified = new long[NUM_PARTS];
+    for (int i = 0; i < NUM_PARTS; i++) {
+      modified[i] = fs.getFileStatus(new Path(current, part(i) + "/data"))
+        .getModificationTime();
+    }
+
+    new CrawlDb(conf).update(dbDir, new Path[] { segment }, false, false);
+
+    assertEquals(NUM_PARTS, fs.listStatus(current).length);
+    int total = 0;
+    for (int i = 0; i < NUM_PARTS; i++) {
+      Map<String, CrawlDatum> entries = readPart(new Path(current, part(i)));
+      for (String url : entries.keySet()) {
+        assertEquals(i, partitioner.getPartition(new Text(url), null, NUM_PARTS));
+      }
+      total += entries.size();
+      boolean touched = (i == fetchedPart || i == linkedPart);
+      long mtime = fs.getFileStatus(new Path(current, part(i) + "/data"))
+        .getModificationTime();
+      if (!touched) {
+        // the very same files
+        assertEquals(modified[i], mtime);
+      }
+      if (i == fetchedPart) {
+        assertEquals(CrawlDatum.STATUS_DB_FETCHED,
+                     entries.get(fetched.toString()).getStatus());
+      }
+      if (i == linkedPart) {
+        assertEquals(CrawlDatum.STATUS_DB_UNFETCHED,
+                     entries.get(linked.toString()).getStatus());
+      }
+    }
+    assertEquals(NUM_URLS + 1, total);
+  }
+
+  public void testBloomFilter() throws Exception {
+    conf.setBoolean(CrawlDb.CRAWLDB_INCREMENTAL, false);
+    conf.setBoolean(CrawlDb.CRAWLDB_BLOOM_FILTER, true);
+    Path current = new Path(dbDir, CrawlDb.CURRENT_NAME);
+    createCrawlDb(current);
+    assertNull(CrawlDb.readBloomFilters(fs, current));
+    Path segment = new Path(testdir, "segments/20090101000000");
+    createSegment(segment, new Text(url(0)), new Text(url(NUM_URLS)));
+    new CrawlDb(conf).update(dbDir, new Path[] { segment }, false, false);
+
+    // every url of the db is known
+    BloomFilter[] filters = CrawlDb.readBloomFilters(fs, current);
+    assertNotNull(filters);
+    HashPartitioner<Text, CrawlDatum> partitioner =
+      new HashPartitioner<Text, CrawlDatum>();
+    int total = 0;
+    for (int i = 0; i < filters.length; i++) {
+      for (String url : readPart(new Path(current, part(i))).keySet()) {
+        Text key = new Text(url);
+        assertEquals(i, partitioner.getPartition(key, null, filters.length));
+        assertTrue(filters[i].mightContain(key.getBytes(), 0, key.getLength()));
+        total++;
+      }
+    }
+    assertEquals(NUM_URLS + 1, total);
+
+    // links to unknown urls are dropped, db entries kept
+    JobConf job = new JobConf(conf);
+    job.set(CrawlDbFilter.KNOWN_URLS, current.toString());
+    CrawlDbFilter filter = new CrawlDbFilter();
+    filter.configure(job);
+    final List<String> collected = new ArrayList<String>();
+    OutputCollector<Text, CrawlDatum> output =
+      new OutputCollector<Text, CrawlDatum>() {
+        public void collect(Text key, CrawlDatum value) {
+          collected.add(key.toString());
+        }
+      };
+    CrawlDatum linked = new CrawlDatum(CrawlDatum.STATUS_LINKED, 30, 0.5f);
+    CrawlDatum unfetched = new CrawlDatum(CrawlDatum.STATUS_DB_UNFETCHED, 30);
+    filter.map(new Text(url(1)), linked, output, Reporter.NULL);
+    filter.map(new Text(url(NUM_URLS)), linked, output, Reporter.NULL);
+    filter.map(new Text(url(NUM_URLS + 1)), linked, output, Reporter.NULL);
+    filter.map(new Text(url(NUM_URLS + 2)), unfetched, output, Reporter.NULL);
+    assertEquals(3, collected.size());
+    assertFalse(collected.contains(url(NUM_URLS + 1)));
+
+    // an update without additions uses the filters
+    Path segment2 = new Path(testdir, "segments/20090102000000");
+    createSegment(segment2, new Text(url(1)), new Text(url(NUM_URLS + 1)));
+    new CrawlDb(conf).update(dbDir, new Path[] { segment2 }, false, false,
+                             false, false);
+    Map<String, CrawlDatum> entries = readPart(new Path(current, part(0)));
+    assertEquals(NUM_URLS + 1, entries.size());
+    assertEquals(CrawlDatum.STATUS_DB_FETCHED,
+                 entries.get(url(1)).getStatus());
+  }
+
+  /** Inlinked datums merged by the combiner give the same scores. */
+  public void testCombiner() throws Exception {
+    conf.setBoolean(CrawlDb.CRAWLDB_INCREMENTAL, false);
+    Text url = new Text(url(NUM_URLS));
+    CrawlDbCombiner combiner = new CrawlDbCombiner();
+    combiner.configure(new JobConf(conf));
+    final List<CrawlDatum> combined = new ArrayList<CrawlDatum>();
+    OutputCollector<Text, CrawlDatum> output =
+      new OutputCollector<Text, CrawlDatum>() {
+        public void collect(Text key, CrawlDatum value) {
+          CrawlDatum copy = new CrawlDatum();
+          copy.set(value);
+          combined.add(copy);
+        }
+      };
+    List<CrawlDatum> values = new ArrayList<CrawlDatum>();
+    values.add(new CrawlDatum(CrawlDatum.STATUS_LINKED, 30, 0.25f));
+    values.add(new CrawlDatum(CrawlDatum.STATUS_DB_UNFETCHED, 30, 1.0f));
+    values.add(new CrawlDatum(CrawlDatum.STATUS_LINKED, 30, 0.5f));
+    values.add(new CrawlDatum(CrawlDatum.STATUS_LINKED, 30, 0.25f));
+    combiner.reduce(url, values.iterator(), output, Reporter.NULL);
+    assertEquals(2, combined.size());
+    assertEquals(CrawlDatum.STATUS_DB_UNFETCHED, combined.get(0).getStatus());
+    assertEquals(CrawlDatum.STATUS_LINKED, combined.get(1).getStatus());
+    assertEquals(1.0f, combined.get(1).getScore(), 0.0001f);
+
+    // a new url gets the sum of the scores of its inlinked datums
+    Path current = new Path(dbDir, CrawlDb.CURRENT_NAME);
+    createCrawlDb(current);
+    Path segment = new Path(testdir, "segments/20090101000000");
+    createSegment(segment, new Text(url(0)), url);
+    SequenceFile.Writer parse = SequenceFile.createWriter(fs, conf,
+        new Path(segment, CrawlDatum.PARSE_DIR_NAME + "/part-00001"),
+        Text.class, CrawlDatum.class);
+    parse.append(url, new CrawlDatum(CrawlDatum.STATUS_LINKED, 30, 0.25f));
+    parse.append(url, new CrawlDatum(CrawlDatum.STATUS_LINKED, 30, 0.25f));
+    parse.close();
+    new CrawlDb(conf).update(dbDir, new Path[] { segment }, false, false);
+    CrawlDatum datum = readPart(new Path(current, part(0))).get(url.toString());
+    assertEquals(CrawlDatum.STATUS_DB_UNFETCHED, datum.getStatus());
+    assertEquals(1.0f, datum.getScore(), 0.0001f);
+  }
+
+  private static String url(int i) {
+    return "http://www.example.com/" + i + ".html";
+  }
+
+  private static String part(int i) {
+    return "part-0000" + i;
+  }
+
+  /** Write a db with its urls in the parts a job would write them to. */
+  private void createCrawlDb(Path current) throws IOException {
+    HashPartitioner<Text, CrawlDatum> partitioner =
+      new HashPartitioner<Text, CrawlDatum>();
+    TreeMap<Text, CrawlDatum>[] parts = new TreeMap[NUM_PARTS];
+    for (int i = 0; i < NUM_PARTS; i++) {
+      parts[i] = new TreeMap<Text, CrawlDatum>();
+    }
+    for (int i = 0; i < NUM_URLS; i++) {
+      Text url = new Text(url(i));
+      parts[partitioner.getPartition(url, null, NUM_PARTS)]
+        .put(url, new CrawlDatum(CrawlDatum.STATUS_DB_UNFETCHED, 30, 1.0f));
+    }
+    for (int i = 0; i < NUM_PARTS; i++) {
+      MapFile.Writer writer = new MapFile.Writer(conf, fs,
+          new Path(current, part(i)).toString(), Text.class, CrawlDatum.class);
+      for (Map.Entry<Text, CrawlDatum> entry : parts[i].entrySet()) {
+        writer.append(entry.getKey(), entry.getValue());
+      }
+      writer.close();
+    }
+  }
+
+  private void createSegment(Path segment, Text fetched, Text linked)
+    throws IOException {
+    MapFile.Writer fetch = new MapFile.Writer(conf, fs,
+        new Path(segment, CrawlDatum.FETCH_DIR_NAME + "/part-00000").toString(),
+        Text.class, CrawlDatum.class);
+    CrawlDatum datum = new CrawlDatum(CrawlDatum.STATUS_FETCH_SUCCESS, 30, 1.0f);
+    datum.setFetchTime(System.currentTimeMillis());
+    fetch.append(fetched, datum);
+    fetch.close();
+
+    SequenceFile.Writer parse = SequenceFile.createWriter(fs, conf,
+        new Path(segment, CrawlDatum.PARSE_DIR_NAME + "/part-00000"),
+        Text.class, CrawlDatum.class);
+    parse.append(linked, new CrawlDatum(CrawlDatum.STATUS_LINKED, 30, 0.5f));
+    parse.close();
+  }
+
+  private Map<String, CrawlDatum> readPart(Path part) throws IOException {
+    TreeMap<String, CrawlDatum> entries = new TreeMap<String, CrawlDatum>();
+    MapFile.Reader reader = new MapFile.Reader(fs, part.toString(), conf);
+    Text key = new Text();
+    CrawlDatum value = new CrawlDatum();
+    while (reader.next(key, value)) {
+      entries.put(key.toString(), value);
+      value = new CrawlDatum();
+    }
+    reader.close();
+    return entries;
+  }
+
+}
@@ -17,9 +17,12 @@
 package org.apache.nutch.crawl;
 
 import java.io.IOException;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
@@ -238,6 +241,139 @@ public class TestGenerator extends TestCase {
     assertEquals(3, fetchList.size());
   }
 
+  /**
+   * Test that the single pass generator selects the highest scoring urls
+   * of each host, and obeys "generate.max.per.host" and topN.
+   * @throws Exception
+   */
+  public void testGenerateSinglePass() throws Exception {
+    ArrayList<URLCrawlDatum> list = new ArrayList<URLCrawlDatum>();
+    for (int i = 0; i < 10; i++) {
+      list.add(createURLCrawlDatum("http://www.example.com/" + pad(i), 1, i));
+    }
+    for (int i = 0; i < 10; i++) {
+      list.add(createURLCrawlDatum("http://www.example.net/" + pad(i), 1,
+          10 + i));
+    }
+
+    createCrawlDB(list);
+
+    Configuration myConfiguration = new Configuration(conf);
+    myConfiguration.setBoolean(Generator.GENERATE_SINGLE_PASS, true);
+    myConfiguration.setInt(Generator.GENERATE_MAX_PER_HOST, 3);
+    Path generatedSegment = generateFetchlist(Integer.MAX_VALUE,
+        myConfiguration, false);
+
+    Path fetchlistPath = new Path(new Path(generatedSegment,
+        CrawlDatum.GENERATE_DIR_NAME), "part-00000");
+
+    ArrayList<URLCrawlDatum> fetchList = readContents(fetchlistPath);
+    assertHashOrder(fetchList);
+    Collections.sort(fetchList, new ScoreComparator());
+
+    // the three best urls of each host
+    assertEquals(6, fetchList.size());
+    assertEquals("http://www.example.net/009", fetchList.get(0).url.toString());
+    assertEquals("http://www.example.net/007", fetchList.get(2).url.toString());
+    assertEquals("http://www.example.com/009", fetchList.get(3).url.toString());
+    assertEquals("http://www.example.com/007", fetchList.get(5).url.toString());
+
+    // topN applies across hosts
+    generatedSegment = generateFetchlist(4, myConfiguration, false);
+
+    fetchlistPath = new Path(new Path(generatedSegment,
+        CrawlDatum.GENERATE_DIR_NAME), "part-00000");
+
+    fetchList = readContents(fetchlistPath);
+    assertHashOrder(fetchList);
+    Collections.sort(fetchList, new ScoreComparator());
+
+    assertEquals(4, fetchList.size());
+    assertEquals("http://www.example.net/007", fetchList.get(2).url.toString());
+    assertEquals("http://www.example.com/009", fetchList.get(3).url.toString());
+
+    // without a limit per host every url is selected
+    myConfiguration.setInt(Generator.GENERATE_MAX_PER_HOST, -1);
+    generatedSegment = generateFetchlist(Integer.MAX_VALUE, myConfiguration,
+        false);
+
+    fetchlistPath = new Path(new Path(generatedSegment,
+        CrawlDatum.GENERATE_DIR_NAME), "part-00000");
+
+    fetchList = readContents(fetchlistPath);
+    assertHashOrder(fetchList);
+    assertEquals(20, fetchList.size());
+
+    // without topN the urls are selected in two passes instead
+    generatedSegment = new Generator(myConfiguration).generate(dbDir,
+        segmentsDir, -1, Long.MAX_VALUE, Long.MAX_VALUE, false, false);
+
+    fetchlistPath = new Path(new Path(generatedSegment,
+        CrawlDatum.GENERATE_DIR_NAME), "part-00000");
+
+    fetchList = readContents(fetchlistPath);
+    assertEquals(20, fetchList.size());
+  }
+
+  /**
+   * Assert that a fetch list is sorted by hash of url, as it was written.
+   */
+  private void assertHashOrder(ArrayList<URLCrawlDatum> fetchList) {
+    int last = Integer.MIN_VALUE;
+    for (URLCrawlDatum entry : fetchList) {
+      Text url = entry.url;
+      int hash = Generator.HashComparator.hash(url.getBytes(), 0,
+          url.getLength());
+      assertTrue("not sorted by hash: " + url, hash >= last);
+      last = hash;
+    }
+  }
+
+  /**
+   * Test that generating several segments at once applies topN and
+   * "generate.max.per.host" to each segment, and never generates a url twice.
+   * @throws Exception
+   */
+  public void testGenerateMultipleSegments() throws Exception {
+    ArrayList<URLCrawlDatum> list = new ArrayList<URLCrawlDatum>();
+    for (int i = 0; i < 5; i++) {
+      list.add(createURLCrawlDatum("http://www.example.com/" + pad(i), 1, i));
+    }
+    for (int i = 0; i < 5; i++) {
+      list.add(createURLCrawlDatum("http://www.example.net/" + pad(i), 1,
+          10 + i));
+    }
+
+    createCrawlDB(list);
+
+    Configuration myConfiguration = new Configuration(conf);
+    myConfiguration.setInt(Generator.GENERATE_MAX_PER_HOST, 2);
+    Generator g = new Generator(myConfiguration);
+    Path[] generatedSegments = g.generate(dbDir, segmentsDir, -1, 3,
+        Long.MAX_VALUE, false, false, 3);
+
+    assertEquals(3, generatedSegments.length);
+    HashSet<String> urls = new HashSet<String>();
+    for (int i = 0; i < generatedSegments.length; i++) {
+      Path fetchlistPath = new Path(new Path(generatedSegments[i],
+          CrawlDatum.GENERATE_DIR_NAME), "part-00000");
+      ArrayList<URLCrawlDatum> fetchList = readContents(fetchlistPath);
+      assertTrue(fetchList.size() <= 3);
+      HashMap<String, Integer> hostCounts = new HashMap<String, Integer>();
+      for (URLCrawlDatum entry : fetchList) {
+        assertTrue(urls.add(entry.url.toString()));
+        String host = new URL(entry.url.toString()).getHost();
+        Integer count = hostCounts.get(host);
+        hostCounts.put(host, count == null ? 1 : count + 1);
+        assertTrue(hostCounts.get(host) <= 2);
+      }
+    }
+    // each segment is filled up
+    assertEquals(9, urls.size());
+    assertTrue(urls.contains("http://www.example.net/004"));
+    assertFalse(urls.contains("http://www.example.com/000"));
+  }
+
   /**
    * Test generator obeys the filter setting.
    * @throws Exception 
@@ -18,11 +18,14 @@ package org.apache.nutch.crawl;
 
 import junit.framework.TestCase;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.FloatWritable;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.SequenceFile;
@@ -34,6 +37,8 @@ import org.apache.nutch.util.NutchConfiguration;
 
 public class TestMapWritable extends TestCase {
 
+  private static final Log LOG = LogFactory.getLog(TestMapWritable.class);
+
   private Configuration configuration = NutchConfiguration.create();
 
   public void testMap() throws Exception {
@@ -102,6 +107,90 @@ public class TestMapWritable extends TestCase {
     assertTrue(map1.equals(map2));
   }
 
+  public void testCopy() throws Exception {
+    MapWritable map = new MapWritable();
+    for (int i = 0; i < 20; i++) {
+      map.put(new Text("" + i), new LongWritable(i));
+      map.put(new DummyWritable(i), new FloatWritable(i));
+      MapWritable copy = new MapWritable(map);
+      assertEquals(map, copy);
+      testWritable(copy);
+    }
+    MapWritable copy = new MapWritable(map);
+    Text key = new Text("0");
+    ((LongWritable) map.get(key)).set(100);
+    assertEquals(new LongWritable(0), copy.get(key));
+    copy.remove(key);
+    assertEquals(39, copy.size());
+    assertEquals(40, map.size());
+    assertNull(copy.get(key));
+    assertEquals(new FloatWritable(1), copy.get(new DummyWritable(1)));
+  }
+
+  /**
+   * Time the metadata handling of <code>CrawlDbReducer</code>: copy the
+   * fetched metadata, then merge the old and the fetched metadata into it.
+   */
+  public void testBench() throws Exception {
+    final int count = 200000;
+    MapWritable old = new MapWritable();
+    old.put(new Text("_pst_"), new Text("success(1)"));
+    old.put(new Text("_ftk_"), new LongWritable(1230000000000L));
+    old.put(new Text("_ngt_"), new LongWritable(1230000000000L));
+    old.put(new Text("_csc_"), new FloatWritable(0.5f));
+    old.put(new Text("Content-Type"), new Text("text/html"));
+    MapWritable fetch = new MapWritable();
+    fetch.put(new Text("_pst_"), new Text("success(1)"));
+    fetch.put(new Text("_ftk_"), new LongWritable(1231000000000L));
+    fetch.put(new Text("_fst_"), new IntWritable(33));
+    DataOutputBuffer oldData = new DataOutputBuffer();
+    old.write(oldData);
+    DataOutputBuffer fetchData = new DataOutputBuffer();
+    fetch.write(fetchData);
+
+    DataInputBuffer in = new DataInputBuffer();
+    DataOutputBuffer out = new DataOutputBuffer();
+    MapWritable result = null;
+    for (int k = 0; k < 2; k++) {                 // once to warm up
+      long start = System.currentTimeMillis();
+      for (int i = 0; i < count; i++) {
+        in.reset(oldData.getData(), oldData.getLength());
+        old.readFields(in);
+        in.reset(fetchData.getData(), fetchData.getLength());
+        fetch.readFields(in);
+        result = new MapWritable(fetch);
+        result.putAll(old);
+        result.putAll(fetch);
+        out.reset();
+        result.write(out);
+      }
+      long merge = System.currentTimeMillis() - start;
+
+      // the copy as it was done by serialization
+      start = System.currentTimeMillis();
+      for (int i = 0; i < count; i++) {
+        out.reset();
+        old.write(out);
+        in.reset(out.getData(), out.getLength());
+        new MapWritable().readFields(in);
+      }
+      long serialized = System.currentTimeMillis() - start;
+      start = System.currentTimeMillis();
+      for (int i = 0; i < count; i++) {
+        new MapWritable(old);
+      }
+      long copied = System.currentTimeMillis() - start;
+      if (k == 1) {
+        LOG.info("bench merge (" + count + " records): " + merge + "ms");
+        LOG.info("bench copy by serialization: " + serialized
+                 + "ms, structural copy: " + copied + "ms");
+      }
+    }
+    assertEquals(6, result.size());
+    assertEquals(new LongWritable(1231000000000L),
+                 result.get(new Text("_ftk_")));
+  }
+
   public void testPerformance() throws Exception {
     FileSystem fs = FileSystem.get(configuration);
     Path file = new Path(System.getProperty("java.io.tmpdir"), "mapTestFile");
@@ -206,6 +295,27 @@ public class TestMapWritable extends TestCase {
     assertNull(writable.get(key2));
   }
 
+  /** Reading into a map must not overwrite the objects put into it. */
+  public void testReadFieldsKeepsEntries() throws Exception {
+    MapWritable source = new MapWritable();
+    source.put(new Text("a"), new Text("other"));
+    DataOutputBuffer dob = new DataOutputBuffer();
+    source.write(dob);
+
+    Text key = new Text("b");
+    Text value = new Text("value");
+    MapWritable writable = new MapWritable();
+    writable.put(key, value);
+    writable.clear();
+
+    DataInputBuffer dib = new DataInputBuffer();
+    dib.reset(dob.getData(), dob.getLength());
+    writable.readFields(dib);
+    assertEquals(source, writable);
+    assertEquals(new Text("b"), key);
+    assertEquals(new Text("value"), value);
+  }
+
   public static void main(String[] args) throws Exception {
     TestMapWritable writable = new TestMapWritable();
     writable.testPerformance();
@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.fetcher;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.protocol.ProtocolStatus;
+import org.apache.nutch.util.NutchConfiguration;
+
+import junit.framework.TestCase;
+
+public class TestAdaptivePoliteness extends TestCase {
+
+  private Configuration conf;
+
+  protected void setUp() {
+    conf = NutchConfiguration.create();
+    conf.set("fetcher.adaptive.delay.min", "0.1");
+    conf.set("fetcher.adaptive.delay.max", "10.0");
+    conf.set("fetcher.adaptive.delay.factor", "2.0");
+  }
+
+  public void testOutcome() {
+    assertEquals(AdaptivePoliteness.OK,
+        AdaptivePoliteness.getOutcome(ProtocolStatus.SUCCESS));
+    assertEquals(AdaptivePoliteness.OK,
+        AdaptivePoliteness.getOutcome(ProtocolStatus.NOTFOUND));
+    assertEquals(AdaptivePoliteness.ERROR,
+        AdaptivePoliteness.getOutcome(ProtocolStatus.EXCEPTION));
+    assertEquals(AdaptivePoliteness.THROTTLED,
+        AdaptivePoliteness.getOutcome(ProtocolStatus.RETRY));
+  }
+
+  public void testDelayFollowsLatency() {
+    AdaptivePoliteness fast = new AdaptivePoliteness(conf, 1);
+    AdaptivePoliteness slow = new AdaptivePoliteness(conf, 1);
+    assertEquals(100, fast.getDelay());           // floor before any fetch
+    for (int i = 0; i < 20; i++) {
+      fast.record(100, AdaptivePoliteness.OK);
+      slow.record(2000, AdaptivePoliteness.OK);
+    }
+    assertEquals(200, fast.getDelay());
+    assertEquals(4000, slow.getDelay());
+  }
+
+  public void testBounds() {
+    AdaptivePoliteness politeness = new AdaptivePoliteness(conf, 1);
+    politeness.record(1, AdaptivePoliteness.OK);
+    assertEquals(100, politeness.getDelay());
+    politeness.record(60000, AdaptivePoliteness.OK);
+    assertEquals(10000, politeness.getDelay());
+    // robots.txt wins over the ceiling
+    politeness.setRobotsDelay(20000);
+    assertEquals(20000, politeness.getDelay());
+  }
+
+  public void testThrottling() {
+    AdaptivePoliteness politeness = new AdaptivePoliteness(conf, 4);
+    for (int i = 0; i < 3 * AdaptivePoliteness.INCREASE_AFTER; i++) {
+      politeness.record(100, AdaptivePoliteness.OK);
+    }
+    assertEquals(4, politeness.getThreads());
+    long delay = politeness.getDelay();
+
+    politeness.record(100, AdaptivePoliteness.THROTTLED);
+    assertEquals(2, politeness.getThreads());
+    assertEquals(2 * delay, politeness.getDelay());
+
+    politeness.record(100, AdaptivePoliteness.ERROR);
+    assertEquals(1, politeness.getThreads());
+    assertEquals(3 * delay, politeness.getDelay());
+
+    // the penalty decays as the host recovers
+    for (int i = 0; i < 100; i++) {
+      politeness.record(100, AdaptivePoliteness.OK);
+    }
+    assertEquals(delay, politeness.getDelay());
+    assertEquals(4, politeness.getThreads());
+  }
+
+}
@@ -0,0 +1,299 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.fetcher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.crawl.CrawlDBTestUtil;
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.crawl.Generator;
+import org.apache.nutch.crawl.Injector;
+import org.apache.nutch.parse.ParseData;
+import org.apache.nutch.protocol.Content;
+import org.mortbay.jetty.Server;
+
+import junit.framework.TestCase;
+
+/**
+ * Basic queue-based fetcher test: inject, generate and fetch a small site
+ * with several threads, then verify politeness and fetched content.
+ */
+public class TestFetcher2 extends TestCase {
+
+  final static Path testdir=new Path("build/test/fetch2-test");
+  Configuration conf;
+  FileSystem fs;
+  Path crawldbPath;
+  Path segmentsPath;
+  Path urlPath;
+  Server server;
+
+  protected void setUp() throws Exception{
+    conf=CrawlDBTestUtil.createConfiguration();
+    fs=FileSystem.get(conf);
+    fs.delete(testdir, true);
+    urlPath=new Path(testdir,"urls");
+    crawldbPath=new Path(testdir,"crawldb");
+    segmentsPath=new Path(testdir,"segments");
+    server=CrawlDBTestUtil.getServer(conf.getInt("content.server.port",50000), "build/test/data/fetch-test-site");
+    server.start();
+  }
+
+  protected void tearDown() throws InterruptedException, IOException{
+    server.stop();
+    fs.delete(testdir, true);
+  }
+
+  public void testFetch() throws IOException {
+    ArrayList<String> urls=new ArrayList<String>();
+    addUrl(urls,"index.html");
+    addUrl(urls,"pagea.html");
+    addUrl(urls,"pageb.html");
+    addUrl(urls,"dup_of_pagea.html");
+    addUrl(urls,"nested_spider_trap.html");
+    addUrl(urls,"exception.html");
+
+    CrawlDBTestUtil.generateSeedList(fs, urlPath, urls);
+    Injector injector=new Injector(conf);
+    injector.inject(crawldbPath, urlPath);
+    Generator g=new Generator(conf);
+    Path generatedSegment = g.generate(crawldbPath, segmentsPath, 1,
+        Long.MAX_VALUE, Long.MAX_VALUE, false, false);
+
+    long time=System.currentTimeMillis();
+    // more threads than the host allows, all of them wait on one queue
+    Fetcher2 fetcher=new Fetcher2(conf);
+    fetcher.fetch(generatedSegment, 4, true);
+    time=System.currentTimeMillis()-time;
+
+    //verify politeness, time taken should be more than num_of_pages*delay
+    int minimumTime=(int) (urls.size()*1000*conf.getFloat("fetcher.server.delay",5));
+    assertTrue(time > minimumTime);
+
+    Path content=new Path(new Path(generatedSegment, Content.DIR_NAME),"part-00000/data");
+    SequenceFile.Reader reader=new SequenceFile.Reader(fs, content, conf);
+    ArrayList<String> handledurls=new ArrayList<String>();
+    do {
+      Text key=new Text();
+      Content value=new Content();
+      if(!reader.next(key, value)) break;
+      String contentString=new String(value.getContent());
+      if(contentString.indexOf("Nutch fetcher test page")!=-1) {
+        handledurls.add(key.toString());
+      }
+    } while(true);
+    reader.close();
+
+    Collections.sort(urls);
+    Collections.sort(handledurls);
+    assertEquals(urls, handledurls);
+  }
+
+  public void testTimeLimit() throws IOException {
+    ArrayList<String> urls=new ArrayList<String>();
+    addUrl(urls,"index.html");
+    addUrl(urls,"pagea.html");
+    addUrl(urls,"pageb.html");
+    addUrl(urls,"dup_of_pagea.html");
+    addUrl(urls,"nested_spider_trap.html");
+    addUrl(urls,"exception.html");
+
+    CrawlDBTestUtil.generateSeedList(fs, urlPath, urls);
+    Injector injector=new Injector(conf);
+    injector.inject(crawldbPath, urlPath);
+    Generator g=new Generator(conf);
+    Path generatedSegment = g.generate(crawldbPath, segmentsPath, 1,
+        Long.MAX_VALUE, Long.MAX_VALUE, false, false);
+
+    // the limit is reached at once, before the politeness delay allows
+    // all pages to be fetched
+    conf.setLong("fetcher.timelimit.mins", 0);
+    conf.set("fetcher.server.delay", "5.0");
+    Fetcher2 fetcher=new Fetcher2(conf);
+    fetcher.fetch(generatedSegment, 4, false);
+
+    Path fetch=new Path(new Path(generatedSegment, CrawlDatum.FETCH_DIR_NAME),"part-00000/data");
+    SequenceFile.Reader reader=new SequenceFile.Reader(fs, fetch, conf);
+    ArrayList<String> handledurls=new ArrayList<String>();
+    int retries=0;
+    Text key=new Text();
+    CrawlDatum value=new CrawlDatum();
+    while (reader.next(key, value)) {
+      handledurls.add(key.toString());
+      if (value.getStatus() == CrawlDatum.STATUS_FETCH_RETRY) retries++;
+    }
+    reader.close();
+
+    // every url is either fetched or marked for retry
+    Collections.sort(urls);
+    Collections.sort(handledurls);
+    assertEquals(urls, handledurls);
+    assertTrue(retries > 0);
+  }
+
+  public void testParseThreads() throws IOException {
+    ArrayList<String> urls=new ArrayList<String>();
+    addUrl(urls,"index.html");
+    addUrl(urls,"pagea.html");
+    addUrl(urls,"pageb.html");
+
+    CrawlDBTestUtil.generateSeedList(fs, urlPath, urls);
+    Injector injector=new Injector(conf);
+    injector.inject(crawldbPath, urlPath);
+    Generator g=new Generator(conf);
+    Path generatedSegment = g.generate(crawldbPath, segmentsPath, 1,
+        Long.MAX_VALUE, Long.MAX_VALUE, false, false);
+
+    conf.setInt("fetcher.parse.threads", 2);
+    conf.setInt("fetcher.parse.queue.size", 1);
+    Fetcher2 fetcher=new Fetcher2(conf);
+    fetcher.fetch(generatedSegment, 2, true);
+
+    // every fetched page is parsed by the parse threads
+    Path parseData=new Path(new Path(generatedSegment, ParseData.DIR_NAME),"part-00000/data");
+    SequenceFile.Reader reader=new SequenceFile.Reader(fs, parseData, conf);
+    ArrayList<String> parsedurls=new ArrayList<String>();
+    Text key=new Text();
+    ParseData value=new ParseData();
+    while (reader.next(key, value)) {
+      if (value.getStatus().isSuccess()) parsedurls.add(key.toString());
+    }
+    reader.close();
+
+    Collections.sort(urls);
+    Collections.sort(parsedurls);
+    assertEquals(urls, parsedurls);
+  }
+
+  public void testAsyncRequests() throws Exception {
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+    final ServerSocket slowServer = new ServerSocket(0);
+    Thread acceptor = new Thread() {
+      public void run() {
+        try {
+          while (true) {
+            final Socket socket = slowServer.accept();
+            new Thread() {
+              public void run() {
+                serveSlowly(socket, inFlight, maxInFlight);
+              }
+            }.start();
+          }
+        } catch (IOException e) {
+          // closed
+        }
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+
+    try {
+      ArrayList<String> urls=new ArrayList<String>();
+      for (int i = 0; i < 20; i++) {
+        urls.add("http://127.0.0.1:" + slowServer.getLocalPort() + "/page" + i + ".html");
+      }
+      CrawlDBTestUtil.generateSeedList(fs, urlPath, urls);
+      Injector injector=new Injector(conf);
+      injector.inject(crawldbPath, urlPath);
+      Generator g=new Generator(conf);
+      Path generatedSegment = g.generate(crawldbPath, segmentsPath, 1,
+          Long.MAX_VALUE, Long.MAX_VALUE, false, false);
+
+      // one fetcher thread keeps all requests to the host in flight
+      conf.set("plugin.includes",
+          "parse-html|protocol-httpnio|urlfilter-suffix|scoring-opic");
+      conf.setInt("fetcher.async.requests", 20);
+      conf.setInt("fetcher.threads.per.host", 20);
+      conf.set("fetcher.server.delay", "0.0");
+      conf.set("fetcher.server.min.delay", "0.0");
+      Fetcher2 fetcher=new Fetcher2(conf);
+      fetcher.fetch(generatedSegment, 1, false);
+
+      Path fetch=new Path(new Path(generatedSegment, CrawlDatum.FETCH_DIR_NAME),"part-00000/data");
+      SequenceFile.Reader reader=new SequenceFile.Reader(fs, fetch, conf);
+      ArrayList<String> handledurls=new ArrayList<String>();
+      Text key=new Text();
+      CrawlDatum value=new CrawlDatum();
+      while (reader.next(key, value)) {
+        if (value.getStatus() == CrawlDatum.STATUS_FETCH_SUCCESS) {
+          handledurls.add(key.toString());
+        }
+      }
+      reader.close();
+
+      Collections.sort(urls);
+      Collections.sort(handledurls);
+      assertEquals(urls, handledurls);
+      assertTrue("only " + maxInFlight + " requests in flight",
+          maxInFlight.get() >= 10);
+    } finally {
+      slowServer.close();
+    }
+  }
+
+  /** Answer a request after half a second, counting requests in flight. */
+  private static void serveSlowly(Socket socket, AtomicInteger inFlight,
+      AtomicInteger maxInFlight) {
+    int now = inFlight.incrementAndGet();
+    synchronized (maxInFlight) {
+      if (now > maxInFlight.get()) maxInFlight.set(now);
+    }
+    try {
+      InputStream in = socket.getInputStream();
+      int matched = 0;
+      while (matched < 4) {                 // read up to the empty line
+        int b = in.read();
+        if (b == -1) break;
+        matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1
+            : (b == '\r' ? 1 : 0);
+      }
+      Thread.sleep(500);
+      byte[] body = "<html><body>Nutch fetcher test page</body></html>".getBytes();
+      OutputStream out = socket.getOutputStream();
+      out.write(("HTTP/1.0 200 OK\r\nContent-Type: text/html\r\n"
+          + "Content-Length: " + body.length + "\r\n\r\n").getBytes());
+      out.write(body);
+      out.flush();
+    } catch (Exception e) {
+      // the fetcher gave up
+    } finally {
+      inFlight.decrementAndGet();
+      try {
+        socket.close();
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  private void addUrl(ArrayList<String> urls, String page) {
+    urls.add("http://127.0.0.1:" + server.getListeners()[0].getPort() + "/" + page);
+  }
+
+}
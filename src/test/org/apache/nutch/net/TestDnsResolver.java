@@ -0,0 +1,86 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.nutch.util.NutchConfiguration;
+import org.apache.nutch.util.NutchCounters;
+
+import junit.framework.TestCase;
+
+public class TestDnsResolver extends TestCase {
+
+  private Configuration conf;
+  private FileSystem fs;
+  private Path testdir = new Path("build/test/dns-test");
+
+  protected void setUp() throws Exception {
+    conf = NutchConfiguration.create();
+    fs = FileSystem.get(conf);
+    fs.delete(testdir, true);
+  }
+
+  protected void tearDown() throws Exception {
+    fs.delete(testdir, true);
+  }
+
+  public void testResolve() throws Exception {
+    DnsResolver resolver = new DnsResolver(conf);
+    long hits = NutchCounters.get(DnsResolver.COUNTER_GROUP, "cache hits");
+    resolver.prefetch("127.0.0.1");
+    InetAddress address = resolver.resolve("127.0.0.1");
+    assertEquals("127.0.0.1", address.getHostAddress());
+    assertSame(address, resolver.resolve("127.0.0.1"));
+    assertEquals(hits + 2,
+        NutchCounters.get(DnsResolver.COUNTER_GROUP, "cache hits"));
+  }
+
+  public void testNegativeCaching() throws Exception {
+    DnsResolver resolver = new DnsResolver(conf);
+    long misses = NutchCounters.get(DnsResolver.COUNTER_GROUP, "cache misses");
+    for (int i = 0; i < 2; i++) {
+      try {
+        resolver.resolve("nonexistent.invalid");
+        fail("Expected UnknownHostException");
+      } catch (UnknownHostException e) {
+        // expected
+      }
+    }
+    assertEquals(misses + 1,
+        NutchCounters.get(DnsResolver.COUNTER_GROUP, "cache misses"));
+  }
+
+  public void testSaveAndLoad() throws Exception {
+    DnsResolver resolver = new DnsResolver(conf);
+    resolver.prefetch("127.0.0.1");
+    resolver.prefetch("nonexistent.invalid");
+    resolver.save(new Path(testdir, "part-0"));
+
+    DnsResolver loaded = new DnsResolver(conf);
+    loaded.load(testdir);
+    long misses = NutchCounters.get(DnsResolver.COUNTER_GROUP, "cache misses");
+    assertEquals("127.0.0.1", loaded.resolve("127.0.0.1").getHostAddress());
+    assertEquals(misses,
+        NutchCounters.get(DnsResolver.COUNTER_GROUP, "cache misses"));
+  }
+
+}
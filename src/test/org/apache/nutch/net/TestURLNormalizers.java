@@ -17,7 +17,11 @@
 package org.apache.nutch.net;
 
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.nutch.util.NutchConfiguration;
 
@@ -25,6 +29,8 @@ import junit.framework.TestCase;
 
 public class TestURLNormalizers extends TestCase {
 
+  private static final Log LOG = LogFactory.getLog(TestURLNormalizers.class);
+
   public void testURLNormalizers() {
     Configuration conf = NutchConfiguration.create();
     String clazz1 = "org.apache.nutch.net.urlnormalizer.regex.RegexURLNormalizer";
@@ -50,4 +56,66 @@ public class TestURLNormalizers extends TestCase {
       assertTrue("RegexURLNormalizer before BasicURLNormalizer", pos1 < pos2);
     }
   }
+
+  public void testCache() throws Exception {
+    Configuration conf = NutchConfiguration.create();
+    URLNormalizers plain = new URLNormalizers(conf, URLNormalizers.SCOPE_OUTLINK);
+    conf = NutchConfiguration.create();
+    conf.setInt("urlnormalizer.cache.size." + URLNormalizers.SCOPE_OUTLINK, 1024);
+    URLNormalizers cached = new URLNormalizers(conf, URLNormalizers.SCOPE_OUTLINK);
+
+    List<String> outlinks = outlinks();
+    // twice, the second time from the cache
+    for (int k = 0; k < 2; k++) {
+      for (int i = 0; i < outlinks.size(); i++) {
+        String url = outlinks.get(i);
+        assertEquals(url,
+            plain.normalize(url, URLNormalizers.SCOPE_OUTLINK),
+            cached.normalize(url, URLNormalizers.SCOPE_OUTLINK));
+      }
+    }
+    assertEquals("http://www.example.com/b.html",
+        cached.normalize("http://WWW.Example.com:80/a/../b.html",
+                         URLNormalizers.SCOPE_OUTLINK));
+  }
+
+  /** Bench the normalizers with and without cache over repetitive outlinks. */
+  public void testBench() throws Exception {
+    List<String> outlinks = outlinks();
+    for (int size = 0; size <= 4096; size += 4096) {
+      Configuration conf = NutchConfiguration.create();
+      conf.setInt("urlnormalizer.cache.size", size);
+      URLNormalizers normalizers =
+        new URLNormalizers(conf, URLNormalizers.SCOPE_DEFAULT);
+      long start = System.currentTimeMillis();
+      for (int k = 0; k < 20; k++) {
+        for (int i = 0; i < outlinks.size(); i++) {
+          normalizers.normalize(outlinks.get(i), URLNormalizers.SCOPE_DEFAULT);
+        }
+      }
+      LOG.info("bench time (" + 20 * outlinks.size() + " urls, cache "
+               + size + ") " + (System.currentTimeMillis() - start) + "ms");
+    }
+  }
+
+  /**
+   * Outlinks of the pages of a few sites: each page links to the site's
+   * navigation links and to a few pages of its own.
+   */
+  private List<String> outlinks() {
+    List<String> outlinks = new ArrayList<String>();
+    for (int host = 0; host < 5; host++) {
+      String site = "http://www.Site" + host + ".com";
+      for (int page = 0; page < 100; page++) {
+        for (int nav = 0; nav < 20; nav++) {
+          outlinks.add(site + "/section" + nav + "/index.html");
+        }
+        outlinks.add(site + ":80/archive/" + page + "/../" + page + ".html");
+        outlinks.add(site + "/page" + page + ".html?PHPSESSID=0123456789abcdef");
+        outlinks.add(site + "//docs//page" + page + ".html#top");
+      }
+    }
+    return outlinks;
+  }
+
 }
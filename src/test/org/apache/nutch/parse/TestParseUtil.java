@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutch.parse;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.metadata.Metadata;
+import org.apache.nutch.protocol.Content;
+import org.apache.nutch.util.NutchConfiguration;
+
+/**
+ * Unit tests for the parser time limit of {@link ParseUtil}.
+ */
+public class TestParseUtil extends TestCase {
+
+  private static final String URL = "http://www.example.com/";
+
+  private Configuration conf;
+  private Content content;
+  private HangingParser hanging;
+
+  protected void setUp() throws Exception {
+    conf = NutchConfiguration.create();
+    conf.setInt("parser.timeout", 1);
+    content = new Content(URL, URL, "text".getBytes(), "text/plain",
+        new Metadata(), conf);
+    hanging = new HangingParser();
+  }
+
+  protected void tearDown() throws Exception {
+    hanging.release.countDown();
+    waitForRunaways();
+  }
+
+  /** A parser that times out is abandoned and the next one is tried. */
+  public void testTimeout() throws Exception {
+    ParseUtil parseUtil = new ParseUtil(conf);
+    ParseResult result = parseUtil.parse(
+        new Parser[] { hanging, new TextParser() }, content);
+    assertNotNull(result);
+    assertEquals("text", result.get(URL).getText());
+    assertEquals(1, ParseUtil.getRunawayParsers());
+
+    // the runaway parser is no longer counted once it returns
+    hanging.release.countDown();
+    waitForRunaways();
+    assertEquals(0, ParseUtil.getRunawayParsers());
+  }
+
+  /** Once all parser threads are taken a parse fails at once. */
+  public void testThreadLimit() throws Exception {
+    conf.setInt("parser.timeout.threads", 1);
+    ParseUtil parseUtil = new ParseUtil(conf);
+    assertNull(parseUtil.parse(new Parser[] { hanging }, content));
+    assertEquals(1, ParseUtil.getRunawayParsers());
+
+    long start = System.currentTimeMillis();
+    assertNull(parseUtil.parse(new Parser[] { new TextParser() }, content));
+    assertTrue(System.currentTimeMillis() - start < 1000);
+  }
+
+  private void waitForRunaways() throws InterruptedException {
+    for (int i = 0; i < 50 && ParseUtil.getRunawayParsers() > 0; i++) {
+      Thread.sleep(100);
+    }
+  }
+
+  /** A parser that ignores interrupts until it is released. */
+  private static class HangingParser extends TextParser {
+    CountDownLatch release = new CountDownLatch(1);
+
+    public ParseResult getParse(Content c) {
+      while (true) {
+        try {
+          release.await();
+          return null;
+        } catch (InterruptedException e) {
+          // ignored, like a parser stuck in a loop
+        }
+      }
+    }
+  }
+
+  /** A parser that returns the content as text. */
+  private static class TextParser implements Parser {
+    private Configuration conf;
+
+    public ParseResult getParse(Content c) {
+      ParseData data = new ParseData(ParseStatus.STATUS_SUCCESS, "",
+          new Outlink[0], new Metadata());
+      return ParseResult.createParseResult(c.getUrl(),
+          new ParseImpl(new String(c.getContent()), data));
+    }
+
+    public Configuration getConf() {
+      return conf;
+    }
+
+    public void setConf(Configuration conf) {
+      this.conf = conf;
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.protocol;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.nutch.util.NutchConfiguration;
+
+import junit.framework.TestCase;
+
+public class TestRobotRulesCache extends TestCase {
+
+  private Configuration conf;
+  private FileSystem fs;
+  private Path testdir = new Path("build/test/robots-cache-test");
+
+  protected void setUp() throws Exception {
+    conf = NutchConfiguration.create();
+    fs = FileSystem.get(conf);
+    fs.delete(testdir, true);
+  }
+
+  protected void tearDown() throws Exception {
+    fs.delete(testdir, true);
+  }
+
+  private RobotRulesCache createCache() {
+    return (RobotRulesCache)
+      ReflectionUtils.newInstance(RobotRulesCache.class, conf);
+  }
+
+  public void testEviction() {
+    conf.setInt("http.robots.cache.size", 2);
+    RobotRulesCache cache = createCache();
+    cache.put("a", new RobotRulesCache.Entry(200, null, null));
+    cache.put("b", new RobotRulesCache.Entry(200, null, null));
+    assertNotNull(cache.get("a"));              // b is now least recent
+    cache.put("c", new RobotRulesCache.Entry(200, null, null));
+    assertEquals(2, cache.size());
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+  }
+
+  public void testExpiry() throws Exception {
+    conf.setLong("http.robots.cache.negative.ttl", 0);
+    RobotRulesCache cache = createCache();
+    cache.put("ok", new RobotRulesCache.Entry(404, null, null));
+    cache.put("error", new RobotRulesCache.Entry(503, null, null));
+    cache.put("failed",
+      new RobotRulesCache.Entry(RobotRulesCache.STATUS_FAILED, null, null));
+    Thread.sleep(10);
+    assertNotNull(cache.get("ok"));
+    assertNull(cache.get("error"));
+    assertNull(cache.get("failed"));
+  }
+
+  public void testSaveAndLoad() throws Exception {
+    RobotRulesCache cache = createCache();
+    byte[] robots = "User-agent: *\nDisallow: /".getBytes();
+    cache.put("a", new RobotRulesCache.Entry(200, robots, null));
+    cache.put("b", new RobotRulesCache.Entry(404, null, null));
+    cache.save(new Path(testdir, "first"));
+    // saved entries are not written again
+    cache.save(new Path(testdir, "second"));
+    assertFalse(fs.exists(new Path(testdir, "second")));
+
+    RobotRulesCache loaded = createCache();
+    loaded.load(testdir);
+    assertEquals(2, loaded.size());
+    RobotRulesCache.Entry entry = loaded.get("a");
+    assertEquals(200, entry.getStatus());
+    assertEquals(new String(robots), new String(entry.getContent()));
+    assertEquals(cache.get("a").getExpireTime(), entry.getExpireTime());
+    assertNull(entry.getRules());
+    assertEquals(404, loaded.get("b").getStatus());
+  }
+
+}
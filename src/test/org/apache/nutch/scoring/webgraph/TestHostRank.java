@@ -0,0 +1,187 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.scoring.webgraph;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.crawl.CrawlDBTestUtil;
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.crawl.CrawlDb;
+import org.apache.nutch.crawl.CrawlDBTestUtil.URLCrawlDatum;
+import org.apache.nutch.util.NutchConfiguration;
+
+import junit.framework.TestCase;
+
+/** Test {@link HostRank} and blending its scores in the {@link ScoreUpdater}. */
+public class TestHostRank extends TestCase {
+
+  final static Path testdir = new Path("build/test/hostrank-test");
+
+  Configuration conf;
+
+  FileSystem fs;
+
+  Path webGraphDb;
+
+  protected void setUp() throws Exception {
+    conf = NutchConfiguration.create();
+    conf.set("fs.default.name", "file:///");
+    conf.setInt("link.analyze.num.iterations", 100);
+    conf.set("link.analyze.convergence.epsilon", "1e-7");
+    fs = FileSystem.get(conf);
+    fs.delete(testdir, true);
+
+    // three links from pages of a.com to b.com, one to c.com
+    Map<String, List<String>> graph = new TreeMap<String, List<String>>();
+    graph.put("http://a.com/1", list("http://b.com/", "http://c.com/"));
+    graph.put("http://a.com/2", list("http://b.com/", "http://a.com/1"));
+    graph.put("http://www.a.com/3", list("http://b.com/"));
+    graph.put("http://b.com/", list("http://a.com/1"));
+    webGraphDb = new Path(testdir, "webgraphdb");
+    TestLinkRank.createWebGraph(conf, fs, webGraphDb, graph, null);
+    new HostRank(conf).rank(webGraphDb);
+  }
+
+  protected void tearDown() throws Exception {
+    fs.delete(testdir, true);
+  }
+
+  private static List<String> list(String... urls) {
+    List<String> list = new ArrayList<String>();
+    for (String url : urls) {
+      list.add(url);
+    }
+    return list;
+  }
+
+  /** Read the weighted outlinks of an aggregated graph, as "to weight". */
+  private Map<String, List<String>> readOutlinks(Path graphDb)
+    throws Exception {
+    Map<String, List<String>> outlinks = new TreeMap<String, List<String>>();
+    Path[] parts = LinkGraph.getParts(fs, new Path(graphDb,
+                                                   WebGraph.OUTLINK_DIR));
+    for (int p = 0; p < parts.length; p++) {
+      MapFile.Reader reader = new MapFile.Reader(fs, parts[p].toString(),
+                                                 conf);
+      Text key = new Text();
+      LinkDatum link = new LinkDatum();
+      while (reader.next(key, link)) {
+        List<String> links = outlinks.get(key.toString());
+        if (links == null) {
+          links = new ArrayList<String>();
+          outlinks.put(key.toString(), links);
+        }
+        links.add(link.getUrl() + " " + link.getScore());
+      }
+      reader.close();
+    }
+    return outlinks;
+  }
+
+  public void testAggregate() throws Exception {
+    Map<String, List<String>> hosts = readOutlinks(new Path(webGraphDb,
+      HostRank.HOSTS_DIR));
+    assertEquals(list("b.com 2.0", "c.com 1.0"), hosts.get("a.com"));
+    assertEquals(list("a.com 1.0"), hosts.get("b.com"));
+    assertEquals(list("b.com 1.0"), hosts.get("www.a.com"));
+    assertEquals(3, hosts.size());
+
+    // links within a domain are dropped
+    Map<String, List<String>> domains = readOutlinks(new Path(webGraphDb,
+      HostRank.DOMAINS_DIR));
+    assertEquals(list("b.com 3.0", "c.com 1.0"), domains.get("a.com"));
+    assertEquals(list("a.com 1.0"), domains.get("b.com"));
+    assertEquals(2, domains.size());
+  }
+
+  public void testRank() throws Exception {
+    Map<String, Node> hosts = TestLinkRank.readNodes(conf, fs, new Path(
+      webGraphDb, HostRank.HOSTS_DIR));
+    assertEquals(4, hosts.size());
+    assertEquals(2, hosts.get("b.com").getNumInlinks());
+    assertEquals(2, hosts.get("a.com").getNumOutlinks());
+
+    // the scores are a fixed point of the weighted formula
+    float d = 0.85f;
+    float rankOne = 1f / 4;
+    float a = hosts.get("a.com").getInlinkScore();
+    float b = hosts.get("b.com").getInlinkScore();
+    float c = hosts.get("c.com").getInlinkScore();
+    float wwwA = hosts.get("www.a.com").getInlinkScore();
+    assertEquals((1 - d) + d * (rankOne + b), a, 1e-4f);
+    assertEquals((1 - d) + d * (rankOne + a * 2 / 3 + wwwA), b, 1e-4f);
+    assertEquals((1 - d) + d * (rankOne + a / 3), c, 1e-4f);
+    assertEquals((1 - d) + d * rankOne, wwwA, 1e-4f);
+    assertTrue(b > c);
+  }
+
+  public void testBlend() throws Exception {
+    Path crawlDb = new Path(testdir, "crawldb");
+    List<URLCrawlDatum> urls = new ArrayList<URLCrawlDatum>();
+    String[] keys = { "http://a.com/1", "http://a.com/new", "http://b.com/",
+      "http://z.com/" };
+    for (int i = 0; i < keys.length; i++) {
+      urls.add(new URLCrawlDatum(new Text(keys[i]), new CrawlDatum(
+        CrawlDatum.STATUS_DB_UNFETCHED, 0, 1.0f)));
+    }
+    CrawlDBTestUtil.createCrawlDb(conf, fs, crawlDb, urls);
+
+    conf.set("link.score.updater.clear.score", "0.1");
+    conf.set("link.score.updater.host.weight", "0.5");
+    conf.set("link.score.updater.domain.weight", "0.25");
+    ScoreUpdater updater = new ScoreUpdater();
+    updater.setConf(conf);
+    updater.update(crawlDb, webGraphDb);
+
+    Map<String, Node> hosts = TestLinkRank.readNodes(conf, fs, new Path(
+      webGraphDb, HostRank.HOSTS_DIR));
+    Map<String, Node> domains = TestLinkRank.readNodes(conf, fs, new Path(
+      webGraphDb, HostRank.DOMAINS_DIR));
+    float hostA = hosts.get("a.com").getInlinkScore();
+    float domainA = domains.get("a.com").getInlinkScore();
+    float hostB = hosts.get("b.com").getInlinkScore();
+    float domainB = domains.get("b.com").getInlinkScore();
+
+    Map<String, Float> scores = new TreeMap<String, Float>();
+    MapFile.Reader reader = new MapFile.Reader(fs, new Path(new Path(crawlDb,
+      CrawlDb.CURRENT_NAME), "part-00000").toString(), conf);
+    Text key = new Text();
+    CrawlDatum datum = new CrawlDatum();
+    while (reader.next(key, datum)) {
+      scores.put(key.toString(), datum.getScore());
+    }
+    reader.close();
+
+    // url scores from the node database are 0, new urls get the clear score
+    assertEquals(0.5f * hostA + 0.25f * domainA,
+                 scores.get("http://a.com/1"), 1e-6f);
+    assertEquals(0.025f + 0.5f * hostA + 0.25f * domainA,
+                 scores.get("http://a.com/new"), 1e-6f);
+    assertEquals(0.5f * hostB + 0.25f * domainB,
+                 scores.get("http://b.com/"), 1e-6f);
+    assertEquals(0.1f, scores.get("http://z.com/"), 1e-6f);
+  }
+
+}
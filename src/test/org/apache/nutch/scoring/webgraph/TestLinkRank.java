@@ -0,0 +1,237 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.scoring.webgraph;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.scoring.webgraph.Loops.LoopSet;
+import org.apache.nutch.util.NutchConfiguration;
+
+import junit.framework.TestCase;
+
+/** Test the MapReduce and the local {@link LinkRank}. */
+public class TestLinkRank extends TestCase {
+
+  final static Path testdir = new Path("build/test/linkrank-test");
+
+  Configuration conf;
+
+  FileSystem fs;
+
+  protected void setUp() throws Exception {
+    conf = NutchConfiguration.create();
+    conf.set("fs.default.name", "file:///");
+    conf.setInt("link.analyze.num.iterations", 3);
+    fs = FileSystem.get(conf);
+    fs.delete(testdir, true);
+  }
+
+  protected void tearDown() throws Exception {
+    fs.delete(testdir, true);
+  }
+
+  /** A random graph of pages on a few sites, with a few loops. */
+  static Map<String, List<String>> createGraph(int numSites, int numPages,
+                                               int numLinks, long seed) {
+    Random random = new Random(seed);
+    List<String> urls = new ArrayList<String>();
+    for (int s = 0; s < numSites; s++) {
+      for (int p = 0; p < numPages; p++) {
+        urls.add("http://www.site" + s + ".com/" + p + ".html");
+      }
+    }
+    Map<String, List<String>> graph = new TreeMap<String, List<String>>();
+    for (String url : urls) {
+      Set<String> outlinks = new HashSet<String>();
+      int n = random.nextInt(numLinks + 1);
+      for (int i = 0; i < n; i++) {
+        String to = urls.get(random.nextInt(urls.size()));
+        if (!to.equals(url)) {
+          outlinks.add(to);
+        }
+      }
+      graph.put(url, new ArrayList<String>(outlinks));
+    }
+    return graph;
+  }
+
+  /** Write the OutlinkDb, NodeDb and LoopSets of a graph. */
+  static void createWebGraph(Configuration conf, FileSystem fs, Path webGraphDb,
+                             Map<String, List<String>> graph,
+                             Map<String, Set<String>> loops) throws Exception {
+    Map<String, Node> nodes = new TreeMap<String, Node>();
+    MapFile.Writer outlinks = new MapFile.Writer(conf, fs,
+      new Path(new Path(webGraphDb, WebGraph.OUTLINK_DIR), "part-00000")
+        .toString(), Text.class, LinkDatum.class);
+    for (Map.Entry<String, List<String>> entry : graph.entrySet()) {
+      Node from = getNode(nodes, entry.getKey());
+      for (String url : entry.getValue()) {
+        LinkDatum link = new LinkDatum(url, "", 1L);
+        link.setLinkType(LinkDatum.OUTLINK);
+        outlinks.append(new Text(entry.getKey()), link);
+        from.setNumOutlinks(from.getNumOutlinks() + 1);
+        Node to = getNode(nodes, url);
+        to.setNumInlinks(to.getNumInlinks() + 1);
+      }
+    }
+    outlinks.close();
+
+    MapFile.Writer writer = new MapFile.Writer(conf, fs,
+      new Path(new Path(webGraphDb, WebGraph.NODE_DIR), "part-00000")
+        .toString(), Text.class, Node.class);
+    for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+      writer.append(new Text(entry.getKey()), entry.getValue());
+    }
+    writer.close();
+
+    if (loops != null) {
+      writer = new MapFile.Writer(conf, fs,
+        new Path(new Path(webGraphDb, Loops.LOOPS_DIR), "part-00000")
+          .toString(), Text.class, LoopSet.class);
+      for (Map.Entry<String, Set<String>> entry
+             : new TreeMap<String, Set<String>>(loops).entrySet()) {
+        LoopSet loopSet = new LoopSet();
+        loopSet.setLoopSet(entry.getValue());
+        writer.append(new Text(entry.getKey()), loopSet);
+      }
+      writer.close();
+    }
+  }
+
+  private static Node getNode(Map<String, Node> nodes, String url) {
+    Node node = nodes.get(url);
+    if (node == null) {
+      node = new Node();
+      node.setInlinkScore(0.0f);
+      nodes.put(url, node);
+    }
+    return node;
+  }
+
+  /** Read the NodeDb of a WebGraph. */
+  static Map<String, Node> readNodes(Configuration conf, FileSystem fs,
+                                     Path webGraphDb) throws Exception {
+    Map<String, Node> nodes = new TreeMap<String, Node>();
+    Path[] parts = LinkGraph.getParts(fs, new Path(webGraphDb,
+                                                   WebGraph.NODE_DIR));
+    for (int p = 0; p < parts.length; p++) {
+      MapFile.Reader reader = new MapFile.Reader(fs, parts[p].toString(),
+                                                 conf);
+      Text key = new Text();
+      Node node = new Node();
+      while (reader.next(key, node)) {
+        nodes.put(key.toString(), node);
+        node = new Node();
+      }
+      reader.close();
+    }
+    return nodes;
+  }
+
+  /** Run LinkRank on two copies of a graph, as jobs and locally. */
+  private void assertSameScores(Map<String, List<String>> graph,
+                                Map<String, Set<String>> loops,
+                                float tolerance) throws Exception {
+    Path jobDb = new Path(testdir, "job");
+    Path localDb = new Path(testdir, "local");
+    createWebGraph(conf, fs, jobDb, graph, loops);
+    createWebGraph(conf, fs, localDb, graph, loops);
+
+    new LinkRank(conf).analyze(jobDb);
+    Configuration local = new Configuration(conf);
+    local.setBoolean("link.analyze.local", true);
+    local.setInt("link.analyze.local.threads", 3);
+    new LinkRank(local).analyze(localDb);
+
+    Map<String, Node> expected = readNodes(conf, fs, jobDb);
+    Map<String, Node> actual = readNodes(conf, fs, localDb);
+    assertEquals(expected.keySet(), actual.keySet());
+    for (String url : expected.keySet()) {
+      Node node = actual.get(url);
+      assertEquals(url, expected.get(url).getInlinkScore(),
+                   node.getInlinkScore(), tolerance);
+      assertEquals(url, expected.get(url).getNumInlinks(),
+                   node.getNumInlinks());
+      assertEquals(url, expected.get(url).getNumOutlinks(),
+                   node.getNumOutlinks());
+    }
+  }
+
+  public void testLocal() throws Exception {
+    conf.setBoolean("link.ignore.limit.page", false);
+    conf.setBoolean("link.ignore.limit.domain", false);
+    Map<String, List<String>> graph = createGraph(8, 5, 6, 1L);
+    Map<String, Set<String>> loops = new TreeMap<String, Set<String>>();
+    for (String url : graph.keySet()) {
+      List<String> outlinks = graph.get(url);
+      if (url.hashCode() % 3 == 0 && !outlinks.isEmpty()) {
+        loops.put(url, new HashSet<String>(outlinks.subList(0, 1)));
+      }
+    }
+    assertSameScores(graph, loops, 1e-5f);
+  }
+
+  /** Pages of one site count once, whichever of them the jobs count. */
+  public void testLocalDuplicates() throws Exception {
+    Map<String, List<String>> graph = new TreeMap<String, List<String>>();
+    List<String> toB = new ArrayList<String>();
+    toB.add("http://b.com/");
+    graph.put("http://a.com/1", toB);
+    graph.put("http://a.com/2", toB);
+    graph.put("http://www.a.com/3", toB);
+    List<String> toA = new ArrayList<String>();
+    toA.add("http://a.com/1");
+    toA.add("http://a.com/2");
+    toA.add("http://www.a.com/3");
+    graph.put("http://b.com/", toA);
+    assertSameScores(graph, null, 1e-5f);
+  }
+
+  public void testConvergence() throws Exception {
+    conf.set("link.analyze.damping.factor", "0.5");
+    conf.setInt("link.analyze.num.iterations", 100);
+    conf.set("link.analyze.convergence.epsilon", "1e-4");
+    assertSameScores(createGraph(8, 5, 6, 2L), null, 1e-3f);
+  }
+
+  /** Propagating deltas gives about the scores of full propagation. */
+  public void testDeltas() throws Exception {
+    conf.set("link.analyze.damping.factor", "0.5");
+    conf.setInt("link.analyze.num.iterations", 100);
+    conf.set("link.analyze.convergence.epsilon", "1e-5");
+    conf.set("link.analyze.delta.threshold", "1e-4");
+    assertSameScores(createGraph(8, 5, 6, 3L), null, 1e-3f);
+
+    // the bookkeeping of deltas is removed
+    Map<String, Node> nodes = readNodes(conf, fs, new Path(testdir, "job"));
+    for (Node node : nodes.values()) {
+      assertEquals(0, node.getMetadata().size());
+    }
+  }
+
+}
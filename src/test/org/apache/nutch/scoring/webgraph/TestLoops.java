@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.scoring.webgraph;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.scoring.webgraph.Loops.LoopSet;
+import org.apache.nutch.util.NutchConfiguration;
+
+import junit.framework.TestCase;
+
+/** Test the MapReduce and the local {@link Loops}. */
+public class TestLoops extends TestCase {
+
+  final static Path testdir = new Path("build/test/loops-test");
+
+  Configuration conf;
+
+  FileSystem fs;
+
+  protected void setUp() throws Exception {
+    conf = NutchConfiguration.create();
+    conf.set("fs.default.name", "file:///");
+    fs = FileSystem.get(conf);
+    fs.delete(testdir, true);
+  }
+
+  protected void tearDown() throws Exception {
+    fs.delete(testdir, true);
+  }
+
+  /** Read the loops database of a WebGraph. */
+  private Map<String, Set<String>> readLoops(Path webGraphDb)
+    throws Exception {
+    Map<String, Set<String>> loops = new TreeMap<String, Set<String>>();
+    Path[] parts = LinkGraph.getParts(fs, new Path(webGraphDb,
+                                                   Loops.LOOPS_DIR));
+    for (int p = 0; p < parts.length; p++) {
+      MapFile.Reader reader = new MapFile.Reader(fs, parts[p].toString(),
+                                                 conf);
+      Text key = new Text();
+      LoopSet loopSet = new LoopSet();
+      while (reader.next(key, loopSet)) {
+        loops.put(key.toString(), new TreeSet<String>(loopSet.getLoopSet()));
+      }
+      reader.close();
+    }
+    return loops;
+  }
+
+  /** Find the loops of a graph with the jobs and locally. */
+  private Map<String, Set<String>> assertSameLoops(
+    Map<String, List<String>> graph) throws Exception {
+    Path jobDb = new Path(testdir, "job");
+    Path localDb = new Path(testdir, "local");
+    fs.delete(testdir, true);
+    TestLinkRank.createWebGraph(conf, fs, jobDb, graph, null);
+    TestLinkRank.createWebGraph(conf, fs, localDb, graph, null);
+
+    Configuration job = new Configuration(conf);
+    Loops loops = new Loops();
+    loops.setConf(job);
+    loops.findLoops(jobDb);
+    Configuration local = new Configuration(conf);
+    local.setBoolean("link.loops.local", true);
+    local.setInt("link.analyze.local.threads", 3);
+    loops.setConf(local);
+    loops.findLoops(localDb);
+
+    Map<String, Set<String>> expected = readLoops(jobDb);
+    assertEquals(expected, readLoops(localDb));
+    return expected;
+  }
+
+  private static List<String> list(String... urls) {
+    List<String> list = new ArrayList<String>();
+    for (String url : urls) {
+      list.add(url);
+    }
+    return list;
+  }
+
+  public void testLoops() throws Exception {
+    Map<String, List<String>> graph = new TreeMap<String, List<String>>();
+    graph.put("http://a.com/", list("http://b.com/", "http://e.com/"));
+    graph.put("http://b.com/", list("http://a.com/", "http://c.com/"));
+    graph.put("http://c.com/", list("http://d.com/"));
+    graph.put("http://d.com/", list("http://b.com/"));
+    graph.put("http://e.com/", list("http://f.com/"));
+    graph.put("http://f.com/", list("http://g.com/"));
+    graph.put("http://g.com/", list("http://h.com/"));
+    graph.put("http://h.com/", list("http://a.com/"));
+    Map<String, Set<String>> loops = assertSameLoops(graph);
+
+    // the reciprocal link and the loop of 3, not the loop of 5
+    assertEquals(4, loops.size());
+    assertEquals(new TreeSet<String>(list("http://b.com/")),
+                 loops.get("http://a.com/"));
+    assertEquals(new TreeSet<String>(list("http://a.com/", "http://c.com/")),
+                 loops.get("http://b.com/"));
+
+    // deeper searches find the long loop too
+    conf.setInt("link.loops.depth", 4);
+    loops = assertSameLoops(graph);
+    assertEquals(8, loops.size());
+    assertEquals(new TreeSet<String>(list("http://b.com/", "http://e.com/")),
+                 loops.get("http://a.com/"));
+  }
+
+  public void testRandom() throws Exception {
+    assertSameLoops(TestLinkRank.createGraph(6, 5, 3, 4L));
+    conf.setInt("link.loops.depth", 3);
+    assertSameLoops(TestLinkRank.createGraph(6, 5, 2, 5L));
+  }
+
+}
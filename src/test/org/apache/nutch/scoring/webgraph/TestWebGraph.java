@@ -0,0 +1,208 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.scoring.webgraph;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.metadata.Metadata;
+import org.apache.nutch.metadata.Nutch;
+import org.apache.nutch.parse.Outlink;
+import org.apache.nutch.parse.ParseData;
+import org.apache.nutch.parse.ParseStatus;
+import org.apache.nutch.util.NutchConfiguration;
+
+import junit.framework.TestCase;
+
+/** Test full and incremental updates of the {@link WebGraph}. */
+public class TestWebGraph extends TestCase {
+
+  final static Path testdir = new Path("build/test/webgraph-test");
+
+  Configuration conf;
+
+  FileSystem fs;
+
+  Path[] segments;
+
+  protected void setUp() throws Exception {
+    conf = NutchConfiguration.create();
+    conf.set("fs.default.name", "file:///");
+    fs = FileSystem.get(conf);
+    fs.delete(testdir, true);
+
+    // outlinks as url, outlink, anchor, outlink, anchor, ...
+    segments = new Path[3];
+    segments[0] = createSegment("20090101000000", 1000L, new String[][] {
+      { "http://a.com/", "http://b.com/", "x", "http://c.com/", "" },
+      { "http://b.com/", "http://c.com/", "y" },
+      { "http://c.com/", "http://a.com/", "" },
+      { "http://d.com/", "http://a.com/", "z" } });
+    segments[1] = createSegment("20090102000000", 2000L, new String[][] {
+      { "http://a.com/", "http://c.com/", "", "http://e.com/", "" },
+      { "http://b.com/", "http://c.com/", "new anchor" },
+      { "http://f.com/", "http://b.com/", "" } });
+    segments[2] = createSegment("20090103000000", 3000L, new String[][] {
+      { "http://d.com/", "http://b.com/", "w" } });
+  }
+
+  protected void tearDown() throws Exception {
+    fs.delete(testdir, true);
+  }
+
+  private Path createSegment(String name, long fetchTime, String[][] pages)
+    throws Exception {
+    Path segment = new Path(testdir, name);
+    MapFile.Writer writer = new MapFile.Writer(conf, fs,
+      new Path(new Path(segment, ParseData.DIR_NAME), "part-00000").toString(),
+      Text.class, ParseData.class);
+    for (int i = 0; i < pages.length; i++) {
+      Outlink[] outlinks = new Outlink[(pages[i].length - 1) / 2];
+      for (int j = 0; j < outlinks.length; j++) {
+        outlinks[j] = new Outlink(pages[i][2 * j + 1], pages[i][2 * j + 2]);
+      }
+      Metadata contentMeta = new Metadata();
+      contentMeta.set(Nutch.FETCH_TIME_KEY, Long.toString(fetchTime));
+      writer.append(new Text(pages[i][0]), new ParseData(
+        ParseStatus.STATUS_SUCCESS, "", outlinks, contentMeta));
+    }
+    writer.close();
+    return segment;
+  }
+
+  /** The inlinks of a WebGraph, as "to from anchor". */
+  private Set<String> readInlinks(Path webGraphDb) throws Exception {
+    Set<String> inlinks = new TreeSet<String>();
+    Path[] parts = LinkGraph.getParts(fs, new Path(webGraphDb,
+                                                   WebGraph.INLINK_DIR));
+    for (int p = 0; p < parts.length; p++) {
+      MapFile.Reader reader = new MapFile.Reader(fs, parts[p].toString(),
+                                                 conf);
+      Text key = new Text();
+      LinkDatum inlink = new LinkDatum();
+      while (reader.next(key, inlink)) {
+        assertEquals(LinkDatum.INLINK, inlink.getLinkType());
+        inlinks.add(key + " " + inlink.getUrl() + " " + inlink.getAnchor());
+      }
+      reader.close();
+    }
+    return inlinks;
+  }
+
+  /** The link counts of the nodes of a WebGraph. */
+  private Map<String, String> readCounts(Path webGraphDb) throws Exception {
+    Map<String, String> counts = new TreeMap<String, String>();
+    Map<String, Node> nodes = TestLinkRank.readNodes(conf, fs, webGraphDb);
+    for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+      counts.put(entry.getKey(), entry.getValue().getNumInlinks() + " "
+                 + entry.getValue().getNumOutlinks());
+    }
+    return counts;
+  }
+
+  private void update(Path webGraphDb, int segment, boolean incremental)
+    throws Exception {
+    Configuration job = new Configuration(conf);
+    job.setBoolean("link.update.incremental", incremental);
+    WebGraph webGraph = new WebGraph();
+    webGraph.setConf(job);
+    webGraph.createWebGraph(webGraphDb, new Path[] { segments[segment] });
+  }
+
+  public void testIncremental() throws Exception {
+    conf.setInt("link.update.compaction.deltas", 2);
+    Path full = new Path(testdir, "full");
+    Path incremental = new Path(testdir, "incremental");
+    update(full, 0, false);
+    update(full, 1, false);
+    update(incremental, 0, true);
+    update(incremental, 1, true);
+
+    // node counts are up to date, the inlinks are in a delta
+    assertEquals(readCounts(full), readCounts(incremental));
+    Path deltas = new Path(incremental, WebGraph.INLINK_DELTA_DIR);
+    assertEquals(1, fs.listStatus(deltas).length);
+    assertTrue(readInlinks(incremental).contains("http://b.com/ http://a.com/ x"));
+    assertEquals(6, readCounts(full).size());
+    assertEquals("2 1", readCounts(full).get("http://c.com/"));
+
+    // an update without changes writes no delta
+    update(incremental, 1, true);
+    assertEquals(1, fs.listStatus(deltas).length);
+    assertEquals(readCounts(full), readCounts(incremental));
+
+    // the second delta is compacted into the inlinks
+    update(incremental, 2, true);
+    update(full, 2, false);
+    assertFalse(fs.exists(deltas));
+    assertEquals(readInlinks(full), readInlinks(incremental));
+    assertEquals(readCounts(full), readCounts(incremental));
+  }
+
+  /** The names in a directory of a WebGraph that start with a prefix. */
+  private int count(Path dir, String prefix) throws Exception {
+    int count = 0;
+    FileStatus[] files = fs.listStatus(dir);
+    for (int i = 0; i < files.length; i++) {
+      if (files[i].getPath().getName().startsWith(prefix)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /** An update that failed in the NodeDb job is finished by the next one. */
+  public void testFailedUpdate() throws Exception {
+    Path full = new Path(testdir, "full");
+    Path incremental = new Path(testdir, "incremental");
+    update(full, 0, false);
+    update(full, 1, false);
+    update(full, 2, false);
+    update(incremental, 0, true);
+
+    // a part that is not a MapFile makes the NodeDb job fail
+    Path broken = new Path(new Path(incremental, WebGraph.NODE_DIR),
+                           "part-99999");
+    FSDataOutputStream out = fs.create(broken);
+    out.writeBytes("not a map file");
+    out.close();
+    try {
+      update(incremental, 1, true);
+      fail("NodeDb update did not fail");
+    } catch (IOException e) {
+      // expected
+    }
+    assertEquals(1, count(incremental, "inlinks-diff-"));
+    assertEquals(0, count(new Path(incremental, WebGraph.OUTLINK_DIR), "_"));
+
+    fs.delete(broken, true);
+    update(incremental, 2, true);
+    assertEquals(0, count(incremental, "inlinks-diff-"));
+    assertEquals(readCounts(full), readCounts(incremental));
+  }
+
+}
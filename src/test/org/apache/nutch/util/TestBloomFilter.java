@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.util;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+
+import junit.framework.TestCase;
+
+/** Unit tests for BloomFilter. */
+public class TestBloomFilter extends TestCase {
+
+  private static final int NUM_KEYS = 10000;
+
+  private static byte[] key(int i) {
+    return ("http://www.example.com/" + i + ".html").getBytes();
+  }
+
+  public void testFilter() throws Exception {
+    BloomFilter filter = new BloomFilter(NUM_KEYS, 0.01);
+    for (int i = 0; i < NUM_KEYS; i++) {
+      byte[] key = key(i);
+      filter.add(key, 0, key.length);
+    }
+
+    DataOutputBuffer out = new DataOutputBuffer();
+    filter.write(out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    BloomFilter read = new BloomFilter();
+    read.readFields(in);
+    assertEquals(filter.getSize(), read.getSize());
+
+    for (int i = 0; i < NUM_KEYS; i++) {
+      byte[] key = key(i);
+      assertTrue(read.mightContain(key, 0, key.length));
+    }
+    int falsePositives = 0;
+    for (int i = NUM_KEYS; i < 2 * NUM_KEYS; i++) {
+      byte[] key = key(i);
+      if (read.mightContain(key, 0, key.length)) {
+        falsePositives++;
+      }
+    }
+    assertTrue("false positives: " + falsePositives,
+               falsePositives < NUM_KEYS * 0.02);
+  }
+
+  public void testEmpty() {
+    BloomFilter filter = new BloomFilter(0, 0.01);
+    byte[] key = key(0);
+    assertFalse(filter.mightContain(key, 0, key.length));
+  }
+
+}